@@ -38,6 +38,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 
 import androidx.annotation.CheckResult;
@@ -94,12 +95,14 @@ import com.ichi2.anki.cardviewer.Gesture;
 import com.ichi2.anki.cardviewer.GestureProcessor;
 import com.ichi2.anki.cardviewer.MissingImageHandler;
 import com.ichi2.anki.cardviewer.OnRenderProcessGoneDelegate;
+import com.ichi2.anki.cardviewer.PreRenderedCards;
 import com.ichi2.anki.cardviewer.ViewerCommand;
 import com.ichi2.anki.dialogs.tags.TagsDialog;
 import com.ichi2.anki.dialogs.tags.TagsDialogFactory;
 import com.ichi2.anki.dialogs.tags.TagsDialogListener;
 import com.ichi2.anki.multimediacard.AudioView;
 import com.ichi2.anki.cardviewer.CardAppearance;
+import com.ichi2.anki.cardviewer.CardRenderer;
 import com.ichi2.anki.receiver.SdCardReceiver;
 import com.ichi2.anki.reviewer.CardMarker;
 import com.ichi2.anki.cardviewer.CardTemplate;
@@ -107,8 +110,10 @@ import com.ichi2.anki.reviewer.FullScreenMode;
 import com.ichi2.anki.reviewer.ReviewerCustomFonts;
 import com.ichi2.anki.reviewer.ReviewerUi;
 import com.ichi2.anki.cardviewer.TypedAnswer;
+import com.ichi2.async.Cancellable;
 import com.ichi2.async.CollectionTask;
 import com.ichi2.async.TaskListener;
+import com.ichi2.async.TaskListenerWithContext;
 import com.ichi2.async.TaskManager;
 import com.ichi2.compat.CompatHelper;
 import com.ichi2.libanki.Decks;
@@ -118,12 +123,11 @@ import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Consts;
 import com.ichi2.libanki.DeckConfig;
+import com.ichi2.libanki.Media;
 import com.ichi2.libanki.Note;
 import com.ichi2.libanki.Sound;
 import com.ichi2.libanki.Utils;
-import com.ichi2.libanki.template.MathJax;
 import com.ichi2.libanki.template.TemplateFilters;
-import com.ichi2.themes.HtmlColors;
 import com.ichi2.themes.Themes;
 import com.ichi2.ui.FixedEditText;
 import com.ichi2.utils.AdaptionUtil;
@@ -154,6 +158,10 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -239,6 +247,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
     private FullScreenMode mPrefFullscreenReview = FullScreenMode.getDEFAULT();
     private int mRelativeButtonSize;
     private boolean mDoubleScrolling;
+    private boolean mPrefDoubleBuffering;
     private boolean mScrollingButtons;
     private boolean mGesturesEnabled;
     private boolean mLargeAnswerButtons;
@@ -283,12 +292,34 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
     private boolean mAnswerSoundsAdded = false;
 
     private CardTemplate mCardTemplate;
+    /** The HTML of the next cards, rendered while the current card is reviewed */
+    private final PreRenderedCards mPreRenderedCards = new PreRenderedCards();
+    /** Loads the most likely next card, on the collection thread */
+    @Nullable
+    private Cancellable mPreloadTask;
+    /** Renders the most likely next card, so that it does not delay the tasks of the collection */
+    private final ExecutorService mRenderExecutor = Executors.newSingleThreadExecutor();
+    @Nullable
+    private Future<?> mPreRender;
 
     /**
      * Variables to hold layout objects that we need to update or handle events for
      */
     private View mLookUpIcon;
     private WebView mCardWebView;
+    /**
+     * With double buffering, a WebView hidden behind mCardWebView. The side which is most likely shown next is loaded
+     * into it, and it replaces mCardWebView if this side is shown.
+     */
+    @Nullable
+    private WebView mSpareWebView;
+    /** The document loaded into mSpareWebView */
+    @Nullable
+    private String mSpareContent;
+    /** Whether mSpareWebView finished loading. The page is only told so once it is shown, so that its hooks run then. */
+    private boolean mSparePageFinished;
+    /** The id of the most likely next card, whose question is loaded into mSpareWebView once the answer is shown */
+    private long mNextCardId;
     private FrameLayout mCardFrame;
     private FrameLayout mTouchLayer;
     private TextView mChosenAnswer;
@@ -600,8 +631,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             }
 
             mCurrentCard = card;
-            TaskManager.launchCollectionTask(new CollectionTask.PreloadNextCard()); // Tasks should always be launched from GUI. So in
-                                                                    // listener and not in background
+            preloadNextCards(); // Tasks should always be launched from GUI. So in listener and not in background
             if (mCurrentCard == null) {
                 // If the card is null means that there are no more cards scheduled for review.
                 mNoMoreCards = true;
@@ -669,6 +699,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
                 hideProgressBar();
                 AbstractFlashcardViewer.this.unblockControls();
                 AbstractFlashcardViewer.this.displayCardQuestion();
+                preloadNextCards();
             }
         }
 
@@ -1095,6 +1126,10 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             mCardFrame.removeAllViews();
         }
         destroyWebView(mCardWebView); //OK to do without a lock
+        destroyWebView(mSpareWebView);
+        mSpareWebView = null;
+        cancelPreloading();
+        mRenderExecutor.shutdownNow();
     }
 
 
@@ -1249,6 +1284,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
            The card could have been rescheduled, the deck could have changed, or a change of
            note type could have lead to the card being deleted */
         if (data != null && data.hasExtra("reloadRequired")) {
+            mPreRenderedCards.clear();
             performReload();
         }
 
@@ -1256,6 +1292,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             if (resultCode == RESULT_OK) {
                 // content of note was changed so update the note and current card
                 Timber.i("AbstractFlashcardViewer:: Saving card...");
+                mPreRenderedCards.clear();
                 TaskManager.launchCollectionTask(
                         new CollectionTask.UpdateNote(sEditorCard, true, canAccessScheduler()),
                         mUpdateCardHandler);
@@ -1375,6 +1412,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
 
     protected void undo() {
         if (isUndoAvailable()) {
+            mPreRenderedCards.clear();
             TaskManager.launchCollectionTask(new CollectionTask.Undo(), new AnswerCardHandler(false));
         }
     }
@@ -1526,6 +1564,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         mSoundPlayer.stopSounds();
         mCurrentEase = ease;
 
+        cancelPreloading();
         TaskManager.launchCollectionTask(new CollectionTask.AnswerAndGetCard(mCurrentCard, mCurrentEase), new AnswerCardHandler(true));
     }
 
@@ -1929,6 +1968,7 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         mPrefWaitQuestionSecond = preferences.getInt("timeoutQuestionSeconds", 60);
         mScrollingButtons = preferences.getBoolean("scrolling_buttons", false);
         mDoubleScrolling = preferences.getBoolean("double_scrolling", false);
+        mPrefDoubleBuffering = preferences.getBoolean("doubleBufferedDisplay", false);
         mPrefShowTopbar = preferences.getBoolean("showTopbar", true);
         mFocusTypeAnswer = preferences.getBoolean("autoFocusTypeInAnswer", false);
         mLargeAnswerButtons = preferences.getBoolean("showLargeAnswerButtons", false);
@@ -2000,6 +2040,14 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         if (mCardWebView.getVisibility() != View.VISIBLE) {
             mCardWebView.setVisibility(View.VISIBLE);
         }
+        if (mPrefDoubleBuffering && mSpareWebView == null) {
+            mSpareWebView = createWebView();
+            // INVISIBLE and not GONE, so that the page is laid out as it will be shown
+            mSpareWebView.setVisibility(View.INVISIBLE);
+            mCardFrame.addView(mSpareWebView, 0);
+            mGestureDetectorImpl.onWebViewCreated(mSpareWebView);
+            mSpareContent = null;
+        }
     }
 
 
@@ -2345,32 +2393,13 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             }
         }
 
-        String content = Sound.expandSounds(mBaseUrl, newContent);
-
-        content = CardAppearance.fixBoldStyle(content);
-
-        Timber.v("content card = \n %s", content);
-
-        String style = mCardAppearance.getStyle();
-        Timber.v("::style:: / %s", style);
-
-        // CSS class for card-specific styling
-        String cardClass = mCardAppearance.getCardClass(mCurrentCard.getOrd() + 1, Themes.getCurrentTheme(this));
-
-        String scripts = "";
-        if (MathJax.textContainsMathjax(content)) {
-            cardClass += " mathjax-needs-to-render";
-            scripts += "        <script src=\"file:///android_asset/mathjax/conf.js\"> </script>\n" +
-                    "        <script src=\"file:///android_asset/mathjax/tex-chtml.js\"> </script>";
-        }
-
-        if (isInNightMode()) {
-            if (!mCardAppearance.hasUserDefinedNightMode(mCurrentCard)) {
-                content = HtmlColors.invertColors(content);
-            }
+        String cardContent = mPreRenderedCards.get(mCurrentCard.getId(), sDisplayAnswer, newContent);
+        if (cardContent == null) {
+            cardContent = renderCard(mCurrentCard, newContent);
+        } else {
+            Timber.d("Showing the pre-rendered card");
         }
-
-        mCardContent = mCardTemplate.render(content, style, scripts, cardClass);
+        mCardContent = cardContent;
         Timber.d("base url = %s", mBaseUrl);
 
         if (AnkiDroidApp.getSharedPrefs(this).getBoolean("html_javascript_debugging", false)) {
@@ -2388,6 +2417,157 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         playSounds(false); // Play sounds if appropriate
     }
 
+    /**
+     * @param card The card which is displayed
+     * @param newContent The content of the side of the card, as in {@link #updateCard}
+     * @return The document displayed by the WebView
+     */
+    private String renderCard(@NonNull Card card, @NonNull String newContent) {
+        boolean userDefinedNightMode = isInNightMode() && mCardAppearance.hasUserDefinedNightMode(card);
+        return newCardRenderer().render(card.getOrd(), userDefinedNightMode, newContent);
+    }
+
+
+    /** @return A renderer with the current settings of the viewer, which can be used by any thread */
+    @NonNull
+    private CardRenderer newCardRenderer() {
+        return new CardRenderer(mCardTemplate, mCardAppearance, mBaseUrl, Themes.getCurrentTheme(this));
+    }
+
+
+    /**
+     * Preload the most likely next card on the collection thread, then render its question and answer in the
+     * background as they will be displayed, so that showing it only loads the WebView.
+     */
+    private void preloadNextCards() {
+        cancelPreloading();
+        mPreloadTask = TaskManager.launchCollectionTask(new CollectionTask.PreloadNextCard(), new PreloadHandler(this));
+    }
+
+
+    /** Stops preloading and rendering the next card, so that an answer is not delayed by them */
+    private void cancelPreloading() {
+        if (mPreloadTask != null) {
+            mPreloadTask.cancel(false);
+            mPreloadTask = null;
+        }
+        if (mPreRender != null) {
+            mPreRender.cancel(true);
+            mPreRender = null;
+        }
+    }
+
+
+    private static class PreloadHandler extends TaskListenerWithContext<AbstractFlashcardViewer, Void, Card> {
+        public PreloadHandler(AbstractFlashcardViewer viewer) {
+            super(viewer);
+        }
+
+
+        @Override
+        public void actualOnPreExecute(@NonNull AbstractFlashcardViewer viewer) {
+            // intentionally blank
+        }
+
+
+        @Override
+        public void actualOnPostExecute(@NonNull AbstractFlashcardViewer viewer, @Nullable Card nextCard) {
+            viewer.mPreloadTask = null;
+            viewer.preRenderCard(nextCard);
+        }
+    }
+
+
+    /**
+     * Render both sides of a card in the background, as {@link #displayCardQuestion} and {@link #displayCardAnswer}
+     * would, then load the side shown next into the spare WebView.
+     * Called on the UI thread, which reads the settings of the viewer and the content of the sides.
+     * @param card The most likely next card, whose question and answer are loaded, or null
+     */
+    private void preRenderCard(@Nullable Card card) {
+        mNextCardId = card != null ? card.getId() : 0;
+        // The answer of the current card may already be rendered
+        loadSpareWebView();
+        if (card == null || mCardTemplate == null || card.isEmpty()) {
+            return;
+        }
+        try {
+            String question = card.q();
+            // What is shown for the typed answer depends on the state of the viewer when the card is displayed
+            if (sTypeAnsPat.matcher(question).find()) {
+                return;
+            }
+            Media media = getCol().getMedia();
+            String questionContent = CardAppearance.enrichWithQADiv(media.escapeImages(question), false);
+            String answerContent = CardAppearance.enrichWithQADiv(media.escapeImages(card.a()), true);
+            boolean userDefinedNightMode = isInNightMode() && mCardAppearance.hasUserDefinedNightMode(card);
+            mPreRender = mRenderExecutor.submit(new PreRenderTask(this, newCardRenderer(), card.getId(), card.getOrd(),
+                    userDefinedNightMode, questionContent, answerContent));
+        } catch (RuntimeException e) {
+            // The card is rendered again when it is displayed
+            Timber.w(e, "Failed to pre-render card %d", card.getId());
+        }
+    }
+
+
+    /**
+     * Renders both sides of a card into {@link #mPreRenderedCards}. It only references the viewer weakly, to load the
+     * spare WebView on the UI thread once the card is rendered.
+     */
+    private static class PreRenderTask implements Runnable {
+        private final WeakReference<AbstractFlashcardViewer> mViewer;
+        private final PreRenderedCards mPreRenderedCards;
+        private final CardRenderer mRenderer;
+        private final long mCid;
+        private final int mOrd;
+        private final boolean mUserDefinedNightMode;
+        private final String mQuestionContent;
+        private final String mAnswerContent;
+
+
+        private PreRenderTask(@NonNull AbstractFlashcardViewer viewer, @NonNull CardRenderer renderer, long cid, int ord,
+                              boolean userDefinedNightMode, @NonNull String questionContent, @NonNull String answerContent) {
+            mViewer = new WeakReference<>(viewer);
+            mPreRenderedCards = viewer.mPreRenderedCards;
+            mRenderer = renderer;
+            mCid = cid;
+            mOrd = ord;
+            mUserDefinedNightMode = userDefinedNightMode;
+            mQuestionContent = questionContent;
+            mAnswerContent = answerContent;
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                preRenderSide(false, mQuestionContent);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                preRenderSide(true, mAnswerContent);
+            } catch (RuntimeException e) {
+                // The card is rendered again when it is displayed
+                Timber.w(e, "Failed to pre-render card %d", mCid);
+                return;
+            }
+            new Handler(Looper.getMainLooper()).post(() -> {
+                AbstractFlashcardViewer viewer = mViewer.get();
+                if (viewer != null && !viewer.isFinishing()) {
+                    viewer.loadSpareWebView();
+                }
+            });
+        }
+
+
+        private void preRenderSide(boolean answer, @NonNull String content) {
+            if (mPreRenderedCards.get(mCid, answer, content) == null) {
+                mPreRenderedCards.put(mCid, answer, content, mRenderer.render(mOrd, mUserDefinedNightMode, content));
+            }
+        }
+    }
+
+
     /**
      * Plays sounds (or TTS, if configured) for currently shown side of card.
      *
@@ -2530,7 +2710,9 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
             return;
         }
         final String cardContent = mCardContent;
-        processCardAction(cardWebView -> loadContentIntoCard(cardWebView, cardContent));
+        if (!showSpareWebView(cardContent)) {
+            processCardAction(cardWebView -> loadContentIntoCard(cardWebView, cardContent));
+        }
         mGestureDetectorImpl.onFillFlashcard();
         if (mShowTimer && mCardTimer.getVisibility() == View.INVISIBLE) {
             switchTopBarVisibility(View.VISIBLE);
@@ -2538,6 +2720,58 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         if (!sDisplayAnswer) {
             updateForNewCard();
         }
+        loadSpareWebView();
+    }
+
+
+    /**
+     * Shows the spare WebView in place of the card one, if this content is already loaded into it.
+     * @return Whether the spare WebView is shown
+     */
+    private boolean showSpareWebView(@NonNull String content) {
+        if (mSpareWebView == null || mCardWebView == null || !content.equals(mSpareContent)) {
+            return false;
+        }
+        Timber.d("Showing the content loaded into the spare WebView");
+        Lock writeLock = mCardLock.writeLock();
+        try {
+            writeLock.lock();
+            WebView hidden = mCardWebView;
+            mCardWebView = mSpareWebView;
+            mSpareWebView = hidden;
+        } finally {
+            writeLock.unlock();
+        }
+        mSpareContent = null;
+        mCardWebView.getSettings().setMediaPlaybackRequiresUserGesture(!getConfigForCurrentCard().optBoolean("autoplay"));
+        mCardWebView.setVisibility(View.VISIBLE);
+        mSpareWebView.setVisibility(View.INVISIBLE);
+        if (mSparePageFinished) {
+            onCardPageFinished(mCardWebView);
+        }
+        mSparePageFinished = false;
+        return true;
+    }
+
+
+    /**
+     * With double buffering, loads into the spare WebView the side which is most likely shown next: the answer of the
+     * current card, or the question of the next card. Only sides rendered in the background are loaded.
+     */
+    private void loadSpareWebView() {
+        if (mSpareWebView == null || mCurrentCard == null) {
+            return;
+        }
+        String content = sDisplayAnswer ? mPreRenderedCards.peek(mNextCardId, false) : mPreRenderedCards.peek(mCurrentCard.getId(), true);
+        if (content == null || content.equals(mSpareContent)) {
+            return;
+        }
+        Timber.d("Loading the next side into the spare WebView");
+        mSpareContent = content;
+        mSparePageFinished = false;
+        // The media of the card can only be played once it is shown
+        mSpareWebView.getSettings().setMediaPlaybackRequiresUserGesture(true);
+        mSpareWebView.loadDataWithBaseURL(mViewerUrl, content, "text/html", "utf-8", null);
     }
 
 
@@ -3418,6 +3652,9 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         // destroy after removal from the view - produces logcat warnings otherwise
         destroyWebView(mCardWebView);
         mCardWebView = null;
+        destroyWebView(mSpareWebView);
+        mSpareWebView = null;
+        mSpareContent = null;
         // inflate a new instance of mCardFrame
         mCardFrame = inflateNewView(R.id.flashcard);
         // Even with the above, I occasionally saw the above error. Manually trigger the GC.
@@ -3804,20 +4041,38 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
 
             // onPageFinished will be called multiple times if the WebView redirects by setting window.location.href
             if (url.equals(mViewerUrl)) {
+                if (view == mSpareWebView) {
+                    Timber.d("Spare WebView loaded, JS onPageFinished is triggered once it is shown");
+                    mSparePageFinished = true;
+                    return;
+                }
                 Timber.d("New URL, drawing flags, marks, and triggering JS onPageFinished: %s", url);
-                drawFlag();
-                drawMark();
-                view.loadUrl("javascript:onPageFinished();");
+                onCardPageFinished(view);
             }
         }
 
         @Override
         @TargetApi(Build.VERSION_CODES.O)
         public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+            if (view == mSpareWebView) {
+                // Nothing is shown by this WebView, it is created again with the next card
+                Timber.w("Spare WebView Renderer terminated. Crashed: %b", detail.didCrash());
+                mCardFrame.removeView(mSpareWebView);
+                destroyWebView(mSpareWebView);
+                mSpareWebView = null;
+                mSpareContent = null;
+                return true;
+            }
             return mOnRenderProcessGoneDelegate.onRenderProcessGone(view, detail);
         }
     }
 
+    private void onCardPageFinished(WebView view) {
+        drawFlag();
+        drawMark();
+        view.loadUrl("javascript:onPageFinished();");
+    }
+
     private final MaxExecFunction mDisplayMediaLoadedFromHttpWarningSnackbar = new MaxExecFunction(3, () -> {
         OnClickListener onClickListener = (v) -> openUrl(Uri.parse(getString(R.string.link_faq_external_http_content)));
         showSnackbar(getString(R.string.cannot_load_http_resource), R.string.help, onClickListener);
@@ -3953,6 +4208,22 @@ public abstract class AbstractFlashcardViewer extends NavigationDrawerActivity i
         return mCardContent;
     }
 
+
+    @VisibleForTesting(otherwise = VisibleForTesting.NONE)
+    @Nullable
+    WebView getSpareWebView() {
+        return mSpareWebView;
+    }
+
+
+    /** Waits until the next card is rendered. The spare WebView is then loaded by the next task of the UI thread. */
+    @VisibleForTesting(otherwise = VisibleForTesting.NONE)
+    void waitForPreRender() throws ExecutionException, InterruptedException {
+        if (mPreRender != null) {
+            mPreRender.get();
+        }
+    }
+
     protected void showTagsDialog() {
         ArrayList<String> tags = new ArrayList<>(getCol().getTags().all());
         ArrayList<String> selTags = new ArrayList<>(mCurrentCard.note().getTags());
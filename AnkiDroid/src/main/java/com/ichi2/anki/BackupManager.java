@@ -20,15 +20,12 @@ import android.content.SharedPreferences;
 
 
 import com.ichi2.anki.exception.OutOfSpaceException;
-import com.ichi2.compat.CompatHelper;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Utils;
 import com.ichi2.libanki.utils.Time;
 import com.ichi2.utils.FileUtil;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -38,8 +35,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
 import java.util.UnknownFormatConversionException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -58,6 +53,9 @@ public class BackupManager {
     /** Number of hours after which a backup new backup is created */
     private static final int BACKUP_INTERVAL = 5;
 
+    /** Whether the backup is written by the thread which requests it, instead of a new thread */
+    private boolean mOnCallingThread = false;
+
     public static boolean isActivated() {
         return true;
     }
@@ -90,6 +88,18 @@ public class BackupManager {
         return new BackupManager().performBackupInBackground(path, BACKUP_INTERVAL, force, time);
     }
 
+
+    /**
+     * Backs the collection up on the calling thread, e.g. before the file of the collection is replaced, so that the
+     * backup is the one of the replaced collection.
+     * @return Whether a backup was written
+     */
+    public static boolean performBackupInForeground(String path, boolean force, @NonNull Time time) {
+        BackupManager backupManager = new BackupManager();
+        backupManager.mOnCallingThread = true;
+        return backupManager.performBackupInBackground(path, BACKUP_INTERVAL, force, time);
+    }
+
     public boolean performDowngradeBackupInForeground(String path) throws OutOfSpaceException {
 
         File colFile = new File(path);
@@ -102,7 +112,7 @@ public class BackupManager {
         File backupFile = getBackupFile(colFile, "ankiDroidv16.colpkg");
 
         try {
-            return performBackup(colFile, backupFile);
+            return performBackup(colFile, backupFile, false);
         } catch (Exception e) {
             Timber.w(e);
             AnkiDroidApp.sendExceptionReport(e, "performBackupInForeground");
@@ -169,6 +179,9 @@ public class BackupManager {
             Timber.w("Collection is already open during backup... we probably shouldn't be doing this");
         }
 
+        if (mOnCallingThread) {
+            return performBackup(colFile, backupFile);
+        }
         // Backup collection as Anki package in new thread
         performBackupInNewThread(colFile, backupFile);
         return true;
@@ -199,7 +212,7 @@ public class BackupManager {
             try {
                 len--;
                 lastBackupDate = df.parse(deckBackups[len].getName().replaceAll(
-                        "^.*-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}).colpkg$", "$1"));
+                        "^.*-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}).(colpkg|coldelta)$", "$1"));
             } catch (ParseException e) {
                 Timber.w(e);
                 lastBackupDate = null;
@@ -228,20 +241,30 @@ public class BackupManager {
 
 
     protected boolean performBackup(File colFile, File backupFile) {
+        return performBackup(colFile, backupFile, true);
+    }
+
+
+    /**
+     * @param incremental Whether the backup may only contain the changes since the previous one. The other backups,
+     *                    e.g. before a downgrade, are full and are not part of the chains of {@link IncrementalBackup}.
+     */
+    private boolean performBackup(File colFile, File backupFile, boolean incremental) {
         String colPath = colFile.getAbsolutePath();
-        // Save collection file as zip archive
+        // Save collection file as zip archive, or the pages changed since the previous backup
         try {
-            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(backupFile)));
-            ZipEntry ze = new ZipEntry(CollectionHelper.COLLECTION_FILENAME);
-            zos.putNextEntry(ze);
-            CompatHelper.getCompat().copyFile(colPath, zos);
-            zos.close();
+            File written = backupFile;
+            if (incremental) {
+                written = new IncrementalBackup(colFile, backupFile.getParentFile()).write(backupFile);
+            } else {
+                IncrementalBackup.writeSnapshot(colFile, backupFile);
+            }
             // Delete old backup files if needed
             SharedPreferences prefs = AnkiDroidApp.getSharedPrefs(AnkiDroidApp.getInstance().getBaseContext());
             deleteDeckBackups(colPath, prefs.getInt("backupMax", 8));
             // set timestamp of file in order to avoid creating a new backup unless its changed
-            if (!backupFile.setLastModified(colFile.lastModified())) {
-                Timber.w("performBackupInBackground() setLastModified() failed on file %s", backupFile.getName());
+            if (!written.setLastModified(colFile.lastModified())) {
+                Timber.w("performBackupInBackground() setLastModified() failed on file %s", written.getName());
                 return false;
             }
             Timber.i("Backup created succesfully");
@@ -379,7 +402,7 @@ public class BackupManager {
         }
         ArrayList<File> deckBackups = new ArrayList<>(files.length);
         for (File aktFile : files) {
-            if (aktFile.getName().replaceAll("^(.*)-\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}.(apkg|colpkg)$", "$1")
+            if (aktFile.getName().replaceAll("^(.*)-\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}.(apkg|colpkg|coldelta)$", "$1")
                     .equals(colFile.getName().replace(".anki2",""))) {
                 deckBackups.add(aktFile);
             }
@@ -396,11 +419,23 @@ public class BackupManager {
     }
 
 
-    private static boolean deleteDeckBackups(File[] backups, int keepNumber) {
+    /**
+     * Deletes the oldest backups, keeping at least keepNumber of them. A delta can't be restored without the older
+     * backups of its chain, so whole chains are deleted: more backups may be kept.
+     */
+    @VisibleForTesting
+    static boolean deleteDeckBackups(File[] backups, int keepNumber) {
         if (backups == null) {
             return false;
         }
-        for (int i = 0; i < backups.length - keepNumber; i++) {
+        // the backups before the first snapshot which is kept
+        int deleted = 0;
+        for (int i = 1; i <= backups.length - keepNumber && i < backups.length; i++) {
+            if (!IncrementalBackup.isDelta(backups[i])) {
+                deleted = i;
+            }
+        }
+        for (int i = 0; i < deleted; i++) {
             if (!backups[i].delete()) {
                 Timber.e("deleteDeckBackups() failed to delete %s", backups[i].getAbsolutePath());
             } else {
@@ -411,6 +446,17 @@ public class BackupManager {
     }
 
 
+    public static boolean isIncrementalBackup(String path) {
+        return IncrementalBackup.isDelta(new File(path));
+    }
+
+
+    /** Writes the collection of an incremental backup into target, from the backups of its chain */
+    public static void restoreIncrementalBackup(String path, File target) throws IOException {
+        IncrementalBackup.restore(new File(path), target);
+    }
+
+
     public static boolean removeDir(File dir) {
         if (dir.isDirectory()) {
             File[] files = dir.listFiles();
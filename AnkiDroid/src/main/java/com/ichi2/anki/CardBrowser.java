@@ -72,6 +72,7 @@ import com.ichi2.anki.dialogs.tags.TagsDialogListener;
 import com.ichi2.anki.receiver.SdCardReceiver;
 import com.ichi2.anki.widgets.DeckDropDownAdapter;
 import com.ichi2.async.CollectionTask;
+import com.ichi2.async.TaskDelegate;
 import com.ichi2.async.TaskListenerWithContext;
 import com.ichi2.async.TaskManager;
 import com.ichi2.compat.Compat;
@@ -94,6 +95,7 @@ import com.ichi2.widget.WidgetStatus;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -104,6 +106,8 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
 
 import timber.log.Timber;
@@ -285,7 +289,8 @@ public class CardBrowser extends NavigationDrawerActivity implements
     private TextView mActionBarTitle;
     private boolean mReloadRequired = false;
     private boolean mInMultiSelectMode = false;
-    private final @NonNull Set<CardCache> mCheckedCards = Collections.synchronizedSet(new LinkedHashSet<>());
+    /** The ids of the checked cards, so that checking many cards doesn't create their rows */
+    private final @NonNull Set<Long> mCheckedCardIds = Collections.synchronizedSet(new LinkedHashSet<>());
     private int mLastSelectedPosition;
     @Nullable
     private Menu mActionBarMenu;
@@ -495,11 +500,9 @@ public class CardBrowser extends NavigationDrawerActivity implements
     }
 
     private List<Long> getSelectedCardIds() {
-        List<Long> ids = new ArrayList<>(mCheckedCards.size());
-        for (CardCache cardPosition : mCheckedCards) {
-            ids.add(cardPosition.getId());
+        synchronized (mCheckedCardIds) {
+            return new ArrayList<>(mCheckedCardIds);
         }
-        return ids;
     }
 
     private boolean canPerformCardInfo() {
@@ -725,10 +728,8 @@ public class CardBrowser extends NavigationDrawerActivity implements
             if (mInMultiSelectMode) {
                 boolean hasChanged = false;
                 for (int i = Math.min(mLastSelectedPosition, position); i <= Math.max(mLastSelectedPosition, position); i++) {
-                    CardCache card = (CardCache) mCardsListView.getItemAtPosition(i);
-
                     // Add to the set of checked cards
-                    hasChanged |= mCheckedCards.add(card);
+                    hasChanged |= mCheckedCardIds.add(getCards().getId(i));
                 }
                 if (hasChanged) {
                     onSelectionChanged();
@@ -1087,9 +1088,9 @@ public class CardBrowser extends NavigationDrawerActivity implements
             return;
         }
 
-        if (!mCheckedCards.isEmpty()) {
+        if (!mCheckedCardIds.isEmpty()) {
             TaskManager.cancelAllTasks(CollectionTask.CheckCardSelection.class);
-            TaskManager.launchCollectionTask(new CollectionTask.CheckCardSelection(mCheckedCards),
+            TaskManager.launchCollectionTask(new CollectionTask.CheckCardSelection(getSelectedCardIds()),
                     mCheckSelectedCardsHandler);
         }
 
@@ -1102,7 +1103,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
 
     private boolean hasSelectedCards() {
-        return !mCheckedCards.isEmpty();
+        return !mCheckedCardIds.isEmpty();
     }
 
     private boolean hasSelectedAllCards() {
@@ -1294,7 +1295,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
         TaskManager.launchCollectionTask(new CollectionTask.DeleteNoteMulti(getSelectedCardIds()),
                                             mDeleteNoteHandler);
 
-        mCheckedCards.clear();
+        mCheckedCardIds.clear();
         endMultiSelectMode();
         mCardsAdapter.notifyDataSetChanged();
     }
@@ -1351,7 +1352,8 @@ public class CardBrowser extends NavigationDrawerActivity implements
             return getPreviewIntent(index, Utils.toPrimitive(getSelectedCardIds()));
         } else {
             // Preview all cards, starting from the one that is currently selected
-            int startIndex = mCheckedCards.isEmpty() ? 0 : mCheckedCards.iterator().next().getPosition();
+            List<Long> selectedCardIds = getSelectedCardIds();
+            int startIndex = selectedCardIds.isEmpty() ? 0 : Math.max(0, mCards.positionOf(selectedCardIds.get(0)));
             return getPreviewIntent(startIndex, getAllCardIds());
         }
     }
@@ -1438,7 +1440,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
     @Override
     public void onTrimMemory(int pressureLevel) {
         super.onTrimMemory(pressureLevel);
-        TaskManager.cancelCurrentlyExecutingTask();
+        TaskManager.cancelCurrentlyExecutingTask(TaskDelegate.Lane.BROWSER);
     }
 
     private long getReviewerCardId() {
@@ -1486,7 +1488,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
         TaskManager.cancelAllTasks(CollectionTask.RenderBrowserQA.class);
         TaskManager.cancelAllTasks(CollectionTask.CheckCardSelection.class);
         mCards.clear();
-        mCheckedCards.clear();
+        mCheckedCardIds.clear();
     }
 
     /** Currently unused - to be used in #7676 */
@@ -1555,9 +1557,10 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
 
     private static Map<Long, Integer> getPositionMap(CardCollection<CardCache> list) {
-        Map<Long, Integer> positions = new HashMap<>(list.size());
-        for (int i = 0; i < list.size(); i++) {
-            positions.put(list.get(i).getId(), i);
+        long[] ids = list.getIds();
+        Map<Long, Integer> positions = new HashMap<>(ids.length);
+        for (int position = 0; position < ids.length; position++) {
+            positions.put(ids[position], position);
         }
         return positions;
     }
@@ -1801,14 +1804,14 @@ public class CardBrowser extends NavigationDrawerActivity implements
             }
         }
 
-        List<CardCache> newMCards = new ArrayList<>(oldMCards.size());
+        long[] newIds = new long[oldMCards.size() - idToRemove.size()];
         int pos = 0;
-        for (CardCache card: oldMCards) {
-            if (!idToRemove.contains(card.getId())) {
-                newMCards.add(new CardCache(card, pos++));
+        for (long cardId : oldMCards.getIds()) {
+            if (!idToRemove.contains(cardId)) {
+                newIds[pos++] = cardId;
             }
         }
-        mCards.replaceWith(newMCards);
+        mCards.replaceWith(CardCache.lazyList(getCol(), newIds));
 
         if (reorderCards) {
             //Suboptimal from a UX perspective, we should reorder
@@ -2215,6 +2218,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
             ) {
                 return;
             }
+            cards.setVisibleRange(firstVisibleItem, lastVisibleItem);
             boolean firstLoaded = cards.get(firstVisibleItem).isLoaded();
             // Note: max value of lastVisibleItem is totalItemCount, so need to subtract 1
             boolean lastLoaded = cards.get(lastVisibleItem).isLoaded();
@@ -2314,7 +2318,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
             // if in multi-select mode, be sure to show the checkboxes
             if(mInMultiSelectMode) {
                 checkBox.setVisibility(View.VISIBLE);
-                checkBox.setChecked(mCheckedCards.contains(card));
+                checkBox.setChecked(mCheckedCardIds.contains(card.getId()));
                 // this prevents checkboxes from showing an animation from selected -> unselected when
                 // checkbox was selected, then selection mode was ended and now restarted
                 checkBox.jumpDrawablesToCurrentState();
@@ -2376,12 +2380,12 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     private void onCheck(int position, View cell) {
         CheckBox checkBox = cell.findViewById(R.id.card_checkbox);
-        CardCache card = getCards().get(position);
+        long cardId = getCards().getId(position);
 
         if (checkBox.isChecked()) {
-            mCheckedCards.add(card);
+            mCheckedCardIds.add(cardId);
         } else {
-            mCheckedCards.remove(card);
+            mCheckedCardIds.remove(cardId);
         }
 
        onSelectionChanged();
@@ -2389,23 +2393,28 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting
     void onSelectAll() {
-        mCheckedCards.addAll(mCards.unsafeGetWrapped());
+        long[] cardIds = mCards.getIds();
+        synchronized (mCheckedCardIds) {
+            for (long cardId : cardIds) {
+                mCheckedCardIds.add(cardId);
+            }
+        }
         onSelectionChanged();
     }
 
     @VisibleForTesting
     void onSelectNone() {
-        mCheckedCards.clear();
+        mCheckedCardIds.clear();
         onSelectionChanged();
     }
 
     private void onSelectionChanged() {
         Timber.d("onSelectionChanged()");
         try {
-            if (!mInMultiSelectMode && !mCheckedCards.isEmpty()) {
+            if (!mInMultiSelectMode && !mCheckedCardIds.isEmpty()) {
                 //If we have selected cards, load multiselect
                 loadMultiSelectMode();
-            } else if (mInMultiSelectMode && mCheckedCards.isEmpty()) {
+            } else if (mInMultiSelectMode && mCheckedCardIds.isEmpty()) {
                 //If we don't have cards, unload multiselect
                 endMultiSelectMode();
             }
@@ -2458,11 +2467,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
     }
 
     private long[] getAllCardIds() {
-        long[] l = new long[mCards.size()];
-        for (int i = 0; i < mCards.size(); i++) {
-            l[i] = mCards.get(i).getId();
-        }
-        return l;
+        return mCards.getIds();
     }
 
     // This could be better: use a wrapper class PositionAware<T> to store the position so it's
@@ -2480,6 +2485,41 @@ public class CardBrowser extends NavigationDrawerActivity implements
         }
 
 
+        /** The id of the card at position, without creating its item if items are created on demand */
+        public long getId(int position) {
+            if (mWrapped instanceof PagedCardList) {
+                return ((PagedCardList<T>) mWrapped).getId(position);
+            }
+            return mWrapped.get(position).getId();
+        }
+
+
+        /** The ids of the cards, in order, without creating their items if items are created on demand */
+        @NonNull
+        public long[] getIds() {
+            if (mWrapped instanceof PagedCardList) {
+                return ((PagedCardList<T>) mWrapped).getIds();
+            }
+            long[] ids = new long[mWrapped.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mWrapped.get(i).getId();
+            }
+            return ids;
+        }
+
+
+        /** @return The current position of the card, or -1 if it is not in the collection */
+        public int positionOf(long cardId) {
+            long[] ids = getIds();
+            for (int position = 0; position < ids.length; position++) {
+                if (ids[position] == cardId) {
+                    return position;
+                }
+            }
+            return -1;
+        }
+
+
         public void reset() {
             mWrapped = new ArrayList<>(0);
         }
@@ -2490,6 +2530,10 @@ public class CardBrowser extends NavigationDrawerActivity implements
         }
 
         public void reverse() {
+            if (mWrapped instanceof PagedCardList) {
+                ((PagedCardList<T>) mWrapped).reverse();
+                return;
+            }
             Collections.reverse(mWrapped);
             int position = 0;
             for (int i = 0; i < mWrapped.size(); i++) {
@@ -2519,10 +2563,146 @@ public class CardBrowser extends NavigationDrawerActivity implements
         public void clear() {
             mWrapped.clear();
         }
+
+
+        /** Allows the items far from the positions on screen to be forgotten, if they are created on demand */
+        public void setVisibleRange(int first, int last) {
+            if (mWrapped instanceof PagedCardList) {
+                ((PagedCardList<T>) mWrapped).setVisibleRange(first, last);
+            }
+        }
+    }
+
+
+    /**
+     * The cards of a search result, stored as their ids. The item of a card is created when it is first accessed, and
+     * forgotten when the card is far from the visible range, so that a search returning a lot of cards only keeps the
+     * data of the cards around the screen.
+     * <p>
+     * Iterating does not keep the items it creates.
+     */
+    public static class PagedCardList<T extends PositionAware> extends AbstractList<T> implements RandomAccess {
+        /** Number of items kept on each side of the visible range */
+        @VisibleForTesting
+        static final int PREFETCH_MARGIN = 100;
+
+        public interface ItemFactory<T> {
+            @NonNull
+            T create(long cardId, int position);
+        }
+
+        private long[] mIds;
+        private final ItemFactory<T> mFactory;
+        /** Items created by {@link #get(int)}, by position */
+        private final Map<Integer, T> mItems = new HashMap<>();
+
+
+        public PagedCardList(@NonNull long[] ids, @NonNull ItemFactory<T> factory) {
+            mIds = ids;
+            mFactory = factory;
+        }
+
+
+        @Override
+        public synchronized T get(int position) {
+            T item = mItems.get(position);
+            if (item == null) {
+                item = mFactory.create(getId(position), position);
+                mItems.put(position, item);
+            }
+            return item;
+        }
+
+
+        /** The item at position, without keeping it if it was not created yet */
+        private synchronized T peek(int position) {
+            T item = mItems.get(position);
+            return item != null ? item : mFactory.create(getId(position), position);
+        }
+
+
+        public synchronized long getId(int position) {
+            if (position < 0 || position >= mIds.length) {
+                throw new IndexOutOfBoundsException("Position " + position + " of " + mIds.length);
+            }
+            return mIds[position];
+        }
+
+
+        @NonNull
+        public synchronized long[] getIds() {
+            return mIds.clone();
+        }
+
+
+        @Override
+        public synchronized int size() {
+            return mIds.length;
+        }
+
+
+        @NonNull
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int mPosition = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return mPosition < size();
+                }
+
+
+                @Override
+                public T next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return peek(mPosition++);
+                }
+            };
+        }
+
+
+        @Override
+        public synchronized void clear() {
+            mIds = new long[0];
+            mItems.clear();
+        }
+
+
+        /** Forgets the items which are not between first and last, with a margin */
+        public synchronized void setVisibleRange(int first, int last) {
+            int keepFrom = first - PREFETCH_MARGIN;
+            int keepTo = last + PREFETCH_MARGIN;
+            for (Iterator<Integer> it = mItems.keySet().iterator(); it.hasNext(); ) {
+                int position = it.next();
+                if (position < keepFrom || position > keepTo) {
+                    it.remove();
+                }
+            }
+        }
+
+
+        private synchronized void reverse() {
+            long[] reversed = new long[mIds.length];
+            for (int i = 0; i < mIds.length; i++) {
+                reversed[mIds.length - 1 - i] = mIds[i];
+            }
+            mIds = reversed;
+            Map<Integer, T> items = new HashMap<>(mItems);
+            mItems.clear();
+            for (Map.Entry<Integer, T> entry : items.entrySet()) {
+                int position = mIds.length - 1 - entry.getKey();
+                entry.getValue().setPosition(position);
+                mItems.put(position, entry.getValue());
+            }
+        }
     }
 
     @VisibleForTesting
     interface PositionAware {
+        long getId();
         int getPosition();
         void setPosition(int value);
     }
@@ -2544,6 +2724,12 @@ public class CardBrowser extends NavigationDrawerActivity implements
             mPosition = position;
         }
 
+        /** The cards of ids, whose CardCache are only created when needed */
+        @NonNull
+        public static PagedCardList<CardCache> lazyList(@NonNull Collection col, @NonNull long[] ids) {
+            return new PagedCardList<>(ids, (id, position) -> new CardCache(id, col, position));
+        }
+
         public int getPosition() {
             return mPosition;
         }
@@ -2780,7 +2966,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
      */
     private void endMultiSelectMode() {
         Timber.d("endMultiSelectMode()");
-        mCheckedCards.clear();
+        mCheckedCardIds.clear();
         mInMultiSelectMode = false;
         // If view which was originally selected when entering multi-select is visible then maintain its position
         View view = mCardsListView.getChildAt(mLastSelectedPosition - mCardsListView.getFirstVisiblePosition());
@@ -2797,7 +2983,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting
     public int checkedCardCount() {
-        return mCheckedCards.size();
+        return mCheckedCardIds.size();
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
@@ -2834,12 +3020,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
     long[] getCardIds() {
-        CardCache[] cardsCopy = mCards.unsafeGetWrapped().toArray(new CardCache[0]);
-        long[] ret = new long[cardsCopy.length];
-        for (int i = 0; i < cardsCopy.length; i++) {
-            ret[i] = cardsCopy[i].getId();
-        }
-        return ret;
+        return mCards.getIds();
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
@@ -2850,14 +3031,14 @@ public class CardBrowser extends NavigationDrawerActivity implements
                         String.format(Locale.US, "Attempted to check card at index %d. %d cards available",
                                 position, mCards.size()));
             }
-            mCheckedCards.add(getCards().get(position));
+            mCheckedCardIds.add(getCards().getId(position));
         }
         onSelectionChanged();
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
     boolean hasCheckedCardAtPosition(int i) {
-        return mCheckedCards.contains(getCards().get(i));
+        return mCheckedCardIds.contains(getCards().getId(i));
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
@@ -2875,12 +3056,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
     public List<Long> getCheckedCardIds() {
-        List<Long> cardIds = new ArrayList<>(mCheckedCards.size());
-        for (CardCache card : mCheckedCards) {
-            long id = card.getId();
-            cardIds.add(id);
-        }
-        return cardIds;
+        return getSelectedCardIds();
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE) //should only be called from changeDeck()
@@ -2894,11 +3070,9 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
     public CardCache getPropertiesForCardId(long cardId) {
-        for (CardCache props : mCards) {
-            long id = props.getId();
-            if (id == cardId) {
-                return props;
-            }
+        int position = mCards.positionOf(cardId);
+        if (position >= 0) {
+            return mCards.get(position);
         }
         throw new IllegalStateException(String.format(Locale.US, "Card '%d' not found", cardId));
     }
@@ -2918,7 +3092,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting
     void replaceSelectionWith(int[] positions) {
-        mCheckedCards.clear();
+        mCheckedCardIds.clear();
         checkCardsAtPositions(positions);
     }
 
@@ -486,6 +486,7 @@ public class CollectionHelper {
      */
     public static void loadCollectionComplete(Collection col) {
         col.getModels();
+        col.rebuildSearchIndexIfWanted();
     }
 
     public static DatabaseVersion isFutureAnkiDroidVersion(Context context) throws UnknownDatabaseVersionException {
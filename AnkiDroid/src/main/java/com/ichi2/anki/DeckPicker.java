@@ -407,7 +407,7 @@ public class DeckPicker extends NavigationDrawerActivity implements
     private ExportListener exportListener() {
         return new ExportListener(this);
     }
-    private static class ExportListener extends TaskListenerWithContext<DeckPicker, Void, Pair<Boolean, String>>{
+    private static class ExportListener extends TaskListenerWithContext<DeckPicker, String, Pair<Boolean, String>>{
         public ExportListener(DeckPicker deckPicker) {
             super(deckPicker);
         }
@@ -440,6 +440,12 @@ public class DeckPicker extends NavigationDrawerActivity implements
                 }
             }
         }
+
+
+        @Override
+        public void actualOnProgressUpdate(@NonNull DeckPicker deckPicker, String content) {
+            deckPicker.mProgressDialog.setContent(content);
+        }
     }
 
 
@@ -1108,7 +1114,9 @@ public class DeckPicker extends NavigationDrawerActivity implements
      * Automatic sync
      */
     private void onFinishedStartup() {
-        // create backup in background if needed
+        // create backup in background if needed. The backup copies the collection file, so it must contain the
+        // changes which are still in the write-ahead log
+        getCol().getDb().checkpoint();
         BackupManager.performBackupInBackground(getCol().getPath(), getCol().getTime());
 
         // Force a full sync if flag was set in upgrade path, asking the user to confirm if necessary
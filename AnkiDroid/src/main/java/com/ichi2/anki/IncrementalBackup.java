@@ -0,0 +1,432 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.anki;
+
+import com.ichi2.compat.CompatHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
+
+/**
+ * Backups of a collection made of chains: a full snapshot, which is a .colpkg as before, followed by deltas which only
+ * contain the pages of the database changed since the previous backup of the chain. A delta is restored by applying
+ * the deltas of its chain, in order, to the collection of the snapshot.
+ * <p>
+ * The pages of the last backup are recorded by their SHA1 in an index next to the backups, so that finding the changed
+ * pages only reads the collection, never the backups. The collection is read once, and only its changed pages are
+ * written.
+ */
+@SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes"})
+class IncrementalBackup {
+    static final String SNAPSHOT_EXTENSION = ".colpkg";
+    static final String DELTA_EXTENSION = ".coldelta";
+    private static final String INDEX_EXTENSION = ".pages";
+
+    private static final int DELTA_MAGIC = 0x41444431;
+    private static final int INDEX_MAGIC = 0x41444931;
+    /** Marks the end of the pages of a delta */
+    private static final int END_OF_PAGES = -1;
+    /** Used when the file is not an SQLite database. Any size is correct, this one is only efficient. */
+    private static final int DEFAULT_PAGE_SIZE = 4096;
+    private static final int DIGEST_LENGTH = 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** A snapshot is made after this number of deltas, which bounds the number of files read by a restore */
+    @VisibleForTesting
+    static final int MAX_DELTAS = 6;
+    /** Above this proportion of changed pages, a delta is nearly as large as a snapshot */
+    private static final int MAX_CHANGED_PERCENT = 50;
+
+    private final File mColFile;
+    private final File mIndexFile;
+
+
+    IncrementalBackup(@NonNull File colFile, @NonNull File backupDir) {
+        mColFile = colFile;
+        mIndexFile = new File(backupDir, colFile.getName() + INDEX_EXTENSION);
+    }
+
+
+    static boolean isDelta(@NonNull File backup) {
+        return backup.getName().endsWith(DELTA_EXTENSION);
+    }
+
+
+    /**
+     * Backs the collection up, as a delta of the previous backup when there is one and it is worth it.
+     *
+     * @param snapshotFile The file of the backup if it is a snapshot. A delta has the same name, with the delta
+     *                     extension instead of the snapshot one.
+     * @return The file written
+     */
+    @NonNull
+    File write(@NonNull File snapshotFile) throws IOException {
+        // The collection is only read through this handle, so that its header, its length and its pages are the ones of
+        // the same file, even if another file replaces it during the backup
+        try (FileInputStream col = new FileInputStream(mColFile)) {
+            int pageSize = pageSize(col.getChannel());
+            long length = col.getChannel().size();
+            PageIndex previous = readIndex();
+            if (previous != null && previous.mDeltas < MAX_DELTAS && previous.mPageSize == pageSize &&
+                    new File(mIndexFile.getParentFile(), previous.mBackupName).exists()) {
+                File deltaFile = new File(snapshotFile.getParentFile(),
+                        snapshotFile.getName().replace(SNAPSHOT_EXTENSION, DELTA_EXTENSION));
+                PageIndex index = writeDelta(col, length, previous, deltaFile);
+                if (index != null) {
+                    writeIndex(index);
+                    return deltaFile;
+                }
+            }
+            writeIndex(writeSnapshot(col, length, pageSize, snapshotFile));
+            return snapshotFile;
+        }
+    }
+
+
+    /** Writes a full backup of the collection, which is not part of the chains, e.g. before a downgrade. */
+    static void writeSnapshot(@NonNull File colFile, @NonNull File backupFile) throws IOException {
+        try (FileInputStream col = new FileInputStream(colFile)) {
+            writeSnapshot(col, col.getChannel().size(), pageSize(col.getChannel()), backupFile);
+        }
+    }
+
+
+    /**
+     * @param col The collection, read from its start
+     * @param length The length of the collection when it was opened
+     * @return The index of the pages of the snapshot
+     */
+    @NonNull
+    private static PageIndex writeSnapshot(@NonNull FileInputStream col, long length, int pageSize, @NonNull File snapshotFile) throws IOException {
+        PageIndex index = new PageIndex(snapshotFile.getName(), 0, pageSize, pageCount(length, pageSize));
+        MessageDigest md = newDigest();
+        byte[] page = new byte[pageSize];
+        // a delta may have read a part of the collection
+        col.getChannel().position(0);
+        // not closed before the collection
+        InputStream in = new BufferedInputStream(col, BUFFER_SIZE);
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile), BUFFER_SIZE))) {
+            zos.putNextEntry(new ZipEntry(CollectionHelper.COLLECTION_FILENAME));
+            for (int i = 0; i < index.pageCount(); i++) {
+                int size = readPage(in, page, length, i);
+                zos.write(page, 0, size);
+                md.update(page, 0, size);
+                index.setDigest(i, md.digest());
+            }
+            zos.closeEntry();
+        }
+        return index;
+    }
+
+
+    /**
+     * @return The index of the pages of the delta, or null if too many pages changed for a delta to be worth it, in
+     * which case nothing is written.
+     */
+    @Nullable
+    private PageIndex writeDelta(@NonNull FileInputStream col, long length, @NonNull PageIndex previous, @NonNull File deltaFile) throws IOException {
+        int pageSize = previous.mPageSize;
+        PageIndex index = new PageIndex(deltaFile.getName(), previous.mDeltas + 1, pageSize, pageCount(length, pageSize));
+        int maxChanged = (int) ((long) index.pageCount() * MAX_CHANGED_PERCENT / 100);
+        int changed = 0;
+        MessageDigest md = newDigest();
+        byte[] page = new byte[pageSize];
+        File tmp = new File(deltaFile.getPath() + ".tmp");
+        boolean written = false;
+        try {
+            col.getChannel().position(0);
+            // not closed before the collection
+            InputStream in = new BufferedInputStream(col, BUFFER_SIZE);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), BUFFER_SIZE))) {
+                out.writeInt(DELTA_MAGIC);
+                out.writeUTF(previous.mBackupName);
+                out.writeInt(pageSize);
+                out.writeLong(length);
+                for (int i = 0; i < index.pageCount(); i++) {
+                    int size = readPage(in, page, length, i);
+                    md.update(page, 0, size);
+                    byte[] digest = md.digest();
+                    index.setDigest(i, digest);
+                    if (previous.hasDigest(i, digest)) {
+                        continue;
+                    }
+                    if (++changed > maxChanged) {
+                        Timber.i("Too many pages changed since the last backup for a delta");
+                        return null;
+                    }
+                    out.writeInt(i);
+                    out.writeInt(size);
+                    out.write(page, 0, size);
+                }
+                out.writeInt(END_OF_PAGES);
+            }
+            if (!tmp.renameTo(deltaFile)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            written = true;
+            Timber.i("Delta backup of %d pages out of %d", changed, index.pageCount());
+            return index;
+        } finally {
+            if (!written && tmp.exists() && !tmp.delete()) {
+                Timber.w("Could not delete %s", tmp);
+            }
+        }
+    }
+
+
+    /**
+     * Writes the collection of a backup into target.
+     *
+     * @param backup A snapshot, or a delta whose chain is in the same directory
+     */
+    static void restore(@NonNull File backup, @NonNull File target) throws IOException {
+        // the deltas, from the oldest
+        Deque<File> deltas = new ArrayDeque<>();
+        File snapshot = backup;
+        while (isDelta(snapshot)) {
+            deltas.push(snapshot);
+            try (DataInputStream in = openDelta(snapshot)) {
+                snapshot = new File(backup.getParentFile(), in.readUTF());
+            }
+            if (!snapshot.exists()) {
+                throw new FileNotFoundException("Missing backup " + snapshot + " of the chain of " + backup);
+            }
+            if (deltas.size() > MAX_DELTAS * 2) {
+                throw new IOException("Invalid chain of backups for " + backup);
+            }
+        }
+        try (ZipFile zip = new ZipFile(snapshot)) {
+            ZipEntry entry = zip.getEntry(CollectionHelper.COLLECTION_FILENAME);
+            if (entry == null) {
+                throw new IOException("No collection in " + snapshot);
+            }
+            try (InputStream in = zip.getInputStream(entry)) {
+                CompatHelper.getCompat().copyFile(in, target.getAbsolutePath());
+            }
+        }
+        try (RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            while (!deltas.isEmpty()) {
+                applyDelta(deltas.pop(), out);
+            }
+        }
+    }
+
+
+    private static void applyDelta(@NonNull File delta, @NonNull RandomAccessFile out) throws IOException {
+        Timber.d("Applying %s", delta);
+        try (DataInputStream in = openDelta(delta)) {
+            // the previous backup
+            in.readUTF();
+            int pageSize = in.readInt();
+            long length = in.readLong();
+            byte[] page = new byte[pageSize];
+            int pageNumber;
+            while ((pageNumber = in.readInt()) != END_OF_PAGES) {
+                int size = in.readInt();
+                if (pageNumber < 0 || size < 0 || size > pageSize) {
+                    throw new IOException("Invalid page in " + delta);
+                }
+                in.readFully(page, 0, size);
+                out.seek((long) pageNumber * pageSize);
+                out.write(page, 0, size);
+            }
+            out.setLength(length);
+        }
+    }
+
+
+    /** @return The content of the delta, after its magic number */
+    @NonNull
+    private static DataInputStream openDelta(@NonNull File delta) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(delta), BUFFER_SIZE), BUFFER_SIZE));
+        if (in.readInt() != DELTA_MAGIC) {
+            in.close();
+            throw new IOException("Not a delta backup: " + delta);
+        }
+        return in;
+    }
+
+
+    /** @return The index of the last backup, null if there is none or it is unreadable */
+    @Nullable
+    private PageIndex readIndex() {
+        if (!mIndexFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile), BUFFER_SIZE))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                return null;
+            }
+            String backupName = in.readUTF();
+            int deltas = in.readInt();
+            int pageSize = in.readInt();
+            int pages = in.readInt();
+            if (pages < 0 || (long) pages * DIGEST_LENGTH > mIndexFile.length()) {
+                return null;
+            }
+            PageIndex index = new PageIndex(backupName, deltas, pageSize, pages);
+            in.readFully(index.mDigests);
+            return index;
+        } catch (IOException e) {
+            Timber.w(e, "Could not read the index of the backups, a snapshot is made");
+            return null;
+        }
+    }
+
+
+    private void writeIndex(@NonNull PageIndex index) throws IOException {
+        File tmp = new File(mIndexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeUTF(index.mBackupName);
+            out.writeInt(index.mDeltas);
+            out.writeInt(index.mPageSize);
+            out.writeInt(index.pageCount());
+            out.write(index.mDigests);
+        }
+        if (!tmp.renameTo(mIndexFile)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+
+
+    /**
+     * The page size of the database, from its header, so that a change of a row changes as few pages of the backup as
+     * possible.
+     */
+    @VisibleForTesting
+    static int pageSize(@NonNull FileChannel colFile) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(18);
+        // read at an absolute position, which does not move the position of the channel
+        while (buffer.hasRemaining()) {
+            if (colFile.read(buffer, buffer.position()) == -1) {
+                return DEFAULT_PAGE_SIZE;
+            }
+        }
+        byte[] header = buffer.array();
+        if (!"SQLite format 3".equals(new String(header, 0, 15, StandardCharsets.US_ASCII))) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        int size = (header[16] & 0xFF) << 8 | header[17] & 0xFF;
+        if (size == 1) {
+            return 65536;
+        }
+        if (size < 512 || (size & (size - 1)) != 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return size;
+    }
+
+
+    private static int pageCount(long length, int pageSize) {
+        return (int) ((length + pageSize - 1) / pageSize);
+    }
+
+
+    /** @return The size of the page, smaller than the buffer only for the last page */
+    private static int readPage(@NonNull InputStream in, @NonNull byte[] page, long length, int pageNumber) throws IOException {
+        int size = (int) Math.min(page.length, length - (long) pageNumber * page.length);
+        int read = 0;
+        while (read < size) {
+            int n = in.read(page, read, size - read);
+            if (n == -1) {
+                throw new IOException("The collection was truncated during the backup");
+            }
+            read += n;
+        }
+        return size;
+    }
+
+
+    @NonNull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** The digests of the pages of the collection of a backup */
+    private static class PageIndex {
+        /** The name of the backup */
+        private final String mBackupName;
+        /** The number of deltas since the snapshot of the chain, 0 for a snapshot */
+        private final int mDeltas;
+        private final int mPageSize;
+        private final byte[] mDigests;
+
+
+        private PageIndex(@NonNull String backupName, int deltas, int pageSize, int pages) {
+            mBackupName = backupName;
+            mDeltas = deltas;
+            mPageSize = pageSize;
+            mDigests = new byte[pages * DIGEST_LENGTH];
+        }
+
+
+        private int pageCount() {
+            return mDigests.length / DIGEST_LENGTH;
+        }
+
+
+        private void setDigest(int page, @NonNull byte[] digest) {
+            System.arraycopy(digest, 0, mDigests, page * DIGEST_LENGTH, DIGEST_LENGTH);
+        }
+
+
+        private boolean hasDigest(int page, @NonNull byte[] digest) {
+            if (page >= pageCount()) {
+                return false;
+            }
+            int offset = page * DIGEST_LENGTH;
+            for (int i = 0; i < DIGEST_LENGTH; i++) {
+                if (mDigests[offset + i] != digest[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.anki.cardviewer;
+
+import com.ichi2.libanki.Sound;
+import com.ichi2.libanki.template.MathJax;
+import com.ichi2.themes.HtmlColors;
+
+import androidx.annotation.CheckResult;
+import androidx.annotation.NonNull;
+import timber.log.Timber;
+
+/**
+ * Renders a side of a card into the document displayed by the WebView of the viewer.
+ * <p>
+ * Immutable, and it references neither the viewer nor the collection: it is created on the UI thread from the settings
+ * of the viewer, so that a card can be rendered in the background while the viewer changes or is destroyed.
+ */
+public class CardRenderer {
+    @NonNull
+    private final CardTemplate mCardTemplate;
+    @NonNull
+    private final String mBaseUrl;
+    @NonNull
+    private final String mStyle;
+    /** The classes of the card, after its number */
+    @NonNull
+    private final String mCssClasses;
+    private final boolean mNightMode;
+
+
+    public CardRenderer(@NonNull CardTemplate cardTemplate, @NonNull CardAppearance cardAppearance,
+                        @NonNull String baseUrl, int currentTheme) {
+        mCardTemplate = cardTemplate;
+        mBaseUrl = baseUrl;
+        mStyle = cardAppearance.getStyle();
+        mCssClasses = cardAppearance.getCssClasses(currentTheme);
+        mNightMode = cardAppearance.isNightMode();
+    }
+
+
+    /**
+     * @param ord The ord of the card
+     * @param userDefinedNightMode Whether the style of the card has its own night mode, see
+     *                             {@link CardAppearance#hasUserDefinedNightMode}
+     * @param newContent The content of the side of the card
+     * @return The document displayed by the WebView
+     */
+    @CheckResult
+    @NonNull
+    public String render(int ord, boolean userDefinedNightMode, @NonNull String newContent) {
+        String content = Sound.expandSounds(mBaseUrl, newContent);
+
+        content = CardAppearance.fixBoldStyle(content);
+
+        Timber.v("content card = \n %s", content);
+        Timber.v("::style:: / %s", mStyle);
+
+        // CSS class for card-specific styling
+        String cardClass = "card card" + (ord + 1) + mCssClasses;
+
+        String scripts = "";
+        if (MathJax.textContainsMathjax(content)) {
+            cardClass += " mathjax-needs-to-render";
+            scripts += "        <script src=\"file:///android_asset/mathjax/conf.js\"> </script>\n" +
+                    "        <script src=\"file:///android_asset/mathjax/tex-chtml.js\"> </script>";
+        }
+
+        if (mNightMode && !userDefinedNightMode) {
+            content = HtmlColors.invertColors(content);
+        }
+
+        return mCardTemplate.render(content, mStyle, scripts, cardClass);
+    }
+}
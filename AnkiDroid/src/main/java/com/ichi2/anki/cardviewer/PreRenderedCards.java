@@ -0,0 +1,109 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.anki.cardviewer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * The HTML of the sides of the next card, rendered in the background while the current card is reviewed, so that
+ * showing it only loads the HTML into the WebView.
+ * <p>
+ * A side is only used if it was rendered from the same content as the one which is about to be shown, so an edited
+ * card is rendered again. The viewer also clears it when a card is edited or an action is undone.
+ * <p>
+ * Thread safe.
+ */
+public class PreRenderedCards {
+    /** The most likely next card, and the card shown, which was the most likely next card when it was rendered */
+    @VisibleForTesting
+    static final int MAX_CARDS = 2;
+
+    private final Map<Long, Sides> mCards = new LinkedHashMap<Long, Sides>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Sides> eldest) {
+            return size() > MAX_CARDS;
+        }
+    };
+
+
+    /**
+     * @param content The content of the side, as given to the renderer
+     * @param html The document rendered from content
+     */
+    public synchronized void put(long cid, boolean answer, @NonNull String content, @NonNull String html) {
+        Sides sides = mCards.get(cid);
+        if (sides == null) {
+            sides = new Sides();
+            mCards.put(cid, sides);
+        }
+        if (answer) {
+            sides.mAnswerContent = content;
+            sides.mAnswerHtml = html;
+        } else {
+            sides.mQuestionContent = content;
+            sides.mQuestionHtml = html;
+        }
+    }
+
+
+    /** @return The document rendered from this content of this side of the card, or null if it was not rendered */
+    @Nullable
+    public synchronized String get(long cid, boolean answer, @NonNull String content) {
+        Sides sides = mCards.get(cid);
+        if (sides == null) {
+            return null;
+        }
+        if (answer) {
+            return content.equals(sides.mAnswerContent) ? sides.mAnswerHtml : null;
+        }
+        return content.equals(sides.mQuestionContent) ? sides.mQuestionHtml : null;
+    }
+
+
+    /**
+     * @return The document rendered for this side of the card, or null if it was not rendered. It may have been rendered
+     * from an older content of the card.
+     */
+    @Nullable
+    public synchronized String peek(long cid, boolean answer) {
+        Sides sides = mCards.get(cid);
+        if (sides == null) {
+            return null;
+        }
+        return answer ? sides.mAnswerHtml : sides.mQuestionHtml;
+    }
+
+
+    public synchronized void clear() {
+        mCards.clear();
+    }
+
+
+    private static class Sides {
+        @Nullable
+        private String mQuestionContent;
+        @Nullable
+        private String mQuestionHtml;
+        @Nullable
+        private String mAnswerContent;
+        @Nullable
+        private String mAnswerHtml;
+    }
+}
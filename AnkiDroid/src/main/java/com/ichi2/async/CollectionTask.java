@@ -57,6 +57,7 @@ import com.ichi2.libanki.importer.AnkiPackageImporter;
 
 import com.ichi2.libanki.sched.Counts;
 import com.ichi2.libanki.sched.DeckDueTreeNode;
+import com.ichi2.libanki.sched.DueCountIndex;
 import com.ichi2.libanki.sched.DeckTreeNode;
 import com.ichi2.libanki.utils.Time;
 import com.ichi2.utils.Computation;
@@ -79,7 +80,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
@@ -144,13 +145,25 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         return mTask;
     }
     private final TaskListener<? super Progress, ? super Result> mListener;
-    private CollectionTask mPreviousTask;
+    /** Tasks which must be finished before this one starts */
+    private List<CollectionTask> mPreviousTasks;
+    /**
+     * Released once this task does not use the collection anymore: when its background work ended, or when it is
+     * cancelled before it started. Unlike {@link #get()}, which returns as soon as the task is cancelled, while its
+     * background work may still run.
+     */
+    private final CountDownLatch mDone = new CountDownLatch(1);
 
 
     protected CollectionTask(TaskDelegate<Progress, Result> task, TaskListener<? super Progress, ? super Result> listener, CollectionTask previousTask) {
+        this(task, listener, previousTask == null ? Collections.emptyList() : Collections.singletonList(previousTask));
+    }
+
+
+    protected CollectionTask(TaskDelegate<Progress, Result> task, TaskListener<? super Progress, ? super Result> listener, @NonNull List<CollectionTask> previousTasks) {
         mTask = task;
         mListener = listener;
-        mPreviousTask = previousTask;
+        mPreviousTasks = previousTasks;
     }
 
     @Override
@@ -159,29 +172,17 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             return actualDoInBackground();
         } finally {
             TaskManager.removeTask(this);
+            mDone.countDown();
         }
     }
 
     // This method and those that are called here are executed in a new thread
     protected Result actualDoInBackground() {
         super.doInBackground();
-        // Wait for previous thread (if any) to finish before continuing
-        if (mPreviousTask != null && mPreviousTask.getStatus() != AsyncTask.Status.FINISHED) {
-            Timber.d("Waiting for %s to finish before starting %s", mPreviousTask.mTask, mTask.getClass());
-            try {
-                mPreviousTask.get();
-                Timber.d("Finished waiting for %s to finish. Status= %s", mPreviousTask.mTask, mPreviousTask.getStatus());
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                // We have been interrupted, return immediately.
-                Timber.d(e, "interrupted while waiting for previous task: %s", mPreviousTask.mTask.getClass());
+        // Wait for previous threads (if any) to finish before continuing
+        for (CollectionTask previousTask : mPreviousTasks) {
+            if (!waitFor(previousTask)) {
                 return null;
-            } catch (ExecutionException e) {
-                // Ignore failures in the previous task.
-                Timber.e(e, "previously running task failed with exception: %s", mPreviousTask.mTask.getClass());
-            } catch (CancellationException e) {
-                // Ignore cancellation of previous task
-                Timber.d(e, "previously running task was cancelled: %s", mPreviousTask.mTask.getClass());
             }
         }
         setLatestInstance(this);
@@ -197,6 +198,26 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
     }
 
 
+    /** @return false if this thread was interrupted while waiting */
+    private boolean waitFor(@NonNull CollectionTask previousTask) {
+        if (previousTask.getStatus() == AsyncTask.Status.FINISHED) {
+            return true;
+        }
+        Timber.d("Waiting for %s to finish before starting %s", previousTask.mTask, mTask.getClass());
+        try {
+            // A cancelled task may still be running, and failures of the previous task are ignored
+            previousTask.mDone.await();
+            Timber.d("Finished waiting for %s to finish. Status= %s", previousTask.mTask, previousTask.getStatus());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // We have been interrupted, return immediately.
+            Timber.d(e, "interrupted while waiting for previous task: %s", previousTask.mTask.getClass());
+            return false;
+        }
+        return true;
+    }
+
+
     /** Delegates to the {@link TaskListener} for this task. */
     @Override
     protected void onPreExecute() {
@@ -224,13 +245,15 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         if (mListener != null) {
             mListener.onPostExecute(result);
         }
-        Timber.d("enabling garbage collection of mPreviousTask...");
-        mPreviousTask = null;
+        Timber.d("enabling garbage collection of mPreviousTasks...");
+        mPreviousTasks = Collections.emptyList();
     }
 
     @Override
     protected void onCancelled(){
         TaskManager.removeTask(this);
+        // Called once the background work ended, or if it never started
+        mDone.countDown();
         if (mListener != null) {
             mListener.onCancelled();
         }
@@ -918,6 +941,7 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             for (int i = 0; i < cards.length; i++) {
                 changedCardIds[i] = cards[i].getId();
             }
+            DueCountIndex.Change change = col.getSched().beginCardsChange(changedCardIds);
             col.getSched().remFromDyn(changedCardIds);
 
             long[] originalDids = new long[cards.length];
@@ -934,6 +958,7 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                 // flush card too, in case, did has been changed
                 card.flush();
             }
+            change.commit();
 
             UndoAction changeDeckMulti = new UndoChangeDeckMulti(cards, originalDids);
             // mark undo for all at once
@@ -1115,6 +1140,13 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
 
 
     public static class SearchCards extends TaskDelegate<List<CardBrowser.CardCache>, List<CardBrowser.CardCache>> {
+        @NonNull
+        @Override
+        protected Lane getLane() {
+            return Lane.BROWSER;
+        }
+
+
         private final String mQuery;
         private final boolean mOrder;
         private final int mNumCardsToRender;
@@ -1137,21 +1169,19 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                 Timber.d("doInBackgroundSearchCards was cancelled so return null");
                 return null;
             }
-            List<CardBrowser.CardCache> searchResult = new ArrayList<>();
-            List<Long> searchResult_ = col.findCards(mQuery, mOrder, new PartialSearch(searchResult, mColumn1Index, mColumn2Index, mNumCardsToRender, collectionTask, col));
+            List<Long> searchResult_ = col.findCards(mQuery, mOrder, new PartialSearch(new ArrayList<>(), mColumn1Index, mColumn2Index, mNumCardsToRender, collectionTask, col));
             Timber.d("The search found %d cards", searchResult_.size());
-            int position = 0;
-            for (Long cid : searchResult_) {
-                CardBrowser.CardCache card = new CardBrowser.CardCache(cid, col, position++);
-                searchResult.add(card);
-            }
+            // Only the ids are kept, the CardCache of a card is created when the card is displayed
+            List<CardBrowser.CardCache> searchResult = CardBrowser.CardCache.lazyList(col, Utils.collection2Array(searchResult_));
             // Render the first few items
-            for (int i = 0; i < Math.min(mNumCardsToRender, searchResult.size()); i++) {
+            List<CardBrowser.CardCache> firstCards = searchResult.subList(0, Math.min(mNumCardsToRender, searchResult.size()));
+            Card.Cache.loadAll(col, firstCards);
+            for (int i = 0; i < firstCards.size(); i++) {
                 if (collectionTask.isCancelled()) {
                     Timber.d("doInBackgroundSearchCards was cancelled so return null");
                     return null;
                 }
-                searchResult.get(i).load(false, mColumn1Index, mColumn2Index);
+                firstCards.get(i).load(false, mColumn1Index, mColumn2Index);
             }
             // Finish off the task
             if (collectionTask.isCancelled()) {
@@ -1165,6 +1195,13 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
 
 
     public static class RenderBrowserQA extends TaskDelegate<Integer, Pair<CardBrowser.CardCollection<CardBrowser.CardCache>, List<Long>>> {
+        @NonNull
+        @Override
+        protected Lane getLane() {
+            return Lane.BROWSER;
+        }
+
+
         private final CardBrowser.CardCollection<CardBrowser.CardCache> mCards;
         private final Integer mStartPos;
         private final Integer mN;
@@ -1185,6 +1222,19 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             Timber.d("doInBackgroundRenderBrowserQA");
 
             List<Long> invalidCardIds = new ArrayList<>();
+            // The cards which were never displayed are read with a single query
+            List<CardBrowser.CardCache> toLoad = new ArrayList<>();
+            try {
+                for (int i = Math.max(0, mStartPos); i < Math.min(mStartPos + mN, mCards.size()); i++) {
+                    CardBrowser.CardCache card = mCards.get(i);
+                    if (!card.isLoaded()) {
+                        toLoad.add(card);
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // the list was replaced meanwhile, the loop below skips the missing positions
+            }
+            Card.Cache.loadAll(col, toLoad);
             // for each specified card in the browser list
             for (int i = mStartPos; i < mStartPos + mN; i++) {
                 // Stop if cancelled
@@ -1347,6 +1397,7 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
             AnkiPackageImporter imp = new AnkiPackageImporter(col, mPath);
             imp.setProgressCallback(new TaskManager.ProgressCallback(collectionTask, res));
+            imp.setCancelListener(collectionTask);
             try {
                 imp.run();
             } catch (ImportExportException e) {
@@ -1381,23 +1432,38 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
 
             // from anki2.py
             String colname = "collection.anki21";
-            ZipFile zip;
-            try {
-                zip = new ZipFile(new File(mPath));
-            } catch (IOException e) {
-                Timber.e(e, "doInBackgroundImportReplace - Error while unzipping");
-                AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace0");
-                return ERR;
-            }
-            try {
-                // v2 scheduler?
-                if (zip.getEntry(colname) == null) {
-                    colname = CollectionHelper.COLLECTION_FILENAME;
+            ZipFile zip = null;
+            if (BackupManager.isIncrementalBackup(mPath)) {
+                // rebuilt from its chain of backups, which have no media
+                colname = CollectionHelper.COLLECTION_FILENAME;
+                try {
+                    if (!dir.mkdirs()) {
+                        Timber.w("doInBackgroundImportReplace - mkdirs on %s failed", dir);
+                    }
+                    BackupManager.restoreIncrementalBackup(mPath, new File(dir, colname));
+                } catch (IOException e) {
+                    Timber.e(e, "doInBackgroundImportReplace - Error while restoring the backup");
+                    AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace - restore");
+                    return ERR;
+                }
+            } else {
+                try {
+                    zip = new ZipFile(new File(mPath));
+                } catch (IOException e) {
+                    Timber.e(e, "doInBackgroundImportReplace - Error while unzipping");
+                    AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace0");
+                    return ERR;
+                }
+                try {
+                    // v2 scheduler?
+                    if (zip.getEntry(colname) == null) {
+                        colname = CollectionHelper.COLLECTION_FILENAME;
+                    }
+                    Utils.unzipFiles(zip, dir.getAbsolutePath(), new String[] {colname, "media"}, null);
+                } catch (IOException e) {
+                    AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace - unzip");
+                    return ERR;
                 }
-                Utils.unzipFiles(zip, dir.getAbsolutePath(), new String[] {colname, "media"}, null);
-            } catch (IOException e) {
-                AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace - unzip");
-                return ERR;
             }
             String colFile = new File(dir, colname).getAbsolutePath();
             if (!(new File(colFile)).exists()) {
@@ -1435,7 +1501,8 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                 Time time = CollectionHelper.getInstance().getTimeSafe(context);
                 CollectionHelper.getInstance().closeCollection(true, "Importing new collection");
                 CollectionHelper.getInstance().lockCollection();
-                BackupManager.performBackupInBackground(colPath, true, time);
+                // the backup must be done before the collection is replaced
+                BackupManager.performBackupInForeground(colPath, true, time);
             } catch (Exception e) {
                 Timber.w(e);
             }
@@ -1484,7 +1551,9 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                     ++i;
                     collectionTask.doProgress(res.getString(R.string.import_media_count, (i + 1) * 100 / total));
                 }
-                zip.close();
+                if (zip != null) {
+                    zip.close();
+                }
                 // delete tmp dir
                 BackupManager.removeDir(dir);
                 return OK;
@@ -1510,7 +1579,7 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
     }
 
 
-    public static class ExportApkg extends TaskDelegate<Void, Pair<Boolean, String>> {
+    public static class ExportApkg extends TaskDelegate<String, Pair<Boolean, String>> {
         private final String mApkgPath;
         private final Long mDid;
         private final Boolean mIncludeSched;
@@ -1525,11 +1594,12 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         }
 
 
-        protected Pair<Boolean, String> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
+        protected Pair<Boolean, String> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<String> collectionTask) {
             Timber.d("doInBackgroundExportApkg");
 
             try {
                 AnkiPackageExporter exporter = new AnkiPackageExporter(col, mDid, mIncludeSched, mIncludeMedia);
+                exporter.setProgressCallback(new TaskManager.ProgressCallback(collectionTask, AnkiDroidApp.getAppResources()));
                 exporter.exportInto(mApkgPath, col.getContext());
             } catch (FileNotFoundException e) {
                 Timber.e(e, "FileNotFoundException in doInBackgroundExportApkg");
@@ -1807,6 +1877,13 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
      * @return {ArrayList<JSONObject> models, ArrayList<Integer> cardCount}
      */
     public static class CountModels extends TaskDelegate<Void, Pair<ArrayList<Model>, ArrayList<Integer>>> {
+        @NonNull
+        @Override
+        protected Lane getLane() {
+            return Lane.MAINTENANCE;
+        }
+
+
         protected Pair<ArrayList<Model>, ArrayList<Integer>> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
             Timber.d("doInBackgroundLoadModels");
 
@@ -1966,6 +2043,13 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
     }
     
     public static class FindEmptyCards extends TaskDelegate<Integer, List<Long>> {
+        @NonNull
+        @Override
+        protected Lane getLane() {
+            return Lane.MAINTENANCE;
+        }
+
+
         protected List<Long> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Integer> collectionTask) {
             return col.emptyCids(collectionTask);
         }
@@ -1976,23 +2060,30 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
      * @return If there are unselected cards, if there are unmarked cards
      */
     public static class CheckCardSelection extends TaskDelegate<Void, Pair<Boolean, Boolean>> {
-        private final @NonNull Set<CardBrowser.CardCache> mCheckedCards;
+        @NonNull
+        @Override
+        protected Lane getLane() {
+            return Lane.BROWSER;
+        }
 
 
-        public CheckCardSelection(@NonNull Set<CardBrowser.CardCache> checkedCards) {
-            this.mCheckedCards = checkedCards;
+        private final @NonNull List<Long> mCheckedCardIds;
+
+
+        public CheckCardSelection(@NonNull List<Long> checkedCardIds) {
+            this.mCheckedCardIds = checkedCardIds;
         }
 
 
         protected @Nullable Pair<Boolean, Boolean> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
             boolean hasUnsuspended = false;
             boolean hasUnmarked = false;
-            for (CardBrowser.CardCache c: mCheckedCards) {
+            for (long cardId : mCheckedCardIds) {
                 if (collectionTask.isCancelled()) {
                     Timber.v("doInBackgroundCheckCardSelection: cancelled.");
                     return null;
                 }
-                Card card = c.getCard();
+                Card card = col.getCard(cardId);
                 hasUnsuspended = hasUnsuspended || card.getQueue() != Consts.QUEUE_TYPE_SUSPENDED;
                 hasUnmarked = hasUnmarked || !card.note().hasTag("marked");
                 if (hasUnsuspended && hasUnmarked)
@@ -2003,11 +2094,13 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         }
     }
 
-    public static class PreloadNextCard extends TaskDelegate<Void, Void> {
-        public Void task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
+    /** Returns the most likely next card, whose question and answer are loaded, or null */
+    public static class PreloadNextCard extends TaskDelegate<Void, Card> {
+        public Card task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
             try {
                 col.getSched().counts(); // Ensure counts are recomputed if necessary, to know queue to look for
-                col.getSched().preloadNextCard();
+                List<Card> cards = col.getSched().preloadNextCard();
+                return cards.isEmpty() ? null : cards.get(0);
             } catch (RuntimeException e) {
                 Timber.e(e, "doInBackgroundPreloadNextCard - RuntimeException on preloading card");
             }
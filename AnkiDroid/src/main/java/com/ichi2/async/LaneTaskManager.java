@@ -0,0 +1,308 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.async;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+import com.ichi2.async.TaskDelegate.Lane;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import timber.log.Timber;
+
+/**
+ * Executes each TaskDelegate on the executor of its {@link Lane}, each lane having its own thread.
+ *
+ * Tasks keep the order in which they are started, as seen from the collection:
+ * a write task waits for all the tasks started before it, and a read task waits for the last write task started
+ * before it. Hence writes are serialized and read tasks of different lanes, e.g. a search in the card browser and an
+ * export, run in parallel. A task waits until the background work of the previous ones ended, even if they were
+ * cancelled, as a cancelled task keeps running until it checks whether it is cancelled.
+ * <p>
+ * The tasks do not declare the data they read, so a write waits for every read started before it, even one which does
+ * not read what it writes: e.g. answering a card waits for a long search of the card browser started before.
+ */
+public class LaneTaskManager extends TaskManager {
+
+    /** Queue depth and latency of a lane. */
+    public static class LaneMetrics {
+        /** Tasks started and not yet finished */
+        private int mQueueDepth = 0;
+        private int mFinishedCount = 0;
+        /** Time between the launch of a task and the time it actually started, summed over finished tasks */
+        private long mTotalWaitMillis = 0;
+        private long mMaxWaitMillis = 0;
+        /** Time between the start and the end of a task, summed over finished tasks */
+        private long mTotalRunMillis = 0;
+
+
+        private synchronized void onLaunched() {
+            mQueueDepth++;
+        }
+
+
+        private synchronized void onFinished(long waitMillis, long runMillis) {
+            mQueueDepth--;
+            mFinishedCount++;
+            mTotalWaitMillis += waitMillis;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+            mTotalRunMillis += runMillis;
+        }
+
+
+        public synchronized int getQueueDepth() {
+            return mQueueDepth;
+        }
+
+
+        public synchronized int getFinishedCount() {
+            return mFinishedCount;
+        }
+
+
+        public synchronized long getMeanWaitMillis() {
+            return mFinishedCount == 0 ? 0 : mTotalWaitMillis / mFinishedCount;
+        }
+
+
+        public synchronized long getMaxWaitMillis() {
+            return mMaxWaitMillis;
+        }
+
+
+        public synchronized long getMeanRunMillis() {
+            return mFinishedCount == 0 ? 0 : mTotalRunMillis / mFinishedCount;
+        }
+    }
+
+
+    /** Launch and start time of a task which is not finished */
+    private static class TaskTimes {
+        private final Lane mLane;
+        private final long mLaunchedAt;
+        /** 0 until the task is started */
+        private long mStartedAt = 0;
+
+
+        private TaskTimes(Lane lane, long launchedAt) {
+            mLane = lane;
+            mLaunchedAt = launchedAt;
+        }
+    }
+
+
+    private final Map<Lane, Executor> mExecutors = new EnumMap<>(Lane.class);
+    private final Map<Lane, LaneMetrics> mMetrics = new EnumMap<>(Lane.class);
+
+    /** Tasks which are running or waiting to run. */
+    private final Map<CollectionTask, TaskTimes> mTasks = new HashMap<>();
+
+    /** The most recently launched write task */
+    @Nullable
+    private CollectionTask mLastWrite = null;
+
+    /** Read tasks launched since {@link #mLastWrite}, which the next write task must wait for */
+    private List<CollectionTask> mReadsSinceLastWrite = new ArrayList<>();
+
+    /** The most recently started {@link CollectionTask} instance of each lane. Guarded by {@link #mTasks}. */
+    private final Map<Lane, CollectionTask> mLatestInstances = new EnumMap<>(Lane.class);
+
+
+    public LaneTaskManager() {
+        for (Lane lane : Lane.values()) {
+            String threadName = "AnkiDroid-" + lane.name().toLowerCase(Locale.ROOT);
+            mExecutors.put(lane, Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, threadName)));
+            mMetrics.put(lane, new LaneMetrics());
+        }
+    }
+
+
+    @NonNull
+    public LaneMetrics getMetrics(@NonNull Lane lane) {
+        //noinspection ConstantConditions - all lanes are added in the constructor
+        return mMetrics.get(lane);
+    }
+
+
+    @Override
+    protected boolean removeTaskConcrete(CollectionTask task) {
+        TaskTimes times;
+        synchronized (mTasks) {
+            times = mTasks.remove(task);
+        }
+        if (times == null) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long startedAt = times.mStartedAt == 0 ? now : times.mStartedAt;
+        getMetrics(times.mLane).onFinished(startedAt - times.mLaunchedAt, now - startedAt);
+        Timber.v("Task %s of lane %s waited %d ms and ran %d ms", task.getTask().getClass(), times.mLane,
+                startedAt - times.mLaunchedAt, now - startedAt);
+        return true;
+    }
+
+
+    @Override
+    protected void setLatestInstanceConcrete(CollectionTask task) {
+        synchronized (mTasks) {
+            mLatestInstances.put(task.getTask().getLane(), task);
+            TaskTimes times = mTasks.get(task);
+            if (times != null) {
+                times.mStartedAt = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+
+    @Override
+    public <Progress, Result> Cancellable launchCollectionTaskConcrete(TaskDelegate<Progress, Result> task) {
+        return launchCollectionTaskConcrete(task, null);
+    }
+
+
+    /**
+     * Starts a new {@link CollectionTask} on the lane of the task.
+     * <p>
+     * This method must be called on the main thread.
+     */
+    @Override
+    public <Progress, Result> Cancellable
+    launchCollectionTaskConcrete(@NonNull TaskDelegate<Progress, Result> task,
+                                 @Nullable TaskListener<? super Progress, ? super Result> listener) {
+        Lane lane = task.getLane();
+        // Finished tasks need not be waited for, and should be garbage collected
+        for (Iterator<CollectionTask> it = mReadsSinceLastWrite.iterator(); it.hasNext(); ) {
+            if (it.next().getStatus() == AsyncTask.Status.FINISHED) {
+                it.remove();
+            }
+        }
+        if (mLastWrite != null && mLastWrite.getStatus() == AsyncTask.Status.FINISHED) {
+            mLastWrite = null;
+        }
+        List<CollectionTask> previousTasks = new ArrayList<>(mReadsSinceLastWrite.size() + 1);
+        if (mLastWrite != null) {
+            previousTasks.add(mLastWrite);
+        }
+        if (lane == Lane.WRITE) {
+            previousTasks.addAll(mReadsSinceLastWrite);
+        }
+        CollectionTask<Progress, Result> newTask = new CollectionTask<>(task, listener, previousTasks);
+        if (lane == Lane.WRITE) {
+            mLastWrite = newTask;
+            mReadsSinceLastWrite = new ArrayList<>();
+        } else {
+            mReadsSinceLastWrite.add(newTask);
+        }
+        synchronized (mTasks) {
+            mTasks.put(newTask, new TaskTimes(lane, SystemClock.elapsedRealtime()));
+        }
+        getMetrics(lane).onLaunched();
+        newTask.executeOnExecutor(mExecutors.get(lane));
+        return newTask;
+    }
+
+
+    @NonNull
+    private List<CollectionTask> unfinishedTasks() {
+        synchronized (mTasks) {
+            return new ArrayList<>(mTasks.keySet());
+        }
+    }
+
+
+    @Override
+    public void waitToFinishConcrete() {
+        waitToFinishConcrete(null);
+    }
+
+
+    /**
+     * Block the current thread until the tasks launched so far have finished.
+     * @param timeoutSeconds timeout in seconds
+     * @return whether all of them were successful
+     */
+    @Override
+    public boolean waitToFinishConcrete(Integer timeoutSeconds) {
+        long deadline = timeoutSeconds == null ? 0 : SystemClock.elapsedRealtime() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        try {
+            for (CollectionTask task : unfinishedTasks()) {
+                if (task.getStatus() == AsyncTask.Status.FINISHED) {
+                    continue;
+                }
+                Timber.d("CollectionTask: waiting for task %s to finish...", task.getTask().getClass());
+                if (timeoutSeconds == null) {
+                    task.get();
+                } else {
+                    task.get(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            Timber.e(e, "Exception waiting for task to finish");
+            return false;
+        }
+    }
+
+
+    /** Cancel the most recently started task of this lane. The tasks of the other lanes are not affected. */
+    @Override
+    public void cancelCurrentlyExecutingTaskConcrete(@NonNull Lane lane) {
+        CollectionTask latestInstance;
+        synchronized (mTasks) {
+            latestInstance = mLatestInstances.get(lane);
+        }
+        if (latestInstance != null) {
+            if (latestInstance.safeCancel()) {
+                Timber.i("Cancelled task %s", latestInstance.getTask().getClass());
+            }
+        }
+    }
+
+
+    /** Cancel all tasks of type taskType*/
+    @Override
+    public void cancelAllTasksConcrete(Class taskType) {
+        int count = 0;
+        for (CollectionTask task : unfinishedTasks()) {
+            if (task.getTask().getClass() != taskType) {
+                continue;
+            }
+            if (task.safeCancel()) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            Timber.i("Cancelled %d instances of task %s", count, taskType);
+        }
+    }
+
+
+    @Override
+    public boolean waitForAllToFinishConcrete(Integer timeoutSeconds) {
+        return waitToFinishConcrete(timeoutSeconds);
+    }
+}
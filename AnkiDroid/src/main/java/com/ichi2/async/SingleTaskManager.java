@@ -137,7 +137,7 @@ public class SingleTaskManager extends TaskManager {
 
     /** Cancel the current task only if it's of type taskType */
     @Override
-    public void cancelCurrentlyExecutingTaskConcrete() {
+    public void cancelCurrentlyExecutingTaskConcrete(@NonNull TaskDelegate.Lane lane) {
         CollectionTask latestInstance = mLatestInstance;
         if (latestInstance != null) {
             if (latestInstance.safeCancel()) {
@@ -42,9 +42,35 @@ import androidx.annotation.NonNull;
  * @param <Result>   The type of result returned by the task at the end. E.g. the tree of decks, counts for a particular deck
  */
 public abstract class TaskDelegate<Progress, Result> {
+
+    /**
+     * The queues of {@link LaneTaskManager}. Tasks of a lane run one after the other, while tasks of different read
+     * lanes may run at the same time.
+     */
+    public enum Lane {
+        /** Tasks which change the collection or the state of the scheduler. They run in the order they were started,
+         * and never at the same time as any other task. */
+        WRITE,
+        /** Search and rendering of the card browser */
+        BROWSER,
+        /** Long reads such as the search of empty cards, which should not delay the other lanes */
+        MAINTENANCE,
+    }
+
     protected abstract Result task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Progress> collectionTask);
 
 
+    /**
+     * The lane of {@link LaneTaskManager} running this task. Only tasks which neither change the collection nor the
+     * state of the scheduler may override it. This excludes the deck counts, since the scheduler resets its queues
+     * and unburies cards when the day changes, and exports, which may close and reopen the collection.
+     */
+    @NonNull
+    protected Lane getLane() {
+        return Lane.WRITE;
+    }
+
+
     protected boolean requiresOpenCollection() {
         return true;
     }
@@ -34,7 +34,7 @@ import androidx.annotation.VisibleForTesting;
  * The class itself contains a static element which is the currently used TaskManager. Tasks can be executed on the current TaskManager with the static method launchTaskManager.
  */
 public abstract class TaskManager {
-    @NonNull private static TaskManager sTaskManager = new SingleTaskManager();
+    @NonNull private static TaskManager sTaskManager = new LaneTaskManager();
 
     /**
      * @param tm The new task manager
@@ -116,11 +116,11 @@ public abstract class TaskManager {
     public abstract boolean waitToFinishConcrete(Integer timeoutSeconds);
 
 
-    /** Cancel the current task only if it's of type taskType */
-    public static void cancelCurrentlyExecutingTask() {
-        sTaskManager.cancelCurrentlyExecutingTaskConcrete();
+    /** Cancel the task currently executed on this lane. Managers with a single queue cancel their current task. */
+    public static void cancelCurrentlyExecutingTask(@NonNull TaskDelegate.Lane lane) {
+        sTaskManager.cancelCurrentlyExecutingTaskConcrete(lane);
     }
-    public abstract void cancelCurrentlyExecutingTaskConcrete();
+    public abstract void cancelCurrentlyExecutingTaskConcrete(@NonNull TaskDelegate.Lane lane);
 
     /** Cancel all tasks of type taskType*/
     public static void cancelAllTasks(Class taskType) {
@@ -18,28 +18,32 @@ package com.ichi2.libanki;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.text.format.Formatter;
 
 import com.ichi2.anki.CollectionHelper;
 import com.ichi2.anki.R;
 import com.ichi2.anki.exception.ImportExportException;
+import com.ichi2.async.TaskManager;
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
 import com.ichi2.utils.StringUtil;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
@@ -309,28 +313,21 @@ class AnkiExporter extends Exporter {
         JSONObject media = new JSONObject();
         mMediaDir = mSrc.getMedia().dir();
         if (mIncludeMedia) {
-            ArrayList<Long> mid = mSrc.getDb().queryLongList("select mid from notes where id in " + strnids);
-            ArrayList<String> flds = mSrc.getDb().queryStringList(
-                    "select flds from notes where id in " + strnids);
-            for (int idx = 0; idx < mid.size(); idx++) {
-                for (String file : mSrc.getMedia().filesInStr(mid.get(idx), flds.get(idx))) {
-                    // skip files in subdirs
-                    if (file.contains(File.separator)) {
-                        continue;
-                    }
-                    media.put(file, true);
-                }
+            for (String file : _notesMedia(strnids)) {
+                media.put(file, true);
             }
-            if (mMediaDir != null) {
-                for (File f : new File(mMediaDir).listFiles()) {
+            File[] mediaDirFiles = mMediaDir == null ? null : new File(mMediaDir).listFiles();
+            if (mediaDirFiles != null) {
+                List<String> modelTexts = _modelTexts();
+                for (File f : mediaDirFiles) {
                     if (f.isDirectory()) {
                         continue;
                     }
                     String fname = f.getName();
                     if (fname.startsWith("_")) {
-                        // Loop through every model that will be exported, and check if it contains a reference to f
-                        for (JSONObject model : mSrc.getModels().all()) {
-                            if (_modelHasMedia(model, fname)) {
+                        // Check whether a model contains a reference to f
+                        for (String modelText : modelTexts) {
+                            if (modelText.contains(fname)) {
                                 media.put(fname, true);
                                 break;
                             }
@@ -354,32 +351,43 @@ class AnkiExporter extends Exporter {
     }
 
     /**
-     * Returns whether or not the specified model contains a reference to the given media file.
-     * In order to ensure relatively fast operation we only check if the styling, front, back templates *contain* fname,
-     * and thus must allow for occasional false positives.
-     * @param model the model to scan
-     * @param fname the name of the media file to check for
-     * @return
-     * @throws JSONException
+     * The media referenced by the fields of the notes, in the order of the notes. The fields are scanned while they are
+     * read, by the thread of the export: finding the media of a field uses its model and LaTeX settings, which can't be
+     * read concurrently.
+     * @param strnids The ids of the notes, as a string
      */
-    private boolean _modelHasMedia(JSONObject model, String fname) throws JSONException {
-        // Don't crash if the model is null
-        if (model == null) {
-            Timber.w("_modelHasMedia given null model");
-            return true;
-        }
-        // First check the styling
-        if (model.getString("css").contains(fname)) {
-            return true;
+    private Set<String> _notesMedia(String strnids) {
+        Set<String> media = new LinkedHashSet<>();
+        try (Cursor cur = mSrc.getDb().query("select mid, flds from notes where id in " + strnids)) {
+            while (cur.moveToNext()) {
+                for (String file : mSrc.getMedia().filesInStr(cur.getLong(0), cur.getString(1))) {
+                    // skip files in subdirs
+                    if (file.contains(File.separator)) {
+                        continue;
+                    }
+                    media.add(file);
+                }
+            }
         }
-        // If not there then check the templates
-        JSONArray tmpls = model.getJSONArray("tmpls");
-        for (JSONObject tmpl: tmpls.jsonObjectIterable()) {
-            if (tmpl.getString("qfmt").contains(fname) || tmpl.getString("afmt").contains(fname)) {
-                return true;
+        return media;
+    }
+
+
+    /**
+     * The styling and templates of each model, which are searched for the names of the media files starting with "_".
+     * In order to ensure relatively fast operation we only check if they *contain* the name, and thus must allow for
+     * occasional false positives.
+     */
+    private List<String> _modelTexts() throws JSONException {
+        List<String> texts = new ArrayList<>();
+        for (Model model : mSrc.getModels().all()) {
+            StringBuilder text = new StringBuilder(model.getString("css"));
+            for (JSONObject tmpl: model.getJSONArray("tmpls").jsonObjectIterable()) {
+                text.append('\n').append(tmpl.getString("qfmt")).append('\n').append(tmpl.getString("afmt"));
             }
+            texts.add(text.toString());
         }
-        return false;
+        return texts;
     }
 
 
@@ -399,6 +407,16 @@ class AnkiExporter extends Exporter {
 
 
 public final class AnkiPackageExporter extends AnkiExporter {
+    /** Extensions of files which are already compressed, and are stored in the package without deflating them */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "mp4", "m4v", "webm",
+            "mkv", "mov", "3gp", "zip"));
+
+    @Nullable
+    private TaskManager.ProgressCallback<String> mProgress;
+    /** The number of bytes of the files written into the package */
+    private long mTotalBytes;
+
 
     /**
      * An exporter for the whole collection of decks
@@ -433,6 +451,7 @@ public final class AnkiPackageExporter extends AnkiExporter {
 
         // open a zip file
         ZipFile z = new ZipFile(path);
+        z.setProgressListener(this::publishProgress);
         // if all decks and scheduling included, full export
         JSONObject media;
         if (mIncludeSched && mDid == null) {
@@ -448,9 +467,14 @@ public final class AnkiPackageExporter extends AnkiExporter {
 
 
     private JSONObject exportVerbatim(ZipFile z, Context context) throws IOException {
+        // the media are listed while the collection is open
+        File[] mediaFiles = mIncludeMedia ? _listMedia() : new File[0];
         // close our deck & write it into the zip file, and reopen
         mCount = mCol.cardCount();
+        // the package may be imported by clients which do not support the search index
+        mCol.getSearchIndex().drop();
         mCol.close();
+        mTotalBytes = new File(mCol.getPath()).length() + _size(mediaFiles);
         if (!_v2sched) {
             z.write(mCol.getPath(), CollectionHelper.COLLECTION_FILENAME);
         } else {
@@ -460,39 +484,51 @@ public final class AnkiPackageExporter extends AnkiExporter {
 
         mCol.reopen();
         // copy all media
-        if (!mIncludeMedia) {
-            return new JSONObject();
-        }
-        File mdir = new File(mCol.getMedia().dir());
-        if (mdir.exists() && mdir.isDirectory()) {
-            File[] mediaFiles = mdir.listFiles();
-            return _exportMedia(z, mediaFiles, ValidateFiles.SKIP_VALIDATION);
-        } else {
-            return new JSONObject();
+        return _exportMedia(z, mediaFiles, ValidateFiles.SKIP_VALIDATION);
+    }
+
+
+    /** The files of the media folder */
+    private File[] _listMedia() {
+        File[] files = new File(mCol.getMedia().dir()).listFiles(File::isFile);
+        return files == null ? new File[0] : files;
+    }
+
+
+    private static long _size(File[] files) {
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
         }
+        return size;
     }
 
-    private JSONObject _exportMedia(ZipFile z, ArrayList<String> fileNames, String mdir) throws IOException {
+
+    private static File[] _mediaFiles(ArrayList<String> fileNames, String mdir) {
         int size = fileNames.size();
         int i = 0;
         File[] files = new File[size];
         for (String fileName: fileNames){
             files[i++] = new File(mdir, fileName);
         }
-        return _exportMedia(z, files, ValidateFiles.VALIDATE);
+        return files;
     }
 
+
     private JSONObject _exportMedia(ZipFile z, File[] files, ValidateFiles validateFiles) throws IOException {
         int c = 0;
         JSONObject media = new JSONObject();
         for (File file : files) {
-            // todo: deflate SVG files, as in dae/anki@a5b0852360b132c0d04094f5ca8f1933f64d7c7e
             if (validateFiles == ValidateFiles.VALIDATE && !file.exists()) {
                 // Anki 2.1.30 does the same
                 Timber.d("Skipping missing file %s", file);
                 continue;
             }
-            z.write(file.getPath(), Integer.toString(c));
+            if (_isCompressed(file.getName())) {
+                z.writeStored(file, Integer.toString(c));
+            } else {
+                z.write(file.getPath(), Integer.toString(c));
+            }
             try {
                 media.put(Integer.toString(c), file.getName());
                 c++;
@@ -509,10 +545,12 @@ public final class AnkiPackageExporter extends AnkiExporter {
         String colfile = path.replace(".apkg", ".anki2");
 
         super.exportInto(colfile, context);
-        z.write(colfile, CollectionHelper.COLLECTION_FILENAME);
         // and media
         prepareMedia();
-    	JSONObject media = _exportMedia(z, mMediaFiles, mCol.getMedia().dir());
+        File[] mediaFiles = _mediaFiles(mMediaFiles, mCol.getMedia().dir());
+        mTotalBytes = new File(colfile).length() + _size(mediaFiles);
+        z.write(colfile, CollectionHelper.COLLECTION_FILENAME);
+        JSONObject media = _exportMedia(z, mediaFiles, ValidateFiles.VALIDATE);
         // tidy up intermediate files
         SQLiteDatabase.deleteDatabase(new File(colfile));
         SQLiteDatabase.deleteDatabase(new File(path.replace(".apkg", ".media.ad.db2")));
@@ -551,6 +589,33 @@ public final class AnkiPackageExporter extends AnkiExporter {
         c.save();
         c.close();
         zip.write(f.getAbsolutePath(), CollectionHelper.COLLECTION_FILENAME);
+        SQLiteDatabase.deleteDatabase(f);
+    }
+
+
+    private static boolean _isCompressed(String fname) {
+        String ext = Utils.splitFilename(fname)[1];
+        return ext.length() > 1 && COMPRESSED_EXTENSIONS.contains(ext.substring(1).toLowerCase(Locale.ROOT));
+    }
+
+
+    /*
+     * The methods below are not in LibAnki.
+     * ***********************************************************
+     */
+
+    public void setProgressCallback(@Nullable TaskManager.ProgressCallback<String> progressCallback) {
+        mProgress = progressCallback;
+    }
+
+
+    private void publishProgress(long written) {
+        if (mProgress == null || mProgress.getResources() == null) {
+            return;
+        }
+        Context context = mCol.getContext();
+        mProgress.publishProgress(mProgress.getResources().getString(R.string.export_progress,
+                Formatter.formatShortFileSize(context, written), Formatter.formatShortFileSize(context, mTotalBytes)));
     }
 
 
@@ -569,12 +634,30 @@ public final class AnkiPackageExporter extends AnkiExporter {
  * @author Tim
  */
 class ZipFile {
-    private static final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** The progress is reported after each such number of bytes */
+    private static final long PROGRESS_STEP = 1024 * 1024;
     private ZipArchiveOutputStream mZos;
+    @Nullable
+    private ProgressListener mProgressListener;
+    private long mWritten = 0;
+    private long mReported = 0;
 
 
-    public ZipFile(String path) throws FileNotFoundException {
-        mZos = new ZipArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+    interface ProgressListener {
+        /** @param written The number of bytes of files written into the zip so far */
+        void onProgress(long written);
+    }
+
+
+    /** The zip is written to a file it can seek in, so the size and CRC of each entry are written after its content */
+    public ZipFile(String path) throws IOException {
+        mZos = new ZipArchiveOutputStream(new File(path));
+    }
+
+
+    public void setProgressListener(@Nullable ProgressListener progressListener) {
+        mProgressListener = progressListener;
     }
 
 
@@ -585,6 +668,18 @@ class ZipFile {
     }
 
 
+    /**
+     * Writes the file without compressing it, for files which are already compressed: deflating them costs CPU time
+     * and saves nothing. The file is read once, its CRC being computed while it is written.
+     */
+    public void writeStored(File file, String entry) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        ZipArchiveEntry ze = new ZipArchiveEntry(entry);
+        ze.setMethod(ZipArchiveEntry.STORED);
+        writeEntry(bis, ze);
+    }
+
+
     public void writeStr(String entry, String value) throws IOException {
         // TODO: Does this work with abnormal characters?
         InputStream is = new ByteArrayInputStream(value.getBytes());
@@ -596,13 +691,21 @@ class ZipFile {
 
     private void writeEntry(BufferedInputStream bis, ZipArchiveEntry ze) throws IOException {
         byte[] buf = new byte[BUFFER_SIZE];
-        mZos.putArchiveEntry(ze);
-        int len;
-        while ((len = bis.read(buf, 0, BUFFER_SIZE)) != -1) {
-            mZos.write(buf, 0, len);
+        try {
+            mZos.putArchiveEntry(ze);
+            int len;
+            while ((len = bis.read(buf, 0, BUFFER_SIZE)) != -1) {
+                mZos.write(buf, 0, len);
+                mWritten += len;
+                if (mProgressListener != null && mWritten - mReported >= PROGRESS_STEP) {
+                    mReported = mWritten;
+                    mProgressListener.onProgress(mWritten);
+                }
+            }
+            mZos.closeArchiveEntry();
+        } finally {
+            bis.close();
         }
-        mZos.closeArchiveEntry();
-        bis.close();
     }
 
 
@@ -80,6 +80,9 @@ public class Card implements Cloneable {
 
     public static final int TYPE_REV = 2;
 
+    /** Number of columns of the cards table, i.e. of "SELECT * FROM cards" */
+    private static final int CARD_COLUMN_COUNT = 18;
+
     private Collection mCol;
     // When timer was started, in MS
     private long mTimerStarted;
@@ -152,30 +155,46 @@ public class Card implements Cloneable {
     }
 
 
+    /**
+     * Card whose content is the current row of cursor, as returned by "SELECT * FROM cards".
+     * Used to load many cards with a single query.
+     */
+    public Card(@NonNull Collection col, @NonNull Cursor cursor) {
+        mCol = col;
+        mTimerStarted = 0L;
+        loadFromCursor(cursor);
+    }
+
+
     public void load() {
         try (Cursor cursor = mCol.getDb().query("SELECT * FROM cards WHERE id = ?", mId)) {
             if (!cursor.moveToFirst()) {
                 throw new WrongId(mId, "card");
             }
-            mId = cursor.getLong(0);
-            mNid = cursor.getLong(1);
-            mDid = cursor.getLong(2);
-            mOrd = cursor.getInt(3);
-            mMod = cursor.getLong(4);
-            mUsn = cursor.getInt(5);
-            mType = cursor.getInt(6);
-            mQueue = cursor.getInt(7);
-            mDue = cursor.getInt(8);
-            mIvl = cursor.getInt(9);
-            mFactor = cursor.getInt(10);
-            mReps = cursor.getInt(11);
-            mLapses = cursor.getInt(12);
-            mLeft = cursor.getInt(13);
-            mODue = cursor.getLong(14);
-            mODid = cursor.getLong(15);
-            mFlags = cursor.getInt(16);
-            mData = cursor.getString(17);
+            loadFromCursor(cursor);
         }
+    }
+
+
+    private void loadFromCursor(@NonNull Cursor cursor) {
+        mId = cursor.getLong(0);
+        mNid = cursor.getLong(1);
+        mDid = cursor.getLong(2);
+        mOrd = cursor.getInt(3);
+        mMod = cursor.getLong(4);
+        mUsn = cursor.getInt(5);
+        mType = cursor.getInt(6);
+        mQueue = cursor.getInt(7);
+        mDue = cursor.getInt(8);
+        mIvl = cursor.getInt(9);
+        mFactor = cursor.getInt(10);
+        mReps = cursor.getInt(11);
+        mLapses = cursor.getInt(12);
+        mLeft = cursor.getInt(13);
+        mODue = cursor.getLong(14);
+        mODid = cursor.getLong(15);
+        mFlags = cursor.getInt(16);
+        mData = cursor.getString(17);
         mQA = null;
         mNote = null;
     }
@@ -317,6 +336,13 @@ public class Card implements Cloneable {
     }
 
 
+    /** Not in upstream. Set the note of this card when it was loaded along with the card, to avoid another query. */
+    public void setNote(@NonNull Note note) {
+        Assert.that(note.getId() == mNid, "Note %d is not the note of card %d", note.getId(), mId);
+        mNote = note;
+    }
+
+
     // not in upstream
     public Model model() {
         return note().model();
@@ -836,6 +862,46 @@ public class Card implements Cloneable {
         public void loadQA(boolean reload, boolean browser) {
             getCard()._getQA(reload, browser);
         }
+
+        /** Whether the card was already loaded, so that {@link #getCard()} does not access the database */
+        public synchronized boolean isLoaded() {
+            return mCard != null;
+        }
+
+        private synchronized void setCard(@NonNull Card card) {
+            mCard = card;
+        }
+
+
+        /**
+         * Load the cards of all caches, along with their notes, with a single query.
+         * Cards of the same note share the same Note object.
+         */
+        public static void loadAll(@NonNull Collection col, @NonNull List<? extends Cache> caches) {
+            if (caches.isEmpty()) {
+                return;
+            }
+            HashMap<Long, Cache> cachesById = new HashMap<>(caches.size());
+            long[] ids = new long[caches.size()];
+            for (int i = 0; i < caches.size(); i++) {
+                Cache cache = caches.get(i);
+                cachesById.put(cache.getId(), cache);
+                ids[i] = cache.getId();
+            }
+            HashMap<Long, Note> notes = new HashMap<>();
+            try (Cursor cur = col.getDb().query("SELECT c.*, " + Note.COLUMNS_WITH_N_PREFIX + " FROM cards c JOIN notes n ON n.id = c.nid WHERE c.id IN " + Utils.ids2str(ids))) {
+                while (cur.moveToNext()) {
+                    Card card = new Card(col, cur);
+                    Note note = notes.get(card.getNid());
+                    if (note == null) {
+                        note = new Note(col, card.getNid(), cur, CARD_COLUMN_COUNT);
+                        notes.put(card.getNid(), note);
+                    }
+                    card.setNote(note);
+                    cachesById.get(card.getId()).setCard(card);
+                }
+            }
+        }
     }
 
     public static @NonNull Card[] deepCopyCardArray(@NonNull Card[] originals, @NonNull CancelListener cancelListener) throws CancellationException {
@@ -44,7 +44,7 @@ import com.ichi2.libanki.sched.AbstractSched;
 import com.ichi2.libanki.sched.Sched;
 import com.ichi2.libanki.sched.SchedV2;
 import com.ichi2.libanki.template.ParsedNode;
-import com.ichi2.libanki.template.TemplateError;
+import com.ichi2.libanki.template.RenderContext;
 import com.ichi2.libanki.utils.Time;
 import com.ichi2.upgrade.Upgrade;
 import com.ichi2.utils.FunctionalInterfaces;
@@ -73,8 +73,6 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.Set;
-import java.util.regex.Pattern;
 
 import androidx.annotation.CheckResult;
 import androidx.annotation.NonNull;
@@ -106,6 +104,15 @@ public class Collection implements CollectionGetter {
     private final Decks mDecks;
     private Models mModels;
     private final Tags mTags;
+    @NonNull
+    private NoteSearchIndex mSearchIndex;
+    /** The buffer of the renderings of each thread, reused as the browser renders many cards */
+    private final ThreadLocal<StringBuilder> mRenderBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
 
     private AbstractSched mSched;
 
@@ -130,9 +137,6 @@ public class Collection implements CollectionGetter {
     private boolean mDebugLog;
     private PrintWriter mLogHnd;
 
-    private static final Pattern fClozePatternQ = Pattern.compile("\\{\\{(?!type:)(.*?)cloze:");
-    private static final Pattern fClozePatternA = Pattern.compile("\\{\\{(.*?)cloze:");
-    private static final Pattern fClozeTagStart = Pattern.compile("<%cloze:");
 
     /**
      * This is only used for collections which were created before
@@ -176,6 +180,7 @@ public class Collection implements CollectionGetter {
         mDecks = new Decks(this);
         mTags = new Tags(this);
         load();
+        mSearchIndex = NoteSearchIndex.open(mDb, mMod);
         if (mCrt == 0) {
             mCrt = UIUtils.getDayStart(getTime()) / 1000;
         }
@@ -356,6 +361,7 @@ public class Collection implements CollectionGetter {
         values.put("ls", mLs);
         values.put("conf", Utils.jsonToString(mConf));
         mDb.update("col", values);
+        mSearchIndex.onFlush(mMod);
     }
 
 
@@ -429,8 +435,13 @@ public class Collection implements CollectionGetter {
         Timber.i("Reopening Database");
         if (mDb == null) {
             mDb = mDroidBackend.openCollectionDatabase(mPath);
+            mDb.openReaders();
+            // The triggers maintaining the index belong to the connection
+            mSearchIndex = NoteSearchIndex.open(mDb, mMod);
             mMedia.connect();
             _openLog();
+            // The index was dropped before the collection was closed
+            rebuildSearchIndexIfWanted();
         }
     }
 
@@ -487,6 +498,8 @@ public class Collection implements CollectionGetter {
         }
         // we can save space by removing the log of deletions
         mDb.execute("delete from graves");
+        // the server and other clients may not support the index
+        mSearchIndex.drop();
         mUsn += 1;
         getModels().beforeUpload();
         mTags.beforeUpload();
@@ -1086,53 +1099,29 @@ public class Collection implements CollectionGetter {
     @RustCleanup("#8951 - Remove FrontSide added to the front")
     public HashMap<String, String> _renderQA(long cid, Model model, long did, int ord, String tags, String[] flist, int flags, boolean browser, String qfmt, String afmt) {
         // data is [cid, nid, mid, did, ord, tags, flds, cardFlags]
-        // unpack fields and create dict
-        Map<String, Pair<Integer, JSONObject>> fmap = Models.fieldMap(model);
-        Set<Map.Entry<String, Pair<Integer, JSONObject>>> maps = fmap.entrySet();
-        Map<String, String> fields = new HashMap<>(maps.size() + 8);
-        for (Map.Entry<String, Pair<Integer, JSONObject>> entry : maps) {
-            fields.put(entry.getKey(), flist[entry.getValue().first]);
-        }
-        int cardNum = ord + 1;
-        fields.put("Tags", tags.trim());
-        fields.put("Type", model.getString("name"));
-        fields.put("Deck", mDecks.name(did));
-        String baseName = Decks.basename(fields.get("Deck"));
-        fields.put("Subdeck", baseName);
-        fields.put("CardFlag", _flagNameFromCardFlags(flags));
         JSONObject template;
         if (model.isStd()) {
             template = model.getJSONArray("tmpls").getJSONObject(ord);
         } else {
             template = model.getJSONArray("tmpls").getJSONObject(0);
         }
-        fields.put("Card", template.getString("name"));
-        fields.put(String.format(Locale.US, "c%d", cardNum), "1");
+        boolean customFormats = !TextUtils.isEmpty(qfmt) || !TextUtils.isEmpty(afmt);
+        qfmt = TextUtils.isEmpty(qfmt) ? template.getString("qfmt") : qfmt;
+        afmt = TextUtils.isEmpty(afmt) ? template.getString("afmt") : afmt;
+        // the parsed formats, with the cloze deletions of the card
+        CompiledTemplate compiled = mModels.compiledTemplate(model, template, ord, qfmt, afmt, customFormats);
+        RenderContext fields = compiled.newContext(flist, tags.trim(), mDecks.name(did), _flagNameFromCardFlags(flags));
+        StringBuilder builder = mRenderBuilder.get();
         // render q & a
         HashMap<String, String> d = new HashMap<>(2);
         d.put("id", Long.toString(cid));
-        qfmt = TextUtils.isEmpty(qfmt) ? template.getString("qfmt") : qfmt;
-        afmt = TextUtils.isEmpty(afmt) ? template.getString("afmt") : afmt;
-        for (Pair<String, String> p : new Pair[]{new Pair<>("q", qfmt), new Pair<>("a", afmt)}) {
-            String type = p.first;
-            String format = p.second;
-            if ("q".equals(type)) {
-                format = fClozePatternQ.matcher(format).replaceAll(String.format(Locale.US, "{{$1cq-%d:", cardNum));
-                format = fClozeTagStart.matcher(format).replaceAll(String.format(Locale.US, "<%%cq:%d:", cardNum));
-                fields.put("FrontSide", "");
-            } else {
-                format = fClozePatternA.matcher(format).replaceAll(String.format(Locale.US, "{{$1ca-%d:", cardNum));
-                format = fClozeTagStart.matcher(format).replaceAll(String.format(Locale.US, "<%%ca:%d:", cardNum));
-                // the following line differs from libanki // TODO: why?
-                fields.put("FrontSide", d.get("q")); // fields.put("FrontSide", mMedia.stripAudio(d.get("q")));
-            }
-            String html;
-            try {
-                html = ParsedNode.parse_inner(format).render(fields, "q".equals(type), getContext());
-            } catch (TemplateError er) {
-                Timber.w(er);
-                html = er.message(getContext());
-            }
+        for (String type : new String[] {"q", "a"}) {
+            builder.setLength(0);
+            // the following line differs from libanki // TODO: why?
+            // fields.put("FrontSide", mMedia.stripAudio(d.get("q")));
+            String frontSide = "q".equals(type) ? "" : d.get("q");
+            compiled.render("q".equals(type), fields, frontSide, getContext(), builder);
+            String html = builder.toString();
             html = ChessFilter.fenToChessboard(html, getContext());
             if (!browser) {
                 // browser don't show image. So compiling LaTeX actually remove information.
@@ -1480,6 +1469,7 @@ public class Collection implements CollectionGetter {
         executeIntegrityTask.consume(this::restoreMissingDatabaseIndices);
         executeIntegrityTask.consume(this::ensureModelsAreNotEmpty);
         executeIntegrityTask.consume((progressNotifier) -> this.ensureCardsHaveHomeDeck(progressNotifier, result));
+        executeIntegrityTask.consume(this::rebuildSearchIndex);
         // and finally, optimize (unable to be done inside transaction).
         try {
             optimize(notifyProgress);
@@ -1695,6 +1685,30 @@ public class Collection implements CollectionGetter {
     }
 
 
+    /**
+     * Builds the search index if the user wants one and the collection has none which is up to date, e.g. because an
+     * export or a full upload dropped it.
+     */
+    public void rebuildSearchIndexIfWanted() {
+        if (mSearchIndex.isUsable() || !AnkiDroidApp.getSharedPrefs(mContext).getBoolean(NoteSearchIndex.PREF_KEY, false)) {
+            return;
+        }
+        mSearchIndex.rebuild(mMod);
+    }
+
+
+    private List<String> rebuildSearchIndex(Runnable notifyProgress) {
+        Timber.d("rebuildSearchIndex");
+        notifyProgress.run();
+        if (AnkiDroidApp.getSharedPrefs(mContext).getBoolean(NoteSearchIndex.PREF_KEY, false)) {
+            mSearchIndex.rebuild(mMod);
+        } else {
+            mSearchIndex.drop();
+        }
+        return Collections.emptyList();
+    }
+
+
     private List<String> rebuildTags(Runnable notifyProgress) {
         Timber.d("rebuildTags");
         // tags
@@ -2011,7 +2025,7 @@ public class Collection implements CollectionGetter {
      */
     public void setUserFlag(int flag, List<Long> cids)  {
         assert (0<= flag && flag <= 7);
-        mDb.execute("update cards set flags = (flags & ~?) | ?, usn=?, mod=? where id in " + Utils.ids2str(cids),
+        mDb.execute("update cards set flags = (flags & ~?) | ?, usn=?, mod=? where id in " + mDb.idSet("set_flag_cids", cids),
                     0b111, flag, usn(), getTime().intTime());
     }
 
@@ -2116,6 +2130,12 @@ public class Collection implements CollectionGetter {
     }
 
 
+    @NonNull
+    public NoteSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+
     public long getCrt() {
         return mCrt;
     }
@@ -2162,7 +2182,7 @@ public class Collection implements CollectionGetter {
     /** Not in libAnki */
     @CheckResult
     public List<Long> filterToValidCards(long[] cards) {
-        return getDb().queryLongList("select id from cards where id in " + Utils.ids2str(cards));
+        return getDb().queryLongList("select id from cards where id in " + getDb().idSet("valid_cids", cards));
     }
 
     public int queryVer() throws UnknownDatabaseVersionException {
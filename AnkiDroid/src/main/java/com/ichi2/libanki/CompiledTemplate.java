@@ -0,0 +1,182 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.content.Context;
+
+import com.ichi2.libanki.template.ParsedNode;
+import com.ichi2.libanki.template.RenderContext;
+import com.ichi2.libanki.template.TemplateError;
+import com.ichi2.utils.JSONObject;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import timber.log.Timber;
+
+/**
+ * The question and answer formats of a card of a model, prepared for rendering: their cloze deletions are numbered for
+ * the card, they are parsed, and their fields are resolved to the slots of a {@link RenderContext}. This only depends on
+ * the model and the ord of the card, so that {@link Collection#_renderQA} only has to fill in the fields. Cached by
+ * {@link Models#compiledTemplate}.
+ * <p>
+ * Immutable.
+ */
+public final class CompiledTemplate {
+    private static final Pattern fClozePatternQ = Pattern.compile("\\{\\{(?!type:)(.*?)cloze:");
+    private static final Pattern fClozePatternA = Pattern.compile("\\{\\{(.*?)cloze:");
+    private static final Pattern fClozeTagStart = Pattern.compile("<%cloze:");
+
+    // The fields describing the card, whose slots follow the fields of the note
+    private static final int TAGS = 0;
+    private static final int TYPE = 1;
+    private static final int DECK = 2;
+    private static final int SUBDECK = 3;
+    private static final int CARD_FLAG = 4;
+    private static final int CARD = 5;
+    /** The field which is set for the card, e.g. c1 */
+    private static final int CARD_NUM = 6;
+    private static final int FRONT_SIDE = 7;
+    private static final int CARD_FIELD_COUNT = 8;
+
+    /** The mod time of the model when it was compiled */
+    private final long mMod;
+    private final String mQfmt;
+    private final String mAfmt;
+    /** The names of the fields of the model, by ord */
+    private final String[] mFieldNames;
+    private final String mModelName;
+    private final String mTemplateName;
+    @Nullable
+    private final ParsedNode mQuestion;
+    @Nullable
+    private final TemplateError mQuestionError;
+    @Nullable
+    private final ParsedNode mAnswer;
+    @Nullable
+    private final TemplateError mAnswerError;
+
+
+    /**
+     * @param template The template of the card
+     * @param qfmt The question format, which is the one of the template or of the browser
+     * @param afmt The answer format
+     */
+    CompiledTemplate(@NonNull Model model, @NonNull JSONObject template, int ord, @NonNull String qfmt, @NonNull String afmt) {
+        mMod = model.optLong("mod");
+        mQfmt = qfmt;
+        mAfmt = afmt;
+        mFieldNames = new String[model.getJSONArray("flds").length()];
+        for (JSONObject f: model.getJSONArray("flds").jsonObjectIterable()) {
+            int fieldOrd = f.getInt("ord");
+            if (fieldOrd >= 0 && fieldOrd < mFieldNames.length) {
+                mFieldNames[fieldOrd] = f.getString("name");
+            }
+        }
+        mModelName = model.getString("name");
+        mTemplateName = template.getString("name");
+        int cardNum = ord + 1;
+        // the fields of the card hide the fields of the note with the same name
+        Map<String, Integer> slots = new HashMap<>(mFieldNames.length + CARD_FIELD_COUNT);
+        for (int i = 0; i < mFieldNames.length; i++) {
+            if (mFieldNames[i] != null) {
+                slots.put(mFieldNames[i], i);
+            }
+        }
+        slots.put("Tags", mFieldNames.length + TAGS);
+        slots.put("Type", mFieldNames.length + TYPE);
+        slots.put("Deck", mFieldNames.length + DECK);
+        slots.put("Subdeck", mFieldNames.length + SUBDECK);
+        slots.put("CardFlag", mFieldNames.length + CARD_FLAG);
+        slots.put("Card", mFieldNames.length + CARD);
+        slots.put(String.format(Locale.US, "c%d", cardNum), mFieldNames.length + CARD_NUM);
+        slots.put("FrontSide", mFieldNames.length + FRONT_SIDE);
+
+        String question = fClozePatternQ.matcher(qfmt).replaceAll(String.format(Locale.US, "{{$1cq-%d:", cardNum));
+        question = fClozeTagStart.matcher(question).replaceAll(String.format(Locale.US, "<%%cq:%d:", cardNum));
+        ParsedNode questionNode = null;
+        TemplateError questionError = null;
+        try {
+            questionNode = ParsedNode.parse_inner(question).resolve(slots);
+        } catch (TemplateError er) {
+            questionError = er;
+        }
+        mQuestion = questionNode;
+        mQuestionError = questionError;
+
+        String answer = fClozePatternA.matcher(afmt).replaceAll(String.format(Locale.US, "{{$1ca-%d:", cardNum));
+        answer = fClozeTagStart.matcher(answer).replaceAll(String.format(Locale.US, "<%%ca:%d:", cardNum));
+        ParsedNode answerNode = null;
+        TemplateError answerError = null;
+        try {
+            answerNode = ParsedNode.parse_inner(answer).resolve(slots);
+        } catch (TemplateError er) {
+            answerError = er;
+        }
+        mAnswer = answerNode;
+        mAnswerError = answerError;
+    }
+
+
+    /** Whether this was compiled from those formats of this version of the model */
+    boolean isCompiledFrom(@NonNull Model model, @NonNull String qfmt, @NonNull String afmt) {
+        return mMod == model.optLong("mod") && mQfmt.equals(qfmt) && mAfmt.equals(afmt);
+    }
+
+
+    /**
+     * @param flist The fields of the note, which are not copied
+     * @param tags The tags of the note, trimmed
+     * @param deck The name of the deck of the card
+     * @param cardFlag The name of the flag of the card
+     * @return The fields for the rendering of the card
+     */
+    @NonNull
+    public RenderContext newContext(@NonNull String[] flist, @NonNull String tags, @NonNull String deck, @NonNull String cardFlag) {
+        int first = mFieldNames.length;
+        RenderContext fields = new RenderContext(flist, first, CARD_FIELD_COUNT);
+        fields.set(first + TAGS, tags);
+        fields.set(first + TYPE, mModelName);
+        fields.set(first + DECK, deck);
+        fields.set(first + SUBDECK, Decks.basename(deck));
+        fields.set(first + CARD_FLAG, cardFlag);
+        fields.set(first + CARD, mTemplateName);
+        fields.set(first + CARD_NUM, "1");
+        return fields;
+    }
+
+
+    /**
+     * Appends the rendering of the question or the answer to builder.
+     *
+     * @param frontSide The value of the field FrontSide, which is the rendered question on the answer
+     */
+    public void render(boolean question, @NonNull RenderContext fields, @NonNull String frontSide, @NonNull Context context,
+                       @NonNull StringBuilder builder) {
+        ParsedNode node = question ? mQuestion : mAnswer;
+        if (node == null) {
+            TemplateError er = question ? mQuestionError : mAnswerError;
+            Timber.w(er);
+            builder.append(er.message(context));
+            return;
+        }
+        fields.set(mFieldNames.length + FRONT_SIDE, frontSide);
+        node.render(fields, question, context, builder);
+    }
+}
@@ -23,6 +23,7 @@ package com.ichi2.libanki;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteDatabase;
 
 import com.ichi2.anki.AnkiDroidApp;
@@ -34,14 +35,19 @@ import com.ichi2.utils.DatabaseChangeDecorator;
 import net.ankiweb.rsdroid.BackendFactory;
 import net.ankiweb.rsdroid.database.RustSQLiteOpenHelperFactory;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.SupportSQLiteStatement;
 import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
 import timber.log.Timber;
 
@@ -53,15 +59,45 @@ public class DB {
 
     private static final String[] MOD_SQLS = new String[] { "insert", "update", "delete" };
 
+    /** Maximal number of compiled statements kept by {@link #mStatementCache} */
+    private static final int STATEMENT_CACHE_SIZE = 32;
+
+    /** Queries longer than this usually contain a list of ids and are unlikely to be run again, so are not cached */
+    private static final int MAX_CACHED_SQL_LENGTH = 1000;
+
+    /** Number of ids inserted by a single statement in {@link #idSet(String, long[])}. Less than SQLite's 999 bound variables */
+    private static final int ID_SET_CHUNK_SIZE = 500;
+
     /** may be injected to use a different sqlite implementation - null means use default */
     private static SupportSQLiteOpenHelper.Factory sqliteOpenHelperFactory = null;
 
     /**
      * The collection, which is actually an SQLite database.
      */
-    private final SupportSQLiteDatabase mDatabase;
+    private final DatabaseChangeDecorator mDatabase;
+    /** The connection without change tracking. Only used for temporary tables and indexes, which are not part of the collection */
+    private final SupportSQLiteDatabase mUntrackedDatabase;
     private boolean mMod = false;
 
+    /**
+     * Compiled read statements, keyed by their SQL, least recently used first.
+     * Null if the sqlite implementation does not support compiled statements.
+     */
+    @Nullable
+    private final LinkedHashMap<String, SupportSQLiteStatement> mStatementCache;
+
+    /** Whether the connection is owned by the Rust backend, which does not allow other connections to the file */
+    private final boolean mUsesBackend;
+
+    /**
+     * Read-only access to the collection through a pool of connections, which can be used by several threads in
+     * parallel with the writer. Null unless {@link #openReaders()} succeeded.
+     */
+    @Nullable
+    private DB mReader = null;
+    /** Whether {@link #openReaders()} switched the collection to write-ahead logging */
+    private boolean mWriteAheadLogging = false;
+
     public DB(String ankiFilename) {
         this(ankiFilename, null);
     }
@@ -77,13 +113,36 @@ public class DB {
                 .build();
         SupportSQLiteOpenHelper helper = getSqliteOpenHelperFactory(backendFactory).create(configuration);
         // Note: This line creates the database and schema when executed using a Rust backend
-        mDatabase = new DatabaseChangeDecorator(helper.getWritableDatabase());
+        mUntrackedDatabase = helper.getWritableDatabase();
+        mDatabase = new DatabaseChangeDecorator(mUntrackedDatabase);
+        mUsesBackend = backendFactory != null;
+        // The Rust backend does not support compiled statements
+        mStatementCache = backendFactory != null ? null : new LinkedHashMap<String, SupportSQLiteStatement>(STATEMENT_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SupportSQLiteStatement> eldest) {
+                if (size() <= STATEMENT_CACHE_SIZE) {
+                    return false;
+                }
+                closeStatement(eldest.getValue());
+                return true;
+            }
+        };
         mDatabase.disableWriteAheadLogging();
         mDatabase.query("PRAGMA synchronous = 2", null);
         mMod = false;
     }
 
 
+    /** A read-only view of the collection, see {@link #openReaders()} */
+    private DB(@NonNull SupportSQLiteDatabase readerDatabase) {
+        mUntrackedDatabase = readerDatabase;
+        mDatabase = new DatabaseChangeDecorator(readerDatabase);
+        mUsesBackend = false;
+        // The connection is shared by threads, while the cache is not thread safe
+        mStatementCache = null;
+    }
+
+
     /**
      * You may swap in your own SQLite implementation by altering the factory here. An
      * example might be to use the framework implementation. If you set to null, we default
@@ -140,6 +199,8 @@ public class DB {
      * Closes a previously opened database connection.
      */
     public void close() {
+        clearStatementCache();
+        closeReaders();
         try {
             mDatabase.close();
             Timber.d("Database %s closed = %s", mDatabase.getPath(), !mDatabase.isOpen());
@@ -166,6 +227,92 @@ public class DB {
     }
 
 
+    /**
+     * Switches the collection to write-ahead logging and opens a pool of read-only connections used by {@link #reader()},
+     * so that long reads such as searches and statistics neither wait for nor block the writer.
+     * Does nothing if the collection is opened through the Rust backend, which owns the only connection, or is in memory.
+     */
+    public void openReaders() {
+        String path = mDatabase.getPath();
+        if (mUsesBackend || mReader != null || path == null || ":memory:".equals(path)) {
+            return;
+        }
+        SupportSQLiteDatabase readerDatabase = null;
+        try {
+            SupportSQLiteOpenHelper.Configuration configuration = SupportSQLiteOpenHelper.Configuration.builder(AnkiDroidApp.getInstance())
+                    .name(path)
+                    .callback(new SupportSQLiteOpenHelperCallback(1))
+                    .build();
+            SupportSQLiteOpenHelper helper = getSqliteOpenHelperFactory(null).create(configuration);
+            // The framework switches the file to write-ahead logging, and opens a connection for each thread reading
+            // concurrently. The main connection keeps a single connection, which temporary tables require.
+            helper.setWriteAheadLoggingEnabled(true);
+            readerDatabase = helper.getWritableDatabase();
+            // The framework runs every statement but queries on the primary connection of the pool, so this makes
+            // the whole pool read-only
+            readerDatabase.execSQL("PRAGMA query_only = 1");
+            DB reader = new DB(readerDatabase);
+            String journalMode = reader.queryString("PRAGMA journal_mode");
+            if (!"wal".equalsIgnoreCase(journalMode)) {
+                Timber.w("Could not enable write-ahead logging, journal mode is %s", journalMode);
+                readerDatabase.close();
+                return;
+            }
+            mReader = reader;
+            mWriteAheadLogging = true;
+            Timber.i("Opened read-only connections to %s", path);
+        } catch (Exception e) {
+            Timber.w(e, "Failed to open read-only connections, reads use the main connection");
+            if (readerDatabase != null) {
+                readerDatabase.close();
+            }
+        }
+    }
+
+
+    /**
+     * Closes the connections opened by {@link #openReaders()} and switches the collection back to a rollback journal,
+     * so that the file can be copied or uploaded on its own.
+     */
+    private void closeReaders() {
+        if (mReader != null) {
+            try {
+                mReader.getDatabase().disableWriteAheadLogging();
+            } catch (Exception e) {
+                // SQLite still checkpoints the log when the last connection is closed
+                Timber.w(e, "Failed to disable write-ahead logging");
+            }
+            mReader.close();
+            mReader = null;
+        }
+        mWriteAheadLogging = false;
+    }
+
+
+    /**
+     * @return A database to run read-only queries which may be slow. While {@link #openReaders()} is in effect, they
+     * run on their own connection and see the collection as it was last committed. Otherwise, or while this thread is
+     * in a transaction, this database itself.
+     * Temporary tables, such as {@link #idSet(String, long[])}, must not be used on the returned database.
+     */
+    @NonNull
+    public DB reader() {
+        DB reader = mReader;
+        if (reader == null || mDatabase.inTransaction()) {
+            return this;
+        }
+        return reader;
+    }
+
+
+    /** Writes the content of the write-ahead log into the collection file, if write-ahead logging is used. */
+    public void checkpoint() {
+        if (mWriteAheadLogging) {
+            queryString("PRAGMA wal_checkpoint(TRUNCATE)");
+        }
+    }
+
+
     public void setMod(boolean mod) {
         mMod = mod;
     }
@@ -175,6 +322,15 @@ public class DB {
         return mMod;
     }
 
+
+    /**
+     * @return A value which changes whenever a statement which may write has been sent to the database.
+     * Used by in-memory caches of database content to detect that they are stale.
+     */
+    public long getModificationCount() {
+        return mDatabase.getModificationCount();
+    }
+
     // Allows to avoid using new Object[]
     public Cursor query(String query, Object... selectionArgs) {
         return mDatabase.query(query, selectionArgs);
@@ -187,6 +343,9 @@ public class DB {
      * @return The integer result of the query.
      */
     public int queryScalar(String query, Object... selectionArgs) {
+        if (mStatementCache != null && query.length() <= MAX_CACHED_SQL_LENGTH) {
+            return (int) queryCachedLongScalar(query, selectionArgs);
+        }
         Cursor cursor = null;
         int scalar;
         try {
@@ -215,6 +374,9 @@ public class DB {
 
 
     public long queryLongScalar(String query, Object... bindArgs) {
+        if (mStatementCache != null && query.length() <= MAX_CACHED_SQL_LENGTH) {
+            return queryCachedLongScalar(query, bindArgs);
+        }
         long scalar;
         try (Cursor cursor = mDatabase.query(query, bindArgs)) {
             if (!cursor.moveToNext()) {
@@ -245,6 +407,54 @@ public class DB {
         return results;
     }
 
+    /**
+     * Same as {@link #queryLongList(String, Object...)}, without boxing each value.
+     *
+     * @param query The SQL query statement.
+     * @return An array with the contents of the first column.
+     */
+    public long[] queryLongArray(String query, Object... bindArgs) {
+        long[] results = new long[16];
+        int size = 0;
+        try (Cursor cursor = mDatabase.query(query, bindArgs)) {
+            if (cursor.getCount() > results.length) {
+                results = new long[cursor.getCount()];
+            }
+            while (cursor.moveToNext()) {
+                if (size == results.length) {
+                    results = Arrays.copyOf(results, size * 2);
+                }
+                results[size++] = cursor.getLong(0);
+            }
+        }
+        return size == results.length ? results : Arrays.copyOf(results, size);
+    }
+
+
+    /**
+     * Same as {@link #queryLongArray(String, Object...)}, for a column of integers.
+     *
+     * @param query The SQL query statement.
+     * @return An array with the contents of the first column.
+     */
+    public int[] queryIntArray(String query, Object... bindArgs) {
+        int[] results = new int[16];
+        int size = 0;
+        try (Cursor cursor = mDatabase.query(query, bindArgs)) {
+            if (cursor.getCount() > results.length) {
+                results = new int[cursor.getCount()];
+            }
+            while (cursor.moveToNext()) {
+                if (size == results.length) {
+                    results = Arrays.copyOf(results, size * 2);
+                }
+                results[size++] = cursor.getInt(0);
+            }
+        }
+        return size == results.length ? results : Arrays.copyOf(results, size);
+    }
+
+
     /**
      * Convenience method for querying the database for an entire column of String. 
      *
@@ -264,6 +474,126 @@ public class DB {
     }
 
 
+    /**
+     * Fill a temporary table of the current connection with ids, and return a subquery selecting them. It can be used
+     * instead of {@link Utils#ids2str(long[])} for long lists of ids, so that SQLite does not have to parse a huge
+     * statement, and no huge string is created.
+     *
+     * The content of the table is replaced at each call with the same name, so the result must be used before the
+     * next call with this name. Temporary tables are not part of the collection, so filling it does not mark the
+     * collection as modified.
+     *
+     * @param name The name of the temporary table, unique for each usage
+     * @return "(SELECT id FROM temp.name)"
+     */
+    public String idSet(String name, long[] ids) {
+        mUntrackedDatabase.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + name + " (id INTEGER PRIMARY KEY)");
+        mUntrackedDatabase.execSQL("DELETE FROM temp." + name);
+        for (int start = 0; start < ids.length; start += ID_SET_CHUNK_SIZE) {
+            int end = Math.min(ids.length, start + ID_SET_CHUNK_SIZE);
+            StringBuilder sql = new StringBuilder("INSERT OR IGNORE INTO temp.").append(name).append(" (id) VALUES (?)");
+            Object[] args = new Object[end - start];
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    sql.append(",(?)");
+                }
+                args[i - start] = ids[i];
+            }
+            mUntrackedDatabase.execSQL(sql.toString(), args);
+        }
+        return "(SELECT id FROM temp." + name + ")";
+    }
+
+
+    public String idSet(String name, java.util.Collection<Long> ids) {
+        return idSet(name, Utils.collection2Array(ids));
+    }
+
+
+    /**
+     * Executes a statement on data derived from the collection, such as {@link NoteSearchIndex}, which can be rebuilt
+     * at any time. The collection is not marked as modified, neither for the next save nor for the next sync.
+     */
+    void executeUntracked(String sql, Object... bindArgs) {
+        mUntrackedDatabase.execSQL(sql, bindArgs);
+    }
+
+
+    /**
+     * Run a query returning a single number, through a compiled statement which is kept for the next calls with the
+     * same SQL.
+     * @return The value of the first column of the first row, 0 if there is no row.
+     */
+    private long queryCachedLongScalar(String query, Object[] bindArgs) {
+        SupportSQLiteStatement statement;
+        synchronized (mStatementCache) {
+            statement = mStatementCache.get(query);
+            if (statement == null) {
+                // Reads do not need change tracking
+                statement = mUntrackedDatabase.compileStatement(query);
+                mStatementCache.put(query, statement);
+            }
+        }
+        // A statement holds its bindings, so it can't be used by two threads at once
+        synchronized (statement) {
+            statement.clearBindings();
+            bind(statement, bindArgs);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return 0;
+            }
+        }
+    }
+
+
+    private static void bind(SupportSQLiteStatement statement, @Nullable Object[] bindArgs) {
+        if (bindArgs == null) {
+            return;
+        }
+        for (int i = 0; i < bindArgs.length; i++) {
+            // bind indices are 1-based
+            int index = i + 1;
+            Object arg = bindArgs[i];
+            if (arg == null) {
+                statement.bindNull(index);
+            } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+                statement.bindLong(index, ((Number) arg).longValue());
+            } else if (arg instanceof Double || arg instanceof Float) {
+                statement.bindDouble(index, ((Number) arg).doubleValue());
+            } else if (arg instanceof Boolean) {
+                statement.bindLong(index, (Boolean) arg ? 1 : 0);
+            } else if (arg instanceof byte[]) {
+                statement.bindBlob(index, (byte[]) arg);
+            } else {
+                statement.bindString(index, arg.toString());
+            }
+        }
+    }
+
+
+    private void clearStatementCache() {
+        if (mStatementCache == null) {
+            return;
+        }
+        synchronized (mStatementCache) {
+            for (SupportSQLiteStatement statement : mStatementCache.values()) {
+                closeStatement(statement);
+            }
+            mStatementCache.clear();
+        }
+    }
+
+
+    private static void closeStatement(SupportSQLiteStatement statement) {
+        try {
+            statement.close();
+        } catch (Exception e) {
+            Timber.w(e, "Failed to close statement");
+        }
+    }
+
+
     public void execute(String sql, Object... object) {
         String s = sql.trim().toLowerCase(Locale.ROOT);
         // mark modified?
@@ -332,6 +662,53 @@ public class DB {
         }
     }
 
+    /**
+     * Prepares a write executed once for each row of a bulk write, e.g. the rows received by sync, so that the SQL is
+     * compiled once instead of for each row. The statement must be closed.
+     */
+    @NonNull
+    public BulkStatement bulkStatement(@NonNull String sql) {
+        mMod = true;
+        // The Rust backend does not support compiled statements
+        SupportSQLiteStatement statement = mUsesBackend ? null : mDatabase.compileStatement(sql);
+        return new BulkStatement(sql, statement);
+    }
+
+
+    /** See {@link #bulkStatement(String)} */
+    public class BulkStatement implements Closeable {
+        private final String mSql;
+        @Nullable
+        private final SupportSQLiteStatement mStatement;
+
+
+        private BulkStatement(@NonNull String sql, @Nullable SupportSQLiteStatement statement) {
+            mSql = sql;
+            mStatement = statement;
+        }
+
+
+        /** @param bindArgs The arguments of the row, which can be reused by the caller once this returns */
+        public void execute(@NonNull Object[] bindArgs) {
+            if (mStatement == null) {
+                mDatabase.execSQL(mSql, bindArgs);
+                return;
+            }
+            mStatement.clearBindings();
+            bind(mStatement, bindArgs);
+            mStatement.execute();
+        }
+
+
+        @Override
+        public void close() {
+            if (mStatement != null) {
+                closeStatement(mStatement);
+            }
+        }
+    }
+
+
     /**
      * @return The full path to this database file.
      */
@@ -42,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -149,6 +150,7 @@ public class Decks {
 
 
     private final Collection mCol;
+    // Guarded by this, as the card browser reads the decks while other tasks change them
     private HashMap<Long, Deck> mDecks;
     private HashMap<Long, DeckConfig> mDconf;
     // Never access mNameMap directly. Uses byName
@@ -160,16 +162,52 @@ public class Decks {
     /**
      * A tool to quickly access decks from name. Ensure that names get properly normalized so that difference in
      * name unicode normalization or upper/lower case, is ignored during deck search.
+     *
+     * The decks are also kept in a tree of their normalized names, so that the parents and the descendants of a deck
+     * are found without going through the names of all decks.
      */
     private static class NameMap {
         private final HashMap<String, Deck> mNameMap;
 
+        /** The root of the tree of names, which is the parent of the top level decks and has no deck */
+        private final PathNode mRoot = new PathNode(null, "");
+        /** The node of each deck in the tree */
+        private final HashMap<Long, PathNode> mNodes;
+
+
+        /** A name in the tree of deck names, and the decks having this name */
+        private static class PathNode {
+            @Nullable
+            private final PathNode mParent;
+            /** Last component of the normalized name */
+            private final String mComponent;
+            private final HashMap<String, PathNode> mChildren = new HashMap<>();
+            /**
+             * Decks with this name. Usually a single one, none if the name only exists as an ancestor of a deck,
+             * several if names are duplicated before {@link #checkIntegrity()}. The last one is the one in mNameMap.
+             */
+            private final List<Deck> mDecks = new ArrayList<>(1);
+
+
+            private PathNode(@Nullable PathNode parent, String component) {
+                mParent = parent;
+                mComponent = component;
+            }
+
+
+            @Nullable
+            private Deck getDeck() {
+                return mDecks.isEmpty() ? null : mDecks.get(mDecks.size() - 1);
+            }
+        }
+
 
         /**
          * @param size The expected number of deck to keep
          */
         private NameMap(int size) {
             mNameMap = new HashMap<>(size);
+            mNodes = new HashMap<>(size);
         }
 
 
@@ -213,6 +251,126 @@ public class Decks {
             // Normalized name is also added because it's required to use it in by name.
             // Non normalized is kept for Parent
             mNameMap.put(normalizeName(name), g);
+
+            // The deck may have been renamed without removing its previous name
+            removeFromTree(g.getLong("id"));
+            PathNode node = mRoot;
+            for (String component : path(normalizeName(name))) {
+                PathNode child = node.mChildren.get(component);
+                if (child == null) {
+                    child = new PathNode(node, component);
+                    node.mChildren.put(component, child);
+                }
+                node = child;
+            }
+            node.mDecks.add(g);
+            mNodes.put(g.getLong("id"), node);
+        }
+
+
+        private void removeFromTree(long did) {
+            PathNode node = mNodes.remove(did);
+            if (node == null) {
+                return;
+            }
+            for (int i = 0; i < node.mDecks.size(); i++) {
+                if (node.mDecks.get(i).getLong("id") == did) {
+                    node.mDecks.remove(i);
+                    break;
+                }
+            }
+            // Names which are not used by any deck anymore are removed
+            while (node.mParent != null && node.mDecks.isEmpty() && node.mChildren.isEmpty()) {
+                node.mParent.mChildren.remove(node.mComponent);
+                node = node.mParent;
+            }
+        }
+
+
+        /** @return The node of this name, or null if no deck has this name or a descendant of it */
+        @Nullable
+        private PathNode find(String name) {
+            PathNode node = mRoot;
+            for (String component : path(normalizeName(name))) {
+                node = node.mChildren.get(component);
+                if (node == null) {
+                    return null;
+                }
+            }
+            return node;
+        }
+
+
+        /**
+         * @return The deck of each ancestor of name, the top level one first. Null for an ancestor which is not a deck.
+         */
+        @NonNull
+        public synchronized List<Deck> ancestors(String name) {
+            PathNode node = find(name);
+            if (node == null) {
+                // Same as if no ancestor exists
+                List<Deck> ancestors = new ArrayList<>();
+                for (int i = 0; i < path(name).length - 1; i++) {
+                    ancestors.add(null);
+                }
+                return ancestors;
+            }
+            LinkedList<Deck> ancestors = new LinkedList<>();
+            for (PathNode ancestor = node.mParent; ancestor != null && ancestor != mRoot; ancestor = ancestor.mParent) {
+                ancestors.addFirst(ancestor.getDeck());
+            }
+            return new ArrayList<>(ancestors);
+        }
+
+
+        /** @return The name and id of every descendant of the deck name */
+        @NonNull
+        public synchronized TreeMap<String, Long> descendants(String name) {
+            TreeMap<String, Long> descendants = new TreeMap<>();
+            PathNode node = find(name);
+            if (node != null) {
+                addDescendants(node, descendants);
+            }
+            return descendants;
+        }
+
+
+        private static void addDescendants(PathNode node, TreeMap<String, Long> descendants) {
+            for (PathNode child : node.mChildren.values()) {
+                for (Deck deck : child.mDecks) {
+                    descendants.put(deck.getString("name"), deck.getLong("id"));
+                }
+                addDescendants(child, descendants);
+            }
+        }
+
+
+        /** See {@link Decks#childMap()} */
+        @NonNull
+        public synchronized Node childMap() {
+            Node childMap = new Node();
+            addChildren(mRoot, null, childMap);
+            return childMap;
+        }
+
+
+        /**
+         * Adds the decks below pathNode to childMap
+         * @param parent The node of the nearest deck containing the decks of pathNode, null for top level decks
+         */
+        private static void addChildren(PathNode pathNode, @Nullable Node parent, Node childMap) {
+            for (PathNode child : pathNode.mChildren.values()) {
+                Node childParent = parent;
+                for (Deck deck : child.mDecks) {
+                    Node node = new Node();
+                    childMap.put(deck.getLong("id"), node);
+                    if (parent != null) {
+                        parent.put(deck.getLong("id"), node);
+                    }
+                    childParent = node;
+                }
+                addChildren(child, childParent, childMap);
+            }
         }
 
 
@@ -238,6 +396,10 @@ public class Decks {
                     mNameMap.remove(name_);
                 }
             }
+            PathNode node = mNodes.get(expectedDeck.getLong("id"));
+            if (node != null && node == find(name)) {
+                removeFromTree(expectedDeck.getLong("id"));
+            }
         }
 
     }
@@ -252,7 +414,7 @@ public class Decks {
     }
 
 
-    public void load(String decks, String dconf) {
+    public synchronized void load(String decks, String dconf) {
         JSONObject decksarray = new JSONObject(decks);
         JSONArray ids = decksarray.names();
         mDecks = new HashMap<>(decksarray.length());
@@ -293,7 +455,7 @@ public class Decks {
     }
 
 
-    public void flush() {
+    public synchronized void flush() {
         ContentValues values = new ContentValues();
         if (mChanged) {
             JSONObject decksarray = new JSONObject();
@@ -344,7 +506,7 @@ public class Decks {
     /**
      * Add a deck with NAME. Reuse deck if already exists. Return id as int.
      */
-    public Long id(String name, String type) throws FilteredAncestor {
+    public synchronized Long id(String name, String type) throws FilteredAncestor {
         name = usable_name(name);
         Long id = id_for_name(name);
         if (id != null) {
@@ -416,7 +578,9 @@ public class Decks {
             // we won't allow the default deck to be deleted, but if it's a
             // child of an existing deck then it needs to be renamed
             if (deck != null && deck.getString("name").contains("::")) {
+                mNameMap.remove(deck.getString("name"), deck);
                 deck.put("name", "Default");
+                mNameMap.add(deck);
                 save(deck);
             }
             return;
@@ -452,8 +616,10 @@ public class Decks {
             }
         }
         // delete the deck and add a grave
-        mDecks.remove(did);
-        mNameMap.remove(deck.getString("name"), deck);
+        synchronized (this) {
+            mDecks.remove(did);
+            mNameMap.remove(deck.getString("name"), deck);
+        }
         // ensure we have an active deck
         if (active().contains(did)) {
             select(mDecks.keySet().iterator().next());
@@ -470,7 +636,7 @@ public class Decks {
     /**
      * An unsorted list of all deck names.
      */
-    public List<String> allNames(boolean dyn) {
+    public synchronized List<String> allNames(boolean dyn) {
         List<String> list = new ArrayList<>(mDecks.size());
         if (dyn) {
             for (Deck x : mDecks.values()) {
@@ -490,7 +656,7 @@ public class Decks {
     /**
      * A list of all decks.
      */
-    public List<Deck> all() {
+    public synchronized List<Deck> all() {
         return new ArrayList<>(mDecks.values());
     }
 
@@ -516,8 +682,8 @@ public class Decks {
     }
 
 
-    public Set<Long> allIds() {
-        return mDecks.keySet();
+    public synchronized Set<Long> allIds() {
+        return new HashSet<>(mDecks.keySet());
     }
 
 
@@ -539,7 +705,7 @@ public class Decks {
     /**
      * Return the number of decks.
      */
-    public int count() {
+    public synchronized int count() {
         return mDecks.size();
     }
 
@@ -551,7 +717,7 @@ public class Decks {
 
 
     @CheckResult
-    public Deck get(long did, boolean _default) {
+    public synchronized Deck get(long did, boolean _default) {
         if (mDecks.containsKey(did)) {
             return mDecks.get(did);
         } else if (_default) {
@@ -574,7 +740,7 @@ public class Decks {
     /**
      * Add or update an existing deck. Used for syncing and merging.
      */
-    public void update(Deck g) {
+    public synchronized void update(Deck g) {
         long id = g.getLong("id");
         JSONObject oldDeck = get(id, false);
         if (oldDeck != null) {
@@ -614,7 +780,8 @@ public class Decks {
         }
         // rename children
         String oldName = g.getString("name");
-        for (Deck grp : all()) {
+        for (long childId : children(g.getLong("id")).values()) {
+            Deck grp = get(childId);
             String grpOldName = grp.getString("name");
             if (grpOldName.startsWith(oldName + "::")) {
                 String grpNewName = grpOldName.replaceFirst(Pattern.quote(oldName + "::"), newName + "::");
@@ -794,7 +961,7 @@ public class Decks {
     /**
      * A list of all deck config.
      */
-    public ArrayList<DeckConfig> allConf() {
+    public synchronized ArrayList<DeckConfig> allConf() {
         return new ArrayList<>(mDconf.values());
     }
 
@@ -816,12 +983,12 @@ public class Decks {
     }
 
 
-    public DeckConfig getConf(long confId) {
+    public synchronized DeckConfig getConf(long confId) {
         return mDconf.get(confId);
     }
 
 
-    public void updateConf(DeckConfig g) {
+    public synchronized void updateConf(DeckConfig g) {
         mDconf.put(g.getLong("id"), g);
         save();
     }
@@ -835,7 +1002,7 @@ public class Decks {
     /**
      * Create a new configuration and return id.
      */
-    public long confId(String name, String cloneFrom) {
+    public synchronized long confId(String name, String cloneFrom) {
         long id;
         DeckConfig c = new DeckConfig(cloneFrom);
         do {
@@ -853,7 +1020,7 @@ public class Decks {
      * Remove a configuration and update all decks using it.
      * @throws ConfirmModSchemaException 
      */
-    public void remConf(long id) throws ConfirmModSchemaException {
+    public synchronized void remConf(long id) throws ConfirmModSchemaException {
         assert id != 1;
         mCol.modSchema();
         mDconf.remove(id);
@@ -876,7 +1043,7 @@ public class Decks {
     }
 
 
-    public List<Long> didsForConf(DeckConfig conf) {
+    public synchronized List<Long> didsForConf(DeckConfig conf) {
         List<Long> dids = new ArrayList<>();
         for(Deck deck : mDecks.values()) {
             if (deck.has("conf") && deck.getLong("conf") == conf.getLong("id")) {
@@ -1075,7 +1242,7 @@ public class Decks {
     }
 
 
-    public Deck current() {
+    public synchronized Deck current() {
         if (get(selected()) == null || !mDecks.containsKey(selected())) {
             select(Consts.DEFAULT_DECK_ID); // Select default deck if the selected deck is null
         }
@@ -1086,7 +1253,7 @@ public class Decks {
     /**
      * Select a new branch.
      */
-    public void select(long did) {
+    public synchronized void select(long did) {
         String name = mDecks.get(did).getString("name");
 
         // current deck
@@ -1110,14 +1277,7 @@ public class Decks {
      * need to sort on behalf of select().
      */
     public TreeMap<String, Long> children(long did) {
-        String name = get(did).getString("name");
-        TreeMap<String, Long> actv = new TreeMap<>();
-        for (Deck g : all()) {
-            if (g.getString("name").startsWith(name + "::")) {
-                actv.put(g.getString("name"), g.getLong("id"));
-            }
-        }
-        return actv;
+        return mNameMap.descendants(get(did).getString("name"));
     }
 
     public static class Node extends HashMap<Long, Node> {}
@@ -1137,61 +1297,19 @@ public class Decks {
     }
 
 
-    public Node childMap() {
-
-        Node childMap = new Node();
-
-        // Go through all decks, sorted by name
-        List<Deck> decks = all();
-
-        Collections.sort(decks, DeckComparator.INSTANCE);
-
-        for (Deck deck : decks) {
-            Node node = new Node();
-            childMap.put(deck.getLong("id"), node);
-
-            List<String> parts = Arrays.asList(path(deck.getString("name")));
-            if (parts.size() > 1) {
-                String immediateParent = TextUtils.join("::", parts.subList(0, parts.size() - 1));
-                long pid = byName(immediateParent).getLong("id");
-                childMap.get(pid).put(deck.getLong("id"), node);
-            }
-        }
-
-        return childMap;
-    }
-
     /**
-     * @return Names of ancestors of parents of name.
+     * @return For each deck id, the map of the ids of its children to their own map. The node of a child is the same
+     * object in the map of its parent and in the returned map.
      */
-    private String[] parentsNames(String name) {
-        String[] parts = path(name);
-        String[] parentsNames = new String[parts.length - 1];
-        // Top level names have no parent, so it returns an empty list.
-        // So the array size is 1 less than the number of parts.
-        String prefix = "";
-        for (int i = 0; i < parts.length - 1; i++) {
-            prefix += parts[i];
-            parentsNames[i] = prefix;
-            prefix += "::";
-        }
-        return parentsNames;
+    public Node childMap() {
+        return mNameMap.childMap();
     }
 
     /**
      * All parents of did.
      */
     public List<Deck> parents(long did) {
-        // get parent and grandparent names
-        String[] parents = parentsNames(get(did).getString("name"));
-        // convert to objects
-        List<Deck> oParents = new ArrayList<>(parents.length);
-        for (int i = 0; i < parents.length; i++) {
-            String parentName = parents[i];
-            Deck deck = mNameMap.get(parentName);
-            oParents.add(i, deck);
-        }
-        return oParents;
+        return mNameMap.ancestors(get(did).getString("name"));
     }
 
 
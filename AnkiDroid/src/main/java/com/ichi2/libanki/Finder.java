@@ -24,6 +24,7 @@ import android.text.TextUtils;
 
 import android.util.Pair;
 
+import com.ichi2.anki.BuildConfig;
 import com.ichi2.async.CancelListener;
 import com.ichi2.async.CollectionTask;
 import com.ichi2.async.ProgressSender;
@@ -43,6 +44,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import androidx.annotation.CheckResult;
+import androidx.annotation.Nullable;
 import timber.log.Timber;
 
 import static com.ichi2.async.CancelListener.isCancelled;
@@ -107,7 +109,10 @@ public class Finder {
         boolean rev = res2.second;
         String sql = _query(preds, order);
         Timber.v("Search query '%s' is compiled as '%s'.", query, sql);
-        try (Cursor cur = mCol.getDb().getDatabase().query(sql, args)) {
+        if (BuildConfig.DEBUG) {
+            reportFullScans(query, sql, args);
+        }
+        try (Cursor cur = mCol.getDb().reader().getDatabase().query(sql, args)) {
             while (cur.moveToNext()) {
                 if (isCancelled(cancellation)) {
                     return new ArrayList<>(0);
@@ -127,6 +132,22 @@ public class Finder {
     }
 
 
+    /** Logs the tables that SQLite reads entirely to run the search, which are the slow part of most searches */
+    private void reportFullScans(String query, String sql, String[] args) {
+        try (Cursor cur = mCol.getDb().getDatabase().query("EXPLAIN QUERY PLAN " + sql, args)) {
+            int detailColumn = cur.getColumnIndex("detail");
+            while (cur.moveToNext()) {
+                String detail = cur.getString(detailColumn);
+                if (detail != null && detail.startsWith("SCAN")) {
+                    Timber.i("Search query '%s' does a full scan: %s", query, detail);
+                }
+            }
+        } catch (Exception e) {
+            Timber.w(e, "Could not explain the query plan of '%s'", sql);
+        }
+    }
+
+
     public List<Long> findNotes(String query) {
         String[] tokens = _tokenize(query);
         Pair<String, String[]> res1 = _where(tokens);
@@ -142,7 +163,7 @@ public class Finder {
             preds = "(" + preds + ")";
         }
         String sql = "select distinct(n.id) from cards c, notes n where c.nid=n.id and " + preds;
-        try (Cursor cur = mCol.getDb().getDatabase().query(sql, args)) {
+        try (Cursor cur = mCol.getDb().reader().getDatabase().query(sql, args)) {
             while (cur.moveToNext()) {
                 res.add(cur.getLong(0));
             }
@@ -230,132 +251,96 @@ public class Finder {
      */
 
     /**
-     * LibAnki creates a dictionary and operates on it with an inner function inside _where().
-     * AnkiDroid combines the two in this class instead.
+     * @return A sql predicate on the card c and its note n, with its arguments. The predicate is empty if every card
+     * matches, and null if the query is invalid or no card can match.
      */
-    public static class SearchState {
-        public boolean isnot;
-        public boolean isor;
-        public boolean join;
-        public String q = "";
-        public boolean bad;
-        
-        public void add(String txt) {
-            add(txt, true);
-        }
-
-        public void add(String txt, boolean wrap) {
-            // failed command?
-            if (TextUtils.isEmpty(txt)) {
-                // if it was to be negated then we can just ignore it
-                if (isnot) {
-                    isnot = false;
-                } else {
-                    bad = true;
-                }
-                return;
-            } else if ("skip".equals(txt)) {
-                return;
-            }
-            // do we need a conjunction?
-            if (join) {
-                if (isor) {
-                    q += " or ";
-                    isor = false;
-                } else {
-                    q += " and ";
-                }
-            }
-            if (isnot) {
-                q += " not ";
-                isnot = false;
-            }
-            if (wrap) {
-                txt = "(" + txt + ")";
-            }
-            q += txt;
-            join = true;
-        }
-    }
-
-
     private Pair<String, String[]> _where(String[] tokens) {
-        // state and query
-        SearchState s = new SearchState();
-        List<String> args = new ArrayList<>();
+        SearchPlan.Builder plan = new SearchPlan.Builder();
         for (String token : tokens) {
-            if (s.bad) {
+            if (plan.isBad()) {
                 return new Pair<>(null, null);
             }
             // special tokens
             if ("-".equals(token)) {
-                s.isnot = true;
+                plan.not();
             } else if ("or".equalsIgnoreCase(token)) {
-                s.isor = true;
+                plan.or();
             } else if ("(".equals(token)) {
-                s.add(token, false);
-                s.join = false;
+                plan.openGroup();
             } else if (")".equals(token)) {
-                s.q += ")";
+                plan.closeGroup();
                 // commands
             } else if (token.contains(":")) {
                 String[] spl = token.split(":", 2);
                 String cmd = spl[0].toLowerCase(Locale.ROOT);
                 String val = spl[1];
+                List<String> args = new ArrayList<>();
 
                 switch (cmd) {
                     case "added":
-                        s.add(_findAdded(val));
+                        plan.add(_findAdded(val), SearchPlan.Cost.INDEXED);
                         break;
                     case "card":
-                        s.add(_findTemplate(val));
+                        plan.add(_findTemplate(val), SearchPlan.Cost.COLUMN);
                         break;
                     case "deck":
-                        s.add(_findDeck(val));
+                        plan.add(_findDeck(val), SearchPlan.Cost.INDEXED);
                         break;
                     case "flag":
-                        s.add(_findFlag(val));
+                        plan.add(_findFlag(val), SearchPlan.Cost.COLUMN);
                         break;
                     case "mid":
-                        s.add(_findMid(val));
+                        plan.add(_findMid(val), SearchPlan.Cost.COLUMN);
                         break;
                     case "nid":
-                        s.add(_findNids(val));
+                        plan.add(_findNids(val), SearchPlan.Cost.INDEXED);
                         break;
                     case "cid":
-                        s.add(_findCids(val));
+                        plan.add(_findCids(val), SearchPlan.Cost.INDEXED);
                         break;
                     case "note":
-                        s.add(_findModel(val));
+                        plan.add(_findModel(val), SearchPlan.Cost.COLUMN);
                         break;
                     case "prop":
-                        s.add(_findProp(val));
+                        plan.add(_findProp(val), SearchPlan.Cost.COLUMN);
                         break;
                     case "rated":
-                        s.add(_findRated(val));
+                        plan.add(_findRated(val), SearchPlan.Cost.SUBQUERY);
                         break;
-                    case "tag":
-                        s.add(_findTag(val, args));
+                    case "tag": {
+                        String tag = _findTag(val, args);
+                        List<String> candidatesArgs = new ArrayList<>();
+                        String candidates = args.isEmpty() ? null :
+                                mCol.getSearchIndex().tagsCandidates("n.id", args.get(0), candidatesArgs);
+                        addLike(plan, tag, SearchPlan.Cost.TAGS, args, candidates, candidatesArgs);
                         break;
+                    }
                     case "dupe":
-                        s.add(_findDupes(val));
+                        plan.add(_findDupes(val), SearchPlan.Cost.INDEXED);
                         break;
                     case "is":
-                        s.add(_findCardState(val));
+                        plan.add(_findCardState(val), SearchPlan.Cost.COLUMN);
                         break;
                     default:
-                        s.add(_findField(cmd, val));
+                        // The fields are matched beforehand, leaving a list of note ids
+                        plan.add(_findField(cmd, val), SearchPlan.Cost.INDEXED);
                         break;
                 }
             // normal text search
             } else {
-                s.add(_findText(token, args));
+                List<String> args = new ArrayList<>();
+                String text = _findText(token, args);
+                List<String> candidatesArgs = new ArrayList<>();
+                String candidates = mCol.getSearchIndex().fieldsCandidates("n.id", args.get(0), candidatesArgs);
+                addLike(plan, text, SearchPlan.Cost.TEXT, args, candidates, candidatesArgs);
             }
         }
-        if (s.bad) {
+        List<String> args = new ArrayList<>();
+        String preds = plan.build(args);
+        if (preds == null) {
             return new Pair<>(null, null);
         }
-        return new Pair<>(s.q, args.toArray(new String[args.size()]));
+        return new Pair<>(preds, args.toArray(new String[args.size()]));
     }
 
 
@@ -449,6 +434,23 @@ public class Finder {
     }
 
 
+    /**
+     * Adds a LIKE comparison to the plan. If the search index found the candidate notes, the comparison is only
+     * evaluated on them.
+     * @param candidates A predicate true for the notes which may match, or null
+     */
+    private static void addLike(SearchPlan.Builder plan, String like, SearchPlan.Cost cost, List<String> args,
+                                @Nullable String candidates, List<String> candidatesArgs) {
+        if (candidates == null) {
+            plan.add(like, cost, args);
+            return;
+        }
+        List<String> allArgs = new ArrayList<>(candidatesArgs);
+        allArgs.addAll(args);
+        plan.add(candidates + " and " + like, SearchPlan.Cost.INDEXED, allArgs);
+    }
+
+
     /**
      * Commands
      * ***********************************************************
@@ -894,6 +896,13 @@ public class Finder {
                 return 0;
             }
         }
+        // the search index avoids reading the notes which don't contain src
+        List<String> candidatesArgs = new ArrayList<>();
+        String candidates = null;
+        if (!isRegex) {
+            String like = "%" + src.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+            candidates = col.getSearchIndex().fieldsCandidates("id", like, candidatesArgs);
+        }
         // find and gather replacements
         if (!isRegex) {
             src = Pattern.quote(src);
@@ -908,7 +917,8 @@ public class Finder {
         String snids = Utils.ids2str(nids);
         Map<Long, java.util.Collection<Long>> midToNid = new HashMap<>(col.getModels().count());
         try (Cursor cur = col.getDb().query(
-                "select id, mid, flds from notes where id in " + snids)) {
+                "select id, mid, flds from notes where id in " + snids + (candidates == null ? "" : " and " + candidates),
+                candidatesArgs.toArray())) {
             while (cur.moveToNext()) {
                 long mid = cur.getLong(1);
                 String flds = cur.getString(2);
@@ -1003,7 +1013,7 @@ public class Finder {
         List<Pair<String, List<Long>>> dupes = new ArrayList<>(nids.size());
         Map<Long, Integer> fields = new HashMap<>();
         try (Cursor cur = col.getDb().query(
-                "select id, mid, flds from notes where id in " + Utils.ids2str(col.findNotes(search)))) {
+                "select id, mid, flds from notes where id in " + col.getDb().idSet("find_dupes_nids", nids))) {
             while (cur.moveToNext()) {
                 long nid = cur.getLong(0);
                 long mid = cur.getLong(1);
@@ -63,6 +63,10 @@ public class LaTeX {
     // It's only goal is to allow testing with a different media manager.
     @VisibleForTesting
     public static String mungeQA(String html, Media m, Model model) {
+        // every tag is closed by [/latex], [/$] or [/$$]
+        if (!html.contains("[/")) {
+            return html;
+        }
         StringBuffer sb = new StringBuffer();
         Matcher matcher = STANDARD_PATTERN.matcher(html);
         while (matcher.find()) {
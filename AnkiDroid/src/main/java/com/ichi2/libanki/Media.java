@@ -60,6 +60,8 @@ import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import timber.log.Timber;
 
 import static java.lang.Math.min;
@@ -116,9 +118,16 @@ public class Media {
 
     public static final List<Pattern> REGEXPS =  Arrays.asList(fSoundRegexps, fImgRegExpQ, fImgRegExpU);
 
+    /** Prefix of the zips of changes sent to the server, in the folder of the collection */
+    public static final String CHANGES_ZIP_PREFIX = "tmpSyncToServer";
+
     private final Collection mCol;
     private final String mDir;
     private DB mDb;
+    /** Files changed in the media folder while the collection is open. Null on a server. */
+    @Nullable
+    private MediaChangeTracker mTracker;
+    private final MediaHasher mHasher = new MediaHasher();
 
 
     public Media(Collection col, boolean server) {
@@ -160,9 +169,28 @@ public class Media {
             _initDB();
         }
         maybeUpgrade();
+        // added after the creation of the older databases
+        mDb.execute(CREATE_DOWNLOADS);
+        mTracker = new MediaChangeTracker(dir());
+        mTracker.start();
+        if (_changed() == null) {
+            // nothing changed since the last session, so the log holds every change from now on
+            mTracker.reset();
+        }
     }
 
 
+    /**
+     * Journal of the files to download from the server: the files of the last changes of the server which are not
+     * yet received, with the checksum announced by the server and the server usn of the changes.
+     */
+    private static final String CREATE_DOWNLOADS = "create table if not exists downloads (\n" +
+            " fname text not null primary key,\n" +
+            " csum text not null,\n" +
+            " usn int not null\n" +
+            ")";
+
+
     public void _initDB() {
         String sql = "create table media (\n" +
                      " fname text not null primary key,\n" +
@@ -173,6 +201,7 @@ public class Media {
                      "create index idx_media_dirty on media (dirty);\n" +
                      "create table meta (dirMod int, lastUsn int); insert into meta values (0, 0);";
         mDb.executeScript(sql);
+        mDb.execute(CREATE_DOWNLOADS);
     }
 
 
@@ -212,6 +241,10 @@ public class Media {
         if (mCol.getServer()) {
             return;
         }
+        if (mTracker != null) {
+            mTracker.stop();
+            mTracker = null;
+        }
         mDb.close();
         mDb = null;
     }
@@ -241,8 +274,10 @@ public class Media {
         if (ofile == null || ofile.length() == 0) {
             throw new EmptyMediaException();
         }
+        boolean upToDate = _upToDate();
         String fname = writeData(ofile);
         markFileAdd(fname);
+        _recorded(upToDate);
         return fname;
     }
 
@@ -627,13 +662,49 @@ public class Media {
 
 
     /**
+     * The folder is only listed when it changed and the files changed are unknown: the files logged by the tracker
+     * are checked instead when it observed the folder since the database was last up to date, and is known to receive
+     * the changes of other apps.
+     *
      * @param force Unconditionally scan the media folder for changes (i.e., ignore differences in recorded and current
      *            directory mod times). Use this when rebuilding the media database.
      */
     public void findChanges(boolean force) {
-        if (force || _changed() != null) {
-            _logChanges();
+        // read before the files, so that a change made meanwhile is found next time
+        Long mtime = _changed();
+        Set<String> logged = mTracker != null ? mTracker.takeChanges() : null;
+        boolean trusted = mTracker != null && mTracker.isTrusted();
+        if (force || (mtime != null && (logged == null || logged.isEmpty() || !trusted))) {
+            // An empty log while the folder changed: the folder is not observed on this file system
+            if (mTracker != null) {
+                mTracker.reset();
+            }
+            long dirMod = _dirMtime();
+            Pair<List<String>, List<String>> changes = _changes();
+            if (mTracker != null && logged != null && _allLogged(changes, logged)) {
+                Timber.i("The changes of the media folder are all logged, it is no longer scanned");
+                mTracker.trust();
+            }
+            _logChanges(changes, dirMod);
+        } else if (logged != null && !logged.isEmpty()) {
+            _logChanges(_changes(logged), mtime);
+        }
+    }
+
+
+    /** @return Whether changes were found by a scan, and were all logged */
+    private static boolean _allLogged(@NonNull Pair<List<String>, List<String>> changes, @NonNull Set<String> logged) {
+        if (changes.first.isEmpty() && changes.second.isEmpty()) {
+            return false;
         }
+        return logged.containsAll(changes.first) && logged.containsAll(changes.second);
+    }
+
+
+    @VisibleForTesting
+    @Nullable
+    MediaChangeTracker getTracker() {
+        return mTracker;
     }
 
 
@@ -656,7 +727,18 @@ public class Media {
 
 
     private String _checksum(String path) {
-        return Utils.fileChecksum(path);
+        try {
+            return mHasher.checksum(new File(path));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** The checksums of the files of the media folder, and of the files compared with them on import */
+    @NonNull
+    public MediaHasher getHasher() {
+        return mHasher;
     }
 
 
@@ -669,7 +751,7 @@ public class Media {
      */
     public Long _changed() {
         long mod = mDb.queryLongScalar("select dirMod from meta");
-        long mtime = _mtime(dir());
+        long mtime = _dirMtime();
         if (mod != 0 && mod == mtime) {
             return null;
         }
@@ -677,22 +759,65 @@ public class Media {
     }
 
 
-    private void _logChanges()  {
-        Pair<List<String>, List<String>> result = _changes();
+    /**
+     * The watermark of the media database: the modification time of the folder when the database recorded all of its
+     * files. Unlike the mtime of the files, in milliseconds, so that a change made in the second of a scan is found.
+     */
+    private long _dirMtime() {
+        return new File(dir()).lastModified();
+    }
+
+
+    /** @return Whether the database records all the files of the folder, to call before the folder is changed by {@link #_recorded(boolean)} */
+    private boolean _upToDate() {
+        return _changed() == null;
+    }
+
+
+    /**
+     * To call when this class changed the folder and recorded the changes in the database. Moves the watermark to the
+     * new modification time of the folder if the database was up to date, so that the folder is not scanned for the
+     * changes of AnkiDroid.
+     * <p>
+     * Only when the log of the tracker is trusted: another app may have changed the folder meanwhile, and its change
+     * would otherwise be hidden by the new watermark.
+     *
+     * @param upToDate The result of {@link #_upToDate()} before the change
+     */
+    private void _recorded(boolean upToDate) {
+        if (upToDate && mTracker != null && mTracker.isTrusted()) {
+            mDb.execute("update meta set dirMod = ?", _dirMtime());
+        }
+    }
+
+
+    /** @param dirMod The modification time of the folder before its files were read, null if it did not change */
+    private void _logChanges(Pair<List<String>, List<String>> result, @Nullable Long dirMod)  {
         List<String> added = result.first;
         List<String> removed = result.second;
         ArrayList<Object[]> media = new ArrayList<>(added.size() + removed.size());
+        List<File> addedFiles = new ArrayList<>(added.size());
         for (String f : added) {
-            String path = new File(dir(), f).getAbsolutePath();
-            long mt = _mtime(path);
-            media.add(new Object[] { f, _checksum(path), mt, 1 });
+            addedFiles.add(new File(dir(), f));
+        }
+        Map<File, String> checksums = mHasher.checksums(addedFiles);
+        for (int i = 0; i < added.size(); i++) {
+            File file = addedFiles.get(i);
+            String csum = checksums.get(file);
+            if (csum == null) {
+                // removed since the scan
+                continue;
+            }
+            media.add(new Object[] { added.get(i), csum, _mtime(file.getAbsolutePath()), 1 });
         }
         for (String f : removed) {
             media.add(new Object[] { f, null, 0, 1});
         }
         // update media db
         mDb.executeMany("insert or replace into media values (?,?,?,?)", media);
-        mDb.execute("update meta set dirMod = ?", _mtime(dir()));
+        if (dirMod != null) {
+            mDb.execute("update meta set dirMod = ?", dirMod);
+        }
         mDb.commit();
     }
 
@@ -711,56 +836,26 @@ public class Media {
         }
         List<String> added = new ArrayList<>();
         List<String> removed = new ArrayList<>();
+        // the files modified since last time, with their recorded checksum
+        Map<String, String> modified = new HashMap<>();
         // loop through on-disk files
         for (File f : new File(dir()).listFiles()) {
-            // ignore folders and thumbs.db
-            if (f.isDirectory()) {
-                continue;
-            }
-            String fname = f.getName();
-            if ("thumbs.db".equalsIgnoreCase(fname)) {
-                continue;
-            }
-            // and files with invalid chars
-            if (hasIllegal(fname)) {
-                continue;
-            }
-            // empty files are invalid; clean them up and continue
-            long sz = f.length();
-            if (sz == 0) {
-                f.delete();
+            String fname = _scannedName(f);
+            if (fname == null) {
                 continue;
             }
-            if (sz > 100*1024*1024) {
-                mCol.log("ignoring file over 100MB", f);
-                continue;
-            }
-            // check encoding
-            String normf = Utils.nfcNormalized(fname);
-            if (!fname.equals(normf)) {
-                // wrong filename encoding which will cause sync errors
-                File nf = new File(dir(), normf);
-                if (nf.exists()) {
-                    f.delete();
-                } else {
-                    f.renameTo(nf);
-                }
-            }
             // newly added?
             if (!cache.containsKey(fname)) {
                 added.add(fname);
             } else {
-                // modified since last time?
                 if (_mtime(f.getAbsolutePath()) != (Long) cache.get(fname)[1]) {
-                    // and has different checksum?
-                    if (!_checksum(f.getAbsolutePath()).equals(cache.get(fname)[0])) {
-                        added.add(fname);
-                    }
+                    modified.put(fname, (String) cache.get(fname)[0]);
                 }
                 // mark as used
                 cache.get(fname)[2] = true;
             }
         }
+        _addModified(modified, added);
         // look for any entries in the cache that no longer exist on disk
         for (Map.Entry<String, Object[]> entry : cache.entrySet()) {
             if (!((Boolean) entry.getValue()[2])) {
@@ -771,6 +866,99 @@ public class Media {
     }
 
 
+    /** Same as {@link #_changes()}, for the given files of the folder only */
+    private Pair<List<String>, List<String>> _changes(Set<String> fnames) {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        Map<String, String> modified = new HashMap<>();
+        for (String fname : fnames) {
+            File f = new File(dir(), fname);
+            Object[] cached = null;
+            try (Cursor cur = mDb.query("select csum, mtime from media where fname = ? and csum is not null", fname)) {
+                if (cur.moveToNext()) {
+                    cached = new Object[] { cur.getString(0), cur.getLong(1), false };
+                }
+            }
+            String scanned = f.exists() ? _scannedName(f) : null;
+            if (scanned == null) {
+                if (cached != null) {
+                    removed.add(fname);
+                }
+            } else if (cached == null) {
+                added.add(scanned);
+            } else if (_mtime(f.getAbsolutePath()) != (Long) cached[1]) {
+                modified.put(scanned, (String) cached[0]);
+            }
+        }
+        _addModified(modified, added);
+        return new Pair<>(added, removed);
+    }
+
+
+    /**
+     * Skips the files which are not media and normalizes the encoding of the name of the others.
+     * @return The name of the file to compare with the database, or null if the file is ignored.
+     */
+    @Nullable
+    private String _scannedName(File f) {
+        // ignore folders and thumbs.db
+        if (f.isDirectory()) {
+            return null;
+        }
+        String fname = f.getName();
+        if ("thumbs.db".equalsIgnoreCase(fname)) {
+            return null;
+        }
+        // and files with invalid chars
+        if (hasIllegal(fname)) {
+            return null;
+        }
+        // empty files are invalid; clean them up and continue
+        long sz = f.length();
+        if (sz == 0) {
+            f.delete();
+            return null;
+        }
+        if (sz > 100*1024*1024) {
+            mCol.log("ignoring file over 100MB", f);
+            return null;
+        }
+        // check encoding
+        String normf = Utils.nfcNormalized(fname);
+        if (!fname.equals(normf)) {
+            // wrong filename encoding which will cause sync errors
+            File nf = new File(dir(), normf);
+            if (nf.exists()) {
+                f.delete();
+            } else {
+                f.renameTo(nf);
+            }
+        }
+        return fname;
+    }
+
+
+    /**
+     * Adds the files whose content changed to added. The files are hashed in parallel.
+     * @param modified The files modified since last time, with their recorded checksum
+     */
+    private void _addModified(Map<String, String> modified, List<String> added) {
+        List<String> fnames = new ArrayList<>(modified.keySet());
+        List<File> files = new ArrayList<>(fnames.size());
+        for (String fname : fnames) {
+            files.add(new File(dir(), fname));
+        }
+        Map<File, String> checksums = mHasher.checksums(files);
+        for (int i = 0; i < fnames.size(); i++) {
+            String csum = checksums.get(files.get(i));
+            // and has different checksum?
+            if (csum != null && !csum.equals(modified.get(fnames.get(i)))) {
+                added.add(fnames.get(i));
+            }
+        }
+    }
+
+
     /**
      * Syncing related
      * ***********************************************************
@@ -808,11 +996,63 @@ public class Media {
 
 
     public void syncDelete(String fname) {
+        boolean upToDate = _upToDate();
         File f = new File(dir(), fname);
         if (f.exists()) {
             f.delete();
         }
         mDb.execute("delete from media where fname=?", fname);
+        _recorded(upToDate);
+    }
+
+
+    /**
+     * Records the files to download for the changes of the server up to usn, so that an interrupted sync resumes with
+     * the files not yet received.
+     * @param files The names and checksums of the files, as announced by the server
+     */
+    public void queueDownloads(@NonNull List<Pair<String, String>> files, int usn) {
+        List<Object[]> rows = new ArrayList<>(files.size());
+        for (Pair<String, String> file : files) {
+            rows.add(new Object[] {file.first, file.second, usn});
+        }
+        mDb.executeInTransaction(() -> mDb.executeManyNoTransaction("insert or replace into downloads values (?,?,?)", rows));
+    }
+
+
+    /** @return The files queued by {@link #queueDownloads(List, int)} and not received yet */
+    @NonNull
+    public List<String> queuedDownloads() {
+        return mDb.queryStringList("select fname from downloads");
+    }
+
+
+    /** @return The files queued by {@link #queueDownloads(List, int)} and not received yet, with their checksum */
+    @NonNull
+    public Map<String, String> queuedDownloadChecksums() {
+        Map<String, String> files = new HashMap<>();
+        try (Cursor cur = mDb.query("select fname, csum from downloads")) {
+            while (cur.moveToNext()) {
+                files.put(cur.getString(0), cur.getString(1));
+            }
+        }
+        return files;
+    }
+
+
+    /** Removes files from the queue of {@link #queueDownloads(List, int)}, so that they are not requested */
+    public void dequeueDownloads(@NonNull List<String> fnames) {
+        List<Object[]> rows = new ArrayList<>(fnames.size());
+        for (String fname : fnames) {
+            rows.add(new Object[] {fname});
+        }
+        mDb.executeInTransaction(() -> mDb.executeManyNoTransaction("delete from downloads where fname=?", rows));
+    }
+
+
+    /** @return The server usn of the changes whose files are queued, -1 if no file is queued */
+    public int queuedDownloadsUsn() {
+        return mDb.queryScalar("select coalesce(max(usn), -1) from downloads");
     }
 
 
@@ -828,6 +1068,7 @@ public class Media {
 
     public void forceResync() {
         mDb.execute("delete from media");
+        mDb.execute("delete from downloads");
         mDb.execute("update meta set lastUsn=0,dirMod=0");
         mDb.execute("vacuum");
         mDb.execute("analyze");
@@ -856,13 +1097,24 @@ public class Media {
      * new addition but actually have been deleted (e.g., with a file manager). In this case we skip over the file
      * and mark it as removed in the database. (This behaviour differs from the desktop client).
      * <p>
+     * - The files are zipped in the order of their names, so that the next zip can be built while the previous one is
+     * sent, by starting after its last file.
+     * <p>
+     * @param after The name of the last file of the previous zip, empty to start from the first changed file
      */
-    public Pair<File, List<String>> mediaChangesZip() {
-        File f = new File(mCol.getPath().replaceFirst("collection\\.anki2$", "tmpSyncToServer.zip"));
+    public Pair<File, List<String>> mediaChangesZip(@NonNull String after) {
         List<String> fnames = new ArrayList<>();
+        File f;
+        try {
+            f = File.createTempFile(CHANGES_ZIP_PREFIX, ".zip", new File(mCol.getPath()).getParentFile());
+        } catch (IOException e) {
+            Timber.e(e, "Failed to create media changes zip: ");
+            throw new RuntimeException(e);
+        }
         try (ZipOutputStream z = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
              Cursor cur = mDb.query(
-                "select fname, csum from media where dirty=1 limit " + Consts.SYNC_ZIP_COUNT)
+                "select fname, csum from media where dirty=1 and fname > ? order by fname limit " + Consts.SYNC_ZIP_COUNT,
+                after)
         ) {
             z.setMethod(ZipOutputStream.DEFLATED);
 
@@ -928,9 +1180,13 @@ public class Media {
      * ZipFile stored on disk instead of a String buffer. Holding the entire downloaded data in memory is not feasible
      * since some devices can have very limited heap space.
      *
+     * The files queued by {@link #queueDownloads(List, int)} are recorded with the checksum announced by the server
+     * instead of being read again, and are removed from the queue.
+     *
      * This method closes the file before it returns.
      */
     public int addFilesFromZip(ZipFile z) throws IOException {
+        boolean upToDate = _upToDate();
         try {
             // get meta info first
             JSONObject meta = new JSONObject(Utils.convertStreamToString(z.getInputStream(z.getEntry("_meta"))));
@@ -952,14 +1208,25 @@ public class Media {
                 try (InputStream zipInputStream = z.getInputStream(i)) {
                     Utils.writeToFile(zipInputStream, destPath);
                 }
-                String csum = Utils.fileChecksum(destPath);
+                String csum = _announcedChecksum(name);
+                if (csum == null) {
+                    csum = Utils.fileChecksum(destPath);
+                }
                 // update db
                 media.add(new Object[] {name, csum, _mtime(destPath), 0});
                 cnt += 1;
             }
             if (media.size() > 0) {
-                mDb.executeMany("insert or replace into media values (?,?,?,?)", media);
+                List<Object[]> received = new ArrayList<>(media.size());
+                for (Object[] file : media) {
+                    received.add(new Object[] {file[0]});
+                }
+                mDb.executeInTransaction(() -> {
+                    mDb.executeManyNoTransaction("insert or replace into media values (?,?,?,?)", media);
+                    mDb.executeManyNoTransaction("delete from downloads where fname=?", received);
+                });
             }
+            _recorded(upToDate);
             return cnt;
         } finally {
             z.close();
@@ -967,6 +1234,14 @@ public class Media {
     }
 
 
+    /** @return The checksum of a queued download, as announced by the server. Null if the file is not queued. */
+    private String _announcedChecksum(String fname) {
+        try (Cursor cur = mDb.query("select csum from downloads where fname=?", fname)) {
+            return cur.moveToNext() ? cur.getString(0) : null;
+        }
+    }
+
+
     /*
      * ***********************************************************
      * The methods below are not in LibAnki.
@@ -994,6 +1269,8 @@ public class Media {
     /**
      * Add an entry into the media database for file named fname, or update it
      * if it already exists.
+     * The file was written before the call, so the folder is not known to be otherwise unchanged: the file is found
+     * again by the next {@link #findChanges()}, through the log of the tracker or a scan.
      */
     public void markFileAdd(String fname) {
         Timber.d("Marking media file addition in media db: %s", fname);
@@ -1007,6 +1284,7 @@ public class Media {
      * Remove a file from the media directory if it exists and mark it as removed in the media database.
      */
     public void removeFile(String fname) {
+        boolean upToDate = _upToDate();
         File f = new File(dir(), fname);
         if (f.exists()) {
             f.delete();
@@ -1014,6 +1292,7 @@ public class Media {
         Timber.d("Marking media file removal in media db: %s", fname);
         mDb.execute("insert or replace into media values (?,?,?,?)",
                fname, null, 0, 1);
+        _recorded(upToDate);
     }
 
 
@@ -0,0 +1,140 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.os.FileObserver;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
+
+/**
+ * Log of the names of the files of the media folder changed while the collection is open, filled by a
+ * {@link FileObserver}, so that finding the changes of the folder does not list and stat each of its files.
+ * <p>
+ * The log is complete, i.e. contains every file changed since the media database was last up to date, from the moment
+ * it is {@link #reset()} while the database is up to date. It becomes incomplete when the observer stops, when the
+ * folder itself is moved or deleted, and when too many files are logged. The events dropped by the kernel when its
+ * queue overflows are not reported by FileObserver, so a forced scan is still needed to recover from those.
+ * <p>
+ * A complete log only holds the changes of other apps if the observer receives them, which depends on the file system
+ * and on the path the apps write through. The log is {@link #trust()}ed once a scan found changes which were all
+ * logged; until then, the folder is still scanned when its modification time changes.
+ * <p>
+ * Thread safe: the events are received on the thread of FileObserver.
+ */
+class MediaChangeTracker {
+    /** Above, listing the folder costs about the same as checking each logged file */
+    @VisibleForTesting
+    static final int MAX_LOGGED = 10000;
+
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.MOVED_FROM |
+            FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private final String mDir;
+    private final Set<String> mChanged = new HashSet<>();
+    private boolean mComplete = false;
+    private boolean mTrusted = false;
+    @Nullable
+    private FileObserver mObserver;
+
+
+    MediaChangeTracker(@NonNull String dir) {
+        mDir = dir;
+    }
+
+
+    /** Starts observing the folder. The log is incomplete until {@link #reset()}. */
+    @SuppressWarnings("deprecation") // FileObserver(File, int) requires API 29
+    synchronized void start() {
+        if (mObserver != null) {
+            return;
+        }
+        mObserver = new FileObserver(mDir, EVENTS) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                MediaChangeTracker.this.onEvent(event, path);
+            }
+        };
+        mObserver.startWatching();
+    }
+
+
+    synchronized void stop() {
+        if (mObserver != null) {
+            mObserver.stopWatching();
+            mObserver = null;
+        }
+        mChanged.clear();
+        mComplete = false;
+        mTrusted = false;
+    }
+
+
+    /** Empties the log, which is complete from now on if the folder is observed. To call while the database is up to date. */
+    synchronized void reset() {
+        mChanged.clear();
+        mComplete = mObserver != null;
+    }
+
+
+    /** To call when a scan of the folder found changes of other apps, which were all logged */
+    synchronized void trust() {
+        mTrusted = mObserver != null;
+    }
+
+
+    /** @return Whether the log is complete and known to hold the changes of other apps */
+    synchronized boolean isTrusted() {
+        return mTrusted && mComplete;
+    }
+
+
+    /** @return The files changed since the last call, or null if the log is incomplete. */
+    @Nullable
+    synchronized Set<String> takeChanges() {
+        if (!mComplete) {
+            return null;
+        }
+        Set<String> changed = new HashSet<>(mChanged);
+        mChanged.clear();
+        return changed;
+    }
+
+
+    @VisibleForTesting
+    synchronized void onEvent(int event, @Nullable String path) {
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            Timber.w("Media folder moved or deleted, its changes are no longer logged");
+            mComplete = false;
+            mTrusted = false;
+            mChanged.clear();
+            return;
+        }
+        if (!mComplete || path == null) {
+            return;
+        }
+        mChanged.add(path);
+        if (mChanged.size() > MAX_LOGGED) {
+            Timber.i("Too many media changes, the media folder will be scanned");
+            mComplete = false;
+            mChanged.clear();
+        }
+    }
+}
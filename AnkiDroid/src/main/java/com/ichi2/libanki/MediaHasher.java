@@ -0,0 +1,272 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
+
+/**
+ * SHA1 checksums of media files, as {@link Utils#fileChecksum(File)}, for the scans of the media folder and the
+ * imports.
+ * <p>
+ * The checksum of a file, and its CRC32 when a zip entry is compared with it, are cached with its size and
+ * modification time, and are only computed again when one of them changes. Large files are read through a memory mapping, which avoids copying their content into the heap. The files
+ * of a batch are hashed by a few threads, so that the reads of a file and the hashing of another overlap.
+ * <p>
+ * Thread safe.
+ */
+@SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes"})
+public class MediaHasher {
+    /** Below, a file is read into a buffer: mapping it costs more than copying it */
+    @VisibleForTesting
+    static final long MAP_THRESHOLD = 64 * 1024;
+    /** The size of the parts of a large file mapped at once, which bounds the address space used on 32 bit devices */
+    @VisibleForTesting
+    static final long MAP_WINDOW = 8 * 1024 * 1024;
+    private static final int MAX_CACHED = 20000;
+    /** Hashing is mostly bound by the storage, which does not get faster with more threads */
+    private static final int MAX_THREADS = 4;
+
+    private final Map<String, Cached> mCache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+    private final int mThreads;
+
+
+    public MediaHasher() {
+        this(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+
+    @VisibleForTesting
+    MediaHasher(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+
+    /** The values computed for a version of a file. Guarded by mCache. */
+    private static class Cached {
+        private final long mSize;
+        private final long mMtime;
+        @Nullable
+        private String mChecksum;
+        private long mCrc = -1;
+
+
+        private Cached(long size, long mtime) {
+            mSize = size;
+            mMtime = mtime;
+        }
+    }
+
+
+    private interface Computation<T> {
+        @NonNull
+        T compute(@NonNull File file) throws IOException;
+    }
+
+
+    /** @return The checksum of the file, computed unless the file is unchanged since it was last hashed */
+    @NonNull
+    public String checksum(@NonNull File file) throws IOException {
+        return cached(file, MediaHasher::sha1, c -> c.mChecksum, (c, checksum) -> c.mChecksum = checksum);
+    }
+
+
+    /**
+     * @return The CRC32 of the file, as recorded by zip files, computed unless the file is unchanged since it was last
+     * read. Cheaper than the checksum, for a comparison with an entry of a zip.
+     */
+    public long crc32(@NonNull File file) throws IOException {
+        return cached(file, MediaHasher::computeCrc32, c -> c.mCrc == -1 ? null : c.mCrc, (c, crc) -> c.mCrc = crc);
+    }
+
+
+    /**
+     * @param get The value in the cache, null if it was not computed
+     * @param set Records the value in the cache
+     */
+    @NonNull
+    private <T> T cached(@NonNull File file, @NonNull Computation<T> computation, @NonNull Function<Cached, T> get,
+                         @NonNull BiConsumer<Cached, T> set) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long mtime = file.lastModified();
+        synchronized (mCache) {
+            Cached cached = mCache.get(path);
+            if (cached != null && cached.mSize == size && cached.mMtime == mtime && get.apply(cached) != null) {
+                return get.apply(cached);
+            }
+        }
+        T result = computation.compute(file);
+        // The file may have changed while it was read, in which case the next call reads it again
+        if (file.length() == size && file.lastModified() == mtime) {
+            synchronized (mCache) {
+                Cached cached = mCache.get(path);
+                if (cached == null || cached.mSize != size || cached.mMtime != mtime) {
+                    cached = new Cached(size, mtime);
+                    mCache.put(path, cached);
+                }
+                set.accept(cached, result);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * @return The checksums of the files, computed in parallel. The files which can't be read, e.g. because they were
+     * deleted meanwhile, are missing from the result.
+     */
+    @NonNull
+    public Map<File, String> checksums(@NonNull List<File> files) {
+        Map<File, String> checksums = new HashMap<>(files.size());
+        if (files.size() <= 1 || mThreads == 1) {
+            for (File file : files) {
+                String checksum = checksumOrNull(file);
+                if (checksum != null) {
+                    checksums.put(file, checksum);
+                }
+            }
+            return checksums;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mThreads, files.size()));
+        try {
+            List<Future<String>> results = new ArrayList<>(files.size());
+            for (File file : files) {
+                results.add(executor.submit(() -> checksumOrNull(file)));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                String checksum = results.get(i).get();
+                if (checksum != null) {
+                    checksums.put(files.get(i), checksum);
+                }
+            }
+            return checksums;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Nullable
+    private String checksumOrNull(@NonNull File file) {
+        try {
+            return checksum(file);
+        } catch (IOException e) {
+            Timber.w(e, "Could not hash %s", file);
+            return null;
+        }
+    }
+
+
+    /** @return The checksum of the content of the stream, which is read to its end but not closed */
+    @NonNull
+    public static String checksum(@NonNull InputStream in) throws IOException {
+        MessageDigest md = newDigest();
+        byte[] buffer = new byte[(int) MAP_THRESHOLD];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            md.update(buffer, 0, read);
+        }
+        return hex(md.digest());
+    }
+
+
+    @VisibleForTesting
+    @NonNull
+    static String sha1(@NonNull File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                return checksum(in);
+            }
+            MessageDigest md = newDigest();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                md.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+            }
+            return hex(md.digest());
+        }
+    }
+
+
+    @NonNull
+    private static Long computeCrc32(@NonNull File file) throws IOException {
+        // CRC32.update(ByteBuffer) requires API 26, so the file is not mapped
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[(int) MAP_THRESHOLD];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+
+    @NonNull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** Same format as {@link Utils#fileChecksum(String)} */
+    @NonNull
+    private static String hex(@NonNull byte[] digest) {
+        String result = new BigInteger(1, digest).toString(16);
+        // pad with zeros to length of 40 - SHA1 is 160bit long
+        if (result.length() < 40) {
+            result = "0000000000000000000000000000000000000000".substring(0, 40 - result.length()) + result;
+        }
+        return result;
+    }
+}
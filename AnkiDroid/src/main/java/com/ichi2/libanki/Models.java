@@ -130,8 +130,10 @@ public class Models {
     // private Decks mDeck;
     // private DB mDb;
     //
-    //** Map for compiled Mustache Templates */
-    //private Map<String, Template> mCmpldTemplateMap = new HashMap<>();
+    /** The templates compiled for rendering, by model id and card ord. Guarded by itself. */
+    private final Map<Long, Map<Integer, CompiledTemplate>> mCompiledTemplates = new HashMap<>();
+    /** Same, for the formats of the browser */
+    private final Map<Long, Map<Integer, CompiledTemplate>> mCompiledBrowserTemplates = new HashMap<>();
 
 
     //
@@ -168,6 +170,7 @@ public class Models {
     public void load(String json) {
         mChanged = false;
         mModels = new HashMap<>();
+        clearCompiledTemplates(null);
         JSONObject modelarray = new JSONObject(json);
         JSONArray ids = modelarray.names();
         if (ids != null) {
@@ -197,6 +200,8 @@ public class Models {
      * @param templates flag which (when true) re-generates the cards for each note which uses the model
      */
     public void save(Model m, boolean templates) {
+        // the model may have been changed without changing its mod time
+        clearCompiledTemplates(m);
         if (m != null && m.has("id")) {
             m.put("mod", mCol.getTime().intTime());
             m.put("usn", mCol.usn());
@@ -344,6 +349,7 @@ public class Models {
         mCol.remCards(mCol.getDb().queryLongList("SELECT id FROM cards WHERE nid IN (SELECT id FROM notes WHERE mid = ?)", id));
         // then the model
         mModels.remove(id);
+        clearCompiledTemplates(m);
         save();
         // GUI should ensure last model is not deleted
         if (current) {
@@ -363,6 +369,7 @@ public class Models {
     /** Add or update an existing model. Used for syncing and merging. */
     public void update(Model m) {
         mModels.put(m.getLong("id"), m);
+        clearCompiledTemplates(m);
         // mark registry changed, but don't bump mod time
         save();
     }
@@ -439,6 +446,60 @@ public class Models {
     }
 
 
+    /**
+     * Templates compiled for rendering
+     * ***********************************************************************************************
+     */
+
+    /**
+     * @param template The template of the card
+     * @param qfmt The question format, of the template or of the browser
+     * @param afmt The answer format
+     * @param browser Whether the formats are the ones of the browser
+     * @return The formats compiled for the card ord, from the cache if the model is unchanged since they were compiled
+     */
+    @NonNull
+    public CompiledTemplate compiledTemplate(@NonNull Model m, @NonNull JSONObject template, int ord, @NonNull String qfmt,
+                                             @NonNull String afmt, boolean browser) {
+        if (!m.has("id")) {
+            return new CompiledTemplate(m, template, ord, qfmt, afmt);
+        }
+        Map<Long, Map<Integer, CompiledTemplate>> cache = browser ? mCompiledBrowserTemplates : mCompiledTemplates;
+        long mid = m.getLong("id");
+        synchronized (mCompiledTemplates) {
+            Map<Integer, CompiledTemplate> templates = cache.get(mid);
+            CompiledTemplate compiled = templates == null ? null : templates.get(ord);
+            if (compiled != null && compiled.isCompiledFrom(m, qfmt, afmt)) {
+                return compiled;
+            }
+        }
+        CompiledTemplate compiled = new CompiledTemplate(m, template, ord, qfmt, afmt);
+        synchronized (mCompiledTemplates) {
+            Map<Integer, CompiledTemplate> templates = cache.get(mid);
+            if (templates == null) {
+                templates = new HashMap<>();
+                cache.put(mid, templates);
+            }
+            templates.put(ord, compiled);
+        }
+        return compiled;
+    }
+
+
+    /** @param m The model whose templates are removed from the cache, or null for all of them */
+    private void clearCompiledTemplates(@Nullable Model m) {
+        synchronized (mCompiledTemplates) {
+            if (m == null) {
+                mCompiledTemplates.clear();
+                mCompiledBrowserTemplates.clear();
+            } else if (m.has("id")) {
+                mCompiledTemplates.remove(m.getLong("id"));
+                mCompiledBrowserTemplates.remove(m.getLong("id"));
+            }
+        }
+    }
+
+
     /** "Mapping of field name -> (ord, field). */
     @NonNull
     public static Map<String, Pair<Integer, JSONObject>> fieldMap(@NonNull Model m) {
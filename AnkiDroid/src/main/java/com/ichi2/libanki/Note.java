@@ -40,6 +40,9 @@ import timber.log.Timber;
 @SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes","PMD.MethodNamingConventions"})
 public class Note implements Cloneable {
 
+    /** Columns read by {@link #Note(Collection, long, Cursor, int)}, for a query where the notes table is aliased as n */
+    public static final String COLUMNS_WITH_N_PREFIX = "n.guid, n.mid, n.mod, n.usn, n.tags, n.flds, n.flags, n.data";
+
     private final Collection mCol;
 
     private final long mId;
@@ -80,6 +83,17 @@ public class Note implements Cloneable {
     }
 
 
+    /**
+     * Note whose content is read from the current row of cursor, starting at column offset, with the columns
+     * {@link #COLUMNS_WITH_N_PREFIX}. Used to load a note with its cards in a single query.
+     */
+    public Note(@NonNull Collection col, long id, @NonNull Cursor cursor, int offset) {
+        mCol = col;
+        mId = id;
+        loadFromCursor(cursor, offset);
+    }
+
+
     public void load() {
         Timber.d("load()");
         try (Cursor cursor = mCol.getDb()
@@ -87,20 +101,25 @@ public class Note implements Cloneable {
             if (!cursor.moveToFirst()) {
                 throw new WrongId(mId, "note");
             }
-            mGuId = cursor.getString(0);
-            mMid = cursor.getLong(1);
-            mMod = cursor.getLong(2);
-            mUsn = cursor.getInt(3);
-            mTags = mCol.getTags().split(cursor.getString(4));
-            mFields = Utils.splitFields(cursor.getString(5));
-            mFlags = cursor.getInt(6);
-            mData = cursor.getString(7);
-            mModel = mCol.getModels().get(mMid);
-            mFMap = Models.fieldMap(mModel);
-            mScm = mCol.getScm();
+            loadFromCursor(cursor, 0);
         }
     }
 
+
+    private void loadFromCursor(@NonNull Cursor cursor, int offset) {
+        mGuId = cursor.getString(offset);
+        mMid = cursor.getLong(offset + 1);
+        mMod = cursor.getLong(offset + 2);
+        mUsn = cursor.getInt(offset + 3);
+        mTags = mCol.getTags().split(cursor.getString(offset + 4));
+        mFields = Utils.splitFields(cursor.getString(offset + 5));
+        mFlags = cursor.getInt(offset + 6);
+        mData = cursor.getString(offset + 7);
+        mModel = mCol.getModels().get(mMid);
+        mFMap = Models.fieldMap(mModel);
+        mScm = mCol.getScm();
+    }
+
     public void reloadModel() {
         mModel = mCol.getModels().get(mMid);
     }
@@ -0,0 +1,256 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
+
+/**
+ * Optional full-text index of the notes, so that a text search reads the few notes containing the searched text
+ * instead of the fields of every note.
+ *
+ * The index is an FTS5 table with the trigram tokenizer over the sort field, the fields and the tags of the notes, as
+ * they are stored. A trigram query finds the notes containing a string anywhere, as LIKE '%string%' does. It may find
+ * more notes than LIKE, e.g. because it also ignores the case of non-ASCII letters, so a search keeps its LIKE
+ * comparison and only uses the index to restrict the notes it is evaluated on.
+ *
+ * The index is updated by temporary triggers, created for each connection, so that every write to the notes (note
+ * flush, deletion, import, sync) updates it, while the collection file contains no trigger run by other clients.
+ * The modification time of the collection is stored with the index when the collection is flushed. If the collection
+ * was modified without the triggers, e.g. by an older version, the index is not used until it is rebuilt.
+ * <p>
+ * The index is stored in the collection file, and takes about as much space as the text of the notes. The backups of
+ * the collection contain it, and are larger by as much. The exports and full uploads drop it, since other clients
+ * don't maintain it. The collection then rebuilds it when it is reopened, or when the app next loads it.
+ *
+ * The trigram tokenizer requires SQLite 3.34 with FTS5, which the system SQLite of most Android versions lacks. The
+ * index is then never created.
+ */
+public class NoteSearchIndex {
+
+    /** Whether "Check database" builds the index. Otherwise, it removes it. */
+    public static final String PREF_KEY = "noteSearchIndex";
+
+    @VisibleForTesting
+    static final String TABLE = "notes_fts";
+    /** A single row: the modification time of the collection the index is up to date with */
+    private static final String STATE_TABLE = "notes_fts_state";
+
+    /** A trigram index can only look up strings of at least 3 characters */
+    private static final int MIN_LENGTH = 3;
+
+    /** The column set of the fields, in an FTS5 query */
+    private static final String FIELDS = "{sfld flds}";
+    /** The column of the tags, in an FTS5 query */
+    private static final String TAGS = "tags";
+
+    private static final String[] TRIGGERS = new String[] {
+            // Note.flush uses INSERT OR REPLACE, which does not run the delete triggers
+            "CREATE TEMP TRIGGER IF NOT EXISTS notes_fts_insert AFTER INSERT ON notes BEGIN " +
+                    "DELETE FROM notes_fts WHERE rowid = new.id; " +
+                    "INSERT INTO notes_fts (rowid, sfld, flds, tags) VALUES (new.id, new.sfld, new.flds, new.tags); END",
+            "CREATE TEMP TRIGGER IF NOT EXISTS notes_fts_update AFTER UPDATE OF id, sfld, flds, tags ON notes BEGIN " +
+                    "DELETE FROM notes_fts WHERE rowid = old.id; " +
+                    "INSERT INTO notes_fts (rowid, sfld, flds, tags) VALUES (new.id, new.sfld, new.flds, new.tags); END",
+            "CREATE TEMP TRIGGER IF NOT EXISTS notes_fts_delete AFTER DELETE ON notes BEGIN " +
+                    "DELETE FROM notes_fts WHERE rowid = old.id; END",
+    };
+
+    private final DB mDb;
+    /** Whether the index exists, is up to date and maintained by the triggers of this connection */
+    private boolean mUsable = false;
+
+
+    private NoteSearchIndex(@NonNull DB db) {
+        mDb = db;
+    }
+
+
+    /**
+     * Starts maintaining the index of the collection, if it has one which is up to date.
+     * @param collectionMod The modification time of the collection
+     */
+    @NonNull
+    static NoteSearchIndex open(@NonNull DB db, long collectionMod) {
+        NoteSearchIndex index = new NoteSearchIndex(db);
+        if (!index.exists()) {
+            return index;
+        }
+        long indexMod = db.queryLongScalar("SELECT mod FROM " + STATE_TABLE);
+        if (indexMod != collectionMod) {
+            Timber.w("Search index is out of date and won't be used until rebuilt");
+            return index;
+        }
+        try {
+            index.createTriggers();
+            index.mUsable = true;
+        } catch (Exception e) {
+            // e.g. a backup restored on a device without FTS5
+            Timber.w(e, "Search index can't be maintained");
+            index.dropTriggers();
+        }
+        return index;
+    }
+
+
+    /** @return Whether the SQLite library of the connection can create the index */
+    public static boolean isSupported(@NonNull DB db) {
+        try {
+            db.executeUntracked("CREATE VIRTUAL TABLE temp.notes_fts_probe USING fts5(x, tokenize = 'trigram')");
+            db.executeUntracked("DROP TABLE temp.notes_fts_probe");
+            return true;
+        } catch (Exception e) {
+            Timber.i("FTS5 trigram tokenizer is not available: %s", e.getMessage());
+            return false;
+        }
+    }
+
+
+    private boolean exists() {
+        return mDb.queryScalar("SELECT count() FROM sqlite_master WHERE type = 'table' AND name = ?", STATE_TABLE) > 0;
+    }
+
+
+    public boolean isUsable() {
+        return mUsable;
+    }
+
+
+    /**
+     * (Re)creates the index from the notes of the collection.
+     * @param collectionMod The modification time of the collection
+     * @return Whether the index was created
+     */
+    public boolean rebuild(long collectionMod) {
+        drop();
+        if (!isSupported(mDb)) {
+            return false;
+        }
+        Timber.i("Building search index");
+        mDb.executeUntracked("CREATE VIRTUAL TABLE " + TABLE + " USING fts5(sfld, flds, tags, tokenize = 'trigram')");
+        mDb.executeUntracked("INSERT INTO " + TABLE + " (rowid, sfld, flds, tags) SELECT id, sfld, flds, tags FROM notes");
+        mDb.executeUntracked("CREATE TABLE " + STATE_TABLE + " (mod INTEGER NOT NULL)");
+        mDb.executeUntracked("INSERT INTO " + STATE_TABLE + " (mod) VALUES (?)", collectionMod);
+        createTriggers();
+        mUsable = true;
+        return true;
+    }
+
+
+    /** Removes the index from the collection, e.g. before the collection file is sent to other clients */
+    public void drop() {
+        mUsable = false;
+        dropTriggers();
+        mDb.executeUntracked("DROP TABLE IF EXISTS " + STATE_TABLE);
+        mDb.executeUntracked("DROP TABLE IF EXISTS " + TABLE);
+    }
+
+
+    private void createTriggers() {
+        for (String trigger : TRIGGERS) {
+            mDb.executeUntracked(trigger);
+        }
+    }
+
+
+    private void dropTriggers() {
+        mDb.executeUntracked("DROP TRIGGER IF EXISTS temp.notes_fts_insert");
+        mDb.executeUntracked("DROP TRIGGER IF EXISTS temp.notes_fts_update");
+        mDb.executeUntracked("DROP TRIGGER IF EXISTS temp.notes_fts_delete");
+    }
+
+
+    /** Records that the index is up to date with the collection, which has just been flushed */
+    void onFlush(long collectionMod) {
+        if (mUsable) {
+            mDb.executeUntracked("UPDATE " + STATE_TABLE + " SET mod = ?", collectionMod);
+        }
+    }
+
+
+    /**
+     * @param noteId The column of the note id in the query
+     * @param likePattern A LIKE pattern on the fields of the note, with escape character \
+     * @param args Receives the argument of the returned predicate
+     * @return A predicate which is true for every note whose sort field or fields match the pattern, and hopefully
+     * few others. Null if the index can't be used.
+     */
+    @Nullable
+    String fieldsCandidates(@NonNull String noteId, @NonNull String likePattern, @NonNull List<String> args) {
+        return candidates(noteId, FIELDS, likePattern, args);
+    }
+
+
+    /** As {@link #fieldsCandidates(String, String, List)}, for a pattern on the tags of the note */
+    @Nullable
+    String tagsCandidates(@NonNull String noteId, @NonNull String likePattern, @NonNull List<String> args) {
+        return candidates(noteId, TAGS, likePattern, args);
+    }
+
+
+    @Nullable
+    private String candidates(@NonNull String noteId, @NonNull String columns, @NonNull String likePattern, @NonNull List<String> args) {
+        if (!mUsable) {
+            return null;
+        }
+        String query = matchQuery(columns, likePattern);
+        if (query == null) {
+            return null;
+        }
+        args.add(query);
+        return noteId + " in (select rowid from " + TABLE + " where " + TABLE + " match ?)";
+    }
+
+
+    /**
+     * @return An FTS5 query matching the rows containing each string between the wildcards of the pattern, or null if
+     * none is long enough to be looked up.
+     */
+    @VisibleForTesting
+    @Nullable
+    static String matchQuery(@NonNull String columns, @NonNull String likePattern) {
+        List<String> strings = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < likePattern.length(); i++) {
+            char c = likePattern.charAt(i);
+            if (c == '\\' && i + 1 < likePattern.length()) {
+                current.append(likePattern.charAt(++i));
+            } else if (c == '%' || c == '_') {
+                strings.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        strings.add(current.toString());
+
+        StringBuilder query = new StringBuilder();
+        for (String string : strings) {
+            if (string.codePointCount(0, string.length()) < MIN_LENGTH) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(" AND ");
+            }
+            query.append(columns).append(" : \"").append(string.replace("\"", "\"\"")).append('"');
+        }
+        return query.length() == 0 ? null : query.toString();
+    }
+}
@@ -0,0 +1,380 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Logical plan of a search: the predicates of the query as a tree of disjunctions of conjunctions.
+ *
+ * The tree is compiled to SQL with the cheapest predicates of each conjunction first. SQLite evaluates the terms
+ * of a conjunction in order, so the LIKE comparisons over the text of the notes are only run on the rows accepted by
+ * the deck, state, flag and tag predicates. Conjunctions containing a predicate which is known to be false, such as a
+ * field search without any match, are removed before reaching the database.
+ *
+ * The builder keeps the precedence of the SQL concatenated by libanki's search: "and" binds tighter than "or", and
+ * "-" negates the next predicate or group.
+ */
+class SearchPlan {
+
+    /** Cost of evaluating a predicate on a row, in increasing order */
+    enum Cost {
+        /** Answered by an index or the primary key: deck, card id, note id... */
+        INDEXED,
+        /** Comparison of a column of the card or of the note */
+        COLUMN,
+        /** A subquery, e.g. on the review log */
+        SUBQUERY,
+        /** LIKE over the tags of the note */
+        TAGS,
+        /** LIKE over the fields of the note */
+        TEXT,
+    }
+
+    /** The SQL predicate of Finder meaning that no card matches */
+    private static final String FALSE = "0";
+
+    private abstract static class Node {
+        @NonNull
+        abstract Cost getCost();
+
+        /** @return whether the node is a constant, always false */
+        abstract boolean isFalse();
+
+        /** @return whether the node is a constant, always true */
+        abstract boolean isTrue();
+
+        abstract void appendTo(@NonNull StringBuilder sql, @NonNull List<String> args);
+    }
+
+
+    private static class Predicate extends Node {
+        private final String mSql;
+        private final Cost mCost;
+        private final List<String> mArgs;
+
+
+        private Predicate(@NonNull String sql, @NonNull Cost cost, @NonNull List<String> args) {
+            mSql = sql;
+            mCost = cost;
+            mArgs = args;
+        }
+
+
+        @NonNull
+        @Override
+        Cost getCost() {
+            return mCost;
+        }
+
+
+        @Override
+        boolean isFalse() {
+            return FALSE.equals(mSql);
+        }
+
+
+        @Override
+        boolean isTrue() {
+            return false;
+        }
+
+
+        @Override
+        void appendTo(@NonNull StringBuilder sql, @NonNull List<String> args) {
+            sql.append('(').append(mSql).append(')');
+            args.addAll(mArgs);
+        }
+    }
+
+
+    private static class Not extends Node {
+        private final Node mChild;
+
+
+        private Not(@NonNull Node child) {
+            mChild = child;
+        }
+
+
+        @NonNull
+        @Override
+        Cost getCost() {
+            return mChild.getCost();
+        }
+
+
+        @Override
+        boolean isFalse() {
+            return mChild.isTrue();
+        }
+
+
+        @Override
+        boolean isTrue() {
+            return mChild.isFalse();
+        }
+
+
+        @Override
+        void appendTo(@NonNull StringBuilder sql, @NonNull List<String> args) {
+            sql.append("not ");
+            mChild.appendTo(sql, args);
+        }
+    }
+
+
+    /** A disjunction of conjunctions, i.e. a parenthesized group or the whole query */
+    private static class Group extends Node {
+        private final List<List<Node>> mDisjuncts = new ArrayList<>();
+
+
+        private Group() {
+            mDisjuncts.add(new ArrayList<>());
+        }
+
+
+        private void startDisjunct() {
+            mDisjuncts.add(new ArrayList<>());
+        }
+
+
+        private void add(@NonNull Node node) {
+            mDisjuncts.get(mDisjuncts.size() - 1).add(node);
+        }
+
+
+        private boolean isEmpty() {
+            return mDisjuncts.size() == 1 && mDisjuncts.get(0).isEmpty();
+        }
+
+
+        /** @return The conjunctions which may be true, cheapest predicates first, without the predicates always true.
+         * An empty conjunction is always true. */
+        @NonNull
+        private List<List<Node>> simplified() {
+            List<List<Node>> result = new ArrayList<>(mDisjuncts.size());
+            for (List<Node> conjunction : mDisjuncts) {
+                List<Node> kept = new ArrayList<>(conjunction.size());
+                boolean isFalse = false;
+                for (Node node : conjunction) {
+                    if (node.isFalse()) {
+                        isFalse = true;
+                        break;
+                    }
+                    if (!node.isTrue()) {
+                        kept.add(node);
+                    }
+                }
+                if (isFalse) {
+                    continue;
+                }
+                // Stable, so that predicates of same cost keep the order of the query
+                Collections.sort(kept, (a, b) -> a.getCost().compareTo(b.getCost()));
+                result.add(kept);
+            }
+            return result;
+        }
+
+
+        @NonNull
+        @Override
+        Cost getCost() {
+            Cost cost = Cost.INDEXED;
+            for (List<Node> conjunction : mDisjuncts) {
+                for (Node node : conjunction) {
+                    if (node.getCost().compareTo(cost) > 0) {
+                        cost = node.getCost();
+                    }
+                }
+            }
+            return cost;
+        }
+
+
+        @Override
+        boolean isFalse() {
+            return simplified().isEmpty();
+        }
+
+
+        @Override
+        boolean isTrue() {
+            for (List<Node> conjunction : simplified()) {
+                if (conjunction.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+
+        @Override
+        void appendTo(@NonNull StringBuilder sql, @NonNull List<String> args) {
+            List<List<Node>> disjuncts = simplified();
+            sql.append('(');
+            for (int i = 0; i < disjuncts.size(); i++) {
+                if (i > 0) {
+                    sql.append(" or ");
+                }
+                List<Node> conjunction = disjuncts.get(i);
+                if (conjunction.isEmpty()) {
+                    sql.append('1');
+                }
+                for (int j = 0; j < conjunction.size(); j++) {
+                    if (j > 0) {
+                        sql.append(" and ");
+                    }
+                    conjunction.get(j).appendTo(sql, args);
+                }
+            }
+            sql.append(')');
+        }
+    }
+
+
+    /** Receives the predicates of the query in the order of the tokens. */
+    static class Builder {
+        /** The group of the whole query, then the groups opened and not yet closed */
+        private final List<Group> mGroups = new ArrayList<>();
+        /** Whether the group of the same index in mGroups is negated */
+        private final List<Boolean> mNegatedGroups = new ArrayList<>();
+        private boolean mIsNot = false;
+        private boolean mIsOr = false;
+        private boolean mJoin = false;
+        private boolean mBad = false;
+
+
+        Builder() {
+            mGroups.add(new Group());
+            mNegatedGroups.add(false);
+        }
+
+
+        /** The next predicate or group is negated */
+        void not() {
+            mIsNot = true;
+        }
+
+
+        /** The next predicate or group is in a disjunction with the previous one */
+        void or() {
+            mIsOr = true;
+        }
+
+
+        boolean isBad() {
+            return mBad;
+        }
+
+
+        private Group currentGroup() {
+            return mGroups.get(mGroups.size() - 1);
+        }
+
+
+        /** Adds the conjunction or disjunction with the previous predicate, and returns whether the next one is negated */
+        private boolean join() {
+            if (mJoin && mIsOr) {
+                currentGroup().startDisjunct();
+                mIsOr = false;
+            }
+            boolean negated = mIsNot;
+            mIsNot = false;
+            mJoin = true;
+            return negated;
+        }
+
+
+        void add(@Nullable String sql, @NonNull Cost cost) {
+            add(sql, cost, Collections.emptyList());
+        }
+
+
+        /**
+         * @param sql A predicate on the card c and the note n, with a ? for each element of args. Null or empty if
+         *            the command is invalid, "skip" if it should be ignored
+         */
+        void add(@Nullable String sql, @NonNull Cost cost, @NonNull List<String> args) {
+            // failed command?
+            if (TextUtils.isEmpty(sql)) {
+                // if it was to be negated then we can just ignore it
+                if (mIsNot) {
+                    mIsNot = false;
+                } else {
+                    mBad = true;
+                }
+                return;
+            } else if ("skip".equals(sql)) {
+                return;
+            }
+            Node node = new Predicate(sql, cost, new ArrayList<>(args));
+            if (join()) {
+                node = new Not(node);
+            }
+            currentGroup().add(node);
+        }
+
+
+        void openGroup() {
+            boolean negated = join();
+            mGroups.add(new Group());
+            mNegatedGroups.add(negated);
+            mJoin = false;
+        }
+
+
+        void closeGroup() {
+            if (mGroups.size() == 1 || currentGroup().isEmpty()) {
+                mBad = true;
+                return;
+            }
+            Node group = mGroups.remove(mGroups.size() - 1);
+            if (mNegatedGroups.remove(mNegatedGroups.size() - 1)) {
+                group = new Not(group);
+            }
+            currentGroup().add(group);
+        }
+
+
+        /**
+         * @param args Receives the arguments of the returned SQL
+         * @return A SQL predicate, empty if every card matches, or null if the query is invalid or no card can match
+         */
+        @Nullable
+        String build(@NonNull List<String> args) {
+            if (mBad || mGroups.size() != 1) {
+                return null;
+            }
+            Group root = mGroups.get(0);
+            if (root.isEmpty() || root.isTrue()) {
+                return "";
+            }
+            if (root.isFalse()) {
+                return null;
+            }
+            StringBuilder sql = new StringBuilder();
+            root.appendTo(sql, args);
+            return sql.toString();
+        }
+    }
+}
@@ -203,10 +203,12 @@ public class Sound {
      * @return -- the same content but in a format that will render working play buttons when audio was embedded
      */
     public static String expandSounds(String soundDir, String content) {
-        StringBuilder stringBuilder = new StringBuilder();
-        String contentLeft = content;
-
         Timber.d("expandSounds");
+        if (!content.contains("[sound:")) {
+            return content;
+        }
+        StringBuilder stringBuilder = new StringBuilder(content.length());
+        int contentLeft = 0;
 
         Matcher matcher = SOUND_PATTERN.matcher(content);
         // While there is matches of the pattern for sound markers
@@ -217,25 +219,21 @@ public class Sound {
             // Construct the sound path
             String soundPath = getSoundPath(soundDir, sound);
 
-            // Construct the new content, appending the substring from the beginning of the content left until the
-            // beginning of the sound marker
+            // Construct the new content, appending the content left until the beginning of the sound marker
             // and then appending the html code to add the play button
             String button = "<svg viewBox=\"0 0 32 32\"><polygon points=\"11,25 25,16 11,7\"/>Replay</svg>";
-            String soundMarker = matcher.group();
-            int markerStart = contentLeft.indexOf(soundMarker);
-            stringBuilder.append(contentLeft.substring(0, markerStart));
+            stringBuilder.append(content, contentLeft, matcher.start());
             // The <span> around the button (SVG or PNG image) is needed to make the vertical alignment work.
             stringBuilder.append("<a class='replaybutton' href=\"playsound:").append(soundPath).append("\">")
                     .append("<span>").append(button)
                     .append("</span></a>");
-            contentLeft = contentLeft.substring(markerStart + soundMarker.length());
-            Timber.v("Content left = %s", contentLeft);
+            contentLeft = matcher.end();
         }
 
         // unused code related to tts support taken out after v2.2alpha55
         // if/when tts support is considered complete, these comment lines serve no purpose
 
-        stringBuilder.append(contentLeft);
+        stringBuilder.append(content, contentLeft, content.length());
 
         return stringBuilder.toString();
     }
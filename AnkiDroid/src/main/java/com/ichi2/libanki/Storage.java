@@ -90,6 +90,7 @@ public class Storage {
                 ver = _upgradeSchema(db, time);
             }
             db.execute("PRAGMA temp_store = memory");
+            db.openReaders();
             // add db to col and do any remaining upgrades
             Collection col = new Collection(context, db, path, server, log, time, backend);
             if (ver < Consts.SCHEMA_VERSION) {
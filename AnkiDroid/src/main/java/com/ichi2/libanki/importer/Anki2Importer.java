@@ -37,7 +37,6 @@ import com.ichi2.libanki.DeckConfig;
 import com.ichi2.libanki.Deck;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -141,6 +140,9 @@ public class Anki2Importer extends Importer {
 
     private void _import() {
         mDecks = new HashMap<>(mSrc.getDecks().count());
+        // the src collection is changed before it is attached, as it can't be written once the transaction read it
+        _resetSrcLearning();
+        boolean merge = _attachSrc();
         try {
             // Use transactions for performance and rollbacks in case of error
             mDst.getDb().getDatabase().beginTransaction();
@@ -153,10 +155,17 @@ public class Anki2Importer extends Importer {
             Timber.i("Preparing Import");
             _prepareTS();
             _prepareModels();
-            Timber.i("Importing notes");
-            _importNotes();
-            Timber.i("Importing Cards");
-            _importCards();
+            if (merge) {
+                Timber.i("Merging notes");
+                _mergeNotes();
+                Timber.i("Merging Cards");
+                _mergeCards();
+            } else {
+                Timber.i("Importing notes");
+                _importNotes();
+                Timber.i("Importing Cards");
+                _importCards();
+            }
             Timber.i("Importing Media");
             _importStaticMedia();
             publishProgress(100, 100, 25);
@@ -172,6 +181,9 @@ public class Anki2Importer extends Importer {
             // endTransaction throws about invalid transaction even when you check first!
             DB.safeEndInTransaction(mDst.getDb());
             DB.safeEndInTransaction(mDst.getMedia().getDb());
+            if (merge) {
+                _detachSrc();
+            }
         }
         Timber.i("Performing vacuum/analyze");
         try {
@@ -501,7 +513,7 @@ public class Anki2Importer extends Importer {
      * ***********************************************************
      */
 
-    private void _importCards() {
+    private void _resetSrcLearning() {
         if (mMustResetLearning) {
             try {
                 mSrc.changeSchedulerVer(2);
@@ -509,6 +521,10 @@ public class Anki2Importer extends Importer {
                 throw new RuntimeException("Changing the scheduler of an import should not cause schema modification", e);
             }
         }
+    }
+
+
+    private void _importCards() {
         // build map of guid -> (ord -> cid) and used id cache
         /*
          * Since we can't use a tuple as a key in Java, we resort to indexing twice with nested maps.
@@ -682,6 +698,226 @@ public class Anki2Importer extends Importer {
     }
 
 
+    /**
+     * Merge
+     * ***********************************************************
+     * The same import as _importNotes and _importCards, computed by SQLite: the src collection is attached to the dst
+     * database, and the rows of src are staged in temporary tables, where their guid, model and deck are matched with
+     * the ones of dst through indexed joins. Only the models, the decks, the notes referencing media and the rare ids
+     * which collide with the ones of dst are handled in Java, so that the rows of large collections are neither loaded
+     * into maps nor copied one at a time.
+     */
+
+    private static final String SRC_DB = "import_src";
+    private static final String[] MERGE_TABLES = {"import_mids", "import_dst", "import_notes", "import_dids", "import_cards"};
+
+    /** Actions of the staged notes */
+    private static final int MERGE_SKIP = 0;
+    private static final int MERGE_ADD = 1;
+    private static final int MERGE_UPDATE = 2;
+
+
+    /**
+     * Attaches the src collection to the dst database. Must be called outside of a transaction.
+     * @return Whether it could be attached, which is not the case through the Rust backend.
+     */
+    private boolean _attachSrc() {
+        try {
+            mDst.getDb().getDatabase().execSQL("ATTACH ? AS " + SRC_DB, new Object[] {mSrc.getPath()});
+            return true;
+        } catch (Exception e) {
+            Timber.w(e, "Could not attach the imported collection, its rows are imported one by one");
+            return false;
+        }
+    }
+
+
+    private void _detachSrc() {
+        try {
+            for (String table : MERGE_TABLES) {
+                mDst.getDb().getDatabase().execSQL("DROP TABLE IF EXISTS temp." + table);
+            }
+            mDst.getDb().getDatabase().execSQL("DETACH " + SRC_DB);
+        } catch (Exception e) {
+            // the connection is closed with the collection anyway
+            Timber.w(e, "Could not detach the imported collection");
+        }
+    }
+
+
+    private void _mergeNotes() {
+        DB db = mDst.getDb();
+        for (String table : MERGE_TABLES) {
+            db.execute("DROP TABLE IF EXISTS temp." + table);
+        }
+        // src mid -> dst mid, which may create the models in dst
+        db.execute("CREATE TEMP TABLE import_mids (src INTEGER PRIMARY KEY, dst INTEGER NOT NULL)");
+        for (long srcMid : db.queryLongList("SELECT DISTINCT mid FROM " + SRC_DB + ".notes")) {
+            db.execute("INSERT INTO temp.import_mids VALUES (?, ?)", srcMid, _mid(srcMid));
+        }
+        publishProgress(10, 0, 0);
+        // the notes of src, with the dst note of their guid. The first note of a guid wins, as in _importNotes
+        db.execute("CREATE TEMP TABLE import_notes (guid TEXT PRIMARY KEY, srcid INTEGER NOT NULL, nid INTEGER NOT NULL, " +
+                "srcmid INTEGER NOT NULL, mid INTEGER NOT NULL, mod INTEGER, tags TEXT, flds TEXT, sfld TEXT, csum INTEGER, " +
+                "flags INTEGER, data TEXT, dstmod INTEGER, dstmid INTEGER, action INTEGER NOT NULL DEFAULT " + MERGE_SKIP + ", " +
+                "ignored INTEGER NOT NULL DEFAULT 0)");
+        db.execute("INSERT OR IGNORE INTO temp.import_notes (guid, srcid, nid, srcmid, mid, mod, tags, flds, sfld, csum, flags, data) " +
+                "SELECT n.guid, n.id, n.id, n.mid, m.dst, n.mod, n.tags, n.flds, n.sfld, n.csum, n.flags, n.data " +
+                "FROM " + SRC_DB + ".notes n JOIN temp.import_mids m ON m.src = n.mid ORDER BY n.id");
+        db.execute("CREATE INDEX temp.import_notes_nid ON import_notes (nid)");
+        // dst has no index on guid, so its notes are read once and the matching ones kept in an indexed table
+        db.execute("CREATE TEMP TABLE import_dst (guid TEXT PRIMARY KEY, id INTEGER, mod INTEGER, mid INTEGER)");
+        db.execute("INSERT OR REPLACE INTO temp.import_dst SELECT guid, id, mod, mid FROM main.notes " +
+                "WHERE guid IN (SELECT guid FROM temp.import_notes)");
+        db.execute("UPDATE temp.import_notes SET " +
+                "nid = (SELECT id FROM temp.import_dst d WHERE d.guid = import_notes.guid), " +
+                "dstmod = (SELECT mod FROM temp.import_dst d WHERE d.guid = import_notes.guid), " +
+                "dstmid = (SELECT mid FROM temp.import_dst d WHERE d.guid = import_notes.guid) " +
+                "WHERE guid IN (SELECT guid FROM temp.import_dst)");
+        publishProgress(30, 0, 0);
+        // same decisions as _uniquifyNote and _importNotes: a duplicate is updated if the incoming note is more recent
+        // and the note types are identical
+        String changedSchema = "dstmod < mod AND dstmid != mid";
+        db.execute("UPDATE temp.import_notes SET action = " + MERGE_ADD + " WHERE dstmid IS NULL");
+        if (mAllowUpdate) {
+            db.execute("UPDATE temp.import_notes SET action = " + MERGE_UPDATE +
+                    " WHERE dstmid IS NOT NULL AND dstmod < mod AND dstmid = mid");
+        }
+        // we ignore updates to changed schemas. we need to note the ignored guids, so we avoid importing invalid cards
+        db.execute("UPDATE temp.import_notes SET ignored = 1 WHERE dstmid IS NOT NULL AND " +
+                "(srcmid != mid" + (mAllowUpdate ? " OR (" + changedSchema + ")" : "") + ")");
+        _uniquifyIds("import_notes", "nid", "action = " + MERGE_ADD, "notes");
+        // update media references in case of dupes
+        _mungeStagedMedia();
+        publishProgress(60, 0, 0);
+        int usn = mDst.usn();
+        db.execute("INSERT OR REPLACE INTO main.notes (id, guid, mid, mod, usn, tags, flds, sfld, csum, flags, data) " +
+                "SELECT nid, guid, mid, mod, ?, tags, flds, sfld, csum, flags, data FROM temp.import_notes " +
+                "WHERE action != " + MERGE_SKIP, usn);
+        publishProgress(80, 0, 0);
+
+        int total = db.queryScalar("SELECT count() FROM " + SRC_DB + ".notes");
+        int added = db.queryScalar("SELECT count() FROM temp.import_notes WHERE action = " + MERGE_ADD);
+        int updated = db.queryScalar("SELECT count() FROM temp.import_notes WHERE action = " + MERGE_UPDATE);
+        int dupes = total - added;
+        if (dupes > 0) {
+            mLog.add(getRes().getString(R.string.import_update_details, updated, dupes));
+            if (mAllowUpdate && db.queryScalar("SELECT count() FROM temp.import_notes " +
+                    "WHERE dstmid IS NOT NULL AND " + changedSchema) > 0) {
+                mLog.add(getRes().getString(R.string.import_update_ignored));
+            }
+        }
+        // export info for calling code
+        mDupes = dupes;
+        mAdded = added;
+        mUpdated = updated;
+        Timber.d("merged notes: %d added, %d updated, %d dupes", added, updated, dupes);
+
+        List<Long> dirty = db.queryLongList("SELECT nid FROM temp.import_notes WHERE action != " + MERGE_SKIP);
+        // by parts, so as to avoid OOM
+        final int thresExecDirty = 1000;
+        for (int start = 0; start < dirty.size(); start += thresExecDirty) {
+            List<Long> part = dirty.subList(start, Math.min(dirty.size(), start + thresExecDirty));
+            mDst.updateFieldCache(part);
+            mDst.getTags().registerNotes(part);
+        }
+        publishProgress(100, 0, 0);
+    }
+
+
+    /**
+     * Rewrites the media references of the staged notes to import, as _importNotes does. Only the notes whose fields
+     * may reference a file are read.
+     */
+    private void _mungeStagedMedia() {
+        DB db = mDst.getDb();
+        List<Object[]> munged = new ArrayList<>();
+        // LIKE ignores the case of ASCII letters, as Media.REGEXPS do
+        try (Cursor cur = db.query("SELECT guid, mid, flds FROM temp.import_notes WHERE action != " + MERGE_SKIP +
+                " AND (flds LIKE '%[sound:%' OR flds LIKE '%<img%')")) {
+            while (cur.moveToNext()) {
+                String flds = cur.getString(2);
+                String mungedFlds = _mungeMedia(cur.getLong(1), flds);
+                if (!mungedFlds.equals(flds)) {
+                    munged.add(new Object[] {mungedFlds, cur.getString(0)});
+                }
+            }
+        }
+        // the rows are changed once the cursor is closed
+        try (DB.BulkStatement update = db.bulkStatement("UPDATE temp.import_notes SET flds = ? WHERE guid = ?")) {
+            for (Object[] row : munged) {
+                update.execute(row);
+            }
+        }
+    }
+
+
+    /**
+     * Gives the staged rows matching CONDITION whose id COLUMN is used in DSTTABLE a free id, as _importNotes and
+     * _importCards do. Such collisions are rare, so they are resolved one at a time.
+     */
+    private void _uniquifyIds(String staged, String column, String condition, String dstTable) {
+        DB db = mDst.getDb();
+        List<Long> colliding = db.queryLongList("SELECT srcid FROM temp." + staged + " WHERE " + condition +
+                " AND " + column + " IN (SELECT id FROM main." + dstTable + ")");
+        for (long srcId : colliding) {
+            long id = db.queryLongScalar("SELECT " + column + " FROM temp." + staged + " WHERE srcid = ?", srcId);
+            do {
+                id += 999;
+            } while (db.queryScalar("SELECT (SELECT count() FROM main." + dstTable + " WHERE id = ?) + " +
+                    "(SELECT count() FROM temp." + staged + " WHERE " + column + " = ?)", id, id) > 0);
+            db.execute("UPDATE temp." + staged + " SET " + column + " = ? WHERE srcid = ?", id, srcId);
+        }
+    }
+
+
+    private void _mergeCards() {
+        DB db = mDst.getDb();
+        long aheadBy = mSrc.getSched().getToday() - mDst.getSched().getToday();
+        // the cards of src whose note is imported and which are missing from dst, converted as in _importCards:
+        // review cards have a due date relative to collection, and filtered cards are converted to normal cards
+        db.execute("CREATE TEMP TABLE import_cards (srcid INTEGER PRIMARY KEY, cid INTEGER NOT NULL, nid INTEGER NOT NULL, " +
+                "did INTEGER NOT NULL, ord INTEGER, type INTEGER, queue INTEGER, due INTEGER, ivl INTEGER, factor INTEGER, " +
+                "reps INTEGER, lapses INTEGER, left INTEGER, odue INTEGER, flags INTEGER, data TEXT)");
+        db.execute("CREATE INDEX temp.import_cards_cid ON import_cards (cid)");
+        // fixme: in future, could update if newer mod time
+        db.execute("INSERT INTO temp.import_cards SELECT c.id, c.id, n.nid, c.did, c.ord, " +
+                "CASE WHEN c.odid != 0 AND c.type = " + CARD_TYPE_LRN + " THEN " + CARD_TYPE_NEW + " ELSE c.type END, " +
+                "CASE WHEN c.odid = 0 THEN c.queue WHEN c.type = " + CARD_TYPE_LRN + " THEN " + QUEUE_TYPE_NEW + " ELSE c.type END, " +
+                "CASE WHEN c.odid != 0 THEN (CASE WHEN c.odue != 0 THEN c.odue - ?1 ELSE 0 END) " +
+                "WHEN c.queue IN (" + QUEUE_TYPE_REV + ", " + QUEUE_TYPE_DAY_LEARN_RELEARN + ") OR c.type = " + CARD_TYPE_REV + " THEN c.due - ?1 " +
+                "ELSE c.due END, " +
+                "c.ivl, c.factor, c.reps, c.lapses, c.left, " +
+                "CASE WHEN c.odid = 0 AND c.odue != 0 THEN c.odue - ?1 ELSE 0 END, " +
+                "c.flags, c.data " +
+                "FROM " + SRC_DB + ".notes f JOIN temp.import_notes n ON n.guid = f.guid JOIN " + SRC_DB + ".cards c ON c.nid = f.id " +
+                "WHERE n.ignored = 0 AND NOT EXISTS (SELECT 1 FROM main.cards d WHERE d.nid = n.nid AND d.ord = c.ord)", aheadBy);
+        _uniquifyIds("import_cards", "cid", "1", "cards");
+        publishProgress(100, 30, 0);
+        // src did -> dst did, which may create the decks in dst
+        db.execute("CREATE TEMP TABLE import_dids (src INTEGER PRIMARY KEY, dst INTEGER NOT NULL)");
+        for (long did : db.queryLongList("SELECT DISTINCT did FROM temp.import_cards")) {
+            db.execute("INSERT INTO temp.import_dids VALUES (?, ?)", did, _did(did));
+        }
+        publishProgress(100, 50, 0);
+        int usn = mDst.usn();
+        db.execute("INSERT OR IGNORE INTO main.cards (id, nid, did, ord, mod, usn, type, queue, due, ivl, factor, reps, " +
+                "lapses, left, odue, odid, flags, data) " +
+                "SELECT c.cid, c.nid, d.dst, c.ord, ?, ?, c.type, c.queue, c.due, c.ivl, c.factor, c.reps, c.lapses, c.left, " +
+                "c.odue, 0, c.flags, c.data FROM temp.import_cards c JOIN temp.import_dids d ON d.src = c.did",
+                mCol.getTime().intTime(), usn);
+        publishProgress(100, 80, 0);
+        // we need to import revlog, rewriting card ids and bumping usn
+        db.execute("INSERT OR IGNORE INTO main.revlog (id, cid, usn, ease, ivl, lastIvl, factor, time, type) " +
+                "SELECT r.id, c.cid, ?, r.ease, r.ivl, r.lastIvl, r.factor, r.time, r.type " +
+                "FROM " + SRC_DB + ".revlog r JOIN temp.import_cards c ON c.srcid = r.cid", usn);
+        publishProgress(100, 100, 0);
+        int cardCount = db.queryScalar("SELECT count() FROM temp.import_cards");
+        Timber.d("merged cards: %d", cardCount);
+        mLog.add(getRes().getString(R.string.import_complete_count, cardCount));
+    }
+
+
     /**
      * Media
      * ***********************************************************
@@ -731,11 +967,13 @@ public class Anki2Importer extends Importer {
     }
 
 
-    /**
-     * Data for FNAME in dst collection.
-     */
-    private BufferedInputStream _dstMediaData(String fname) {
-        return _mediaData(fname, mDst.getMedia().dir());
+    /** Copies FNAME of the src collection to DSTNAME in the dst collection. */
+    protected void _copySrcMedia(String fname, String dstName) {
+        try (BufferedInputStream data = _srcMediaData(fname)) {
+            _writeDstMedia(dstName, data);
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close stream");
+        }
     }
 
 
@@ -768,36 +1006,33 @@ public class Anki2Importer extends Importer {
             int fnameIdx = Media.indexOfFname(p);
             while (m.find()) {
                 String fname = m.group(fnameIdx);
-                try (BufferedInputStream srcData = _srcMediaData(fname);
-                     BufferedInputStream dstData = _dstMediaData(fname)) {
-                    if (srcData == null) {
-                        // file was not in source, ignore
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
-                        continue;
-                    }
-                    // if model-local file exists from a previous import, use that
-                    String[] split = Utils.splitFilename(fname);
-                    String name = split[0];
-                    String ext = split[1];
-
-                    String lname = String.format(Locale.US, "%s_%s%s", name, mid, ext);
-                    if (mDst.getMedia().have(lname)) {
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, lname)));
-                        continue;
-                    } else if (dstData == null || compareMedia(srcData, dstData)) { // if missing or the same, pass unmodified
-                        // need to copy?
-                        if (dstData == null) {
-                            _writeDstMedia(fname, srcData);
-                        }
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
-                        continue;
-                    }
-                    // exists but does not match, so we need to dedupe
-                    _writeDstMedia(lname, srcData);
+                if (!_srcHasMedia(fname)) {
+                    // file was not in source, ignore
+                    m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
+                    continue;
+                }
+                // if model-local file exists from a previous import, use that
+                String[] split = Utils.splitFilename(fname);
+                String name = split[0];
+                String ext = split[1];
+
+                String lname = String.format(Locale.US, "%s_%s%s", name, mid, ext);
+                if (mDst.getMedia().have(lname)) {
                     m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, lname)));
-                } catch (IOException e) {
-                    Timber.w(e, "Failed to close stream");
+                    continue;
+                }
+                boolean missing = !mDst.getMedia().have(fname);
+                if (missing || _sameMedia(fname)) { // if missing or the same, pass unmodified
+                    // need to copy?
+                    if (missing) {
+                        _copySrcMedia(fname, fname);
+                    }
+                    m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
+                    continue;
                 }
+                // exists but does not match, so we need to dedupe
+                _copySrcMedia(fname, lname);
+                m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, lname)));
             }
             m.appendTail(sb);
             fields = sb.toString();
@@ -828,46 +1063,38 @@ public class Anki2Importer extends Importer {
      */
 
 
-    private boolean compareMedia(BufferedInputStream lhis, BufferedInputStream rhis) {
-        byte[] lhbytes = _mediaPick(lhis);
-        byte[] rhbytes = _mediaPick(rhis);
-        return Arrays.equals(lhbytes, rhbytes);
-    }
-
-
     /**
-     * Return the contents of the given input stream, limited to Anki2Importer.MEDIAPICKLIMIT bytes This is only used
-     * for comparison of media files with the limited resources of mobile devices
+     * Whether FNAME has the same content in both collections. Compared by size, then by checksum or CRC, which are
+     * cached by the media of the collections, so that a file referenced by many notes is read once.
      */
-    private byte[] _mediaPick(BufferedInputStream is) {
+    private boolean _sameMedia(String fname) {
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(MEDIAPICKLIMIT * 2);
-            byte[] buf = new byte[MEDIAPICKLIMIT];
-            int readLen;
-            int readSoFar = 0;
-            is.mark(MEDIAPICKLIMIT * 2);
-            while (true) {
-                readLen = is.read(buf);
-                baos.write(buf);
-                if (readLen == -1) {
-                    break;
-                }
-                readSoFar += readLen;
-                if (readSoFar > MEDIAPICKLIMIT) {
-                    break;
-                }
-            }
-            is.reset();
-            byte[] result = new byte[MEDIAPICKLIMIT];
-            System.arraycopy(baos.toByteArray(), 0, result, 0, Math.min(baos.size(), MEDIAPICKLIMIT));
-            return result;
+            return _srcMediaEquals(fname, new File(mDst.getMedia().dir(), fname));
         } catch (IOException e) {
-            Timber.w(e);
-            return null;
+            Timber.w(e, "Could not compare media file %s", fname);
+            return false;
         }
     }
 
 
+    /**
+     * Whether FNAME exists in src collection.
+     */
+    protected boolean _srcHasMedia(String fname) {
+        return new File(mSrc.getMedia().dir(), fname).isFile();
+    }
+
+
+    /**
+     * Whether FNAME in src collection has the content of the file DST.
+     */
+    protected boolean _srcMediaEquals(String fname, File dst) throws IOException {
+        File src = new File(mSrc.getMedia().dir(), fname);
+        return src.length() == dst.length() &&
+                mSrc.getMedia().getHasher().checksum(src).equals(mDst.getMedia().getHasher().checksum(dst));
+    }
+
+
     /**
      * @param notesDone Percentage of notes complete.
      * @param cardsDone Percentage of cards complete.
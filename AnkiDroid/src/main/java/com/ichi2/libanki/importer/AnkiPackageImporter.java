@@ -27,6 +27,7 @@ import com.ichi2.anki.CollectionHelper;
 import com.ichi2.anki.R;
 import com.ichi2.anki.exception.ImportExportException;
 import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.MediaHasher;
 import com.ichi2.libanki.Storage;
 import com.ichi2.libanki.Utils;
 
@@ -35,10 +36,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
+import androidx.annotation.Nullable;
 import timber.log.Timber;
 
 @SuppressWarnings({"PMD.NPathComplexity"})
@@ -46,6 +50,8 @@ public class AnkiPackageImporter extends Anki2Importer {
 
     private ZipFile mZip;
     private Map<String, String> mNameToNum;
+    /** Checksums of the media files of the package, which are not cached by a media folder */
+    private final Map<String, String> mSrcChecksums = new HashMap<>();
 
     public AnkiPackageImporter(Collection col, String file) {
         super(col, file);
@@ -79,8 +85,12 @@ public class AnkiPackageImporter extends Anki2Importer {
                     colname = CollectionHelper.COLLECTION_FILENAME;
                 }
 
+                // we need the media dict in advance, and we'll need a map of fname ->
+                // number to use during the import. The media files are read from the zip when needed.
+                mNameToNum = _readMediaMap();
+
                 // Make sure we have sufficient free space
-                long uncompressedSize = Utils.calculateUncompressedSize(mZip);
+                long uncompressedSize = _requiredSpace(colname);
                 long availableSpace = Utils.determineBytesAvailable(mCol.getPath());
                 Timber.d("Total uncompressed size will be: %d", uncompressedSize);
                 Timber.d("Total available size is:         %d", availableSpace);
@@ -94,7 +104,7 @@ public class AnkiPackageImporter extends Anki2Importer {
                 // We follow how Anki does it and fix the problem here.
                 HashMap<String, String> mediaToFileNameMap = new HashMap<>(1);
                 mediaToFileNameMap.put(colname, CollectionHelper.COLLECTION_FILENAME);
-                Utils.unzipFiles(mZip, tempDir.getAbsolutePath(), new String[]{colname, "media"}, mediaToFileNameMap);
+                Utils.unzipFiles(mZip, tempDir.getAbsolutePath(), new String[]{colname}, mediaToFileNameMap);
                 colname = CollectionHelper.COLLECTION_FILENAME;
             } catch (IOException e) {
                 Timber.e(e, "Failed to unzip apkg.");
@@ -119,52 +129,16 @@ public class AnkiPackageImporter extends Anki2Importer {
                 }
             }
             mFile = colpath;
-            // we need the media dict in advance, and we'll need a map of fname ->
-            // number to use during the import
-            File mediaMapFile = new File(tempDir, "media");
-            mNameToNum = new HashMap<>(); // Number of file in mediamMMapFile as json. Not knowable
-            String dirPath = tmpCol.getMedia().dir();
-            File dir = new File(dirPath);
-            // We need the opposite mapping in AnkiDroid since our extraction method requires it.
-            Map<String, String> numToName = new HashMap<>(); // Number of file in mediamMMapFile as json. Not knowable
-            try (JsonParser jp = AnkiSerialization.getFactory().createParser(mediaMapFile)) {
-                String name; // v in anki
-                String num; // k in anki
-                if (jp.nextToken() != JsonToken.START_OBJECT) {
-                    throw new IllegalStateException("Expected content to be an object");
-                }
-                while (jp.nextToken() != JsonToken.END_OBJECT) {
-                    num = jp.currentName();
-                    name = jp.nextTextValue();
-                    File file= new File(dir, name);
-                    if (!Utils.isInside(file, dir)) {
-                        throw (new RuntimeException("Invalid file"));
-                    }
-                    Utils.nfcNormalized(num);
-                    mNameToNum.put(name, num);
-                    numToName.put(num, name);
-                }
-            } catch (FileNotFoundException e) {
-                Timber.e("Apkg did not contain a media dict. No media will be imported.");
-            } catch (IOException e) {
-                Timber.e("Malformed media dict. Media import will be incomplete.");
-            }
             // run anki2 importer
             super.run();
             // import static media
-            for (Map.Entry<String, String> entry : mNameToNum.entrySet()) {
-                String file = entry.getKey();
-                String c = entry.getValue();
+            for (String file : mNameToNum.keySet()) {
                 if (!file.startsWith("_") && !file.startsWith("latex-")) {
                     continue;
                 }
                 File path = new File(mCol.getMedia().dir(), Utils.nfcNormalized(file));
                 if (!path.exists()) {
-                    try {
-                        Utils.unzipFiles(mZip, mCol.getMedia().dir(), new String[]{c}, numToName);
-                    } catch (IOException e) {
-                        Timber.e("Failed to extract static media file. Ignoring.");
-                    }
+                    _copySrcMedia(file, file);
                 }
             }
         } finally {
@@ -190,4 +164,91 @@ public class AnkiPackageImporter extends Anki2Importer {
         }
         return null;
     }
+
+    @Override
+    protected boolean _srcHasMedia(String fname) {
+        return _srcMediaEntry(fname) != null;
+    }
+
+    /**
+     * Compares the size and the CRC recorded by the zip with the ones of the file, so that the entry is only read when
+     * the zip lacks them.
+     */
+    @Override
+    protected boolean _srcMediaEquals(String fname, File dst) throws IOException {
+        ZipArchiveEntry entry = _srcMediaEntry(fname);
+        if (entry == null) {
+            throw new FileNotFoundException(fname);
+        }
+        if (entry.getSize() != -1 && entry.getSize() != dst.length()) {
+            return false;
+        }
+        if (entry.getCrc() != -1) {
+            return entry.getCrc() == mCol.getMedia().getHasher().crc32(dst);
+        }
+        String checksum = mSrcChecksums.get(fname);
+        if (checksum == null) {
+            try (InputStream data = mZip.getInputStream(entry)) {
+                checksum = MediaHasher.checksum(data);
+            }
+            mSrcChecksums.put(fname, checksum);
+        }
+        return checksum.equals(mCol.getMedia().getHasher().checksum(dst));
+    }
+
+    @Nullable
+    private ZipArchiveEntry _srcMediaEntry(String fname) {
+        String num = mNameToNum.get(fname);
+        return num == null ? null : mZip.getEntry(num);
+    }
+
+    /**
+     * @return The name of each media file of the package, with the name of its entry in the zip. Empty if the package
+     * has no media.
+     */
+    private Map<String, String> _readMediaMap() {
+        Map<String, String> nameToNum = new HashMap<>(); // Number of file in mediamMMapFile as json. Not knowable
+        ZipArchiveEntry mediaMapEntry = mZip.getEntry("media");
+        if (mediaMapEntry == null) {
+            Timber.e("Apkg did not contain a media dict. No media will be imported.");
+            return nameToNum;
+        }
+        File dir = new File(mCol.getMedia().dir());
+        try (JsonParser jp = AnkiSerialization.getFactory().createParser(mZip.getInputStream(mediaMapEntry))) {
+            String name; // v in anki
+            String num; // k in anki
+            if (jp.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalStateException("Expected content to be an object");
+            }
+            while (jp.nextToken() != JsonToken.END_OBJECT) {
+                num = jp.currentName();
+                name = jp.nextTextValue();
+                File file= new File(dir, name);
+                if (!Utils.isInside(file, dir)) {
+                    throw (new RuntimeException("Invalid file"));
+                }
+                Utils.nfcNormalized(num);
+                nameToNum.put(name, num);
+            }
+        } catch (IOException e) {
+            Timber.e("Malformed media dict. Media import will be incomplete.");
+        }
+        return nameToNum;
+    }
+
+    /**
+     * @return The space needed by the import: the collection is extracted, and the media files which the collection
+     * lacks are copied into its media folder.
+     */
+    private long _requiredSpace(String colname) {
+        ZipArchiveEntry colEntry = mZip.getEntry(colname);
+        long size = colEntry == null ? 0 : colEntry.getSize();
+        for (Map.Entry<String, String> media : mNameToNum.entrySet()) {
+            ZipArchiveEntry entry = mZip.getEntry(media.getValue());
+            if (entry != null && !mCol.getMedia().have(Utils.nfcNormalized(media.getKey()))) {
+                size += entry.getSize();
+            }
+        }
+        return size;
+    }
 }
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.res.Resources;
 
 import com.ichi2.anki.exception.ImportExportException;
+import com.ichi2.async.CancelListener;
 import com.ichi2.async.CollectionTask;
 import com.ichi2.async.TaskManager;
 import com.ichi2.libanki.Collection;
@@ -28,6 +29,8 @@ import com.ichi2.libanki.Collection;
 import java.util.ArrayList;
 import java.util.List;
 
+import androidx.annotation.Nullable;
+
 @SuppressWarnings({"PMD.MethodNamingConventions"})
 public abstract class Importer {
 
@@ -44,6 +47,8 @@ public abstract class Importer {
 
     protected final Context mContext;
     protected TaskManager.ProgressCallback<String> mProgress;
+    @Nullable
+    protected CancelListener mCancelListener;
 
     public Importer(Collection col, String file) {
         mFile = file;
@@ -84,6 +89,12 @@ public abstract class Importer {
     }
 
 
+    /** Importers which can stop before the end check this listener, see {@link NoteImporter#importNotes} */
+    public void setCancelListener(@Nullable CancelListener cancelListener) {
+        mCancelListener = cancelListener;
+    }
+
+
     protected Resources getRes() {
         return mContext.getResources();
     }
@@ -18,20 +18,30 @@ import com.ichi2.utils.Assert;
 import com.ichi2.utils.HtmlUtils;
 import com.ichi2.utils.JSONObject;
 
+import java.math.BigInteger;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.PluralsRes;
 import androidx.annotation.StringRes;
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
 
+import static com.ichi2.async.CancelListener.isCancelled;
 import static com.ichi2.libanki.Consts.NEW_CARDS_RANDOM;
+import static com.ichi2.libanki.Utils.checksum;
 import static com.ichi2.libanki.Utils.fieldChecksum;
 import static com.ichi2.libanki.Utils.guid64;
 import static com.ichi2.libanki.Utils.joinFields;
@@ -42,8 +52,18 @@ import static com.ichi2.libanki.importer.NoteImporter.ImportMode.UPDATE_MODE;
 
 // Ported from https://github.com/ankitects/anki/blob/50fdf9b03dec33c99a501f332306f378db5eb4ea/pylib/anki/importing/noteimp.py
 // Aside from 9f676dbe0b2ad9b87a3bf89d7735b4253abd440e, which allows empty notes.
+@SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes"})
 public class NoteImporter extends Importer {
 
+    /** The number of notes added or updated in a transaction */
+    @VisibleForTesting
+    static final int BATCH_SIZE = 1000;
+    /** The fields are prepared by few threads, as the writes of the previous batch take as long */
+    private static final int MAX_THREADS = 4;
+    /** The number of messages of each list of the log, after which the messages are only counted */
+    @VisibleForTesting
+    static final int MAX_LOGGED_MESSAGES = 100;
+
     private boolean mNeedMapper = true;
     private boolean mNeedDelimiter = false;
     private boolean mAllowHTML = false;
@@ -65,8 +85,10 @@ public class NoteImporter extends Importer {
 
     /** _nextID in python */
     private long mNextId;
+    /** The ids of the notes of the current batch */
     private ArrayList<Long> mIds;
     private boolean mEmptyNotes;
+    private boolean mEmptyCards;
     private int mUpdateCount;
     private List<ParsedNode> mTemplateParsed;
 
@@ -85,8 +107,11 @@ public class NoteImporter extends Importer {
     public void run() {
         Assert.that(mMapping != null);
         Assert.that(!mMapping.isEmpty());
-        List<ForeignNote> c = foreignNotes();
-        importNotes(c);
+        try {
+            importNotes(foreignNotesIterator());
+        } finally {
+            close();
+        }
     }
 
 
@@ -124,6 +149,13 @@ public class NoteImporter extends Importer {
         return new ArrayList<>();
     }
 
+
+    /** The notes to import, which may be read while they are imported. */
+    @NonNull
+    protected Iterator<ForeignNote> foreignNotesIterator() {
+        return foreignNotes().iterator();
+    }
+
     /** Open file and ensure it's in the right format. */
     protected void open() {
         // intentionally empty
@@ -138,6 +170,19 @@ public class NoteImporter extends Importer {
 
     /** Convert each card into a note, apply attributes and add to col. */
     public void importNotes(List<ForeignNote> notes) {
+        importNotes(notes.iterator());
+    }
+
+
+    /**
+     * Convert each card into a note, apply attributes and add to col.
+     * <p>
+     * The notes are imported by batches of {@link #BATCH_SIZE}, each added in its own transaction. While a batch is
+     * added, the fields of the next one are normalized and hashed by worker threads, and the one after is read, so the
+     * memory used does not depend on the number of notes. The import can be cancelled between two batches, in which
+     * case the batches already added are kept.
+     */
+    protected void importNotes(@NonNull Iterator<ForeignNote> notes) {
         Assert.that(mappingOk());
         // note whether tags are mapped
         mTagsMapped = false;
@@ -161,92 +206,118 @@ public class NoteImporter extends Importer {
             }
         }
 
-        HashSet<String> firsts = new HashSet<>(notes.size());
+        // the first fields already imported, by their key
+        HashSet<Long> firsts = new HashSet<>();
         int fld0index = mMapping.indexOf(mModel.getJSONArray("flds").getJSONObject(0).getString("name"));
         mFMap = Models.fieldMap(mModel);
         mNextId = mCol.getTime().timestampID(mCol.getDb(), "notes");
         // loop through the notes
-        List<Object[]> updates = new ArrayList<>(notes.size());
-        List<String> updateLog = new ArrayList<>(notes.size());
+        Messages updateLog = new Messages();
         // PORT: Translations moved closer to their sources
-        List<Object[]> _new = new ArrayList<>();
-        mIds = new ArrayList<>();
+        // The errors are logged after the ones of the reader, as when the notes were read first
+        Messages noteLog = new Messages();
         mEmptyNotes = false;
+        mEmptyCards = false;
+        mUpdateCount = 0;
         int dupeCount = 0;
-        List<String> dupes = new ArrayList<>(notes.size());
-        for (ForeignNote n : notes) {
-            for (int c = 0; c < n.mFields.size(); c++) {
-                if (!this.mAllowHTML) {
-                    n.mFields.set(c, HtmlUtils.escape(n.mFields.get(c)));
-                }
-                n.mFields.set(c, n.mFields.get(c).trim());
-                if (!this.mAllowHTML) {
-                    n.mFields.set(c, n.mFields.get(c).replace("\n", "<br>"));
-                }
-            }
-            String fld0 = n.mFields.get(fld0index);
-            long csum = fieldChecksum(fld0);
-            // first field must exist
-            if (fld0 == null || fld0.length() == 0) {
-                getLog().add(getString(R.string.note_importer_error_empty_first_field, TextUtils.join(" ", n.mFields)));
-                continue;
-            }
-            // earlier in import?
-            if (firsts.contains(fld0) && mImportMode != ADD_MODE) {
-                // duplicates in source file; log and ignore
-                getLog().add(getString(R.string.note_importer_error_appeared_twice, fld0));
-                continue;
-            }
-            firsts.add(fld0);
-            // already exists?
-            boolean found = false;
-            if (csums.containsKey(csum)) {
-                // csum is not a guarantee; have to check
-                for (Long id : csums.get(csum)) {
-                    String flds = mCol.getDb().queryString("select flds from notes where id = ?", id);
-                    String[] sflds = splitFields(flds);
-                    if (fld0.equals(sflds[0])) {
-                        // duplicate
-                        found = true;
-                        if (mImportMode == UPDATE_MODE) {
-                            Object[] data = updateData(n, id, sflds);
-                            if (data != null && data.length > 0) {
-                                updates.add(data);
-                                updateLog.add(getString(R.string.note_importer_error_first_field_matched, fld0));
-                                dupeCount += 1;
+        int newCount = 0;
+        int total = 0;
+        HashSet<Long> dupes = new HashSet<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads());
+        try {
+            List<ForeignNote> batch = readBatch(notes);
+            List<Future<?>> preparing = prepare(workers, batch, fld0index);
+            while (!batch.isEmpty()) {
+                // read the next batch while the workers prepare this one
+                List<ForeignNote> next = readBatch(notes);
+                await(preparing);
+                // and prepare it while this one is added
+                preparing = prepare(workers, next, fld0index);
+                List<Object[]> updates = new ArrayList<>(batch.size());
+                List<Object[]> _new = new ArrayList<>(batch.size());
+                mIds = new ArrayList<>(batch.size());
+                for (ForeignNote n : batch) {
+                    String fld0 = n.mFields.get(fld0index);
+                    long csum = n.mCsum;
+                    // first field must exist
+                    if (fld0 == null || fld0.length() == 0) {
+                        noteLog.add(R.string.note_importer_error_empty_first_field, TextUtils.join(" ", n.mFields));
+                        continue;
+                    }
+                    // earlier in import?
+                    if (firsts.contains(n.mFirstKey) && mImportMode != ADD_MODE) {
+                        // duplicates in source file; log and ignore
+                        noteLog.add(R.string.note_importer_error_appeared_twice, fld0);
+                        continue;
+                    }
+                    firsts.add(n.mFirstKey);
+                    // already exists?
+                    boolean found = false;
+                    if (csums.containsKey(csum)) {
+                        // csum is not a guarantee; have to check
+                        for (Long id : csums.get(csum)) {
+                            String flds = mCol.getDb().queryString("select flds from notes where id = ?", id);
+                            String[] sflds = splitFields(flds);
+                            if (fld0.equals(sflds[0])) {
+                                // duplicate
                                 found = true;
+                                if (mImportMode == UPDATE_MODE) {
+                                    Object[] data = updateData(n, id, sflds);
+                                    if (data != null && data.length > 0) {
+                                        updates.add(data);
+                                        updateLog.add(R.string.note_importer_error_first_field_matched, fld0);
+                                        dupeCount += 1;
+                                        found = true;
+                                    }
+                                } else if (mImportMode == IGNORE_MODE) {
+                                    dupeCount += 1;
+                                } else if (mImportMode == ADD_MODE) {
+                                    // allow duplicates in this case
+                                    if (!dupes.contains(n.mFirstKey)) {
+                                        // only show message once, no matter how many
+                                        // duplicates are in the collection already
+                                        updateLog.add(R.string.note_importer_error_added_duplicate_first_field, fld0);
+                                        dupes.add(n.mFirstKey);
+                                    }
+                                    found = false;
+                                }
                             }
-                        } else if (mImportMode == IGNORE_MODE) {
-                            dupeCount += 1;
-                        } else if (mImportMode == ADD_MODE) {
-                            // allow duplicates in this case
-                            if (!dupes.contains(fld0)) {
-                                // only show message once, no matter how many
-                                // duplicates are in the collection already
-                                updateLog.add(getString(R.string.note_importer_error_added_duplicate_first_field, fld0));
-                                dupes.add(fld0);
-                            }
-                            found = false;
+                        }
+                    }
+                    // newly add
+                    if (!found) {
+                        Object[] data = newData(n);
+                        if (data != null && data.length > 0) {
+                            _new.add(data);
+                            // note that we've seen this note once already
+                            firsts.add(n.mFirstKey);
                         }
                     }
                 }
-            }
-            // newly add
-            if (!found) {
-                Object[] data = newData(n);
-                if (data != null && data.length > 0) {
-                    _new.add(data);
-                    // note that we've seen this note once already
-                    firsts.add(fld0);
+                mCol.getDb().executeInTransaction(() -> {
+                    addNew(_new);
+                    addUpdates(updates);
+                    // make sure to update sflds, etc
+                    mCol.updateFieldCache(mIds);
+                    // generate cards
+                    if (!mCol.genCards(mIds, mModel).isEmpty()) {
+                        mEmptyCards = true;
+                    }
+                });
+                newCount += _new.size();
+                total += mIds.size();
+                publishProgress(total);
+                if (isCancelled(mCancelListener)) {
+                    Timber.i("Import cancelled after %d notes", total);
+                    break;
                 }
+                batch = next;
             }
+        } finally {
+            workers.shutdownNow();
         }
-        addNew(_new);
-        addUpdates(updates);
-        // make sure to update sflds, etc
-        mCol.updateFieldCache(mIds);
-        // generate cards
-        if (!mCol.genCards(mIds, mModel).isEmpty()) {
+        noteLog.addTo(mLog);
+        if (mEmptyCards) {
             this.getLog().add(0, getString(R.string.note_importer_empty_cards_found));
         }
 
@@ -259,7 +330,7 @@ public class NoteImporter extends Importer {
         if (conf.getJSONObject("new").getInt("order") == NEW_CARDS_RANDOM) {
             mCol.getSched().randomizeCards(did);
         }
-        String part1 = getQuantityString(R.plurals.note_importer_notes_added, _new.size());
+        String part1 = getQuantityString(R.plurals.note_importer_notes_added, newCount);
         String part2 = getQuantityString(R.plurals.note_importer_notes_updated, mUpdateCount);
         int unchanged;
         if (mImportMode == UPDATE_MODE) {
@@ -271,11 +342,100 @@ public class NoteImporter extends Importer {
         }
         String part3 = getQuantityString(R.plurals.note_importer_notes_unchanged, unchanged);
         mLog.add(String.format("%s, %s, %s.", part1, part2, part3));
-        mLog.addAll(updateLog);
+        updateLog.addTo(mLog);
         if (mEmptyNotes) {
             mLog.add(getString(R.string.note_importer_error_empty_notes));
         }
-        mTotal = mIds.size();
+        mTotal = total;
+    }
+
+
+    @NonNull
+    private List<ForeignNote> readBatch(@NonNull Iterator<ForeignNote> notes) {
+        List<ForeignNote> batch = new ArrayList<>(BATCH_SIZE);
+        while (batch.size() < BATCH_SIZE && notes.hasNext()) {
+            batch.add(notes.next());
+        }
+        return batch;
+    }
+
+
+    /** Splits the batch between the workers, which prepare its notes */
+    @NonNull
+    private List<Future<?>> prepare(@NonNull ExecutorService workers, @NonNull List<ForeignNote> batch, int fld0index) {
+        List<Future<?>> tasks = new ArrayList<>();
+        if (batch.isEmpty()) {
+            return tasks;
+        }
+        int partSize = (batch.size() + threads() - 1) / threads();
+        for (int start = 0; start < batch.size(); start += partSize) {
+            List<ForeignNote> part = batch.subList(start, Math.min(batch.size(), start + partSize));
+            tasks.add(workers.submit(() -> {
+                for (ForeignNote n : part) {
+                    prepareFields(n, fld0index);
+                }
+            }));
+        }
+        return tasks;
+    }
+
+
+    /** Normalizes the fields of the note and computes the checksum and the key of its first field. Run by the workers. */
+    private void prepareFields(@NonNull ForeignNote n, int fld0index) {
+        for (int c = 0; c < n.mFields.size(); c++) {
+            if (!this.mAllowHTML) {
+                n.mFields.set(c, HtmlUtils.escape(n.mFields.get(c)));
+            }
+            n.mFields.set(c, n.mFields.get(c).trim());
+            if (!this.mAllowHTML) {
+                n.mFields.set(c, n.mFields.get(c).replace("\n", "<br>"));
+            }
+        }
+        String fld0 = n.mFields.get(fld0index);
+        n.mCsum = fieldChecksum(fld0);
+        if (fld0 != null && fld0.length() > 0) {
+            n.mFirstKey = firstKey(fld0);
+        }
+    }
+
+
+    /**
+     * The first 64 bits of the SHA1 of the first field. The first fields already imported are only kept by this key, so
+     * that the memory used does not depend on their length. The chance that two first fields of a file of a million
+     * notes share a key is below one in ten million, in which case the second note is reported as appearing twice.
+     */
+    @VisibleForTesting
+    static long firstKey(@NonNull String fld0) {
+        return new BigInteger(checksum(fld0).substring(0, 16), 16).longValue();
+    }
+
+
+    private static void await(@NonNull List<Future<?>> tasks) {
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+
+    private static int threads() {
+        return Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+
+    private void publishProgress(int notesDone) {
+        if (mProgress != null) {
+            mProgress.publishProgress(getQuantityString(R.plurals.note_importer_progress, notesDone));
+        }
     }
 
     @Nullable
@@ -302,7 +462,7 @@ public class NoteImporter extends Importer {
     }
 
     private void addNew(List<Object[]> rows) {
-        mCol.getDb().executeMany("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)", rows);
+        mCol.getDb().executeManyNoTransaction("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)", rows);
     }
 
 
@@ -331,27 +491,27 @@ public class NoteImporter extends Importer {
     private void addUpdates(List<Object[]> rows) {
         int changes = mCol.getDb().queryScalar("select total_changes()");
         if (mTagsMapped) {
-            mCol.getDb().executeMany(
+            mCol.getDb().executeManyNoTransaction(
                     "update notes set mod = ?, usn = ?, flds = ?, tags = ? " +
                     "where id = ? and (flds != ? or tags != ?)",
                     rows
                     );
         } else if (mTagModified != null) {
-            mCol.getDb().executeMany(
+            mCol.getDb().executeManyNoTransaction(
                     "update notes set mod = ?, usn = ?, flds = ?, tags = ? " +
                     "where id = ? and flds != ?",
                     rows
             );
 
         } else {
-            mCol.getDb().executeMany(
+            mCol.getDb().executeManyNoTransaction(
                     "update notes set mod = ?, usn = ?, flds = ? " +
                     "where id = ? and flds != ?",
                     rows
             );
         }
         int changes2 = mCol.getDb().queryScalar("select total_changes()");
-        mUpdateCount = changes2 - changes;
+        mUpdateCount += changes2 - changes;
     }
 
 
@@ -434,6 +594,34 @@ public class NoteImporter extends Importer {
     }
 
 
+    /**
+     * A list of messages of the log, of which only the first {@link #MAX_LOGGED_MESSAGES} are formatted and kept, so that
+     * the log of a large file with many errors does not hold a message per note.
+     */
+    private class Messages {
+        private final List<String> mMessages = new ArrayList<>();
+        private int mOmitted = 0;
+
+
+        public void add(@StringRes int res, @NonNull Object formatArg) {
+            if (mMessages.size() < MAX_LOGGED_MESSAGES) {
+                mMessages.add(getString(res, formatArg));
+            } else {
+                mOmitted++;
+            }
+        }
+
+
+        /** Adds the messages kept, followed by the number of the other ones */
+        public void addTo(@NonNull List<String> log) {
+            log.addAll(mMessages);
+            if (mOmitted > 0) {
+                log.add(getQuantityString(R.plurals.note_importer_messages_omitted, mOmitted));
+            }
+        }
+    }
+
+
     public enum ImportMode {
         /** update if first field matches existing note */
         UPDATE_MODE, //0
@@ -449,6 +637,10 @@ public class NoteImporter extends Importer {
         public final List<String> mTags = new ArrayList<>();
         public Object deck = new Object();
         public String fieldsStr = "";
+        /** The checksum of the first field, once the fields are prepared */
+        private long mCsum;
+        /** The key of the first field, see {@link #firstKey}, once the fields are prepared */
+        private long mFirstKey;
     }
 
     public static class ForeignCard {
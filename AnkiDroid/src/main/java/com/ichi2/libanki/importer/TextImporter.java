@@ -21,12 +21,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import timber.log.Timber;
 
@@ -58,12 +60,18 @@ public class TextImporter extends NoteImporter {
     @NonNull
     @Override
     protected List<ForeignNote> foreignNotes() {
+        List<ForeignNote> notes = new ArrayList<>();
+        foreignNotesIterator().forEachRemaining(notes::add);
+        return notes;
+    }
+
+
+    /** The notes of the file, parsed as they are imported, so that the file is never held in memory. */
+    @NonNull
+    @Override
+    protected Iterator<ForeignNote> foreignNotesIterator() {
         open();
-        // process all lines
-        List<String> log = new ArrayList<>(); //Number of element is reader's size
-        List<ForeignNote> notes = new ArrayList<>(); //Number of element is reader's size
-        int lineNum = 0;
-        int ignored = 0;
+        mLog = new ArrayList<>();
         // Note: This differs from libAnki as we don't have csv.reader
         Iterator<String> data = getDataStream().iterator();
         CsvReader reader;
@@ -72,8 +80,42 @@ public class TextImporter extends NoteImporter {
         } else {
             reader = CsvReader.fromDialect(data, mDialect);
         }
+        Iterator<List<String>> rows = reader.iterator();
+        return new Iterator<ForeignNote>() {
+            @Nullable
+            private ForeignNote mNext;
+            private boolean mDone = false;
+
+
+            @Override
+            public boolean hasNext() {
+                if (mNext == null && !mDone) {
+                    mNext = nextNote(rows);
+                    mDone = mNext == null;
+                }
+                return mNext != null;
+            }
+
+
+            @Override
+            public ForeignNote next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ForeignNote note = mNext;
+                mNext = null;
+                return note;
+            }
+        };
+    }
+
+
+    /** @return The note of the next valid row, or null at the end of the file, which is then closed. */
+    @Nullable
+    private ForeignNote nextNote(@NonNull Iterator<List<String>> rows) {
         try {
-            for (List<String> row : reader) {
+            while (rows.hasNext()) {
+                List<String> row = rows.next();
                 if (row == null) {
                     continue;
                 }
@@ -84,21 +126,17 @@ public class TextImporter extends NoteImporter {
                                 TextUtils.join(" ", rowAsString),
                                 rowAsString.size(),
                                 mNumFields);
-                        log.add(formatted);
-                        ignored += 1;
-
+                        mLog.add(formatted);
                     }
                     continue;
                 }
-                ForeignNote note = noteFromFields(rowAsString);
-                notes.add(note);
+                return noteFromFields(rowAsString);
             }
         } catch (CsvException e) {
-            log.add(getString(R.string.csv_importer_error_exception, e));
+            mLog.add(getString(R.string.csv_importer_error_exception, e));
         }
-        mLog = log;
         mFileobj.close();
-        return notes;
+        return null;
     }
 
     /** Number of fields. */
@@ -124,6 +162,14 @@ public class TextImporter extends NoteImporter {
         cacheFile();
     }
 
+    /** Closes the file, which is read while the notes are imported. */
+    @Override
+    protected void close() {
+        if (mFileobj != null) {
+            mFileobj.close();
+        }
+    }
+
     /** Read file into self.lines if not already there. */
     private void cacheFile() {
         if (mFileobj == null) {
@@ -262,6 +308,8 @@ public class TextImporter extends NoteImporter {
     private static class FileObj {
 
         private final File mFile;
+        /** The streams reading the file, closed with it */
+        private final List<Stream<String>> mStreams = new ArrayList<>();
 
 
         public FileObj(@NonNull File file) {
@@ -276,13 +324,19 @@ public class TextImporter extends NoteImporter {
 
 
         public void close() {
-            // No need for anything - closed in the read
+            for (Stream<String> stream : mStreams) {
+                stream.close();
+            }
+            mStreams.clear();
         }
 
 
         @NonNull
         public Stream<String> readAsUtf8WithoutBOM() throws IOException {
-            return Files.lines(Paths.get(mFile.getAbsolutePath()), StandardCharsets.UTF_8);
+            // read lazily, a line at a time
+            Stream<String> lines = Files.lines(Paths.get(mFile.getAbsolutePath()), StandardCharsets.UTF_8);
+            mStreams.add(lines);
+            return lines;
         }
     }
 }
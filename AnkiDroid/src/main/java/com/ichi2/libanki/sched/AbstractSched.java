@@ -59,8 +59,12 @@ public abstract class AbstractSched {
     /** Check whether we are a new day, and update if so. */
     public abstract void _updateCutoff();
 
-    /** Ensure that the question on the potential next card can be accessed quickly.*/
-    public abstract void preloadNextCard();
+    /**
+     * Ensure that the question and answer of the potential next cards can be accessed quickly.
+     * @return The cards whose question and answer were rendered, the first card of each queue which may be next, in
+     * the order in which the queues are checked: the first card is the most likely next card
+     */
+    public abstract @NonNull List<Card> preloadNextCard();
 
     /** Recompute the counts of the currently selected deck. */
     public abstract void resetCounts();
@@ -88,6 +92,13 @@ public abstract class AbstractSched {
      * @param ease The button pressed by the user*/
     public abstract void answerCard(@NonNull Card card, @Consts.BUTTON_TYPE int ease);
 
+    /**
+     * To be called before cards are modified outside of the scheduler, e.g. moved to another deck. Calling `commit` on
+     * the result once the cards are flushed lets the scheduler update its cached counts instead of recomputing them.
+     * @param cids The cards which will be modified
+     */
+    public abstract @NonNull DueCountIndex.Change beginCardsChange(@NonNull long[] cids);
+
     /**
      * @return Number of new, rev and lrn card to review in selected deck. Sum of elements of counts.*/
     public int count() {
@@ -19,13 +19,22 @@ package com.ichi2.libanki.sched;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
+import androidx.annotation.NonNull;
+
 abstract class CardQueue<T extends Card.Cache> {
+    /** Maximal number of cards loaded, along with their notes, by a single query. */
+    private static final int PREFETCH_SIZE = 10;
+    /** Cards are prefetched once fewer than this number of cards at the front of the queue are loaded. */
+    private static final int PREFETCH_LOW_WATER_MARK = 3;
+
     // We need to store mSched and not queue, because during initialization of sched, when CardQueues are initialized
     // sched.getCol is null.
     private final AbstractSched mSched;
@@ -37,11 +46,47 @@ abstract class CardQueue<T extends Card.Cache> {
     }
 
 
-    public void loadFirstCard() {
-        if (!mQueue.isEmpty()) {
+    /**
+     * Render the question and answer of the first cards of the queue.
+     * @param count The number of cards to render
+     * @return The rendered cards, in the order of the queue
+     */
+    public @NonNull List<Card> loadFirstCards(int count) {
+        List<Card> cards = new ArrayList<>(count);
+        for (T cache : mQueue) {
+            if (cards.size() >= count) {
+                break;
+            }
             // No nead to reload. If the card was changed, reset would have been called and emptied the queue
-            mQueue.get(0).loadQA(false, false);
+            cache.loadQA(false, false);
+            cards.add(cache.getCard());
+        }
+        return cards;
+    }
+
+    /**
+     * Ensure that the first cards of the queue, and their notes, are loaded, so that getting them does not access the
+     * database. Cards are loaded by batch, when few cards at the front of the queue are loaded.
+     *
+     * As with {@link #loadFirstCards(int)}, it assumes that the queue is emptied by reset if any card changed.
+     */
+    public void prefetch() {
+        int loaded = 0;
+        ArrayList<T> toLoad = new ArrayList<>(PREFETCH_SIZE);
+        for (T cache : mQueue) {
+            if (toLoad.size() + loaded >= PREFETCH_SIZE) {
+                break;
+            }
+            if (!cache.isLoaded()) {
+                toLoad.add(cache);
+            } else if (toLoad.isEmpty()) {
+                loaded++;
+                if (loaded >= PREFETCH_LOW_WATER_MARK) {
+                    return;
+                }
+            }
         }
+        Card.Cache.loadAll(getCol(), toLoad);
     }
 
     public Card removeFirstCard() throws NoSuchElementException {
@@ -0,0 +1,279 @@
+/****************************************************************************************
+ * Copyright (c) 2021 AnkiDroid Open Source Team                                        *
+ *                                                                                      *
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.sched;
+
+import android.database.Cursor;
+
+import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.DB;
+import com.ichi2.libanki.Utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
+
+/**
+ * In-memory number of cards of each deck, by queue and due value, so that counts can be computed without one query
+ * by deck and by queue.
+ *
+ * The index is filled by a single grouped scan of the cards table. It is considered stale as soon as any statement
+ * which may write is sent to the database ({@link DB#getModificationCount()}), in which case it is silently rebuilt
+ * on next access. Operations of the scheduler which are known to only change a given set of cards (answering,
+ * burying, suspending, moving to another deck) use {@link #beginChange(long[])} so that the index is updated in
+ * place instead of rebuilt.
+ *
+ * Only the queues new, learning, day learning, review and preview are indexed. New and preview cards are counted
+ * regardless of their due value.
+ *
+ * Thread safe, as the counts may be read by a task while another one answers a card.
+ */
+public class DueCountIndex {
+
+    private static class DeckCounts {
+        private int mNew = 0;
+        private int mPreview = 0;
+        /** due (in seconds) -> number of cards */
+        private final TreeMap<Long, Integer> mLrn = new TreeMap<>();
+        /** due (in days) -> number of cards */
+        private final TreeMap<Long, Integer> mDayLrn = new TreeMap<>();
+        /** due (in days) -> number of cards */
+        private final TreeMap<Long, Integer> mRev = new TreeMap<>();
+    }
+
+    // We need to store mSched and not the collection, because during initialization of sched, sched.getCol is null.
+    private final AbstractSched mSched;
+
+    /** did -> counts of this deck. Null if the index was never built or was invalidated */
+    private @Nullable HashMap<Long, DeckCounts> mDecks = null;
+    /** The database mDecks was built from. The index is stale once the collection is reopened, even if the counter
+     * of the new database has the same value. */
+    private @Nullable DB mDb = null;
+    /** Value of {@link DB#getModificationCount()} of mDb when mDecks was last known to be correct */
+    private long mModificationCount;
+    /** Incremented each time the index is rebuilt, so that a change started before a rebuild is not applied twice */
+    private int mGeneration = 0;
+
+
+    public DueCountIndex(@NonNull AbstractSched sched) {
+        mSched = sched;
+    }
+
+
+    private @NonNull DB getDb() {
+        return mSched.getCol().getDb();
+    }
+
+
+    /** Ensure the index will be rebuilt on next access */
+    public synchronized void invalidate() {
+        mDecks = null;
+        mDb = null;
+    }
+
+
+    @VisibleForTesting
+    public synchronized boolean isFresh() {
+        DB db = getDb();
+        return mDecks != null && mDb == db && mModificationCount == db.getModificationCount();
+    }
+
+
+    private @NonNull HashMap<Long, DeckCounts> decks() {
+        if (!isFresh()) {
+            rebuild();
+        }
+        return mDecks;
+    }
+
+
+    private void rebuild() {
+        DB db = getDb();
+        HashMap<Long, DeckCounts> decks = new HashMap<>();
+        // Due of new cards is a position and is never compared, so they are grouped into a single bucket.
+        try (Cursor cur = db.query("SELECT did, queue, CASE WHEN queue IN (" + Consts.QUEUE_TYPE_NEW + ", " + Consts.QUEUE_TYPE_PREVIEW + ") THEN 0 ELSE due END AS bucket, count() FROM cards"
+                + " WHERE queue IN (" + Consts.QUEUE_TYPE_NEW + ", " + Consts.QUEUE_TYPE_LRN + ", " + Consts.QUEUE_TYPE_REV + ", "
+                + Consts.QUEUE_TYPE_DAY_LEARN_RELEARN + ", " + Consts.QUEUE_TYPE_PREVIEW + ")"
+                + " GROUP BY did, queue, bucket")) {
+            while (cur.moveToNext()) {
+                add(decks, cur.getLong(0), cur.getInt(1), cur.getLong(2), cur.getInt(3));
+            }
+        }
+        Timber.d("Due count index rebuilt for %d decks", decks.size());
+        mDecks = decks;
+        mDb = db;
+        mModificationCount = db.getModificationCount();
+        mGeneration++;
+    }
+
+
+    private static void add(@NonNull Map<Long, DeckCounts> decks, long did, @Consts.CARD_QUEUE int queue, long due, int delta) {
+        DeckCounts counts = decks.get(did);
+        if (counts == null) {
+            counts = new DeckCounts();
+            decks.put(did, counts);
+        }
+        switch (queue) {
+            case Consts.QUEUE_TYPE_NEW:
+                counts.mNew += delta;
+                break;
+            case Consts.QUEUE_TYPE_PREVIEW:
+                counts.mPreview += delta;
+                break;
+            case Consts.QUEUE_TYPE_LRN:
+                addToBucket(counts.mLrn, due, delta);
+                break;
+            case Consts.QUEUE_TYPE_DAY_LEARN_RELEARN:
+                addToBucket(counts.mDayLrn, due, delta);
+                break;
+            case Consts.QUEUE_TYPE_REV:
+                addToBucket(counts.mRev, due, delta);
+                break;
+            default:
+                // Suspended and buried cards are not indexed
+        }
+    }
+
+
+    private static void addToBucket(@NonNull TreeMap<Long, Integer> buckets, long due, int delta) {
+        Integer current = buckets.get(due);
+        int updated = (current == null ? 0 : current) + delta;
+        if (updated == 0) {
+            buckets.remove(due);
+        } else {
+            buckets.put(due, updated);
+        }
+    }
+
+
+    private static int sumUpTo(@NonNull TreeMap<Long, Integer> buckets, long maxDue) {
+        int sum = 0;
+        for (int count : buckets.headMap(maxDue, true).values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+
+    /** Number of new cards in deck did, its descendants excluded. */
+    public synchronized int newCount(long did) {
+        DeckCounts counts = decks().get(did);
+        return counts == null ? 0 : counts.mNew;
+    }
+
+
+    /** Number of cards in the learning queue of deck did whose due is strictly before cutoff. */
+    public synchronized int lrnCount(long did, long cutoff) {
+        DeckCounts counts = decks().get(did);
+        return counts == null ? 0 : sumUpTo(counts.mLrn, cutoff - 1);
+    }
+
+
+    /** Number of cards in the day learning queue of deck did which are due on or before today. */
+    public synchronized int dayLrnCount(long did, long today) {
+        DeckCounts counts = decks().get(did);
+        return counts == null ? 0 : sumUpTo(counts.mDayLrn, today);
+    }
+
+
+    /** Number of cards in the review queue of deck did which are due on or before today. */
+    public synchronized int revCount(long did, long today) {
+        DeckCounts counts = decks().get(did);
+        return counts == null ? 0 : sumUpTo(counts.mRev, today);
+    }
+
+
+    /** Number of cards in the preview queue of deck did. */
+    public synchronized int previewCount(long did) {
+        DeckCounts counts = decks().get(did);
+        return counts == null ? 0 : counts.mPreview;
+    }
+
+
+    /**
+     * To be called before changing the cards cids. Once the change is done, {@link Change#commit()} must be called so
+     * that the index reflects the new state of those cards instead of being rebuilt.
+     *
+     * Every write done between the two calls is assumed to concern only those cards, or not to change any count.
+     * Changes concerning the same card must not be nested.
+     */
+    public synchronized @NonNull Change beginChange(@NonNull long[] cids) {
+        if (!isFresh() || cids.length == 0) {
+            // Nothing to maintain: the index will be rebuilt when it is needed.
+            return new Change(cids, null, mGeneration);
+        }
+        return new Change(cids, cardStates(cids), mGeneration);
+    }
+
+
+    /** @return the [did, queue, due] of each existing card of cids */
+    private @NonNull List<long[]> cardStates(@NonNull long[] cids) {
+        List<long[]> states = new ArrayList<>(cids.length);
+        try (Cursor cur = getDb().query("SELECT did, queue, due FROM cards WHERE id IN " + Utils.ids2str(cids))) {
+            while (cur.moveToNext()) {
+                states.add(new long[] {cur.getLong(0), cur.getInt(1), cur.getLong(2)});
+            }
+        }
+        return states;
+    }
+
+
+    public class Change {
+        private final @NonNull long[] mCids;
+        /** State of the cards before the change. Null if the index was not fresh, so that there is nothing to update */
+        private final @Nullable List<long[]> mBefore;
+        private final int mStartGeneration;
+
+
+        private Change(@NonNull long[] cids, @Nullable List<long[]> before, int generation) {
+            mCids = cids;
+            mBefore = before;
+            mStartGeneration = generation;
+        }
+
+
+        /**
+         * May be called inside a transaction. If this transaction is rolled back afterwards, the database counts it
+         * as a modification, so that the index is rebuilt instead of keeping counts which were never committed.
+         */
+        public void commit() {
+            if (mBefore == null) {
+                return;
+            }
+            synchronized (DueCountIndex.this) {
+                if (mDecks == null || mGeneration != mStartGeneration || mDb != getDb()) {
+                    // The index was rebuilt or dropped during the change, the previous state is meaningless
+                    invalidate();
+                    return;
+                }
+                for (long[] state : mBefore) {
+                    add(mDecks, state[0], (int) state[1], state[2], -1);
+                }
+                for (long[] state : cardStates(mCids)) {
+                    add(mDecks, state[0], (int) state[1], state[2], 1);
+                }
+                mModificationCount = getDb().getModificationCount();
+            }
+        }
+    }
+}
@@ -88,6 +88,7 @@ public class Sched extends SchedV2 {
         mCol.log();
         mCol.markReview(card);
         discardCurrentCard();
+        DueCountIndex.Change change = beginCardsChange(new long[] {card.getId()});
         _burySiblings(card);
         card.incrReps();
         // former is for logging new cards, latter also covers filt. decks
@@ -127,6 +128,7 @@ public class Sched extends SchedV2 {
         card.setMod(getTime().intTime());
         card.setUsn(mCol.usn());
         card.flushSched();
+        change.commit();
     }
 
 
@@ -1203,12 +1205,14 @@ public class Sched extends SchedV2 {
     @Override
     public void suspendCards(@NonNull long[] ids) {
         mCol.log(ids);
+        DueCountIndex.Change change = beginCardsChange(ids);
         remFromDyn(ids);
         removeLrn(ids);
         mCol.getDb().execute(
                 "UPDATE cards SET queue = " + Consts.QUEUE_TYPE_SUSPENDED + ", mod = ?, usn = ? WHERE id IN "
                         + Utils.ids2str(ids),
                 getTime().intTime(), mCol.usn());
+        change.commit();
     }
 
     protected @NonNull String queueIsBuriedSnippet() {
@@ -1231,10 +1235,12 @@ public class Sched extends SchedV2 {
     public void buryCards(@NonNull long[] cids, boolean manual) {
         // The boolean is useless here. However, it ensures that we are override the method with same parameter in SchedV2.
         mCol.log(cids);
+        DueCountIndex.Change change = beginCardsChange(cids);
         remFromDyn(cids);
         removeLrn(cids);
         mCol.getDb().execute("update cards set " + queueIsBuriedSnippet() + ",mod=?,usn=? where id in " + Utils.ids2str(cids),
                 getTime().intTime(), mCol.usn());
+        change.commit();
     }
 
 
@@ -23,7 +23,6 @@ import android.app.Activity;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.graphics.Typeface;
 import android.text.SpannableStringBuilder;
@@ -90,6 +89,8 @@ public class SchedV2 extends AbstractSched {
     // Not in libanki
     private static final int[] FACTOR_ADDITION_VALUES = { -150, 0, 150 };
     public static final int RESCHEDULE_FACTOR = Consts.STARTING_FACTOR;
+    /** The number of cards of each queue whose question and answer are rendered before they are shown */
+    private static final int PRELOADED_CARDS = 1;
 
     protected final int mQueueLimit;
     protected int mReportLimit;
@@ -122,6 +123,10 @@ public class SchedV2 extends AbstractSched {
     private @NonNull LinkedList<Long> mNewDids = new LinkedList<>();
     protected @NonNull LinkedList<Long> mLrnDids = new LinkedList<>();
 
+    // Not in libanki
+    /** Number of due cards by deck, used instead of a query by deck and by queue when computing counts. */
+    protected final @NonNull DueCountIndex mDueCounts = new DueCountIndex(this);
+
     // Not in libanki
     protected @Nullable WeakReference<Activity> mContextReference;
 
@@ -288,6 +293,7 @@ public class SchedV2 extends AbstractSched {
         mCol.log();
         discardCurrentCard();
         mCol.markReview(card);
+        DueCountIndex.Change change = beginCardsChange(new long[] {card.getId()});
         _burySiblings(card);
 
         _answerCard(card, ease);
@@ -296,6 +302,34 @@ public class SchedV2 extends AbstractSched {
         card.setMod(getTime().intTime());
         card.setUsn(mCol.usn());
         card.flushSched();
+        change.commit();
+    }
+
+
+    @Override
+    public @NonNull DueCountIndex.Change beginCardsChange(@NonNull long[] cids) {
+        return mDueCounts.beginChange(cids);
+    }
+
+
+    /**
+     * @param maxDue Largest due value for which the current card should be counted.
+     * @return 1 if the current card is in `queue`, in one of `dids`, and its due is at most maxDue. 0 otherwise. Its
+     * value should be removed from the counts of the index, as the current card must not be counted.
+     */
+    private int _currentCardCount(@Consts.CARD_QUEUE int queue, @NonNull List<Long> dids, long maxDue) {
+        // mCurrentCard may be set to null when the reviewer gets closed. So we copy it to be sure to avoid NullPointerException
+        Card currentCard = mCurrentCard;
+        if (currentCard != null && currentCard.getQueue() == queue && currentCard.getDue() <= maxDue && dids.contains(currentCard.getDid())) {
+            return 1;
+        }
+        return 0;
+    }
+
+
+    /** Same semantic as sql's LIMIT: a negative limit means no limit. */
+    private static int _limit(int count, int lim) {
+        return lim < 0 ? count : Math.min(count, lim);
     }
 
 
@@ -759,7 +793,7 @@ public class SchedV2 extends AbstractSched {
 
     /** pre load the potential next card. It may loads many card because, depending on the time taken, the next card may
      * be a card in review or not. */
-    public void preloadNextCard() {
+    public @NonNull List<Card> preloadNextCard() {
         _checkDay();
         if (!mHaveCounts) {
              resetCounts(false);
@@ -767,9 +801,13 @@ public class SchedV2 extends AbstractSched {
         if (!mHaveQueues) {
             resetQueues(false);
         }
+        List<Card> cards = new ArrayList<>();
         for (CardQueue<? extends Card.Cache> caches: _fillNextCard()) {
-            caches.loadFirstCard();
+            // Load the next cards and their notes at once, then render the first ones
+            caches.prefetch();
+            cards.addAll(caches.loadFirstCards(PRELOADED_CARDS));
         }
+        return cards;
     }
 
 
@@ -789,9 +827,8 @@ public class SchedV2 extends AbstractSched {
     // Used as an argument for _walkingCount() in _resetNewCount() above
     @SuppressWarnings("unused")
     protected int _cntFnNew(long did, int lim) {
-        return mCol.getDb().queryScalar(
-                "SELECT count() FROM (SELECT 1 FROM cards WHERE did = ? AND queue = " + Consts.QUEUE_TYPE_NEW + " AND id != ? LIMIT ?)",
-                did, currentCardId(), lim);
+        int cnt = mDueCounts.newCount(did) - _currentCardCount(Consts.QUEUE_TYPE_NEW, Collections.singletonList(did), Long.MAX_VALUE);
+        return _limit(cnt, lim);
     }
 
 
@@ -976,8 +1013,7 @@ public class SchedV2 extends AbstractSched {
             return 0;
         }
         lim = Math.min(lim, mReportLimit);
-    	return mCol.getDb().queryScalar("SELECT count() FROM (SELECT 1 FROM cards WHERE did = ? AND queue = " + Consts.QUEUE_TYPE_NEW + " LIMIT ?)",
-                                        did, lim);
+        return _limit(mDueCounts.newCount(did), lim);
     }
 
 
@@ -1038,19 +1074,16 @@ public class SchedV2 extends AbstractSched {
 
     protected void _resetLrnCount(@Nullable CancelListener cancelListener) {
         _updateLrnCutoff(true);
-        // sub-day
-        mLrnCount = mCol.getDb().queryScalar(
-                "SELECT count() FROM cards WHERE did IN " + _deckLimit()
-                + " AND queue = " + Consts.QUEUE_TYPE_LRN + " AND id != ? AND due < ?", currentCardId(), mLrnCutoff);
-        if (isCancelled(cancelListener)) return;
-        // day
-        mLrnCount += mCol.getDb().queryScalar(
-                "SELECT count() FROM cards WHERE did IN " + _deckLimit() + " AND queue = " + Consts.QUEUE_TYPE_DAY_LEARN_RELEARN + " AND due <= ? AND id != ?",
-                mToday, currentCardId());
-        if (isCancelled(cancelListener)) return;
-        // previews
-        mLrnCount += mCol.getDb().queryScalar(
-                "SELECT count() FROM cards WHERE did IN " + _deckLimit() + " AND queue = " + Consts.QUEUE_TYPE_PREVIEW + " AND id != ? ", currentCardId());
+        List<Long> dids = mCol.getDecks().active();
+        int count = 0;
+        for (long did : dids) {
+            // sub-day, day and previews
+            count += mDueCounts.lrnCount(did, mLrnCutoff) + mDueCounts.dayLrnCount(did, mToday) + mDueCounts.previewCount(did);
+        }
+        count -= _currentCardCount(Consts.QUEUE_TYPE_LRN, dids, mLrnCutoff - 1);
+        count -= _currentCardCount(Consts.QUEUE_TYPE_DAY_LEARN_RELEARN, dids, mToday);
+        count -= _currentCardCount(Consts.QUEUE_TYPE_PREVIEW, dids, Long.MAX_VALUE);
+        mLrnCount = count;
     }
 
 
@@ -1471,20 +1504,8 @@ public class SchedV2 extends AbstractSched {
 
     // Overriden: uses left/1000 in V1
     private int _lrnForDeck(long did) {
-        try {
-            int cnt = mCol.getDb().queryScalar(
-                    "SELECT count() FROM (SELECT null FROM cards WHERE did = ?"
-                            + " AND queue = " + Consts.QUEUE_TYPE_LRN + " AND due < ?"
-                            + " LIMIT ?)",
-                    did, (getTime().intTime() + mCol.getConf().getInt("collapseTime")), mReportLimit);
-            return cnt + mCol.getDb().queryScalar(
-                    "SELECT count() FROM (SELECT null FROM cards WHERE did = ?"
-                            + " AND queue = " + Consts.QUEUE_TYPE_DAY_LEARN_RELEARN + " AND due <= ?"
-                            + " LIMIT ?)",
-                    did, mToday, mReportLimit);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+        int cnt = _limit(mDueCounts.lrnCount(did, getTime().intTime() + mCol.getConf().getInt("collapseTime")), mReportLimit);
+        return cnt + _limit(mDueCounts.dayLrnCount(did, mToday), mReportLimit);
     }
 
 
@@ -1556,8 +1577,11 @@ public class SchedV2 extends AbstractSched {
         List<Long> dids = mCol.getDecks().childDids(did, childMap);
         dids.add(0, did);
         lim = Math.min(lim, mReportLimit);
-        return mCol.getDb().queryScalar("SELECT count() FROM (SELECT 1 FROM cards WHERE did in " + Utils.ids2str(dids) + " AND queue = " + Consts.QUEUE_TYPE_REV + " AND due <= ? LIMIT ?)",
-                                        mToday, lim);
+        int cnt = 0;
+        for (long childDid : dids) {
+            cnt += mDueCounts.revCount(childDid, mToday);
+        }
+        return _limit(cnt, lim);
     }
 
     // Overriden: V1 uses _walkingCount
@@ -1567,8 +1591,13 @@ public class SchedV2 extends AbstractSched {
     protected void _resetRevCount(@Nullable CancelListener cancelListener) {
         int lim = _currentRevLimit(true);
         if (isCancelled(cancelListener)) return;
-        mRevCount = mCol.getDb().queryScalar("SELECT count() FROM (SELECT id FROM cards WHERE did in " + _deckLimit() + " AND queue = " + Consts.QUEUE_TYPE_REV + " AND due <= ? AND id != ? LIMIT ?)",
-                                             mToday, currentCardId(), lim);
+        List<Long> dids = mCol.getDecks().active();
+        int cnt = 0;
+        for (long did : dids) {
+            cnt += mDueCounts.revCount(did, mToday);
+        }
+        cnt -= _currentCardCount(Consts.QUEUE_TYPE_REV, dids, mToday);
+        mRevCount = _limit(cnt, lim);
     }
 
 
@@ -2548,10 +2577,12 @@ public class SchedV2 extends AbstractSched {
      */
     public void suspendCards(@NonNull long[] ids) {
         mCol.log(ids);
+        DueCountIndex.Change change = beginCardsChange(ids);
         mCol.getDb().execute(
                 "UPDATE cards SET queue = " + Consts.QUEUE_TYPE_SUSPENDED + ", mod = ?, usn = ? WHERE id IN "
                         + Utils.ids2str(ids),
                 getTime().intTime(), mCol.usn());
+        change.commit();
     }
 
 
@@ -2577,8 +2608,10 @@ public class SchedV2 extends AbstractSched {
     public void buryCards(@NonNull long[] cids, boolean manual) {
         int queue = manual ? Consts.QUEUE_TYPE_MANUALLY_BURIED : Consts.QUEUE_TYPE_SIBLING_BURIED;
         mCol.log(cids);
+        DueCountIndex.Change change = beginCardsChange(cids);
         mCol.getDb().execute("update cards set queue=?,mod=?,usn=? where id in " + Utils.ids2str(cids),
                 queue, getTime().intTime(), mCol.usn());
+        change.commit();
     }
 
 
@@ -2631,8 +2664,8 @@ public class SchedV2 extends AbstractSched {
      * @param nid The id of the targeted note.
      */
     public void buryNote(long nid) {
-        long[] cids = Utils.collection2Array(mCol.getDb().queryLongList(
-                "SELECT id FROM cards WHERE nid = ? AND queue >= " + Consts.CARD_TYPE_NEW, nid));
+        long[] cids = mCol.getDb().queryLongArray(
+                "SELECT id FROM cards WHERE nid = ? AND queue >= " + Consts.CARD_TYPE_NEW, nid);
         buryCards(cids);
     }
 
@@ -145,7 +145,7 @@ public class Stats {
         Timber.d("todays statistics query: %s", query);
 
         int cards, thetime, failed, lrn, rev, relrn, filt;
-        try (Cursor cur = mCol.getDb()
+        try (Cursor cur = mCol.getDb().reader()
                     .query(query)) {
 
             cur.moveToFirst();
@@ -167,7 +167,7 @@ public class Stats {
         Timber.d("todays statistics query 2: %s", query);
 
         int mcnt, msum;
-        try (Cursor cur = mCol.getDb()
+        try (Cursor cur = mCol.getDb().reader()
                     .query(query)) {
 
             cur.moveToFirst();
@@ -217,7 +217,7 @@ public class Stats {
 
 
         long cut = mCol.getSched().getDayCutoff();
-        int cardCount= mCol.getDb().queryScalar("select count(id) from cards " + lim);
+        int cardCount= mCol.getDb().reader().queryScalar("select count(id) from cards " + lim);
 
         long periodDays = _periodDays(timespan); // 30|365|-1
         if (periodDays == -1) {
@@ -242,10 +242,10 @@ public class Stats {
         }
         double t = 0;
         if (by == DeckAgeType.REVIEW) {
-            t = mCol.getDb().queryLongScalar("select id from revlog " + lim + " order by id limit 1");
+            t = mCol.getDb().reader().queryLongScalar("select id from revlog " + lim + " order by id limit 1");
         } else if (by == DeckAgeType.ADD) {
             lim = "where did in " + Utils.ids2str(mCol.getDecks().active());
-            t = mCol.getDb().queryLongScalar("select id from cards " + lim + " order by id limit 1");
+            t = mCol.getDb().reader().queryLongScalar("select id from cards " + lim + " order by id limit 1");
         }
 
         long period;
@@ -290,7 +290,7 @@ public class Stats {
     public void calculateOverviewStatistics(AxisType timespan, OverviewStatsBuilder.OverviewStats oStats) {
         oStats.allDays = timespan.days;
         String lim = getRevlogFilter(timespan,false);
-        try (Cursor cur = mCol.getDb().query(
+        try (Cursor cur = mCol.getDb().reader().query(
                     "SELECT COUNT(*) as num_reviews, sum(case when type = " + Consts.CARD_TYPE_NEW + " then 1 else 0 end) as new_cards FROM revlog " + lim)) {
             while (cur.moveToNext()) {
                 oStats.totalReviews = cur.getInt(0);
@@ -301,7 +301,7 @@ public class Stats {
                 " SELECT (cast((id/1000 - " + mCol.getSched().getDayCutoff() + ") / "+SECONDS_PER_DAY+" AS INT)) AS day,  sum(time/1000.0/60.0) AS time_per_day"
                 + " FROM revlog " + lim + " GROUP BY day ORDER BY day)";
         Timber.d("Count cntquery: %s", cntquery);
-        try (Cursor cur = mCol.getDb().query(cntquery)) {
+        try (Cursor cur = mCol.getDb().reader().query(cntquery)) {
             while (cur.moveToNext()) {
                 oStats.daysStudied = cur.getInt(0);
                 oStats.totalTime = cur.getDouble(2);
@@ -311,7 +311,7 @@ public class Stats {
             }
         }
 
-        try (Cursor cur = mCol.getDb().query(
+        try (Cursor cur = mCol.getDb().reader().query(
                     "select avg(ivl), max(ivl) from cards where did in " +_limit() + " and queue = " + Consts.QUEUE_TYPE_REV + "")) {
             cur.moveToFirst();
             oStats.averageInterval = cur.getDouble(0);
@@ -333,7 +333,7 @@ public class Stats {
         oStats.matureCardsOverview = toOverview(2, list);
 
         String totalCountQuery = "select count(id), count(distinct nid) from cards where did in " + this._limit();
-        try (Cursor cur = mCol.getDb().query(totalCountQuery)) {
+        try (Cursor cur = mCol.getDb().reader().query(totalCountQuery)) {
             if (cur.moveToFirst()) {
                 oStats.totalCards = cur.getLong(0);
                 oStats.totalNotes = cur.getLong(1);
@@ -345,7 +345,7 @@ public class Stats {
                 "avg(factor) / 10.0,\n" +
                 "max(factor) / 10.0\n" +
                 "from cards where did in " + _limit() + " and queue = " + Consts.QUEUE_TYPE_REV;
-        try (Cursor cur = mCol.getDb().query(factorQuery)) {
+        try (Cursor cur = mCol.getDb().reader().query(factorQuery)) {
             if (cur.moveToFirst()) {
                 oStats.lowestEase = cur.getLong(0);
                 oStats.averageEase = cur.getLong(1);
@@ -453,7 +453,7 @@ public class Stats {
                 + " GROUP BY day ORDER BY day";
         Timber.d("Forecast query: %s", query);
         try (Cursor cur = mCol
-                    .getDb().query(query)) {
+                    .getDb().reader().query(query)) {
             while (cur.moveToNext()) {
                 dues.add(new int[] { cur.getInt(0), cur.getInt(1), cur.getInt(2) });
             }
@@ -614,7 +614,7 @@ public class Stats {
         Timber.d("ReviewCount query: %s", query);
 
         try (Cursor cur = mCol
-                    .getDb()
+                    .getDb().reader()
                     .query(query)) {
             while (cur.moveToNext()) {
                 list.add(new double[] { cur.getDouble(0), cur.getDouble(5), cur.getDouble(1), cur.getDouble(4),
@@ -770,7 +770,7 @@ public class Stats {
 
         ArrayList<double[]> list = new ArrayList<>(52); // Max of `num`, given that we probably won't have card with more than 52 year interval
         try (Cursor cur = mCol
-                    .getDb()
+                    .getDb().reader()
                     .query(
                             "select ivl / " + chunk + " as grp, count() from cards " +
                                     "where did in "+ _limit() +" and queue = " + Consts.QUEUE_TYPE_REV + " " + lim + " " +
@@ -781,7 +781,7 @@ public class Stats {
             }
         }
         try (Cursor cur = mCol
-                    .getDb()
+                    .getDb().reader()
                     .query(
                             "select count(), avg(ivl), max(ivl) from cards where did in " +_limit() +
                                     " and queue = " + Consts.QUEUE_TYPE_REV + "")) {
@@ -888,7 +888,7 @@ public class Stats {
                 "from revlog where type in (" + Consts.CARD_TYPE_NEW + "," + Consts.CARD_TYPE_LRN + "," + Consts.CARD_TYPE_REV + ") " + lim +" " +
                 "group by hour having count() > 30 order by hour";
         Timber.d("%d : %d breakdown query: %s", rolloverHour, cutoff, query);
-        try (Cursor cur = mCol.getDb()
+        try (Cursor cur = mCol.getDb().reader()
                     .query(query)) {
             while (cur.moveToNext()) {
                 double[] hourData = new double[] { cur.getDouble(0), cur.getDouble(1), cur.getDouble(2) };
@@ -1011,7 +1011,7 @@ public class Stats {
                 "group by wd " +
                 "order by wd";
         Timber.d(sd.get(Calendar.HOUR_OF_DAY) + " : " +cutoff + " weekly breakdown query: %s", query);
-        try (Cursor cur = mCol.getDb()
+        try (Cursor cur = mCol.getDb().reader()
                     .query(query)) {
             while (cur.moveToNext()) {
                 list.add(new double[] { cur.getDouble(0), cur.getDouble(1), cur.getDouble(2) });
@@ -1184,7 +1184,7 @@ public class Stats {
                 "        order by thetype, ease";
         Timber.d("AnswerButtons query: %s", query);
 
-        try (Cursor cur = mCol.getDb()
+        try (Cursor cur = mCol.getDb().reader()
                     .query(query)) {
             while (cur.moveToNext()) {
                 list.add(new double[]{cur.getDouble(0), cur.getDouble(1), cur.getDouble(2)});
@@ -1214,7 +1214,7 @@ public class Stats {
                 "from cards where did in " + _limit();
         Timber.d("CardsTypes query: %s", query);
 
-        try (Cursor cur = mCol.getDb()
+        try (Cursor cur = mCol.getDb().reader()
                     .query(query)) {
 
             cur.moveToFirst();
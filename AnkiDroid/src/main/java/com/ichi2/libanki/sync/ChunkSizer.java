@@ -0,0 +1,53 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.sync;
+
+/**
+ * Size of the chunks sent to the server by the normal sync, adapted to the measured speed of the connection.
+ *
+ * Each request costs a round trip plus a time proportional to its size. Chunks grow until a request takes about
+ * {@link #TARGET_DURATION_MS}: on a fast connection, few round trips are spent, while on a slow one the progress is
+ * still updated often and a failed request loses little. The chunks of the server have the size chosen by the server.
+ */
+class ChunkSizer {
+    /** About the 250 rows of cards of the fixed-size chunks of previous versions */
+    static final long INITIAL_BYTES = 32 * 1024;
+    static final long MIN_BYTES = 16 * 1024;
+    static final long MAX_BYTES = 2 * 1024 * 1024;
+    /** Bounds the work of the server on a single request, whatever the size of the rows */
+    static final int MAX_ROWS = 10000;
+    static final long TARGET_DURATION_MS = 2000;
+
+    private long mMaxBytes = INITIAL_BYTES;
+
+
+    /** @return The size of the next chunk, in bytes of JSON */
+    long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+
+    /** Records the duration of the request sending a chunk of the given size */
+    void onSent(long bytes, long durationMs) {
+        long estimate = durationMs <= 0 ? MAX_BYTES : bytes * TARGET_DURATION_MS / durationMs;
+        // At most double or halve at once, so that a single slow or fast request does not change the size too much
+        long next = Math.max(mMaxBytes / 2, Math.min(mMaxBytes * 2, estimate));
+        if (bytes < mMaxBytes / 2) {
+            // A partial chunk, e.g. the end of a table, is mostly round trip, which says little about the bandwidth
+            next = Math.min(next, mMaxBytes);
+        }
+        mMaxBytes = Math.max(MIN_BYTES, Math.min(MAX_BYTES, next));
+    }
+}
@@ -54,6 +54,7 @@ import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.SSLException;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
@@ -93,6 +94,12 @@ public class HttpSyncer {
     private volatile OkHttpClient mHttpClient;
     private final HostNum mHostNum;
 
+    /** Writes the data of a request as it is sent, e.g. from a database cursor, instead of from a string */
+    public interface PayloadWriter {
+        /** Writes the data, without closing the stream */
+        void writeTo(@NonNull OutputStream out) throws IOException;
+    }
+
     public HttpSyncer(String hkey, Connection con, HostNum hostNum) {
         mHKey = hkey;
         mSKey = Utils.checksum(Float.toString(new Random().nextFloat())).substring(0, 8);
@@ -137,7 +144,7 @@ public class HttpSyncer {
 
     /** Note: Return value must be closed */
     public Response req(String method) throws UnknownHttpResponseException {
-        return req(method, null);
+        return req(method, (InputStream) null);
     }
 
     /** Note: Return value must be closed */
@@ -146,15 +153,42 @@ public class HttpSyncer {
     }
 
     /** Note: Return value must be closed */
-    @SuppressWarnings("CharsetObjectCanBeUsed")
     public Response req(String method, InputStream fobj, int comp) throws UnknownHttpResponseException {
+        if (fobj == null) {
+            return req(method, (PayloadWriter) null, comp);
+        }
+        return req(method, out -> {
+            BufferedInputStream bfobj = new BufferedInputStream(fobj);
+            byte[] chunk = new byte[65536];
+            int len;
+            while ((len = bfobj.read(chunk)) >= 0) {
+                out.write(chunk, 0, len);
+            }
+        }, comp);
+    }
+
+
+    /** Note: Return value must be closed */
+    public Response req(String method, PayloadWriter payload) throws UnknownHttpResponseException {
+        return req(method, payload, 6);
+    }
+
+
+    /**
+     * Note: Return value must be closed
+     * @param payload Writes the data of the request, which is compressed as it is written if comp is not 0. Null if
+     *                the request has no data.
+     */
+    @SuppressWarnings("CharsetObjectCanBeUsed")
+    public Response req(String method, @Nullable PayloadWriter payload, int comp) throws UnknownHttpResponseException {
         File tmpFileBuffer = null;
         try {
             String bdry = "--" + BOUNDARY;
             StringWriter buf = new StringWriter();
-            // post vars
-            mPostVars.put("c", comp != 0 ? 1 : 0);
-            for (Map.Entry<String, Object> entry : mPostVars.entrySet()) {
+            // post vars, copied as requests can be sent by several threads at once
+            Map<String, Object> postVars = new HashMap<>(mPostVars);
+            postVars.put("c", comp != 0 ? 1 : 0);
+            for (Map.Entry<String, Object> entry : postVars.entrySet()) {
                 buf.write(bdry + "\r\n");
                 buf.write(String.format(Locale.US, "Content-Disposition: form-data; name=\"%s\"\r\n\r\n%s\r\n", entry.getKey(),
                         entry.getValue()));
@@ -164,27 +198,20 @@ public class HttpSyncer {
             BufferedOutputStream bos = new BufferedOutputStream(fos);
             GZIPOutputStream tgt;
             // payload as raw data or json
-            if (fobj != null) {
+            if (payload != null) {
                 // header
                 buf.write(bdry + "\r\n");
                 buf.write("Content-Disposition: form-data; name=\"data\"; filename=\"data\"\r\nContent-Type: application/octet-stream\r\n\r\n");
                 buf.close();
                 bos.write(buf.toString().getBytes("UTF-8"));
-                // write file into buffer, optionally compressing
-                int len;
-                BufferedInputStream bfobj = new BufferedInputStream(fobj);
-                byte[] chunk = new byte[65536];
+                // write payload into buffer, optionally compressing
                 if (comp != 0) {
                     tgt = new GZIPOutputStream(bos);
-                    while ((len = bfobj.read(chunk)) >= 0) {
-                        tgt.write(chunk, 0, len);
-                    }
+                    payload.writeTo(tgt);
                     tgt.close();
                     bos = new BufferedOutputStream(new FileOutputStream(tmpFileBuffer, true));
                 } else {
-                    while ((len = bfobj.read(chunk)) >= 0) {
-                        bos.write(chunk, 0, len);
-                    }
+                    payload.writeTo(bos);
                 }
                 bos.write(("\r\n" + bdry + "--\r\n").getBytes("UTF-8"));
             } else {
@@ -27,18 +27,15 @@ import com.ichi2.anki.exception.MediaSyncException;
 import com.ichi2.anki.exception.UnknownHttpResponseException;
 import com.ichi2.async.Connection;
 import com.ichi2.libanki.Collection;
-import com.ichi2.libanki.Consts;
 
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
-import java.util.zip.ZipFile;
 
 import timber.log.Timber;
 
@@ -57,15 +54,16 @@ import static com.ichi2.libanki.sync.Syncer.ConnectionResultType.*;
  *      file systems used (mainly FAT32 for sdcards) and the utilities available to probe them.
  *  2 - Scanning for media changes can take a very long time with thousands of files.
  * 
- * Given these two points, we have decided to avoid the call to findChanges() on every sync and
- * only do it on the first sync to build the initial database. Changes to the media collection
- * made through AnkiDroid (e.g., multimedia note editor, media check) are recorded directly in
- * the media database as they are made. This allows us to skip finding media changes entirely
- * as the database already contains the changes.
+ * Given these two points, changes to the media collection made through AnkiDroid (e.g., multimedia
+ * note editor, media check) are recorded directly in the media database as they are made, and the
+ * folder is only scanned when something else changed it. While the collection is open, the files
+ * changed by other apps are logged by a FileObserver, and only those are checked, see
+ * {@link com.ichi2.libanki.Media#findChanges(boolean)}.
  * 
- * The downside to this approach is that changes made to the media directory externally (e.g.,
- * through a file manager) will not be recorded and will not be synced. In this case, the user
- * must issue a media check command through the UI to bring the database up-to-date.
+ * The downside to this approach is that changes made to the media directory on a file system which
+ * neither updates the modification time of the directory nor reports its changes will not be
+ * recorded and will not be synced. In this case, the user must issue a media check command through
+ * the UI to bring the database up-to-date.
  */
 @SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes","PMD.AvoidReassigningParameters",
         "PMD.NPathComplexity","PMD.MethodNamingConventions","PMD.ExcessiveMethodLength","PMD.OneDeclarationPerLine",
@@ -86,29 +84,38 @@ public class MediaSyncer {
     // Returned string may be null. ConnectionResultType and Pair are not null
     public Pair<ConnectionResultType, String> sync() throws UnknownHttpResponseException, MediaSyncException {
             // check if there have been any changes
-            // If we haven't built the media db yet, do so on this sync. See note at the top
-            // of this class about this difference to the original.
+            // If we haven't built the media db yet, do so on this sync. Otherwise, only the changes
+            // made outside of AnkiDroid are looked for. See note at the top of this class.
             if (mCol.getMedia().needScan()) {
                 mCon.publishProgress(R.string.sync_media_find);
-                mCol.log("findChanges");
-                try {
-                    mCol.getMedia().findChanges();
-                } catch (SQLException ignored) {
-                    Timber.w(ignored);
-                    return new Pair<>(CORRUPT, null);
-                }
+            }
+            mCol.log("findChanges");
+            try {
+                mCol.getMedia().findChanges();
+            } catch (SQLException ignored) {
+                Timber.w(ignored);
+                return new Pair<>(CORRUPT, null);
             }
 
             // begin session and check if in sync
-            int lastUsn = mCol.getMedia().lastUsn();
             JSONObject ret = mServer.begin();
+            MediaTransfer transfer = new MediaTransfer(mCol.getMedia(), mServer, MediaTransfer.MAX_CONCURRENT_DOWNLOADS);
+            mDownloadCount = 0;
+            // finish the downloads of an interrupted sync
+            int queuedUsn = mCol.getMedia().queuedDownloadsUsn();
+            if (queuedUsn != -1) {
+                mCol.log("resume downloads up to usn " + queuedUsn);
+                transfer.checkQueuedDownloads(mCol.getMedia().lastUsn());
+                _downloadFiles(transfer);
+                mCol.getMedia().setLastUsn(queuedUsn); // commits
+            }
+            int lastUsn = mCol.getMedia().lastUsn();
             int srvUsn = ret.getInt("usn");
             if ((lastUsn == srvUsn) && !(mCol.getMedia().haveDirty())) {
                 return new Pair<>(NO_CHANGES, null);
             }
             // loop through and process changes from server
             mCol.log("last local usn is " + lastUsn);
-            mDownloadCount = 0;
             while (true) {
                 // Allow cancellation (note: media sync has no finish command, so just throw)
                 if (Connection.getIsCancelled()) {
@@ -121,7 +128,8 @@ public class MediaSyncer {
                     break;
                 }
 
-                List<String> need = new ArrayList<>(data.length());
+                // the files to fetch, with their checksum
+                List<Pair<String, String>> need = new ArrayList<>(data.length());
                 lastUsn = data.getJSONArray(data.length()-1).getInt(1);
                 for (int i = 0; i < data.length(); i++) {
                     // Allow cancellation (note: media sync has no finish command, so just throw)
@@ -152,7 +160,7 @@ public class MediaSyncer {
                         // added/changed remotely
                         if (TextUtils.isEmpty(lsum) || !lsum.equals(rsum)) {
                             mCol.log("will fetch");
-                            need.add(fname);
+                            need.add(new Pair<>(fname, rsum));
                         } else {
                             mCol.log("have same already");
                         }
@@ -173,7 +181,10 @@ public class MediaSyncer {
                         mCol.getMedia().markClean(Collections.singletonList(fname));
                     }
                 }
-                _downloadFiles(need);
+                if (!need.isEmpty()) {
+                    mCol.getMedia().queueDownloads(need, lastUsn);
+                    _downloadFiles(transfer);
+                }
 
                 mCol.log("update last usn to " + lastUsn);
                 mCol.getMedia().setLastUsn(lastUsn); // commits
@@ -182,46 +193,15 @@ public class MediaSyncer {
             // at this point, we're all up to date with the server's changes,
             // and we need to send our own
 
-            boolean updateConflict = false;
-            int toSend = mCol.getMedia().dirtyCount();
-            while (true) {
-                Pair<File, List<String>> changesZip = mCol.getMedia().mediaChangesZip();
-                File zip = changesZip.first;
-                try {
-                    List<String> fnames = changesZip.second;
-                    if (fnames.size() == 0) {
-                        break;
-                    }
-
-                    mCon.publishProgress(String.format(
-                                                       AnkiDroidApp.getAppResources().getString(R.string.sync_media_changes_count), toSend));
-
-                    JSONArray changes = mServer.uploadChanges(zip);
-                    int processedCnt = changes.getInt(0);
-                    int serverLastUsn = changes.getInt(1);
-                    mCol.getMedia().markClean(fnames.subList(0, processedCnt));
-
-                    mCol.log(String.format(Locale.US,
-                                           "processed %d, serverUsn %d, clientUsn %d",
-                                           processedCnt, serverLastUsn, lastUsn));
-
-                    if (serverLastUsn - processedCnt == lastUsn) {
-                        mCol.log("lastUsn in sync, updating local");
-                        lastUsn = serverLastUsn;
-                        mCol.getMedia().setLastUsn(serverLastUsn); // commits
-                    } else {
-                        mCol.log("concurrent update, skipping usn update");
-                        // commit for markClean
-                        mCol.getMedia().getDb().commit();
-                        updateConflict = true;
-                    }
-
-                    toSend -= processedCnt;
-                } finally {
-                    zip.delete();
-                }
+            Integer uploadedUsn;
+            try {
+                uploadedUsn = transfer.upload(lastUsn, toSend -> mCon.publishProgress(String.format(
+                        AnkiDroidApp.getAppResources().getString(R.string.sync_media_changes_count), toSend)));
+            } catch (IOException e) {
+                Timber.e(e, "Error uploading media files");
+                throw new RuntimeException(e);
             }
-            if (updateConflict) {
+            if (uploadedUsn == null) {
                 mCol.log("restart sync due to concurrent update");
                 return sync();
             }
@@ -237,30 +217,14 @@ public class MediaSyncer {
     }
 
 
-    private void _downloadFiles(List<String> fnames) {
-        mCol.log(fnames.size() + " files to fetch");
-        while (fnames.size() > 0) {
-            try {
-                List<String> top = fnames.subList(0, Math.min(fnames.size(), Consts.SYNC_ZIP_COUNT));
-                mCol.log("fetch " + top);
-                ZipFile zipData = mServer.downloadFiles(top);
-                int cnt = mCol.getMedia().addFilesFromZip(zipData);
-                mDownloadCount += cnt;
-                mCol.log("received " + cnt + " files");
-                // NOTE: The python version uses slices which return an empty list when indexed beyond what
-                // the list contains. Since we can't slice out an empty sublist in Java, we must check
-                // if we've reached the end and clear the fnames list manually.
-                if (cnt == fnames.size()) {
-                    fnames.clear();
-                } else {
-                    fnames = fnames.subList(cnt, fnames.size());
-                }
-                mCon.publishProgress(String.format(
-                        AnkiDroidApp.getAppResources().getString(R.string.sync_media_downloaded_count), mDownloadCount));
-            } catch (IOException | UnknownHttpResponseException e) {
-                Timber.e(e, "Error downloading media files");
-                throw new RuntimeException(e);
-            }
+    /** Receives the files queued in the media database */
+    private void _downloadFiles(MediaTransfer transfer) throws UnknownHttpResponseException, MediaSyncException {
+        try {
+            mDownloadCount += transfer.download(received -> mCon.publishProgress(String.format(
+                    AnkiDroidApp.getAppResources().getString(R.string.sync_media_downloaded_count), mDownloadCount + received)));
+        } catch (IOException e) {
+            Timber.e(e, "Error downloading media files");
+            throw new RuntimeException(e);
         }
     }
 }
@@ -0,0 +1,311 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.sync;
+
+import android.util.Pair;
+
+import com.ichi2.anki.exception.MediaSyncException;
+import com.ichi2.anki.exception.UnknownHttpResponseException;
+import com.ichi2.async.Connection;
+import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.Media;
+import com.ichi2.utils.JSONArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import timber.log.Timber;
+
+import static com.ichi2.libanki.sync.Syncer.ConnectionResultType.USER_ABORTED_SYNC;
+
+/**
+ * Sends and receives the files of a media sync, with requests in flight while the media folder is read or written.
+ * <p>
+ * Downloads: the files to receive are queued in the media database with the checksums announced by the server, see
+ * {@link Media#queueDownloads(List, int)}. Up to {@link #MAX_CONCURRENT_DOWNLOADS} batches of files are requested at
+ * once. Each zip received is extracted by the sync thread, which records its files with their announced checksum and
+ * removes them from the queue. An interrupted sync resumes with the files still queued, once they are checked against
+ * the changes of the server, and the files received are neither downloaded nor hashed again.
+ * <p>
+ * Uploads: the server numbers the changes it receives and the client checks that no other client sent changes in
+ * between, so the zips of changes are sent one at a time. The next zip is built while the previous one is sent.
+ * <p>
+ * The database and the media folder are only accessed by the sync thread.
+ */
+@SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes"})
+class MediaTransfer {
+    static final int MAX_CONCURRENT_DOWNLOADS = 3;
+
+    private final Media mMedia;
+    private final RemoteMediaServer mServer;
+    private final int mMaxConcurrentDownloads;
+
+
+    MediaTransfer(@NonNull Media media, @NonNull RemoteMediaServer server, int maxConcurrentDownloads) {
+        mMedia = media;
+        mServer = server;
+        mMaxConcurrentDownloads = maxConcurrentDownloads;
+    }
+
+
+    interface DownloadListener {
+        /** @param received The number of files received by this sync */
+        void onReceived(int received);
+    }
+
+
+    /** Receives the queued files of the server. @return The number of files received */
+    int download(@NonNull DownloadListener listener) throws IOException, UnknownHttpResponseException, MediaSyncException {
+        deleteLeftovers(RemoteMediaServer.DOWNLOAD_ZIP_PREFIX);
+        Deque<String> remaining = new ArrayDeque<>(mMedia.queuedDownloads());
+        Timber.i("%d files to fetch", remaining.size());
+        ExecutorService network = Executors.newFixedThreadPool(mMaxConcurrentDownloads);
+        CompletionService<Batch> completion = new ExecutorCompletionService<>(network);
+        int inFlight = 0;
+        int received = 0;
+        try {
+            while (true) {
+                while (inFlight < mMaxConcurrentDownloads && !remaining.isEmpty()) {
+                    List<String> fnames = new ArrayList<>(Consts.SYNC_ZIP_COUNT);
+                    while (fnames.size() < Consts.SYNC_ZIP_COUNT && !remaining.isEmpty()) {
+                        fnames.add(remaining.removeFirst());
+                    }
+                    completion.submit(() -> new Batch(fnames, mServer.downloadFiles(fnames)));
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    return received;
+                }
+                Batch batch = await(take(completion));
+                inFlight--;
+                throwIfCancelled();
+                int cnt = mMedia.addFilesFromZip(batch.mZip);
+                if (cnt == 0) {
+                    throw new RuntimeException("No file received from the server");
+                }
+                // The server may send less files than requested, the first ones
+                List<String> missing = batch.mFnames.subList(cnt, batch.mFnames.size());
+                for (int i = missing.size() - 1; i >= 0; i--) {
+                    remaining.addFirst(missing.get(i));
+                }
+                received += cnt;
+                listener.onReceived(received);
+            }
+        } finally {
+            network.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Drops the files queued by an interrupted sync which the server no longer has with the announced checksum,
+     * because they were deleted or changed since, and the files changed locally since, which are sent instead.
+     * Otherwise, the server would not send them and the download would fail on every sync.
+     * <p>
+     * A file changed on the server is received again with the changes following the queued ones.
+     * @param lastUsn The last usn of the media, before the changes whose files are queued
+     */
+    void checkQueuedDownloads(int lastUsn) throws UnknownHttpResponseException, MediaSyncException {
+        Map<String, String> queued = mMedia.queuedDownloadChecksums();
+        // The checksum of the server for each queued file, null if it was deleted
+        Map<String, String> current = new HashMap<>(queued.size());
+        int usn = lastUsn;
+        while (true) {
+            throwIfCancelled();
+            JSONArray data = mServer.mediaChanges(usn);
+            if (data.length() == 0) {
+                break;
+            }
+            for (int i = 0; i < data.length(); i++) {
+                JSONArray change = data.getJSONArray(i);
+                String fname = change.getString(0);
+                if (queued.containsKey(fname)) {
+                    current.put(fname, change.isNull(2) ? null : change.optString(2));
+                }
+            }
+            usn = data.getJSONArray(data.length() - 1).getInt(1);
+        }
+        List<String> dropped = new ArrayList<>();
+        for (Map.Entry<String, String> file : queued.entrySet()) {
+            String fname = file.getKey();
+            if (!file.getValue().equals(current.get(fname))) {
+                Timber.i("%s changed on the server since it was queued", fname);
+                dropped.add(fname);
+            } else if (mMedia.syncInfo(fname).second != 0) {
+                Timber.i("%s changed locally since it was queued, it will be sent", fname);
+                dropped.add(fname);
+            }
+        }
+        mMedia.dequeueDownloads(dropped);
+    }
+
+
+    private static class Batch {
+        private final List<String> mFnames;
+        private final ZipFile mZip;
+
+
+        private Batch(@NonNull List<String> fnames, @NonNull ZipFile zip) {
+            mFnames = fnames;
+            mZip = zip;
+        }
+    }
+
+
+    interface UploadListener {
+        /** @param toSend The number of changes not sent yet */
+        void onProgress(int toSend);
+    }
+
+
+    /**
+     * Sends the changes of the media folder.
+     * @param lastUsn The last usn of the media, before the upload
+     * @return The last usn of the media, or null if another client sent changes during the upload, in which case the
+     * changes of the server must be received again.
+     */
+    @Nullable
+    Integer upload(int lastUsn, @NonNull UploadListener listener) throws IOException, UnknownHttpResponseException, MediaSyncException {
+        deleteLeftovers(Media.CHANGES_ZIP_PREFIX);
+        int usn = lastUsn;
+        boolean updateConflict = false;
+        int toSend = mMedia.dirtyCount();
+        if (toSend > 0) {
+            listener.onProgress(toSend);
+        }
+        ExecutorService network = Executors.newSingleThreadExecutor();
+        Future<JSONArray> sending = null;
+        Pair<File, List<String>> sent = null;
+        String after = "";
+        try {
+            while (true) {
+                Pair<File, List<String>> changesZip = mMedia.mediaChangesZip(after);
+                if (sending != null) {
+                    JSONArray changes = await(sending);
+                    sending = null;
+                    int processedCnt = changes.getInt(0);
+                    int serverLastUsn = changes.getInt(1);
+                    mMedia.markClean(sent.second.subList(0, processedCnt));
+                    Timber.i("processed %d, serverUsn %d, clientUsn %d", processedCnt, serverLastUsn, usn);
+                    if (serverLastUsn - processedCnt == usn) {
+                        usn = serverLastUsn;
+                        mMedia.setLastUsn(serverLastUsn); // commits
+                    } else {
+                        Timber.i("concurrent update, skipping usn update");
+                        updateConflict = true;
+                    }
+                    toSend -= processedCnt;
+                    listener.onProgress(toSend);
+                    sent.first.delete();
+                    sent = null;
+                }
+                throwIfCancelled();
+                List<String> fnames = changesZip.second;
+                if (fnames.isEmpty()) {
+                    changesZip.first.delete();
+                    if (after.isEmpty()) {
+                        break;
+                    }
+                    // The files the server did not process are still dirty
+                    after = "";
+                    continue;
+                }
+                after = fnames.get(fnames.size() - 1);
+                File zip = changesZip.first;
+                sending = network.submit(() -> mServer.uploadChanges(zip));
+                sent = changesZip;
+            }
+        } finally {
+            network.shutdownNow();
+            if (sent != null) {
+                sent.first.delete();
+            }
+        }
+        return updateConflict ? null : usn;
+    }
+
+
+    /** Deletes the zips of an interrupted sync, which are in the folder of the collection */
+    private void deleteLeftovers(@NonNull String prefix) {
+        File[] leftovers = new File(mMedia.dir()).getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if (leftovers == null) {
+            return;
+        }
+        for (File leftover : leftovers) {
+            Timber.d("Deleting %s", leftover);
+            leftover.delete();
+        }
+    }
+
+
+    private static void throwIfCancelled() {
+        // Media sync has no finish command, so just throw
+        if (Connection.getIsCancelled()) {
+            Timber.i("Sync was cancelled");
+            throw new RuntimeException(USER_ABORTED_SYNC.toString());
+        }
+    }
+
+
+    @NonNull
+    private static <T> Future<T> take(@NonNull CompletionService<T> completion) {
+        try {
+            return completion.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** Waits for a request sent by a network thread, and throws its failure if it failed */
+    private static <T> T await(@NonNull Future<T> request) throws IOException, UnknownHttpResponseException, MediaSyncException {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHttpResponseException) {
+                throw (UnknownHttpResponseException) cause;
+            } else if (cause instanceof MediaSyncException) {
+                throw (MediaSyncException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -46,6 +46,9 @@ import timber.log.Timber;
 @SuppressWarnings({"PMD.AvoidThrowingRawExceptionTypes","PMD.MethodNamingConventions"})
 public class RemoteMediaServer extends HttpSyncer {
 
+    /** Prefix of the zips of files received from the server, in the folder of the collection */
+    public static final String DOWNLOAD_ZIP_PREFIX = "tmpSyncFromServer";
+
     private final Collection mCol;
 
 
@@ -112,16 +115,18 @@ public class RemoteMediaServer extends HttpSyncer {
      * <br>
      * This method returns a ZipFile with the OPEN_DELETE flag, ensuring that the file on disk will
      * be automatically deleted when the stream is closed.
+     * <br>
+     * Several files can be downloaded at once, each in its own zip.
      */
     public ZipFile downloadFiles(List<String> top) throws UnknownHttpResponseException {
         Response resp = null;
         try {
             resp = super.req("downloadFiles",
                     HttpSyncer.getInputStream(Utils.jsonToString(new JSONObject().put("files", new JSONArray(top)))));
-            String zipPath = mCol.getPath().replaceFirst("collection\\.anki2$", "tmpSyncFromServer.zip");
+            File zip = File.createTempFile(DOWNLOAD_ZIP_PREFIX, ".zip", new File(mCol.getPath()).getParentFile());
             // retrieve contents and save to file on disk:
-            super.writeToFile(resp.body().byteStream(), zipPath);
-            return new ZipFile(new File(zipPath), ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
+            super.writeToFile(resp.body().byteStream(), zip.getPath());
+            return new ZipFile(zip, ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
         } catch (IOException | NullPointerException e) {
             Timber.e(e, "Failed to download requested media files");
             throw new RuntimeException(e);
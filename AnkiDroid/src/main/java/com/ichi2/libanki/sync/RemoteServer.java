@@ -78,13 +78,14 @@ public class RemoteServer extends HttpSyncer {
     }
 
 
-    public JSONObject chunk() throws UnknownHttpResponseException {
-        JSONObject co = new JSONObject();
-        return parseDict(_run("chunk", co));
+    /** Note: Return value must be closed. Its body is the next chunk, to be read as a stream */
+    public Response chunk() throws UnknownHttpResponseException {
+        return super.req("chunk", HttpSyncer.getInputStream(Utils.jsonToString(new JSONObject())));
     }
 
 
-    public void applyChunk(JSONObject sech) throws UnknownHttpResponseException {
+    /** @param sech Writes the arguments of the request, i.e. {"chunk": chunk} */
+    public void applyChunk(PayloadWriter sech) throws UnknownHttpResponseException {
         _run("applyChunk", sech);
     }
 
@@ -102,7 +103,14 @@ public class RemoteServer extends HttpSyncer {
 
     /** Python has dynamic type deduction, but we don't, so return String **/
     private String _run(String cmd, JSONObject data) throws UnknownHttpResponseException {
-        Response ret = super.req(cmd, HttpSyncer.getInputStream(Utils.jsonToString(data)));
+        return readBody(super.req(cmd, HttpSyncer.getInputStream(Utils.jsonToString(data))));
+    }
+
+    private String _run(String cmd, PayloadWriter data) throws UnknownHttpResponseException {
+        return readBody(super.req(cmd, data));
+    }
+
+    private String readBody(Response ret) {
         try {
             return ret.body().string();
         } catch (IllegalStateException | IOException e) {
@@ -18,11 +18,16 @@
 package com.ichi2.libanki.sync;
 
 import android.database.Cursor;
-import android.database.SQLException;
+import android.os.SystemClock;
 import android.util.Pair;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
 
 import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.anki.AnkiSerialization;
 import com.ichi2.anki.R;
 import com.ichi2.anki.analytics.UsageAnalytics;
 import com.ichi2.anki.exception.UnknownHttpResponseException;
@@ -32,7 +37,6 @@ import com.ichi2.libanki.Model;
 import com.ichi2.libanki.sched.AbstractSched;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Consts;
-import com.ichi2.libanki.Utils;
 
 import com.ichi2.libanki.Deck;
 import com.ichi2.libanki.DeckConfig;
@@ -41,15 +45,20 @@ import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 import okhttp3.Response;
 import timber.log.Timber;
 import static com.ichi2.libanki.sync.Syncer.ConnectionResultType.*;
@@ -236,32 +245,10 @@ public class Syncer {
                 }
                 // step 3: stream large tables from server
                 publishProgress(con, R.string.sync_download_chunk);
-                while (true) {
-                    throwExceptionIfCancelled(con);
-                    Timber.i("Sync: downloading chunked data");
-                    JSONObject chunk = mRemoteServer.chunk();
-                    mCol.log("server chunk", chunk);
-                    Timber.i("Sync: applying chunked data");
-                    applyChunk(chunk);
-                    if (chunk.getBoolean("done")) {
-                        break;
-                    }
-                }
+                downloadChunks(con);
                 // step 4: stream to server
                 publishProgress(con, R.string.sync_upload_chunk);
-                while (true) {
-                    throwExceptionIfCancelled(con);
-                    Timber.i("Sync: collecting chunked data");
-                    JSONObject chunk = chunk();
-                    mCol.log("client chunk", chunk);
-                    JSONObject sech = new JSONObject();
-                    sech.put("chunk", chunk);
-                    Timber.i("Sync: sending chunked data");
-                    mRemoteServer.applyChunk(sech);
-                    if (chunk.getBoolean("done")) {
-                        break;
-                    }
-                }
+                uploadChunks(con);
                 // step 5: sanity check
                 JSONObject c = sanityCheck();
                 JSONObject sanity = mRemoteServer.sanityCheck2(c);
@@ -520,9 +507,13 @@ public class Syncer {
 
     /**
      * Chunked syncing ********************************************************************
+     *
+     * Rows are streamed between the database and the HTTP bodies, so that a chunk is never held in memory as JSON
+     * objects or text.
      */
 
-    private void prepareToChunk() {
+    @VisibleForTesting
+    void prepareToChunk() {
         mTablesLeft = new LinkedList<>();
         mTablesLeft.add("revlog");
         mTablesLeft.add("cards");
@@ -564,41 +555,152 @@ public class Syncer {
     }
 
 
-    public JSONObject chunk() {
-        JSONObject buf = new JSONObject();
-        buf.put("done", false);
-        int lim = 250;
-        List<Integer> colTypes = null;
-        while (!mTablesLeft.isEmpty() && lim > 0) {
+    /**
+     * Receives the chunks of the server and applies them to the collection.
+     *
+     * Each chunk is parsed from the response as it is received, and its rows are written to the database as soon as
+     * they are parsed, so that a chunk is never held in memory. Applying a chunk thus overlaps its download. The next
+     * chunk is only requested once this one is applied: whether there is one is only known from the end of the chunk.
+     */
+    private void downloadChunks(Connection con) throws IOException, UnknownHttpResponseException {
+        boolean done;
+        do {
+            throwExceptionIfCancelled(con);
+            Timber.i("Sync: downloading and applying chunked data");
+            try (Response response = mRemoteServer.chunk();
+                 JsonParser parser = AnkiSerialization.getFactory().createParser(response.body().byteStream())) {
+                done = applyChunk(parser);
+            }
+        } while (!done);
+    }
+
+
+    /**
+     * Sends the local changes to the server, in chunks sized by {@link ChunkSizer}.
+     *
+     * The requests are sent by a network thread, while the next chunk is read from the collection. So at most two
+     * chunks are in memory: the one sent and the one read, each bounded by {@link ChunkSizer#MAX_BYTES}. Only one request
+     * is in flight at a time, so the server sees the same sequence of requests.
+     */
+    private void uploadChunks(Connection con) throws IOException, UnknownHttpResponseException {
+        ExecutorService network = Executors.newSingleThreadExecutor();
+        ChunkSizer sizer = new ChunkSizer();
+        // a buffer is read again once the request sending it ended
+        ByteArrayOutputStream[] buffers = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+        try {
+            Future<Long> sending = null;
+            long sentSize = 0;
+            boolean done;
+            int i = 0;
+            do {
+                Timber.i("Sync: collecting chunked data");
+                ByteArrayOutputStream chunk = buffers[i++ % buffers.length];
+                chunk.reset();
+                try (JsonGenerator generator = createGenerator(chunk)) {
+                    generator.writeStartObject();
+                    generator.writeFieldName("chunk");
+                    done = writeChunk(generator, ChunkSizer.MAX_ROWS, sizer.getMaxBytes());
+                    generator.writeEndObject();
+                }
+                if (sending != null) {
+                    sizer.onSent(sentSize, await(sending));
+                }
+                // no request is in flight, so an abort request can be sent
+                throwExceptionIfCancelled(con);
+                sentSize = chunk.size();
+                sending = network.submit(() -> {
+                    Timber.i("Sync: sending chunked data");
+                    // only the request is timed, so that the size of the chunks depends on the connection alone
+                    long start = SystemClock.elapsedRealtime();
+                    mRemoteServer.applyChunk(chunk::writeTo);
+                    return SystemClock.elapsedRealtime() - start;
+                });
+            } while (!done);
+            await(sending);
+        } finally {
+            network.shutdown();
+        }
+    }
+
+
+    /** Waits for a request sent by the network thread, and throws its failure if it failed */
+    private static <T> T await(@NonNull Future<T> request) throws IOException, UnknownHttpResponseException {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHttpResponseException) {
+                throw (UnknownHttpResponseException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+
+    /** @return A generator writing to out, which leaves it open when closed */
+    @VisibleForTesting
+    static JsonGenerator createGenerator(@NonNull OutputStream out) throws IOException {
+        return AnkiSerialization.getFactory().createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+
+    /**
+     * Writes the next chunk of the local changes, straight from the database cursor:
+     * {"revlog": [[...], ...], "cards": ..., "notes": ..., "done": bool}
+     * @param maxRows The maximal number of rows of the chunk
+     * @param maxBytes The chunk ends after the first row reaching this size, approximately
+     * @return Whether it is the last chunk
+     */
+    @VisibleForTesting
+    boolean writeChunk(@NonNull JsonGenerator out, int maxRows, long maxBytes) throws IOException {
+        out.writeStartObject();
+        int rows = 0;
+        long bytes = 0;
+        boolean full = false;
+        while (!mTablesLeft.isEmpty() && !full) {
             String curTable = mTablesLeft.getFirst();
             if (mCursor == null) {
                 mCursor = cursorForTable(curTable);
             }
-            colTypes = columnTypesForQuery(curTable);
-            JSONArray rows = new JSONArray();
+            List<Integer> colTypes = columnTypesForQuery(curTable);
             int count = mCursor.getColumnCount();
             int fetched = 0;
-            while (mCursor.moveToNext()) {
-                JSONArray r = new JSONArray();
+            out.writeArrayFieldStart(curTable);
+            while (!full && mCursor.moveToNext()) {
+                out.writeStartArray();
                 for (int i = 0; i < count; i++) {
                     switch (colTypes.get(i)) {
                     case TYPE_STRING:
-                        r.put(mCursor.getString(i));
+                        String value = mCursor.getString(i);
+                        out.writeString(value);
+                        bytes += value == null ? 4 : value.length() + 3;
                         break;
                     case TYPE_FLOAT:
-                        r.put(mCursor.getDouble(i));
+                        out.writeNumber(mCursor.getDouble(i));
+                        bytes += 8;
                         break;
                     case TYPE_INTEGER:
-                        r.put(mCursor.getLong(i));
+                        out.writeNumber(mCursor.getLong(i));
+                        bytes += 8;
                         break;
                     }
                 }
-                rows.put(r);
-                if (++fetched == lim) {
-                    break;
-                }
+                out.writeEndArray();
+                fetched++;
+                full = ++rows >= maxRows || bytes >= maxBytes;
             }
-            if (fetched != lim) {
+            out.writeEndArray();
+            mCol.log("client chunk", curTable, fetched);
+            if (!full) {
                 // table is empty
                 mTablesLeft.removeFirst();
                 mCursor.close();
@@ -608,26 +710,49 @@ public class Syncer {
                     mCol.getDb().execute("UPDATE " + curTable + " SET usn=? WHERE usn=-1", mMaxUsn);
                 }
             }
-            buf.put(curTable, rows);
-            lim -= fetched;
         }
-        if (mTablesLeft.isEmpty()) {
-            buf.put("done", true);
-        }
-        return buf;
+        boolean done = mTablesLeft.isEmpty();
+        out.writeBooleanField("done", done);
+        out.writeEndObject();
+        return done;
     }
 
 
-    public void applyChunk(JSONObject chunk) {
-        if (chunk.has("revlog")) {
-            mergeRevlog(chunk.getJSONArray("revlog"));
+    /**
+     * Reads a chunk of the server and writes each row to the database as soon as it is parsed.
+     * @return Whether it is the last chunk
+     */
+    @VisibleForTesting
+    boolean applyChunk(@NonNull JsonParser in) throws IOException {
+        if (in.nextToken() != JsonToken.START_OBJECT) {
+            throw new JSONException("Chunk is not an object: " + in.currentToken());
         }
-        if (chunk.has("cards")) {
-            mergeCards(chunk.getJSONArray("cards"));
+        Boolean done = null;
+        while (in.nextToken() == JsonToken.FIELD_NAME) {
+            String key = in.getCurrentName();
+            in.nextToken();
+            switch (key) {
+                case "done":
+                    done = in.getBooleanValue();
+                    break;
+                case "revlog":
+                    mergeRevlog(in);
+                    break;
+                case "cards":
+                    mergeCards(in);
+                    break;
+                case "notes":
+                    mergeNotes(in);
+                    break;
+                default:
+                    in.skipChildren();
+                    break;
+            }
         }
-        if (chunk.has("notes")) {
-            mergeNotes(chunk.getJSONArray("notes"));
+        if (done == null) {
+            throw new JSONException("Chunk has no done value");
         }
+        return done;
     }
 
 
@@ -845,62 +970,115 @@ public class Syncer {
      * Cards/notes/revlog ********************************************************************
      */
 
-    private void mergeRevlog(JSONArray logs) {
-        for (JSONArray log: logs.jsonArrayIterable()) {
-            try {
-                mCol.getDb().execute("INSERT OR IGNORE INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
-                        Utils.jsonArray2Objects(log));
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+    private void mergeRevlog(@NonNull JsonParser logs) throws IOException {
+        requireTable(logs, "revlog");
+        Object[] log = new Object[9];
+        int received = 0;
+        try (DB.BulkStatement insert = mCol.getDb().bulkStatement("INSERT OR IGNORE INTO revlog VALUES (?,?,?,?,?,?,?,?,?)")) {
+            while (readRow(logs, log)) {
+                insert.execute(log);
+                received++;
             }
         }
-
+        mCol.log("revlog", received);
     }
 
 
-    private ArrayList<Object[]> newerRows(JSONArray data, String table, int modIdx) {
-        long[] ids = new long[data.length()];
-        for (int i = 0; i < data.length(); i++) {
-            ids[i] = data.getJSONArray(i).getLong(0);
-        }
+    /**
+     * Writes the rows of the array of a table which are newer than the local changes, i.e. whose local row was not
+     * modified since the last sync or has an older modification time.
+     * @param insert Replaces a row of the table
+     * @return The ids of the rows written
+     */
+    @NonNull
+    private List<Long> mergeNewerRows(@NonNull JsonParser data, @NonNull String table, int columns, int modIdx,
+                                      @NonNull String insert) throws IOException {
+        requireTable(data, table);
         Pair<String, Object[]> limAndArg = usnLim();
-        Map<Long, Long> lmods = new HashMap<>(mCol
-                    .getDb()
-                    .queryScalar(
-                            "SELECT count() FROM " + table + " WHERE id IN " + Utils.ids2str(ids) + " AND "
-                                    +  limAndArg.first, limAndArg.second));
-        try (Cursor cur = mCol
-                    .getDb()
-                    .query(
-                            "SELECT id, mod FROM " + table + " WHERE id IN " + Utils.ids2str(ids) + " AND "
-                                    +  limAndArg.first, limAndArg.second)) {
-            while (cur.moveToNext()) {
-                lmods.put(cur.getLong(0), cur.getLong(1));
-            }
+        // -1 if there is no local change, which is older than any row
+        String localMod = "SELECT coalesce((SELECT mod FROM " + table + " WHERE id = ? AND " + limAndArg.first + "), -1)";
+        Object[] localModArgs = new Object[limAndArg.second == null ? 1 : 1 + limAndArg.second.length];
+        if (limAndArg.second != null) {
+            System.arraycopy(limAndArg.second, 0, localModArgs, 1, limAndArg.second.length);
         }
-        ArrayList<Object[]> update = new ArrayList<>(data.length());
-        for (JSONArray r: data.jsonArrayIterable()) {
-            if (!lmods.containsKey(r.getLong(0)) || lmods.get(r.getLong(0)) < r.getLong(modIdx)) {
-                update.add(Utils.jsonArray2Objects(r));
+        DB db = mCol.getDb();
+        List<Long> updated = new ArrayList<>();
+        Object[] row = new Object[columns];
+        int received = 0;
+        try (DB.BulkStatement statement = db.bulkStatement(insert)) {
+            while (readRow(data, row)) {
+                received++;
+                localModArgs[0] = row[0];
+                if (db.queryLongScalar(localMod, localModArgs) < ((Number) row[modIdx]).longValue()) {
+                    statement.execute(row);
+                    updated.add(((Number) row[0]).longValue());
+                }
             }
         }
-        mCol.log(table, data);
-        return update;
+        mCol.log(table, received, updated.size());
+        return updated;
+    }
+
+
+    private void mergeCards(@NonNull JsonParser cards) throws IOException {
+        mergeNewerRows(cards, "cards", 18, 4, "INSERT OR REPLACE INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+    }
+
+
+    private void mergeNotes(@NonNull JsonParser notes) throws IOException {
+        List<Long> nids = mergeNewerRows(notes, "notes", 11, 4, "INSERT OR REPLACE INTO notes VALUES (?,?,?,?,?,?,?,?,?,?,?)");
+        if (!nids.isEmpty()) {
+            mCol.updateFieldCache(nids);
+        }
     }
 
 
-    private void mergeCards(JSONArray cards) {
-        for (Object[] r : newerRows(cards, "cards", 4)) {
-            mCol.getDb().execute("INSERT OR REPLACE INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", r);
+    private static void requireTable(@NonNull JsonParser in, @NonNull String table) {
+        if (in.currentToken() != JsonToken.START_ARRAY) {
+            throw new JSONException("Rows of " + table + " are not an array: " + in.currentToken());
         }
     }
 
 
-    private void mergeNotes(JSONArray notes) {
-        for (Object[] n : newerRows(notes, "notes", 4)) {
-            mCol.getDb().execute("INSERT OR REPLACE INTO notes VALUES (?,?,?,?,?,?,?,?,?,?,?)", n);
-            mCol.updateFieldCache(new long[]{((Number) n[0]).longValue()});
+    /**
+     * Reads the next row of the array of a table.
+     * @param row Receives the values of the row, which has exactly its length
+     * @return Whether a row was read. False at the end of the array
+     */
+    private static boolean readRow(@NonNull JsonParser in, @NonNull Object[] row) throws IOException {
+        JsonToken token = in.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            return false;
+        }
+        if (token != JsonToken.START_ARRAY) {
+            throw new JSONException("Row is not an array: " + token);
+        }
+        int i = 0;
+        while ((token = in.nextToken()) != JsonToken.END_ARRAY) {
+            if (i == row.length) {
+                throw new JSONException("Row has more than " + row.length + " values");
+            }
+            switch (token) {
+                case VALUE_NUMBER_INT:
+                    row[i++] = in.getLongValue();
+                    break;
+                case VALUE_NUMBER_FLOAT:
+                    row[i++] = in.getDoubleValue();
+                    break;
+                case VALUE_STRING:
+                    row[i++] = in.getText();
+                    break;
+                case VALUE_NULL:
+                    row[i++] = null;
+                    break;
+                default:
+                    throw new JSONException("Unexpected value in row: " + token);
+            }
+        }
+        if (i != row.length) {
+            throw new JSONException("Row has " + i + " values instead of " + row.length);
         }
+        return true;
     }
 
 
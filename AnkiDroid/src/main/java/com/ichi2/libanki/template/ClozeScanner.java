@@ -0,0 +1,232 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.template;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.ichi2.libanki.template.TemplateFilters.CLOZE_DELETION_REPLACEMENT;
+import static com.ichi2.libanki.template.TemplateFilters.CLOZE_REG;
+
+/**
+ * The cloze deletions of a field, found in one pass over its text. A note with many cloze deletions has as many cards,
+ * which all render the same field: the text of each card is then built from the deletions, instead of running the
+ * regexes of {@link TemplateFilters#clozeTextByRegex} over the field again. The text of each ord and side is cached.
+ * <p>
+ * The result is the same as the one of the regexes, which are still used when it could differ: when a cloze deletion
+ * contains "{{", or when the text built still contains the start of a cloze deletion.
+ */
+final class ClozeScanner {
+    /** Any cloze deletion. Group 1 is c or C, group 2 its number, group 3 its text and group 5 its hint. */
+    private static final Pattern fCloze = Pattern.compile(String.format(Locale.US, CLOZE_REG, "(\\d+)"));
+    private static final Pattern fClozeStart = Pattern.compile("(?i)\\{\\{c\\d+::");
+    private static final Pattern fNumber = Pattern.compile("\\d+");
+    private static final Pattern fMathjax = Pattern.compile("(\\\\[(\\[])|(\\\\[])])");
+
+    private static final byte NO_MATHJAX = 0;
+    private static final byte MATHJAX_OPENED = 1;
+    private static final byte MATHJAX_CLOSED = 2;
+
+    /**
+     * The scanned fields. The values don't reference their key, so that an entry is removed with the note it belongs
+     * to.
+     */
+    private static final WeakHashMap<String, ClozeScanner> sScanned = new WeakHashMap<>();
+
+    /** The text before each cloze deletion, and after the last one */
+    private final String[] mTexts;
+    private final String[] mOrds;
+    /** Whether the cloze deletion starts with {{C, which is never wrapped in a span */
+    private final boolean[] mUpperCase;
+    private final String[] mContents;
+    private final String[] mHints;
+    /** How the text before each cloze deletion changes whether it is in MathJax */
+    private final byte[] mTextMathjax;
+    /** How each cloze deletion changes whether it is in MathJax, when it is not the one of the card */
+    private final byte[] mClozeMathjax;
+    /** Whether a cloze deletion contains another one, which only the regexes handle */
+    private final boolean mNested;
+    /** The text of each side and ord already built, by side followed by ord */
+    private final Map<String, String> mClozeTexts = new HashMap<>();
+
+
+    @NonNull
+    static ClozeScanner of(@NonNull String txt) {
+        synchronized (sScanned) {
+            ClozeScanner scanner = sScanned.get(txt);
+            if (scanner != null) {
+                return scanner;
+            }
+        }
+        ClozeScanner scanner = new ClozeScanner(txt);
+        synchronized (sScanned) {
+            sScanned.put(txt, scanner);
+        }
+        return scanner;
+    }
+
+
+    private ClozeScanner(@NonNull String txt) {
+        List<String> texts = new ArrayList<>();
+        List<String> ords = new ArrayList<>();
+        List<Boolean> upperCase = new ArrayList<>();
+        List<String> contents = new ArrayList<>();
+        List<String> hints = new ArrayList<>();
+        List<Byte> textMathjax = new ArrayList<>();
+        List<Byte> clozeMathjax = new ArrayList<>();
+        boolean nested = false;
+        boolean mayHaveMathjax = txt.indexOf('\\') >= 0;
+        Matcher m = fCloze.matcher(txt);
+        int previousEnd = 0;
+        while (m.find()) {
+            texts.add(txt.substring(previousEnd, m.start()));
+            textMathjax.add(mayHaveMathjax ? mathjax(txt, previousEnd, m.start()) : NO_MATHJAX);
+            ords.add(m.group(2));
+            upperCase.add(!"c".equals(m.group(1)));
+            contents.add(m.group(3));
+            hints.add(m.group(5));
+            clozeMathjax.add(mayHaveMathjax ? mathjax(txt, m.start(), m.end()) : NO_MATHJAX);
+            nested |= containsOpening(txt, m.start() + 2, m.end());
+            previousEnd = m.end();
+        }
+        // without cloze deletion, the text is not needed, and its substring would be the key of the cache
+        texts.add(previousEnd == 0 ? "" : txt.substring(previousEnd));
+
+        int count = ords.size();
+        mTexts = texts.toArray(new String[count + 1]);
+        mOrds = ords.toArray(new String[count]);
+        mContents = contents.toArray(new String[count]);
+        mHints = hints.toArray(new String[count]);
+        mUpperCase = new boolean[count];
+        mTextMathjax = new byte[count];
+        mClozeMathjax = new byte[count];
+        for (int i = 0; i < count; i++) {
+            mUpperCase[i] = upperCase.get(i);
+            mTextMathjax[i] = textMathjax.get(i);
+            mClozeMathjax[i] = clozeMathjax.get(i);
+        }
+        mNested = nested;
+    }
+
+
+    /**
+     * @param ord The number of the cloze deletion of the card
+     * @param type q for the question, a for the answer
+     * @return The text of the field on this side of the card, as {@link TemplateFilters#clozeTextByRegex}, or null if
+     * only those regexes can compute it.
+     */
+    @Nullable
+    String clozeText(@NonNull String ord, char type) {
+        if (mNested || !fNumber.matcher(ord).matches()) {
+            return null;
+        }
+        String key = type + ord;
+        synchronized (mClozeTexts) {
+            if (mClozeTexts.containsKey(key)) {
+                return mClozeTexts.get(key);
+            }
+        }
+        String text = build(ord, type);
+        synchronized (mClozeTexts) {
+            mClozeTexts.put(key, text);
+        }
+        return text;
+    }
+
+
+    @Nullable
+    private String build(@NonNull String ord, char type) {
+        StringBuilder builder = new StringBuilder();
+        boolean found = false;
+        boolean inMathjax = false;
+        for (int i = 0; i < mOrds.length; i++) {
+            builder.append(mTexts[i]);
+            inMathjax = inMathjax(mTextMathjax[i], inMathjax);
+            if (!ord.equals(mOrds[i])) {
+                // display other clozes normally
+                builder.append(mContents[i]);
+                inMathjax = inMathjax(mClozeMathjax[i], inMathjax);
+                continue;
+            }
+            found = true;
+            String buf;
+            if (type == 'q') {
+                buf = TextUtils.isEmpty(mHints[i]) ? CLOZE_DELETION_REPLACEMENT : "[" + mHints[i] + "]";
+            } else {
+                buf = mContents[i];
+            }
+            // a span would interfere with MathJax
+            if (!mUpperCase[i] && !inMathjax) {
+                builder.append("<span class=cloze>").append(buf).append("</span>");
+            } else {
+                builder.append(buf);
+            }
+        }
+        if (!found) {
+            return "";
+        }
+        builder.append(mTexts[mOrds.length]);
+        // The regexes would also replace the cloze deletions made of the text around the replaced ones
+        if (fClozeStart.matcher(builder).find()) {
+            return null;
+        }
+        return builder.toString();
+    }
+
+
+    /** Whether MathJax is opened or closed last between start and end */
+    private static byte mathjax(@NonNull String txt, int start, int end) {
+        byte last = NO_MATHJAX;
+        Matcher m = fMathjax.matcher(txt);
+        m.region(start, end);
+        while (m.find()) {
+            last = m.group(1) != null ? MATHJAX_OPENED : MATHJAX_CLOSED;
+        }
+        return last;
+    }
+
+
+    private static boolean inMathjax(byte change, boolean inMathjax) {
+        switch (change) {
+            case MATHJAX_OPENED:
+                return true;
+            case MATHJAX_CLOSED:
+                return false;
+            default:
+                return inMathjax;
+        }
+    }
+
+
+    private static boolean containsOpening(@NonNull String txt, int start, int end) {
+        for (int i = start; i < end - 1; i++) {
+            if (txt.charAt(i) == '{' && txt.charAt(i + 1) == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -11,11 +11,19 @@ import androidx.annotation.Nullable;
 public class Conditional extends ParsedNode {
     private final String mKey;
     private final ParsedNode mChild;
+    private final int mSlot;
 
 
     public Conditional(String key, ParsedNode child) {
+        this(key, child, -1);
+    }
+
+
+    /** @param slot The slot of the field in the {@link RenderContext}, -1 if unresolved or unknown */
+    private Conditional(String key, ParsedNode child, int slot) {
         this.mKey = key;
         this.mChild = child;
+        this.mSlot = slot;
     }
 
 
@@ -34,6 +42,21 @@ public class Conditional extends ParsedNode {
         }
     }
 
+
+    @NonNull
+    @Override
+    public ParsedNode resolve(@NonNull Map<String, Integer> slots) {
+        return new Conditional(mKey, mChild.resolve(slots), slot(slots, mKey));
+    }
+
+
+    @Override
+    public void render_into(@NonNull RenderContext fields, @NonNull StringBuilder builder) throws TemplateError {
+        if (fields.isNonEmpty(mSlot)) {
+            mChild.render_into(fields, builder);
+        }
+    }
+
     @Override
     public boolean equals(@Nullable Object obj) {
         if (! (obj instanceof Conditional)) {
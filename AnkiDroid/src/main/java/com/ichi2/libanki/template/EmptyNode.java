@@ -34,6 +34,18 @@ public class EmptyNode extends ParsedNode {
     }
 
 
+    @NonNull
+    @Override
+    public ParsedNode resolve(@NonNull Map<String, Integer> slots) {
+        return this;
+    }
+
+
+    @Override
+    public void render_into(@NonNull RenderContext fields, @NonNull StringBuilder builder) {
+    }
+
+
     @NonNull
     @Override
     public String toString() {
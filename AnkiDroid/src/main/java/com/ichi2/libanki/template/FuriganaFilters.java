@@ -34,6 +34,9 @@ public class FuriganaFilters {
     }
 
     public static String kanjiFilter(String txt) {
+        if (txt.indexOf('[') < 0) {
+            return txt;
+        }
         Matcher m = r.matcher(txt);
         StringBuffer sb = new StringBuffer();
         while (m.find()) {
@@ -44,6 +47,9 @@ public class FuriganaFilters {
     }
 
     public static String kanaFilter(String txt) {
+        if (txt.indexOf('[') < 0) {
+            return txt;
+        }
         Matcher m = r.matcher(txt);
         StringBuffer sb = new StringBuffer();
         while (m.find()) {
@@ -54,6 +60,9 @@ public class FuriganaFilters {
     }
 
     public static String furiganaFilter(String txt) {
+        if (txt.indexOf('[') < 0) {
+            return txt;
+        }
         Matcher m = r.matcher(txt);
         StringBuffer sb = new StringBuffer();
         while (m.find()) {
@@ -27,11 +27,19 @@ public class NegatedConditional extends ParsedNode {
 
     private final String mKey;
     private final ParsedNode mChild;
+    private final int mSlot;
 
 
     public NegatedConditional(String mKey, ParsedNode child) {
-        this.mKey = mKey;
+        this(mKey, child, -1);
+    }
+
+
+    /** @param slot The slot of the field in the {@link RenderContext}, -1 if unresolved or unknown */
+    private NegatedConditional(String key, ParsedNode child, int slot) {
+        this.mKey = key;
         this.mChild = child;
+        this.mSlot = slot;
     }
 
     @Override
@@ -47,6 +55,21 @@ public class NegatedConditional extends ParsedNode {
         }
     }
 
+
+    @NonNull
+    @Override
+    public ParsedNode resolve(@NonNull Map<String, Integer> slots) {
+        return new NegatedConditional(mKey, mChild.resolve(slots), slot(slots, mKey));
+    }
+
+
+    @Override
+    public void render_into(@NonNull RenderContext fields, @NonNull StringBuilder builder) throws TemplateError {
+        if (!fields.isNonEmpty(mSlot)) {
+            mChild.render_into(fields, builder);
+        }
+    }
+
     @Override
     public boolean equals(@Nullable Object obj) {
         if (! (obj instanceof NegatedConditional)) {
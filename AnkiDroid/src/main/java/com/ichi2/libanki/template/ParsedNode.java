@@ -64,9 +64,29 @@ public abstract class ParsedNode {
 
 
     /**
-     * Associate to each template its node, or the error it generates
+     * @param slots The slot of each field in the {@link RenderContext}
+     * @return The same tree, whose fields are resolved to their slots, so that rendering does not look them up. The
+     * unknown fields are resolved to -1.
      */
-    private static WeakHashMap<String, Pair<ParsedNode, TemplateError>> parse_inner_cache = new WeakHashMap<>();
+    public abstract @NonNull ParsedNode resolve(@NonNull Map<String, Integer> slots);
+
+
+    /** Same as {@link #render_into(Map, Set, StringBuilder)}, for a tree returned by {@link #resolve} */
+    public abstract void render_into(@NonNull RenderContext fields, @NonNull StringBuilder builder) throws TemplateError;
+
+
+    /** @return The slot of the field, -1 if there is no such field */
+    protected static int slot(@NonNull Map<String, Integer> slots, @NonNull String key) {
+        Integer slot = slots.get(key);
+        return slot == null ? -1 : slot;
+    }
+
+
+    /**
+     * Associate to each template its node, or the error it generates. Cards are rendered by several threads at once,
+     * so it is only accessed while synchronized on it.
+     */
+    private static final WeakHashMap<String, Pair<ParsedNode, TemplateError>> parse_inner_cache = new WeakHashMap<>();
 
     /**
      * @param template A question or answer template
@@ -74,17 +94,21 @@ public abstract class ParsedNode {
      * @throws TemplateError if the template is not valid
      */
     public static @NonNull ParsedNode parse_inner(@NonNull String template) throws TemplateError{
-        if (!parse_inner_cache.containsKey(template)) {
-            Pair<ParsedNode, TemplateError> res;
+        Pair<ParsedNode, TemplateError> res;
+        synchronized (parse_inner_cache) {
+            res = parse_inner_cache.get(template);
+        }
+        if (res == null) {
             try {
                 ParsedNode node = parse_inner(new Tokenizer(template));
                 res = new Pair<>(node, null);
             } catch (TemplateError er) {
                 res = new Pair<>(null, er);
             }
-            parse_inner_cache.put(template, res);
+            synchronized (parse_inner_cache) {
+                parse_inner_cache.put(template, res);
+            }
         }
-        Pair<ParsedNode, TemplateError> res = parse_inner_cache.get(template);
         if (res.first != null) {
             return res.first;
         }
@@ -160,11 +184,30 @@ public abstract class ParsedNode {
             render_into(fields, Utils.nonEmptyFields(fields), builder);
             return builder.toString();
         } catch (TemplateError er) {
-            Timber.w(er);
-            String side = (question)? context.getString(R.string.card_template_editor_front): context.getString(R.string.card_template_editor_back);
-            String explanation = context.getString(R.string.has_a_problem, side, er.message(context));
-            String more_explanation = "<a href=\""+ TEMPLATE_ERROR_LINK+"\">" + context.getString(R.string.more_information) + "</a>";
-            return explanation + "<br/>" + more_explanation;
+            return errorMessage(er, question, context);
         }
     }
+
+
+    /**
+     * Appends the rendering of a tree returned by {@link #resolve} to builder, or the explanation of the error instead.
+     */
+    public void render(@NonNull RenderContext fields, boolean question, @NonNull Context context, @NonNull StringBuilder builder) {
+        int start = builder.length();
+        try {
+            render_into(fields, builder);
+        } catch (TemplateError er) {
+            builder.setLength(start);
+            builder.append(errorMessage(er, question, context));
+        }
+    }
+
+
+    private static @NonNull String errorMessage(@NonNull TemplateError er, boolean question, @NonNull Context context) {
+        Timber.w(er);
+        String side = (question)? context.getString(R.string.card_template_editor_front): context.getString(R.string.card_template_editor_back);
+        String explanation = context.getString(R.string.has_a_problem, side, er.message(context));
+        String more_explanation = "<a href=\""+ TEMPLATE_ERROR_LINK+"\">" + context.getString(R.string.more_information) + "</a>";
+        return explanation + "<br/>" + more_explanation;
+    }
 }
@@ -75,6 +75,26 @@ public class ParsedNodes extends ParsedNode {
     }
 
 
+    @NonNull
+    @Override
+    public ParsedNode resolve(@NonNull Map<String, Integer> slots) {
+        List<ParsedNode> children = new ArrayList<>(mChildren.size());
+        for (ParsedNode child: mChildren) {
+            children.add(child.resolve(slots));
+        }
+        return new ParsedNodes(children);
+    }
+
+
+    @Override
+    public void render_into(@NonNull RenderContext fields, @NonNull StringBuilder builder) throws TemplateError {
+        // not an iterator, which would be allocated for each rendering
+        for (int i = 0; i < mChildren.size(); i++) {
+            mChildren.get(i).render_into(fields, builder);
+        }
+    }
+
+
     @Override
     public boolean equals(@Nullable Object obj) {
         if (! (obj instanceof ParsedNodes)) {
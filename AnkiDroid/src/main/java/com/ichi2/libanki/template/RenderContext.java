@@ -0,0 +1,87 @@
+/****************************************************************************************
+ * This program is free software; you can redistribute it and/or modify it under        *
+ * the terms of the GNU General Public License as published by the Free Software        *
+ * Foundation; either version 3 of the License, or (at your option) any later           *
+ * version.                                                                             *
+ *                                                                                      *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY      *
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A      *
+ * PARTICULAR PURPOSE. See the GNU General Public License for more details.             *
+ *                                                                                      *
+ * You should have received a copy of the GNU General Public License along with         *
+ * this program.  If not, see <http://www.gnu.org/licenses/>.                           *
+ ****************************************************************************************/
+
+package com.ichi2.libanki.template;
+
+import android.text.TextUtils;
+
+import com.ichi2.libanki.Utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The values of the fields, for the rendering of a tree resolved by {@link ParsedNode#resolve}. The slots are the fields
+ * of the note, by ord, followed by the fields describing the card. The fields of the note are the ones of the note, not
+ * a copy.
+ * <p>
+ * Whether a field is empty is only computed when a conditional needs it, as it strips the HTML of the field.
+ */
+public final class RenderContext {
+    private static final byte UNKNOWN = 0;
+    private static final byte EMPTY = 1;
+    private static final byte NON_EMPTY = 2;
+
+    private final String[] mNoteFields;
+    private final int mFieldCount;
+    private final String[] mCardFields;
+    private final byte[] mEmptiness;
+
+
+    /**
+     * @param noteFields The fields of the note
+     * @param fieldCount The number of fields of the model, which is the first slot of the fields of the card
+     * @param cardFieldCount The number of fields of the card
+     */
+    public RenderContext(@NonNull String[] noteFields, int fieldCount, int cardFieldCount) {
+        mNoteFields = noteFields;
+        mFieldCount = fieldCount;
+        mCardFields = new String[cardFieldCount];
+        mEmptiness = new byte[fieldCount + cardFieldCount];
+    }
+
+
+    /** Sets a field of the card */
+    public void set(int slot, @Nullable String value) {
+        mCardFields[slot - mFieldCount] = value;
+        mEmptiness[slot] = UNKNOWN;
+    }
+
+
+    /** @return The value of the field, or null if the slot is not a field, -1 for the unknown fields */
+    @Nullable
+    public String get(int slot) {
+        if (slot < 0) {
+            return null;
+        }
+        if (slot < mFieldCount) {
+            return slot < mNoteFields.length ? mNoteFields[slot] : null;
+        }
+        return mCardFields[slot - mFieldCount];
+    }
+
+
+    /** Same as the membership in {@link Utils#nonEmptyFields} */
+    public boolean isNonEmpty(int slot) {
+        if (slot < 0) {
+            return false;
+        }
+        if (mEmptiness[slot] == UNKNOWN) {
+            String value = get(slot);
+            boolean nonEmpty = value != null && !TextUtils.isEmpty(Utils.stripHTMLMedia(value).trim());
+            mEmptiness[slot] = nonEmpty ? NON_EMPTY : EMPTY;
+        }
+        return mEmptiness[slot] == NON_EMPTY;
+    }
+}
@@ -44,11 +44,20 @@ public class Replacement extends ParsedNode {
      * The entire content between {{ and }}
      */
     private final String mTag;
+    /**
+     * The slot of the field in the {@link RenderContext}, -1 if unresolved or unknown
+     */
+    private final int mSlot;
 
     public Replacement(String key, List<String> filters, String tag) {
+        this(key, filters, tag, -1);
+    }
+
+    private Replacement(String key, List<String> filters, String tag, int slot) {
         mKey = key;
         mFilters = filters;
         mTag = tag;
+        mSlot = slot;
     }
 
     // Only used for test
@@ -94,6 +103,35 @@ public class Replacement extends ParsedNode {
         builder.append(txt);
     }
 
+
+    @NonNull
+    @Override
+    public ParsedNode resolve(@NonNull Map<String, Integer> slots) {
+        return new Replacement(mKey, mFilters, mTag, slot(slots, mKey));
+    }
+
+
+    @Override
+    public void render_into(@NonNull RenderContext fields, @NonNull StringBuilder builder) throws TemplateError.FieldNotFound {
+        String txt = fields.get(mSlot);
+        if (txt == null) {
+            if (mKey.trim().isEmpty() && !mFilters.isEmpty()) {
+                txt = "";
+            } else {
+                throw new TemplateError.FieldNotFound(mFilters, mKey);
+            }
+        }
+        if (mFilters.isEmpty()) {
+            // the most frequent case, without any intermediate string
+            builder.append(txt);
+            return;
+        }
+        for (int i = 0; i < mFilters.size(); i++) {
+            txt = TemplateFilters.apply_filter(txt, mFilters.get(i), mKey, mTag);
+        }
+        builder.append(txt);
+    }
+
     @Override
     public boolean equals(@Nullable Object obj) {
         if (! (obj instanceof Replacement)) {
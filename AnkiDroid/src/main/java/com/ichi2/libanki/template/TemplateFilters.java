@@ -23,13 +23,16 @@ import com.ichi2.anki.AnkiDroidApp;
 import com.ichi2.anki.R;
 import com.ichi2.libanki.Utils;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import timber.log.Timber;
 
 /**
@@ -40,6 +43,11 @@ public class TemplateFilters {
     public static final String CLOZE_DELETION_REPLACEMENT = "[...]";
     private static final Pattern fHookFieldMod = Pattern.compile("^(.*?)(?:\\((.*)\\))?$");
     public static final String CLOZE_REG = "(?si)\\{\\{(c)%s::(.*?)(::(.*?))?\\}\\}";
+    private static final Pattern fAnyCloze = Pattern.compile(String.format(Locale.US, CLOZE_REG, "\\d+"));
+
+    /** The regexes of the cloze deletions of each ord, and of the MathJax around them. There are few ords. */
+    private static final Map<String, Pattern> sClozePatterns = new HashMap<>();
+    private static final Map<String, Pattern> sMathjaxPatterns = new HashMap<>();
 
 
     /**
@@ -138,12 +146,20 @@ public class TemplateFilters {
 
 
     private static @NonNull String clozeText(@NonNull String txt, @NonNull String ord, char type) {
-        if (!Pattern.compile(String.format(Locale.US, CLOZE_REG, ord)).matcher(txt).find()) {
+        String text = ClozeScanner.of(txt).clozeText(ord, type);
+        return text != null ? text : clozeTextByRegex(txt, ord, type);
+    }
+
+
+    @VisibleForTesting
+    static @NonNull String clozeTextByRegex(@NonNull String txt, @NonNull String ord, char type) {
+        Pattern clozePattern = clozePattern(ord);
+        if (!clozePattern.matcher(txt).find()) {
             return "";
         }
 
         txt = removeFormattingFromMathjax(txt, ord);
-        Matcher m = Pattern.compile(String.format(Locale.US, CLOZE_REG, ord)).matcher(txt);
+        Matcher m = clozePattern.matcher(txt);
 
         StringBuffer repl = new StringBuffer();
         while (m.find()) {
@@ -167,7 +183,39 @@ public class TemplateFilters {
         }
         txt = m.appendTail(repl).toString();
         // and display other clozes normally
-        return txt.replaceAll(String.format(Locale.US, CLOZE_REG, "\\d+"), "$2");
+        return fAnyCloze.matcher(txt).replaceAll("$2");
+    }
+
+
+    private static @NonNull Pattern clozePattern(@NonNull String ord) {
+        synchronized (sClozePatterns) {
+            Pattern pattern = sClozePatterns.get(ord);
+            if (pattern == null) {
+                pattern = Pattern.compile(String.format(Locale.US, CLOZE_REG, ord));
+                sClozePatterns.put(ord, pattern);
+            }
+            return pattern;
+        }
+    }
+
+
+    private static @NonNull Pattern mathjaxPattern(@NonNull String ord) {
+        synchronized (sMathjaxPatterns) {
+            Pattern pattern = sMathjaxPatterns.get(ord);
+            if (pattern == null) {
+                String creg = CLOZE_REG.replace("(?si)", "");
+                // The following regex matches one of 3 things, noted below:
+                String regex = "(?si)" +
+                        "(\\\\[(\\[])|" +  // group 1, MathJax opening
+                        "(\\\\[])])|" +  // group 2, MathJax close
+                        "(" +              // group 3, Cloze deletion number `ord`
+                        String.format(Locale.US, creg, ord) +
+                        ")";
+                pattern = Pattern.compile(regex);
+                sMathjaxPatterns.put(ord, pattern);
+            }
+            return pattern;
+        }
     }
 
     /**
@@ -181,7 +229,6 @@ public class TemplateFilters {
      * Cloze in a <span>".
      */
     public static @NonNull String removeFormattingFromMathjax(@NonNull String txt, @NonNull String ord) {
-        String creg = CLOZE_REG.replace("(?si)", "");
         // Scan the string left to right.
         // After a MathJax opening - \( or \[ - flip in_mathjax to True.
         // After a MathJax closing - \) or \] - flip in_mathjax to False.
@@ -193,15 +240,7 @@ public class TemplateFilters {
         // flags in middle of expression deprecated
         boolean in_mathjax = false;
 
-        // The following regex matches one of 3 things, noted below:
-        String regex = "(?si)" +
-                "(\\\\[(\\[])|" +  // group 1, MathJax opening
-                "(\\\\[])])|" +  // group 2, MathJax close
-                "(" +              // group 3, Cloze deletion number `ord`
-                String.format(Locale.US, creg, ord) +
-                ")";
-
-        Matcher m = Pattern.compile(regex).matcher(txt);
+        Matcher m = mathjaxPattern(ord).matcher(txt);
 
         StringBuffer repl = new StringBuffer();
         while (m.find()) {
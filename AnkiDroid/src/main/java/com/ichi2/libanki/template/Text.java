@@ -43,6 +43,19 @@ public class Text extends ParsedNode {
     }
 
 
+    @NonNull
+    @Override
+    public ParsedNode resolve(@NonNull Map<String, Integer> slots) {
+        return this;
+    }
+
+
+    @Override
+    public void render_into(@NonNull RenderContext fields, @NonNull StringBuilder builder) {
+        builder.append(mText);
+    }
+
+
     @Override
     public boolean equals(@Nullable Object obj) {
         if (! (obj instanceof Text)) {
@@ -26,6 +26,7 @@ import android.util.Pair;
 import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteQuery;
@@ -38,6 +39,22 @@ public class DatabaseChangeDecorator implements SupportSQLiteDatabase {
 
     private final SupportSQLiteDatabase mWrapped;
 
+    /**
+     * Number of statements which may have modified the database through this connection.
+     * Only ever increases; callers compare two values to know whether something may have been written in between.
+     */
+    private final AtomicLong mModificationCount = new AtomicLong();
+
+    /**
+     * Number of nested transactions currently open. Only accessed by the thread holding the transaction, as any
+     * other thread blocks in beginTransaction until it ends.
+     */
+    private int mTransactionDepth = 0;
+    /** Whether the innermost open transaction was marked successful */
+    private boolean mTransactionSuccessful = false;
+    /** Whether a nested transaction ended without success, so that the outermost one is rolled back */
+    private boolean mTransactionFailed = false;
+
 
     public DatabaseChangeDecorator(SupportSQLiteDatabase wrapped) {
         this.mWrapped = wrapped;
@@ -47,6 +64,12 @@ public class DatabaseChangeDecorator implements SupportSQLiteDatabase {
         SyncStatus.markDataAsChanged();
     }
 
+
+    /** @return a counter which is incremented each time a statement which may write is sent to the database */
+    public long getModificationCount() {
+        return mModificationCount.get();
+    }
+
     private boolean needsComplexCheck() {
         // if we're marked in memory, we can assume no changes - this class only sets the mark.
         return !SyncStatus.hasBeenMarkedAsChangedInMemory();
@@ -75,6 +98,7 @@ public class DatabaseChangeDecorator implements SupportSQLiteDatabase {
 
     public SupportSQLiteStatement compileStatement(String sql) {
         SupportSQLiteStatement supportSQLiteStatement = mWrapped.compileStatement(sql);
+        mModificationCount.incrementAndGet();
         checkForChanges(sql); //technically a little hasty - as the statement hasn't been executed.
         return supportSQLiteStatement;
     }
@@ -82,31 +106,62 @@ public class DatabaseChangeDecorator implements SupportSQLiteDatabase {
 
     public void beginTransaction() {
         mWrapped.beginTransaction();
+        onTransactionBegun();
     }
 
 
     public void beginTransactionNonExclusive() {
         mWrapped.beginTransactionNonExclusive();
+        onTransactionBegun();
     }
 
 
     public void beginTransactionWithListener(SQLiteTransactionListener transactionListener) {
         mWrapped.beginTransactionWithListener(transactionListener);
+        onTransactionBegun();
     }
 
 
     public void beginTransactionWithListenerNonExclusive(SQLiteTransactionListener transactionListener) {
         mWrapped.beginTransactionWithListenerNonExclusive(transactionListener);
+        onTransactionBegun();
+    }
+
+
+    private void onTransactionBegun() {
+        mTransactionDepth++;
+        mTransactionSuccessful = false;
     }
 
 
+    /**
+     * A rolled back transaction counts as a modification: a cache may have been marked up to date with data written
+     * inside the transaction, and this data is now gone.
+     */
     public void endTransaction() {
-        mWrapped.endTransaction();
+        boolean rolledBack = false;
+        if (mTransactionDepth > 0) {
+            mTransactionFailed |= !mTransactionSuccessful;
+            mTransactionSuccessful = false;
+            mTransactionDepth--;
+            if (mTransactionDepth == 0) {
+                rolledBack = mTransactionFailed;
+                mTransactionFailed = false;
+            }
+        }
+        try {
+            mWrapped.endTransaction();
+        } finally {
+            if (rolledBack) {
+                mModificationCount.incrementAndGet();
+            }
+        }
     }
 
 
     public void setTransactionSuccessful() {
         mWrapped.setTransactionSuccessful();
+        mTransactionSuccessful = true;
     }
 
 
@@ -182,6 +237,7 @@ public class DatabaseChangeDecorator implements SupportSQLiteDatabase {
 
     public long insert(String table, int conflictAlgorithm, ContentValues values) throws SQLException {
         long insert = mWrapped.insert(table, conflictAlgorithm, values);
+        mModificationCount.incrementAndGet();
         markDataAsChanged();
         return insert;
     }
@@ -189,6 +245,7 @@ public class DatabaseChangeDecorator implements SupportSQLiteDatabase {
 
     public int delete(String table, String whereClause, Object[] whereArgs) {
         int delete = mWrapped.delete(table, whereClause, whereArgs);
+        mModificationCount.incrementAndGet();
         markDataAsChanged();
         return delete;
     }
@@ -196,6 +253,7 @@ public class DatabaseChangeDecorator implements SupportSQLiteDatabase {
 
     public int update(String table, int conflictAlgorithm, ContentValues values, String whereClause, Object[] whereArgs) {
         int update = mWrapped.update(table, conflictAlgorithm, values, whereClause, whereArgs);
+        mModificationCount.incrementAndGet();
         markDataAsChanged();
         return update;
     }
@@ -203,12 +261,14 @@ public class DatabaseChangeDecorator implements SupportSQLiteDatabase {
 
     public void execSQL(String sql) throws SQLException {
         mWrapped.execSQL(sql);
+        mModificationCount.incrementAndGet();
         checkForChanges(sql);
     }
 
 
     public void execSQL(String sql, Object[] bindArgs) throws SQLException {
         mWrapped.execSQL(sql, bindArgs);
+        mModificationCount.incrementAndGet();
         checkForChanges(sql);
     }
 
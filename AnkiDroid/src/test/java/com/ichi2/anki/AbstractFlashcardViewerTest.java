@@ -2,6 +2,8 @@ package com.ichi2.anki;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.webkit.RenderProcessGoneDetail;
+import android.webkit.WebView;
 
 import com.ichi2.anki.cardviewer.ViewerCommand;
 import com.ichi2.libanki.Note;
@@ -25,11 +27,16 @@ import static com.ichi2.anki.AbstractFlashcardViewer.WebViewSignalParserUtils.SI
 import static com.ichi2.anki.AbstractFlashcardViewer.WebViewSignalParserUtils.TYPE_FOCUS;
 import static com.ichi2.anki.AbstractFlashcardViewer.WebViewSignalParserUtils.getSignalFromUrl;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.robolectric.Shadows.shadowOf;
 
 @RunWith(AndroidJUnit4.class)
 public class AbstractFlashcardViewerTest extends RobolectricTest {
@@ -419,6 +426,68 @@ public class AbstractFlashcardViewerTest extends RobolectricTest {
         assertThat(viewer.mAnswered, notNullValue());
     }
 
+    @Test
+    public void nextQuestionIsShownFromTheSpareWebView() throws Exception {
+        NonAbstractFlashcardViewer viewer = getDoubleBufferedViewer();
+        WebView spare = viewer.getSpareWebView();
+        assertThat(spare, notNullValue());
+
+        viewer.executeCommand(ViewerCommand.COMMAND_FLIP_OR_ANSWER_BETTER_THAN_RECOMMENDED);
+
+        assertThat("the answer of the first card was not loaded into the spare WebView", viewer.getWebView(), not(sameInstance(spare)));
+
+        viewer.executeCommand(ViewerCommand.COMMAND_FLIP_OR_ANSWER_BETTER_THAN_RECOMMENDED);
+        waitForAsyncTasksToComplete();
+
+        assertThat(viewer.getWebView(), sameInstance(spare));
+        assertThat("the WebViews are swapped", viewer.getSpareWebView(), allOf(notNullValue(), not(sameInstance(spare))));
+    }
+
+
+    @Test
+    public void sideIsLoadedIntoTheCardWebViewIfTheSpareOneDoesNotHaveIt() throws Exception {
+        NonAbstractFlashcardViewer viewer = getDoubleBufferedViewer();
+        WebView card = viewer.getWebView();
+
+        viewer.displayCardAnswer();
+
+        assertThat(viewer.getWebView(), sameInstance(card));
+        assertThat(shadowOf(card).getLastLoadDataWithBaseURL().data, is(viewer.getCardContent()));
+    }
+
+
+    @Test
+    public void spareWebViewIsCreatedAgainAfterItsRendererIsGone() throws Exception {
+        NonAbstractFlashcardViewer viewer = getDoubleBufferedViewer();
+        WebView card = viewer.getWebView();
+        WebView spare = viewer.getSpareWebView();
+
+        boolean handled = shadowOf(spare).getWebViewClient().onRenderProcessGone(spare, mock(RenderProcessGoneDetail.class));
+
+        assertThat(handled, is(true));
+        assertThat(viewer.getSpareWebView(), nullValue());
+        assertThat("the card is still shown", viewer.getWebView(), sameInstance(card));
+
+        viewer.executeCommand(ViewerCommand.COMMAND_FLIP_OR_ANSWER_BETTER_THAN_RECOMMENDED);
+        viewer.executeCommand(ViewerCommand.COMMAND_FLIP_OR_ANSWER_BETTER_THAN_RECOMMENDED);
+        waitForAsyncTasksToComplete();
+
+        assertThat("the next card is shown by the card WebView", viewer.getWebView(), sameInstance(card));
+        assertThat(viewer.getSpareWebView(), allOf(notNullValue(), not(sameInstance(spare))));
+    }
+
+
+    /** A viewer with two cards, whose second card is rendered and loaded into the spare WebView */
+    private NonAbstractFlashcardViewer getDoubleBufferedViewer() throws Exception {
+        AnkiDroidApp.getSharedPrefs(getTargetContext()).edit().putBoolean("doubleBufferedDisplay", true).apply();
+        addNoteUsingBasicModel("first", "answer");
+        NonAbstractFlashcardViewer viewer = getViewer();
+        viewer.waitForPreRender();
+        advanceRobolectricLooper();
+        return viewer;
+    }
+
+
     private NonAbstractFlashcardViewer getViewer() {
         @NonNull Note n = getCol().newNote();
         n.setField(0, "a");
@@ -18,13 +18,18 @@ package com.ichi2.anki;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 
 import androidx.annotation.NonNull;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class CardBrowser_CardCollectionTest {
 
@@ -42,6 +47,93 @@ public class CardBrowser_CardCollectionTest {
     }
 
 
+    @Test
+    public void pagedItemsAreCreatedOnDemand() {
+        List<Integer> created = new ArrayList<>();
+        CardBrowser.PagedCardList<Positioned> list = new CardBrowser.PagedCardList<>(new long[] {10, 11, 12},
+                (id, position) -> {
+                    created.add(position);
+                    return new Positioned(position);
+                });
+
+        assertThat(list.size(), is(3));
+        assertThat(list.getId(2), is(12L));
+        assertThat("no item is created before it is accessed", created.size(), is(0));
+        assertThat(list.get(1), sameInstance(list.get(1)));
+        assertThat(created, contains(1));
+    }
+
+
+    @Test
+    public void iterationDoesNotKeepItems() {
+        List<Integer> created = new ArrayList<>();
+        CardBrowser.PagedCardList<Positioned> list = new CardBrowser.PagedCardList<>(new long[] {10, 11},
+                (id, position) -> {
+                    created.add(position);
+                    return new Positioned(position);
+                });
+        Positioned kept = list.get(0);
+
+        List<Positioned> iterated = new ArrayList<>();
+        for (Positioned item : list) {
+            iterated.add(item);
+        }
+        list.get(1);
+
+        assertThat(iterated.get(0), sameInstance(kept));
+        assertThat(created, contains(0, 1, 1));
+    }
+
+
+    @Test
+    public void itemsFarFromTheScreenAreForgotten() {
+        int size = 3 * CardBrowser.PagedCardList.PREFETCH_MARGIN;
+        CardBrowser.PagedCardList<Positioned> list = new CardBrowser.PagedCardList<>(new long[size],
+                (id, position) -> new Positioned(position));
+        Positioned first = list.get(0);
+        Positioned last = list.get(size - 1);
+
+        list.setVisibleRange(size - 10, size - 1);
+
+        assertThat(list.get(size - 1), sameInstance(last));
+        assertThat(list.get(0), not(sameInstance(first)));
+    }
+
+
+    @Test
+    public void reversePagedListKeepsItems() {
+        CardBrowser.CardCollection<Positioned> cardCollection = new CardBrowser.CardCollection<>();
+        cardCollection.replaceWith(new CardBrowser.PagedCardList<>(new long[] {10, 11, 12}, (id, position) -> new Positioned(position)));
+        Positioned first = cardCollection.get(0);
+
+        cardCollection.reverse();
+
+        assertThat(cardCollection.get(2), sameInstance(first));
+        assertThat(first.getPosition(), is(2));
+        assertThat(((CardBrowser.PagedCardList<Positioned>) cardCollection.unsafeGetWrapped()).getId(0), is(12L));
+    }
+
+
+    @Test
+    public void idsAreReadWithoutCreatingItems() {
+        List<Integer> created = new ArrayList<>();
+        CardBrowser.CardCollection<Positioned> cardCollection = new CardBrowser.CardCollection<>();
+        cardCollection.replaceWith(new CardBrowser.PagedCardList<>(new long[] {10, 11, 12},
+                (id, position) -> {
+                    created.add(position);
+                    return new Positioned(position);
+                }));
+
+        cardCollection.reverse();
+
+        assertThat(cardCollection.getIds(), is(new long[] {12, 11, 10}));
+        assertThat(cardCollection.getId(0), is(12L));
+        assertThat(cardCollection.positionOf(10), is(2));
+        assertThat(cardCollection.positionOf(13), is(-1));
+        assertThat(created.size(), is(0));
+    }
+
+
     @NonNull
     protected CardBrowser.CardCollection<Positioned> createCollection(Positioned... toInsert) {
         CardBrowser.CardCollection<Positioned> cardCollection = new CardBrowser.CardCollection<>();
@@ -64,6 +156,12 @@ public class CardBrowser_CardCollectionTest {
             return mInitialValue;
         }
 
+        @Override
+        public long getId() {
+            return mInitialValue;
+        }
+
+
         @Override
         public int getPosition() {
             return mPosition;
@@ -0,0 +1,157 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.anki;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+@RunWith(AndroidJUnit4.class)
+public class IncrementalBackupTest {
+    private static final int PAGE_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+    private File mColFile;
+    private File mBackupDir;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mColFile = mFolder.newFile("collection.anki2");
+        mBackupDir = mFolder.newFolder("backup");
+        writePages(0, 64);
+    }
+
+
+    @Test
+    public void deltaOnlyContainsTheChangedPages() throws IOException {
+        assertThat(backup("2021-01-01-10-00").getName(), is("collection-2021-01-01-10-00.colpkg"));
+        writePages(3, 1);
+        writePages(40, 1);
+
+        File delta = backup("2021-01-01-16-00");
+
+        assertThat(delta.getName(), is("collection-2021-01-01-16-00.coldelta"));
+        assertThat(delta.length(), lessThan(3L * PAGE_SIZE));
+    }
+
+
+    @Test
+    public void chainIsRestored() throws IOException {
+        backup("2021-01-01-10-00");
+        writePages(3, 1);
+        File first = backup("2021-01-01-16-00");
+        byte[] firstContent = Files.readAllBytes(mColFile.toPath());
+        // the collection grows, then shrinks
+        writePages(64, 10);
+        backup("2021-01-01-22-00");
+        try (RandomAccessFile file = new RandomAccessFile(mColFile, "rw")) {
+            file.setLength(50L * PAGE_SIZE + 100);
+        }
+        writePages(7, 1);
+        File last = backup("2021-01-02-04-00");
+
+        assertRestores(last, Files.readAllBytes(mColFile.toPath()));
+        assertRestores(first, firstContent);
+    }
+
+
+    @Test
+    public void snapshotIsMadeWhenMostPagesChanged() throws IOException {
+        backup("2021-01-01-10-00");
+        writePages(0, 40);
+
+        assertThat(IncrementalBackup.isDelta(backup("2021-01-01-16-00")), is(false));
+    }
+
+
+    @Test
+    public void snapshotIsMadeAfterTheMaximalNumberOfDeltas() throws IOException {
+        backup("2021-01-01-00-00");
+        for (int i = 1; i <= IncrementalBackup.MAX_DELTAS; i++) {
+            writePages(i, 1);
+            assertThat(IncrementalBackup.isDelta(backup(String.format("2021-01-%02d-00-00", i + 1))), is(true));
+        }
+        writePages(0, 1);
+
+        assertThat(IncrementalBackup.isDelta(backup("2021-02-01-00-00")), is(false));
+    }
+
+
+    @Test
+    public void retentionKeepsTheChainsOfTheKeptDeltas() throws IOException {
+        File[] backups = new File[] {
+                mFolder.newFile("collection-2021-01-01-00-00.colpkg"),
+                mFolder.newFile("collection-2021-01-02-00-00.coldelta"),
+                mFolder.newFile("collection-2021-01-03-00-00.colpkg"),
+                mFolder.newFile("collection-2021-01-04-00-00.coldelta"),
+                mFolder.newFile("collection-2021-01-05-00-00.coldelta"),
+        };
+
+        BackupManager.deleteDeckBackups(backups, 2);
+
+        assertThat(existing(backups), arrayContaining(false, false, true, true, true));
+    }
+
+
+    private File backup(String date) throws IOException {
+        return new IncrementalBackup(mColFile, mBackupDir).write(new File(mBackupDir, "collection-" + date + ".colpkg"));
+    }
+
+
+    private void assertRestores(File backup, byte[] expected) throws IOException {
+        File target = new File(mFolder.getRoot(), "restored.anki2");
+        IncrementalBackup.restore(backup, target);
+        assertThat(Files.readAllBytes(target.toPath()), is(expected));
+    }
+
+
+    /** Writes random content into count pages, from the page number start */
+    private void writePages(int start, int count) throws IOException {
+        byte[] content = new byte[count * PAGE_SIZE];
+        mRandom.nextBytes(content);
+        try (RandomAccessFile file = new RandomAccessFile(mColFile, "rw")) {
+            file.seek((long) start * PAGE_SIZE);
+            file.write(content);
+        }
+    }
+
+
+    private static Boolean[] existing(File[] files) {
+        Boolean[] existing = new Boolean[files.length];
+        for (int i = 0; i < files.length; i++) {
+            existing[i] = files[i].exists();
+        }
+        return existing;
+    }
+}
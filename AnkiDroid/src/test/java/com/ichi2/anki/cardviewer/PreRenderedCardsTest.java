@@ -0,0 +1,86 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.anki.cardviewer;
+
+import org.junit.Test;
+
+import static com.ichi2.anki.cardviewer.PreRenderedCards.MAX_CARDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PreRenderedCardsTest {
+
+    private final PreRenderedCards mCards = new PreRenderedCards();
+
+
+    @Test
+    public void sideIsOnlyReturnedForTheSameContent() {
+        mCards.put(1, false, "question", "<html>question</html>");
+        mCards.put(1, true, "answer", "<html>answer</html>");
+
+        assertThat(mCards.get(1, false, "question"), is("<html>question</html>"));
+        assertThat(mCards.get(1, true, "answer"), is("<html>answer</html>"));
+        assertThat("the card was edited", mCards.get(1, false, "edited question"), is(nullValue()));
+        assertThat(mCards.get(1, true, "question"), is(nullValue()));
+        assertThat(mCards.get(2, false, "question"), is(nullValue()));
+    }
+
+
+    @Test
+    public void leastRecentlyUsedCardsAreDropped() {
+        for (long cid = 0; cid <= MAX_CARDS; cid++) {
+            mCards.put(cid, false, "question", "html " + cid);
+            // the first card is the one shown
+            mCards.get(0, false, "question");
+        }
+
+        assertThat(mCards.get(0, false, "question"), is("html 0"));
+        assertThat(mCards.get(1, false, "question"), is(nullValue()));
+        assertThat(mCards.get(MAX_CARDS, false, "question"), is("html " + MAX_CARDS));
+    }
+
+
+    @Test
+    public void peekReturnsTheSideWhateverItsContent() {
+        mCards.put(1, false, "question", "<html>question</html>");
+
+        assertThat(mCards.peek(1, false), is("<html>question</html>"));
+        assertThat("the answer was not rendered", mCards.peek(1, true), is(nullValue()));
+        assertThat(mCards.peek(2, false), is(nullValue()));
+    }
+
+
+    @Test
+    public void peekDoesNotKeepACard() {
+        mCards.put(0, false, "question", "html 0");
+        for (long cid = 1; cid <= MAX_CARDS; cid++) {
+            mCards.put(cid, false, "question", "html " + cid);
+            mCards.peek(0, false);
+        }
+
+        assertThat(mCards.peek(0, false), is(nullValue()));
+    }
+
+
+    @Test
+    public void clearedCardsAreRenderedAgain() {
+        mCards.put(1, false, "question", "html");
+
+        mCards.clear();
+
+        assertThat(mCards.get(1, false, "question"), is(nullValue()));
+    }
+}
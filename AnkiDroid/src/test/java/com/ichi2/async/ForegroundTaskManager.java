@@ -70,7 +70,7 @@ public class ForegroundTaskManager extends TaskManager {
 
 
     @Override
-    public void cancelCurrentlyExecutingTaskConcrete() {
+    public void cancelCurrentlyExecutingTaskConcrete(@NonNull TaskDelegate.Lane lane) {
     }
 
 
@@ -0,0 +1,174 @@
+/*
+ This program is free software; you can redistribute it and/or modify it under
+ the terms of the GNU General Public License as published by the Free Software
+ Foundation; either version 3 of the License, or (at your option) any later
+ version.
+
+ This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License along with
+ this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.async;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.async.TaskDelegate.Lane;
+import com.ichi2.libanki.Collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class LaneTaskManagerTest extends RobolectricTest {
+
+    private LaneTaskManager mTaskManager;
+    private TaskManager mPreviousTaskManager;
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+
+    @Before
+    @Override
+    public void setUp() {
+        super.setUp();
+        mTaskManager = new LaneTaskManager();
+        mPreviousTaskManager = TaskManager.setTaskManager(mTaskManager);
+    }
+
+
+    @After
+    @Override
+    public void tearDown() {
+        mRelease.countDown();
+        mTaskManager.waitToFinishConcrete(10);
+        TaskManager.setTaskManager(mPreviousTaskManager);
+        super.tearDown();
+    }
+
+
+    @Test
+    public void readsOfDifferentLanesRunInParallel() throws Exception {
+        CollectionTask<Void, Boolean> blocked = launch(new BlockingTask(Lane.BROWSER, mRelease));
+        CollectionTask<Void, Boolean> export = launch(new BlockingTask(Lane.MAINTENANCE, new CountDownLatch(0)));
+
+        assertThat(export.get(10, TimeUnit.SECONDS), is(true));
+        assertThat(mTaskManager.getMetrics(Lane.BROWSER).getQueueDepth(), is(1));
+
+        mRelease.countDown();
+        assertThat(blocked.get(10, TimeUnit.SECONDS), is(true));
+        assertThat(mTaskManager.getMetrics(Lane.MAINTENANCE).getFinishedCount(), is(1));
+    }
+
+
+    @Test
+    public void writeWaitsForPreviousReads() throws Exception {
+        CollectionTask<Void, Boolean> read = launch(new BlockingTask(Lane.BROWSER, mRelease));
+        CollectionTask<Void, Boolean> write = launch(new BlockingTask(Lane.WRITE, new CountDownLatch(0)));
+
+        try {
+            write.get(200, TimeUnit.MILLISECONDS);
+            fail("The write should wait for the read launched before it");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        mRelease.countDown();
+        assertThat(read.get(10, TimeUnit.SECONDS), is(true));
+        assertThat(write.get(10, TimeUnit.SECONDS), is(true));
+    }
+
+
+    @Test
+    public void readWaitsForPreviousWrite() throws Exception {
+        CollectionTask<Void, Boolean> write = launch(new BlockingTask(Lane.WRITE, mRelease));
+        CollectionTask<Void, Boolean> read = launch(new BlockingTask(Lane.BROWSER, new CountDownLatch(0)));
+
+        try {
+            read.get(200, TimeUnit.MILLISECONDS);
+            fail("The read should wait for the write launched before it");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        mRelease.countDown();
+        assertThat(write.get(10, TimeUnit.SECONDS), is(true));
+        assertThat(read.get(10, TimeUnit.SECONDS), is(true));
+    }
+
+
+    @Test
+    public void cancelOnlyAffectsTheTaskOfTheLane() throws Exception {
+        BlockingTask search = new BlockingTask(Lane.BROWSER, mRelease);
+        BlockingTask emptyCards = new BlockingTask(Lane.MAINTENANCE, mRelease);
+        CollectionTask<Void, Boolean> searchTask = launch(search);
+        CollectionTask<Void, Boolean> emptyCardsTask = launch(emptyCards);
+        assertThat(search.mStarted.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(emptyCards.mStarted.await(10, TimeUnit.SECONDS), is(true));
+
+        TaskManager.cancelCurrentlyExecutingTask(Lane.BROWSER);
+
+        assertThat(searchTask.isCancelled(), is(true));
+        assertThat(emptyCardsTask.isCancelled(), is(false));
+        mRelease.countDown();
+        assertThat(emptyCardsTask.get(10, TimeUnit.SECONDS), is(true));
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private CollectionTask<Void, Boolean> launch(BlockingTask task) {
+        return (CollectionTask<Void, Boolean>) TaskManager.launchCollectionTask(task);
+    }
+
+
+    private static class BlockingTask extends TaskDelegate<Void, Boolean> {
+        private final Lane mLane;
+        private final CountDownLatch mRelease;
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+
+
+        private BlockingTask(Lane lane, CountDownLatch release) {
+            mLane = lane;
+            mRelease = release;
+        }
+
+
+        @Override
+        protected Boolean task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
+            mStarted.countDown();
+            try {
+                return mRelease.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+
+        @NonNull
+        @Override
+        protected Lane getLane() {
+            return mLane;
+        }
+
+
+        @Override
+        protected boolean requiresOpenCollection() {
+            return false;
+        }
+    }
+}
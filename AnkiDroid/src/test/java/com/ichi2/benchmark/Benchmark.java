@@ -0,0 +1,135 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.benchmark;
+
+import com.ichi2.utils.JSONArray;
+import com.ichi2.utils.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import timber.log.Timber;
+
+/**
+ * Minimal harness measuring the time of an operation over warmup and measured iterations, and writing the results as
+ * JSON so that they can be compared across commits.
+ *
+ * Benchmarks run only when the system property ankidroid.benchmark is true, which is set by passing -Pbenchmark to
+ * gradle. Results are written in the directory given by ankidroid.benchmark.output, one file by benchmark.
+ */
+public class Benchmark {
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    private final String mName;
+    private final int mWarmupIterations;
+    private final int mIterations;
+    private final JSONObject mParams = new JSONObject();
+
+
+    public Benchmark(@NonNull String name) {
+        this(name, Integer.getInteger("ankidroid.benchmark.warmup", 3), Integer.getInteger("ankidroid.benchmark.iterations", 10));
+    }
+
+
+    public Benchmark(@NonNull String name, int warmupIterations, int iterations) {
+        mName = name;
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("ankidroid.benchmark");
+    }
+
+
+    /** Records a parameter of the benchmark, e.g. the size of the collection, in the result file */
+    public Benchmark param(@NonNull String key, @NonNull Object value) {
+        mParams.put(key, value);
+        return this;
+    }
+
+
+    /**
+     * @param opsPerIteration Number of operations done by each call of operation, so that the time per operation can
+     *                        be reported
+     * @param setUp Run before each iteration, not measured
+     * @return The median time of an operation, in nanoseconds
+     */
+    public long measure(int opsPerIteration, @NonNull Operation setUp, @NonNull Operation operation) throws Exception {
+        for (int i = 0; i < mWarmupIterations; i++) {
+            setUp.run();
+            operation.run();
+        }
+        long[] samples = new long[mIterations];
+        for (int i = 0; i < mIterations; i++) {
+            setUp.run();
+            long start = System.nanoTime();
+            operation.run();
+            samples[i] = (System.nanoTime() - start) / opsPerIteration;
+        }
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("benchmark", mName);
+        result.put("params", mParams);
+        result.put("warmupIterations", mWarmupIterations);
+        result.put("iterations", mIterations);
+        result.put("opsPerIteration", opsPerIteration);
+        result.put("unit", "ns/op");
+        result.put("mean", total / mIterations);
+        result.put("median", sorted[mIterations / 2]);
+        result.put("min", sorted[0]);
+        result.put("max", sorted[mIterations - 1]);
+        JSONArray jsonSamples = new JSONArray();
+        for (long sample : samples) {
+            jsonSamples.put(sample);
+        }
+        result.put("samples", jsonSamples);
+        write(result);
+        Timber.i("Benchmark %s: %d ns/op", mName, sorted[mIterations / 2]);
+        return sorted[mIterations / 2];
+    }
+
+
+    public long measure(int opsPerIteration, @NonNull Operation operation) throws Exception {
+        return measure(opsPerIteration, () -> { }, operation);
+    }
+
+
+    private void write(@NonNull JSONObject result) throws IOException {
+        File directory = new File(System.getProperty("ankidroid.benchmark.output", "build/benchmark-results"));
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, mName + ".json")), StandardCharsets.UTF_8)) {
+            writer.write(result.toString(2));
+        }
+    }
+}
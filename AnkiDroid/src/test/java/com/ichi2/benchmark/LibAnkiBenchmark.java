@@ -0,0 +1,160 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.benchmark;
+
+import com.ichi2.anki.BackupManager;
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.AnkiPackageExporter;
+import com.ichi2.libanki.Card;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.Model;
+import com.ichi2.libanki.Storage;
+import com.ichi2.libanki.importer.AnkiPackageImporter;
+import com.ichi2.libanki.sched.AbstractSched;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+/**
+ * Benchmarks of the hot paths of libanki, on a generated collection.
+ *
+ * Skipped unless run with: ./gradlew :AnkiDroid:testPlayDebugUnitTest --tests "com.ichi2.benchmark.*" -Pbenchmark
+ * The size of the collection can be set with -Pbenchmark.notes=100000 -Pbenchmark.decks=1500 -Pbenchmark.revlog=5
+ * Results are written as JSON in AnkiDroid/build/benchmark-results.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LibAnkiBenchmark extends RobolectricTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SyntheticCollection.Size mSize;
+
+    @Override
+    protected boolean useInMemoryDatabase() {
+        // Export and import require the collection to be a file
+        return false;
+    }
+
+
+    @Before
+    @Override
+    public void setUp() {
+        Assume.assumeTrue("Benchmarks are only run with -Pbenchmark", Benchmark.isEnabled());
+        super.setUp();
+        mSize = SyntheticCollection.Size.fromSystemProperties();
+        new SyntheticCollection(getCol(), 42).populate(mSize);
+    }
+
+
+    private Benchmark benchmark(String name) {
+        return new Benchmark(name).param("collection", mSize.toJSON());
+    }
+
+
+    @Test
+    public void answerCard() throws Exception {
+        Collection col = getCol();
+        AbstractSched sched = col.getSched();
+        int answers = 50;
+        benchmark("answerCard").measure(answers, sched::reset, () -> {
+            for (int i = 0; i < answers; i++) {
+                Card card = sched.getCard();
+                if (card == null) {
+                    return;
+                }
+                sched.answerCard(card, Consts.BUTTON_THREE);
+            }
+        });
+    }
+
+
+    @Test
+    public void deckDueTree() throws Exception {
+        AbstractSched sched = getCol().getSched();
+        // The tree is computed after a card changed, which invalidates any cached count
+        benchmark("deckDueTree").measure(1, () -> getCol().getDb().execute("UPDATE cards SET mod = mod WHERE id = (SELECT min(id) FROM cards)"), sched::deckDueTree);
+    }
+
+
+    @Test
+    public void findCards() throws Exception {
+        Collection col = getCol();
+        benchmark("findCards_text").measure(1, () -> col.findCards("abc"));
+        benchmark("findCards_compound").measure(1, () -> col.findCards("deck:Benchmark::Parent* is:due tag:tag1 front:*e*"));
+    }
+
+
+    @Test
+    public void render() throws Exception {
+        Collection col = getCol();
+        List<Long> cids = col.findCards("deck:Benchmark*");
+        int count = Math.min(200, cids.size());
+        benchmark("render").measure(count, () -> {
+            for (int i = 0; i < count; i++) {
+                col.getCard(cids.get(i))._getQA(true, false);
+            }
+        });
+    }
+
+
+    @Test
+    public void genCards() throws Exception {
+        Collection col = getCol();
+        Model model = col.getModels().byName("Basic (and reversed card)");
+        long[] nids = col.getDb().queryLongArray("SELECT id FROM notes WHERE mid = ?", model.getLong("id"));
+        benchmark("genCards").measure(nids.length, () -> col.genCards(nids, model));
+    }
+
+
+    @Test
+    public void importPackage() throws Exception {
+        File apkg = new File(mFolder.getRoot(), "benchmark.apkg");
+        new AnkiPackageExporter(getCol(), false, false).exportInto(apkg.getAbsolutePath(), getTargetContext());
+        // Each iteration imports into a new collection: importing into the same one again would only find duplicates
+        Collection[] target = new Collection[1];
+        try {
+            benchmark("importPackage").measure(mSize.mNotes, () -> {
+                closeAndDelete(target[0]);
+                File dir = mFolder.newFolder();
+                target[0] = Storage.Collection(getTargetContext(), new File(dir, "collection.anki2").getAbsolutePath());
+            }, () -> new AnkiPackageImporter(target[0], apkg.getAbsolutePath()).run());
+        } finally {
+            closeAndDelete(target[0]);
+        }
+    }
+
+
+    /** Deletes the folder of a collection of importPackage, so that only one of them uses the disk at a time */
+    private static void closeAndDelete(@Nullable Collection col) {
+        if (col == null) {
+            return;
+        }
+        File dir = new File(col.getPath()).getParentFile();
+        col.close();
+        BackupManager.removeDir(dir);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.benchmark;
+
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.DB;
+import com.ichi2.libanki.Model;
+import com.ichi2.libanki.Utils;
+import com.ichi2.utils.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import androidx.annotation.NonNull;
+import timber.log.Timber;
+
+/**
+ * Fills a collection with generated decks, notes, cards and review logs, in a reproducible way.
+ *
+ * Rows are inserted directly with SQL, as adding hundreds of thousands of notes through {@link Collection#addNote}
+ * would be the slowest part of a benchmark.
+ */
+public class SyntheticCollection {
+
+    /** Number of rows inserted by a single executeMany */
+    private static final int BATCH_SIZE = 1000;
+
+    private final Collection mCol;
+    private final Random mRandom;
+
+
+    public static class Size {
+        /** Number of leaf decks. Each group of 10 leaf decks shares a parent deck. */
+        public final int mDecks;
+        public final int mNotes;
+        /** Review log entries of each card which is not new */
+        public final int mRevlogPerCard;
+
+
+        public Size(int decks, int notes, int revlogPerCard) {
+            mDecks = decks;
+            mNotes = notes;
+            mRevlogPerCard = revlogPerCard;
+        }
+
+
+        /** Size given by the system properties ankidroid.benchmark.decks/notes/revlog, or small default values. */
+        public static Size fromSystemProperties() {
+            return new Size(
+                    Integer.getInteger("ankidroid.benchmark.decks", 50),
+                    Integer.getInteger("ankidroid.benchmark.notes", 5000),
+                    Integer.getInteger("ankidroid.benchmark.revlog", 3));
+        }
+
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("decks", mDecks);
+            json.put("notes", mNotes);
+            json.put("cards", mNotes * 2);
+            json.put("revlogPerCard", mRevlogPerCard);
+            return json;
+        }
+    }
+
+
+    public SyntheticCollection(@NonNull Collection col, long seed) {
+        mCol = col;
+        mRandom = new Random(seed);
+    }
+
+
+    /**
+     * Adds size.mNotes notes of the "Basic (and reversed card)" model, so two cards by note, spread over size.mDecks
+     * decks. 40% of the cards are new, 10% are in learning and 50% are in review, half of which are due today.
+     * @return the ids of the leaf decks
+     */
+    public List<Long> populate(@NonNull Size size) {
+        Model model = mCol.getModels().byName("Basic (and reversed card)");
+        long mid = model.getLong("id");
+        List<Long> dids = new ArrayList<>(size.mDecks);
+        for (int i = 0; i < size.mDecks; i++) {
+            dids.add(mCol.getDecks().id_safe(String.format(Locale.US, "Benchmark::Parent %d::Deck %d", i / 10, i)));
+        }
+
+        DB db = mCol.getDb();
+        long now = mCol.getTime().intTime();
+        int today = mCol.getSched().getToday();
+        long nextId = mCol.getTime().maxID(db);
+        List<Object[]> notes = new ArrayList<>(BATCH_SIZE);
+        List<Object[]> cards = new ArrayList<>(BATCH_SIZE * 2);
+        List<Object[]> revlog = new ArrayList<>(BATCH_SIZE * 2 * size.mRevlogPerCard);
+        for (int n = 0; n < size.mNotes; n++) {
+            long nid = nextId++;
+            String front = "front " + n + " " + randomWord();
+            String back = "back <b>" + randomWord() + "</b> " + randomWord();
+            notes.add(new Object[] {nid, Utils.guid64(), mid, now, -1, " benchmark tag" + (n % 20) + " ",
+                    Utils.joinFields(new String[] {front, back}), front, Utils.fieldChecksum(front), 0, ""});
+            long did = dids.get(mRandom.nextInt(dids.size()));
+            for (int ord = 0; ord < 2; ord++) {
+                long cid = nextId++;
+                cards.add(randomCard(cid, nid, did, ord, n, now, today));
+                int queue = (int) cards.get(cards.size() - 1)[7];
+                if (queue != Consts.QUEUE_TYPE_NEW) {
+                    for (int r = 0; r < size.mRevlogPerCard; r++) {
+                        revlog.add(new Object[] {nextId++, cid, -1, 1 + mRandom.nextInt(4), 1 + mRandom.nextInt(100),
+                                mRandom.nextInt(50), 2500, 1000 + mRandom.nextInt(20000), Consts.REVLOG_REV});
+                    }
+                }
+            }
+            if (notes.size() >= BATCH_SIZE) {
+                flush(db, notes, cards, revlog);
+            }
+        }
+        flush(db, notes, cards, revlog);
+        mCol.save();
+        Timber.i("Generated %d notes in %d decks", size.mNotes, size.mDecks);
+        return dids;
+    }
+
+
+    private Object[] randomCard(long cid, long nid, long did, int ord, int position, long now, int today) {
+        int state = mRandom.nextInt(10);
+        int type;
+        int queue;
+        long due;
+        int ivl = 0;
+        if (state < 4) {
+            type = Consts.CARD_TYPE_NEW;
+            queue = Consts.QUEUE_TYPE_NEW;
+            due = position;
+        } else if (state < 5) {
+            type = Consts.CARD_TYPE_LRN;
+            queue = Consts.QUEUE_TYPE_LRN;
+            due = now + mRandom.nextInt(3600) - 1800;
+        } else {
+            type = Consts.CARD_TYPE_REV;
+            queue = Consts.QUEUE_TYPE_REV;
+            ivl = 1 + mRandom.nextInt(200);
+            due = today + mRandom.nextInt(60) - 30;
+        }
+        return new Object[] {cid, nid, did, ord, now, -1, type, queue, due, ivl, 2500, 5, 0, 0, 0, 0, 0, ""};
+    }
+
+
+    private String randomWord() {
+        char[] word = new char[4 + mRandom.nextInt(8)];
+        for (int i = 0; i < word.length; i++) {
+            word[i] = (char) ('a' + mRandom.nextInt(26));
+        }
+        return new String(word);
+    }
+
+
+    private static void flush(DB db, List<Object[]> notes, List<Object[]> cards, List<Object[]> revlog) {
+        if (!notes.isEmpty()) {
+            db.executeMany("insert into notes values (?,?,?,?,?,?,?,?,?,?,?)", notes);
+        }
+        if (!cards.isEmpty()) {
+            db.executeMany("insert into cards values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", cards);
+        }
+        if (!revlog.isEmpty()) {
+            db.executeMany("insert into revlog values (?,?,?,?,?,?,?,?,?)", revlog);
+        }
+        notes.clear();
+        cards.clear();
+        revlog.clear();
+    }
+}
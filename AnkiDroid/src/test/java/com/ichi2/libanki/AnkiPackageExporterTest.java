@@ -19,6 +19,9 @@ package com.ichi2.libanki;
 import com.ichi2.anki.RobolectricTest;
 import com.ichi2.anki.exception.ImportExportException;
 import com.ichi2.libanki.exception.EmptyMediaException;
+import com.ichi2.utils.JSONObject;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -41,6 +44,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.isIn;
 import static org.junit.Assert.assertEquals;
 
 @RunWith(AndroidJUnit4.class)
@@ -111,6 +116,29 @@ public class AnkiPackageExporterTest extends RobolectricTest {
     }
 
 
+    @Test
+    public void compressedMediaIsStored() throws IOException, ImportExportException {
+        File jpg = addTempFileToMediaAndNote(".jpg");
+        File txt = addTempFileToMediaAndNote(".txt");
+
+        AnkiPackageExporter exporter = getExporterForDeckWithMedia();
+        Path tempExportDir = Files.createTempDirectory("AnkiDroid-compressedMediaIsStored-export");
+        File exportedFile = new File(tempExportDir.toFile(), "export.apkg");
+
+        exporter.exportInto(exportedFile.getAbsolutePath(), getTargetContext());
+
+        try (org.apache.commons.compress.archivers.zip.ZipFile exportReader = new org.apache.commons.compress.archivers.zip.ZipFile(exportedFile)) {
+            JSONObject media = new JSONObject(Utils.convertStreamToString(exportReader.getInputStream(exportReader.getEntry("media"))));
+            for (String entry : media) {
+                int expectedMethod = jpg.getName().equals(media.getString(entry)) ? ZipArchiveEntry.STORED : ZipArchiveEntry.DEFLATED;
+                assertThat(media.getString(entry), exportReader.getEntry(entry).getMethod(), is(expectedMethod));
+            }
+            assertThat(media.length(), is(2));
+            assertThat(txt.getName(), isIn(Arrays.asList(media.getString("0"), media.getString("1"))));
+        }
+    }
+
+
     @Test
     public void stripHTML_will_remove_html_with_unicode_whitespace() {
         Exporter exporter = getExporterForDeckWithMedia();
@@ -167,7 +195,12 @@ public class AnkiPackageExporterTest extends RobolectricTest {
 
 
     private File addTempFileToMediaAndNote() throws IOException {
-        File temp = File.createTempFile("AnkiDroid-missingFileInExportDoesNotThrowException", ".txt");
+        return addTempFileToMediaAndNote(".txt");
+    }
+
+
+    private File addTempFileToMediaAndNote(String suffix) throws IOException {
+        File temp = File.createTempFile("AnkiDroid-missingFileInExportDoesNotThrowException", suffix);
         PrintWriter writer = new PrintWriter(temp);
         writer.println("unit test data");
         writer.close();
@@ -26,6 +26,8 @@ import static com.ichi2.utils.JSONObject.NULL;
 import static org.hamcrest.Matchers.hasItemInArray;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class CardTest extends RobolectricTest {
@@ -379,4 +381,20 @@ public class CardTest extends RobolectricTest {
 
     }
 
+    @Test
+    public void loadAllSharesNotes() {
+        Collection col = getCol();
+        Note note = addNoteUsingBasicAndReversedModel("front", "back");
+        List<Card> cards = note.cards();
+        List<Card.Cache> caches = Arrays.asList(new Card.Cache(col, cards.get(0).getId()), new Card.Cache(col, cards.get(1).getId()));
+
+        Card.Cache.loadAll(col, caches);
+
+        assertTrue(caches.get(0).isLoaded());
+        assertTrue(caches.get(1).isLoaded());
+        assertEquals(cards.get(1).getOrd(), caches.get(1).getCard().getOrd());
+        assertSame(caches.get(0).getCard().note(), caches.get(1).getCard().note());
+        assertEquals("front", caches.get(0).getCard().note().getItem("Front"));
+    }
+
 }
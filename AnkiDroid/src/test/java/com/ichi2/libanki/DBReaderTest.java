@@ -0,0 +1,104 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import android.database.sqlite.SQLiteException;
+
+import com.ichi2.anki.CollectionHelper;
+import com.ichi2.anki.RobolectricTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+/** Read-only connections are only opened by the Java database layer, on a collection file */
+@RunWith(AndroidJUnit4.class)
+public class DBReaderTest extends RobolectricTest {
+
+    @Override
+    protected boolean useLegacyHelper() {
+        return true;
+    }
+
+
+    @Override
+    protected boolean useInMemoryDatabase() {
+        return false;
+    }
+
+
+    @Test
+    public void readerSeesCommittedChanges() {
+        DB db = getCol().getDb();
+        long nid1 = addNoteUsingBasicModel("one", "").getId();
+        long nid2 = addNoteUsingBasicModel("two", "").getId();
+
+        assertArrayEquals(new long[] {nid1, nid2}, db.reader().queryLongArray("SELECT id FROM notes ORDER BY id"));
+        assertThat(getCol().findNotes("one").size(), is(1));
+    }
+
+
+    @Test
+    public void readerCannotWrite() {
+        DB db = getCol().getDb();
+        assertThat(db.reader(), not(sameInstance(db)));
+        assertThrows(SQLiteException.class, () -> db.reader().execute("DELETE FROM notes"));
+    }
+
+
+    @Test
+    public void readersAreOpenedAgainOnReopen() {
+        getCol().close();
+        getCol().reopen();
+        DB db = getCol().getDb();
+        assertThat(db.reader(), not(sameInstance(db)));
+    }
+
+
+    @Test
+    public void transactionsReadTheirOwnChanges() {
+        DB db = getCol().getDb();
+        db.getDatabase().beginTransaction();
+        try {
+            assertThat("uncommitted changes are not visible to other connections", db.reader(), sameInstance(db));
+        } finally {
+            db.getDatabase().endTransaction();
+        }
+    }
+
+
+    @Test
+    public void collectionFileDoesNotUseWriteAheadLogOnceClosed() {
+        String path = getCol().getPath();
+        addNoteUsingBasicModel("one", "");
+        CollectionHelper.getInstance().closeCollection(true, "test");
+
+        DB db = new DB(path);
+        try {
+            assertThat(db.queryString("PRAGMA journal_mode"), is(not("wal")));
+            assertThat(db.queryScalar("SELECT count() FROM notes"), is(1));
+        } finally {
+            db.close();
+        }
+    }
+}
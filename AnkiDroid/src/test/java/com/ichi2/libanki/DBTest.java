@@ -0,0 +1,73 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.anki.RobolectricTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class DBTest extends RobolectricTest {
+
+    @Test
+    public void primitiveArrays() {
+        DB db = getCol().getDb();
+        long nid1 = addNoteUsingBasicModel("one", "").getId();
+        long nid2 = addNoteUsingBasicModel("two", "").getId();
+
+        assertArrayEquals(new long[] {nid1, nid2}, db.queryLongArray("SELECT id FROM notes ORDER BY id"));
+        assertArrayEquals(new int[] {0, 0}, db.queryIntArray("SELECT ord FROM cards"));
+        assertArrayEquals(new long[0], db.queryLongArray("SELECT id FROM notes WHERE id = ?", -1));
+    }
+
+
+    @Test
+    public void scalarWithoutResultIsZero() {
+        DB db = getCol().getDb();
+        // twice, so that a cached statement is also used
+        for (int i = 0; i < 2; i++) {
+            assertEquals(0, db.queryScalar("SELECT id FROM notes WHERE id = ?", -1));
+            assertEquals(0L, db.queryLongScalar("SELECT id FROM notes WHERE id = ?", -1));
+        }
+        long nid = addNoteUsingBasicModel("one", "").getId();
+        assertEquals(nid, db.queryLongScalar("SELECT id FROM notes WHERE id = ?", nid));
+    }
+
+
+    @Test
+    public void idSetSelectsGivenIds() {
+        DB db = getCol().getDb();
+        long nid1 = addNoteUsingBasicModel("one", "").getId();
+        addNoteUsingBasicModel("two", "");
+        long nid3 = addNoteUsingBasicModel("three", "").getId();
+        long modificationCount = db.getModificationCount();
+
+        String set = db.idSet("test_ids", new long[] {nid1, nid3, nid1});
+
+        assertArrayEquals(new long[] {nid1, nid3}, db.queryLongArray("SELECT id FROM notes WHERE id IN " + set + " ORDER BY id"));
+        assertThat("Filling a temporary table does not modify the collection", db.getModificationCount(), is(modificationCount));
+
+        set = db.idSet("test_ids", new long[] {nid3});
+        assertArrayEquals(new long[] {nid3}, db.queryLongArray("SELECT id FROM notes WHERE id IN " + set));
+    }
+}
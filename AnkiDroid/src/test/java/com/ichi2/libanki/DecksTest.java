@@ -15,7 +15,9 @@ import androidx.test.ext.junit.runners.AndroidJUnit4;
 
 import static com.ichi2.testutils.AnkiAssert.assertEqualsArrayList;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
@@ -316,6 +318,28 @@ public class DecksTest extends RobolectricTest {
         assertNull(decks.byName("filtered::sub"));
     }
 
+    @Test
+    public void hierarchyFollowsRenamesAndRemovals() throws DeckRenameException, FilteredAncestor {
+        Decks decks = getCol().getDecks();
+        long one = addDeck("one");
+        long two = addDeck("one::two");
+        long three = addDeck("one::two::three");
+        long other = addDeck("other");
+
+        assertThat(decks.children(one).values(), contains(two, three));
+        assertThat(decks.parents(three), contains(decks.get(one), decks.get(two)));
+        assertThat(decks.childMap().get(one).keySet(), contains(two));
+
+        decks.rename(decks.get(two), "OTHER::two");
+        assertThat(decks.children(one).size(), is(0));
+        assertThat(decks.children(other).values(), contains(two, three));
+        assertThat(decks.parents(three), contains(decks.get(other), decks.get(two)));
+
+        decks.rem(two, true, false);
+        assertThat(decks.children(other).values(), contains(three));
+        assertThat(decks.parents(three).get(1), nullValue());
+    }
+
     @Test
     public void confForDidReturnsDefaultIfNotFound() {
         // https://github.com/ankitects/anki/commit/94d369db18c2a6ac3b0614498d8abcc7db538633
@@ -0,0 +1,111 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import android.os.FileObserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(AndroidJUnit4.class)
+public class MediaChangeTrackerTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MediaChangeTracker mTracker;
+
+
+    @Before
+    public void setUp() {
+        mTracker = new MediaChangeTracker(mFolder.getRoot().getAbsolutePath());
+        mTracker.start();
+    }
+
+
+    @After
+    public void tearDown() {
+        mTracker.stop();
+    }
+
+
+    @Test
+    public void logIsCompleteFromReset() {
+        mTracker.onEvent(FileObserver.CREATE, "before.jpg");
+        assertThat(mTracker.takeChanges(), nullValue());
+
+        mTracker.reset();
+        mTracker.onEvent(FileObserver.CLOSE_WRITE, "after.jpg");
+
+        assertThat(mTracker.takeChanges(), is(Collections.singleton("after.jpg")));
+        assertThat("changes are taken once", mTracker.takeChanges(), is(empty()));
+    }
+
+
+    @Test
+    public void movingTheFolderMakesTheLogIncomplete() {
+        mTracker.reset();
+        mTracker.onEvent(FileObserver.CREATE, "a.jpg");
+        mTracker.onEvent(FileObserver.MOVE_SELF, null);
+
+        assertThat(mTracker.takeChanges(), nullValue());
+    }
+
+
+    @Test
+    public void tooManyChangesMakeTheLogIncomplete() {
+        mTracker.reset();
+        for (int i = 0; i <= MediaChangeTracker.MAX_LOGGED; i++) {
+            mTracker.onEvent(FileObserver.CREATE, i + ".jpg");
+        }
+
+        assertThat(mTracker.takeChanges(), nullValue());
+    }
+
+
+    @Test
+    public void trustIsLostWithTheFolder() {
+        mTracker.reset();
+        mTracker.trust();
+        assertThat(mTracker.isTrusted(), is(true));
+
+        mTracker.onEvent(FileObserver.DELETE_SELF, null);
+        mTracker.reset();
+
+        assertThat(mTracker.isTrusted(), is(false));
+    }
+
+
+    @Test
+    public void logIsIncompleteOnceStopped() {
+        mTracker.reset();
+        mTracker.stop();
+        mTracker.reset();
+
+        assertThat(mTracker.takeChanges(), nullValue());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+@RunWith(AndroidJUnit4.class)
+public class MediaHasherTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Test
+    public void checksumsAreTheOnesOfUtils() throws IOException {
+        File small = file("small.jpg", 'a', 10);
+        // mapped in two parts
+        File large = file("large.mp3", 'b', (int) MediaHasher.MAP_WINDOW + 1000);
+
+        assertThat(MediaHasher.sha1(small), is(Utils.fileChecksum(small)));
+        assertThat(MediaHasher.sha1(large), is(Utils.fileChecksum(large)));
+    }
+
+
+    @Test
+    public void unchangedFilesAreNotHashedAgain() throws IOException {
+        MediaHasher hasher = new MediaHasher(1);
+        File file = file("a.jpg", 'a', 10);
+        String checksum = hasher.checksum(file);
+        long mtime = file.lastModified();
+
+        // same size and time: the content is not read
+        file("a.jpg", 'b', 10).setLastModified(mtime);
+        assertThat(hasher.checksum(file), is(checksum));
+
+        file.setLastModified(mtime + 2000);
+        assertThat(hasher.checksum(file), is(not(checksum)));
+    }
+
+
+    @Test
+    public void filesAreHashedInParallel() throws IOException {
+        MediaHasher hasher = new MediaHasher(3);
+        File a = file("a.jpg", 'a', 100);
+        File b = file("b.jpg", 'b', (int) MediaHasher.MAP_THRESHOLD * 2);
+        File missing = new File(mFolder.getRoot(), "missing.jpg");
+
+        Map<File, String> checksums = hasher.checksums(Arrays.asList(a, missing, b));
+
+        assertThat(checksums.size(), is(2));
+        assertThat(checksums.get(a), is(Utils.fileChecksum(a)));
+        assertThat(checksums.get(b), is(Utils.fileChecksum(b)));
+    }
+
+
+    @Test
+    public void crcIsTheOneOfZipEntries() throws IOException {
+        File file = file("a.jpg", 'a', 100);
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file.toPath()));
+
+        assertThat(new MediaHasher(1).crc32(file), is(crc.getValue()));
+    }
+
+
+    private File file(String name, char c, int size) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) c);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+}
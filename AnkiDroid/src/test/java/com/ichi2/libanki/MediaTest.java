@@ -1,13 +1,24 @@
 package com.ichi2.libanki;
 
+import android.os.FileObserver;
+
 import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.exception.EmptyMediaException;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
 import static com.ichi2.testutils.AnkiAssert.assertEqualsArrayList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
 
 @RunWith(AndroidJUnit4.class)
@@ -56,6 +67,76 @@ public class MediaTest extends RobolectricTest {
         assertEquals("<img src=\"foo%20bar.jpg\">", col.getMedia().escapeImages("<img src=\"foo bar.jpg\">"));
     }
 
+    @Test
+    public void changesOfAnkiDroidDoNotRequireAScanOnceTheLogIsTrusted() throws IOException, EmptyMediaException {
+        Media media = getCol().getMedia();
+        media.findChanges(true);
+        File file = File.createTempFile("foo", ".jpg");
+        write(file, "hello");
+
+        String untrusted = media.addFile(file);
+        assertThat("another app may have changed the folder", media._changed(), notNullValue());
+
+        media.findChanges(true);
+        media.getTracker().trust();
+        String fname = media.addFile(file);
+        media.removeFile(fname);
+
+        assertThat(media._changed(), nullValue());
+        assertThat(media.syncInfo(fname).second, is(1));
+        assertThat(media.syncInfo(untrusted).second, is(1));
+    }
+
+
+    @Test
+    public void logIsTrustedOnceItHeldTheChangesOfOtherApps() throws IOException {
+        Media media = getCol().getMedia();
+        media.findChanges(true);
+        assertThat(media.getTracker().isTrusted(), is(false));
+        File file = new File(media.dir(), "foo.jpg");
+
+        write(file, "hello");
+        media.getTracker().onEvent(FileObserver.CLOSE_WRITE, "foo.jpg");
+        touch(new File(media.dir()));
+        media.findChanges();
+
+        assertThat(media.getTracker().isTrusted(), is(true));
+        assertThat(media.syncInfo("foo.jpg").first, is(Utils.fileChecksum(file)));
+    }
+
+
+    @Test
+    public void changesOfOtherAppsAreFound() throws IOException {
+        Media media = getCol().getMedia();
+        media.findChanges(true);
+        File file = new File(media.dir(), "foo.jpg");
+
+        write(file, "hello");
+        touch(new File(media.dir()));
+        media.findChanges();
+        assertThat(media.syncInfo("foo.jpg").first, is(Utils.fileChecksum(file)));
+
+        file.delete();
+        touch(new File(media.dir()));
+        media.findChanges();
+        assertThat("removal is recorded", media.syncInfo("foo.jpg").first, nullValue());
+        assertThat(media.syncInfo("foo.jpg").second, is(1));
+    }
+
+
+    private static void write(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes("UTF-8"));
+        }
+    }
+
+
+    /** Changes the modification time as in another second, whatever the resolution of the file system */
+    private static void touch(File dir) {
+        dir.setLastModified(dir.lastModified() + 2000);
+    }
+
+
     /* TODO: file
      @Test public void test_deckIntegration(){
      Collection col = getCol();
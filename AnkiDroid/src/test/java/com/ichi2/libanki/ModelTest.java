@@ -53,6 +53,27 @@ public class ModelTest extends RobolectricTest {
         assertThat("field should not have a problem", q, not(containsString("has a problem")));
     }
 
+    @Test
+    public void compiledTemplateFollowsTheChangesOfTheModel() throws ConfirmModSchemaException {
+        Collection col = getCol();
+        Note note = col.newNote();
+        note.setItem("Front", "1");
+        note.setItem("Back", "2");
+        col.addNote(note);
+        Card card = note.firstCard();
+        assertThat(card.q(true), endsWith("1"));
+        Model m = col.getModels().current();
+
+        // the mod time may not change, if it is within the same second
+        m.getJSONArray("tmpls").getJSONObject(0).put("qfmt", "new {{Front}}");
+        col.getModels().save(m);
+        assertThat(card.q(true), endsWith("new 1"));
+
+        col.getModels().renameField(m, m.getJSONArray("flds").getJSONObject(0), "Renamed");
+        assertThat(card.q(true), endsWith("new 1"));
+        assertThat(card.a(), containsString("2"));
+    }
+
     @Test
     public void test_field_named_frontSide() {
         // #8951 - A field named "FrontSide" is ignored - this matches Anki 2.1.34 (8af8f565)
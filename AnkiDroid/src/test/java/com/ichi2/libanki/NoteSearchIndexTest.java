@@ -0,0 +1,96 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.anki.RobolectricTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assume.assumeThat;
+
+@RunWith(AndroidJUnit4.class)
+public class NoteSearchIndexTest extends RobolectricTest {
+
+    @Test
+    public void stringsBetweenWildcardsAreLookedUp() {
+        assertThat(NoteSearchIndex.matchQuery("tags", "% word %"), is("tags : \" word \""));
+        assertThat(NoteSearchIndex.matchQuery("tags", "%one%two_three%"), is("tags : \"one\" AND tags : \"two\" AND tags : \"three\""));
+        assertThat("escaped wildcards are literal", NoteSearchIndex.matchQuery("tags", "%a\\%b%"), is("tags : \"a%b\""));
+        assertThat(NoteSearchIndex.matchQuery("tags", "%\"quoted\"%"), is("tags : \"\"\"quoted\"\"\""));
+    }
+
+
+    @Test
+    public void shortStringsCantBeLookedUp() {
+        assertThat(NoteSearchIndex.matchQuery("tags", "%ab%"), nullValue());
+        assertThat(NoteSearchIndex.matchQuery("tags", "%ab%cd%"), nullValue());
+    }
+
+
+    @Test
+    public void indexIsMaintainedByWritesToNotes() {
+        Collection col = getCol();
+        assumeThat("FTS5 with trigrams is available", NoteSearchIndex.isSupported(col.getDb()), is(true));
+        Note kept = addNoteUsingBasicModel("kept before", "back");
+        Note removed = addNoteUsingBasicModel("removed", "back");
+        assertThat(col.getSearchIndex().rebuild(col.getMod()), is(true));
+
+        Note added = addNoteUsingBasicModel("added after", "back");
+        kept.setItem("Back", "edited");
+        kept.flush();
+        col.remNotes(new long[] {removed.getId()});
+
+        assertThat(col.findNotes("added"), is(Collections.singletonList(added.getId())));
+        assertThat(col.findNotes("edit*"), is(Collections.singletonList(kept.getId())));
+        assertThat(col.findNotes("removed").size(), is(0));
+        assertThat(col.getDb().queryScalar("SELECT count() FROM " + NoteSearchIndex.TABLE), is(2));
+    }
+
+
+    @Test
+    public void outdatedIndexIsNotUsed() {
+        Collection col = getCol();
+        assumeThat("FTS5 with trigrams is available", NoteSearchIndex.isSupported(col.getDb()), is(true));
+        col.getSearchIndex().rebuild(col.getMod());
+
+        assertThat(NoteSearchIndex.open(col.getDb(), col.getMod()).isUsable(), is(true));
+        assertThat(NoteSearchIndex.open(col.getDb(), col.getMod() + 1).isUsable(), is(false));
+    }
+
+
+    @Test
+    public void droppedIndexIsRebuiltIfWanted() {
+        Collection col = getCol();
+        assumeThat("FTS5 with trigrams is available", NoteSearchIndex.isSupported(col.getDb()), is(true));
+        col.getSearchIndex().rebuild(col.getMod());
+        col.getSearchIndex().drop();
+
+        col.rebuildSearchIndexIfWanted();
+        assertThat("the index is optional", col.getSearchIndex().isUsable(), is(false));
+
+        AnkiDroidApp.getSharedPrefs(getTargetContext()).edit().putBoolean(NoteSearchIndex.PREF_KEY, true).apply();
+        col.rebuildSearchIndexIfWanted();
+        assertThat(col.getSearchIndex().isUsable(), is(true));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.libanki.SearchPlan.Cost;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(AndroidJUnit4.class)
+public class SearchPlanTest {
+
+    @Test
+    public void cheapPredicatesAreEvaluatedFirst() {
+        SearchPlan.Builder plan = new SearchPlan.Builder();
+        plan.add("n.flds like ?", Cost.TEXT, Collections.singletonList("%text%"));
+        plan.add("n.tags like ?", Cost.TAGS, Collections.singletonList("% tag %"));
+        plan.add("c.did in (1)", Cost.INDEXED);
+
+        List<String> args = new ArrayList<>();
+        assertThat(plan.build(args), is("((c.did in (1)) and (n.tags like ?) and (n.flds like ?))"));
+        assertThat("arguments follow their predicate", args, contains("% tag %", "%text%"));
+    }
+
+
+    @Test
+    public void andBindsTighterThanOr() {
+        SearchPlan.Builder plan = new SearchPlan.Builder();
+        plan.add("a", Cost.TEXT);
+        plan.or();
+        plan.add("b", Cost.TEXT);
+        plan.add("c", Cost.INDEXED);
+
+        assertThat(plan.build(new ArrayList<>()), is("((a) or (c) and (b))"));
+    }
+
+
+    @Test
+    public void negatedGroups() {
+        SearchPlan.Builder plan = new SearchPlan.Builder();
+        plan.add("a", Cost.TEXT);
+        plan.not();
+        plan.openGroup();
+        plan.add("b", Cost.COLUMN);
+        plan.or();
+        plan.add("c", Cost.COLUMN);
+        plan.closeGroup();
+
+        assertThat(plan.build(new ArrayList<>()), is("(not ((b) or (c)) and (a))"));
+    }
+
+
+    @Test
+    public void predicatesWithoutMatchAreRemoved() {
+        SearchPlan.Builder noMatch = new SearchPlan.Builder();
+        noMatch.add("a", Cost.TEXT);
+        noMatch.add("0", Cost.INDEXED);
+        assertThat("no query is needed", noMatch.build(new ArrayList<>()), nullValue());
+
+        SearchPlan.Builder alternative = new SearchPlan.Builder();
+        alternative.add("0", Cost.INDEXED);
+        alternative.or();
+        alternative.add("a", Cost.TEXT, Arrays.asList("x", "y"));
+        List<String> args = new ArrayList<>();
+        assertThat(alternative.build(args), is("((a))"));
+        assertThat(args, contains("x", "y"));
+
+        SearchPlan.Builder negated = new SearchPlan.Builder();
+        negated.not();
+        negated.add("0", Cost.INDEXED);
+        assertThat("every card matches", negated.build(new ArrayList<>()), is(""));
+    }
+
+
+    @Test
+    public void invalidQueries() {
+        SearchPlan.Builder unbalanced = new SearchPlan.Builder();
+        unbalanced.openGroup();
+        unbalanced.add("a", Cost.TEXT);
+        assertThat(unbalanced.build(new ArrayList<>()), nullValue());
+
+        SearchPlan.Builder invalidCommand = new SearchPlan.Builder();
+        invalidCommand.add(null, Cost.COLUMN);
+        assertThat(invalidCommand.isBad(), is(true));
+
+        SearchPlan.Builder negatedInvalidCommand = new SearchPlan.Builder();
+        negatedInvalidCommand.not();
+        negatedInvalidCommand.add(null, Cost.COLUMN);
+        assertThat("a negated invalid command is ignored", negatedInvalidCommand.build(new ArrayList<>()), is(""));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Note;
+import com.ichi2.libanki.Storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/** The source collection is attached and merged by SQLite, which requires the Java database layer */
+@RunWith(AndroidJUnit4.class)
+public class Anki2ImporterTest extends RobolectricTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Override
+    protected boolean useLegacyHelper() {
+        return true;
+    }
+
+
+    @Override
+    protected boolean useInMemoryDatabase() {
+        return false;
+    }
+
+
+    @Test
+    public void notesAreAddedUpdatedAndMoved() throws Exception {
+        Collection col = getCol();
+        String path = new File(mFolder.getRoot(), "src.anki2").getAbsolutePath();
+        Collection src = Storage.Collection(getTargetContext(), path);
+        addNote(src, "kept");
+        Note changed = addNote(src, "changed");
+        src.close();
+        Anki2Importer first = new Anki2Importer(col, path);
+        first.run();
+        assertThat(first.getAdded(), is(2));
+
+        src = Storage.Collection(getTargetContext(), path);
+        src.getDb().execute("UPDATE notes SET flds = 'updated' || char(31), mod = mod + 10 WHERE id = ?", changed.getId());
+        Note added = addNote(src, "added");
+        // its id is used by a note of the target
+        long usedId = addNoteUsingBasicModel("local", "").getId();
+        src.getDb().execute("UPDATE notes SET id = ? WHERE id = ?", usedId, added.getId());
+        src.getDb().execute("UPDATE cards SET nid = ? WHERE nid = ?", usedId, added.getId());
+        src.close();
+        Anki2Importer second = new Anki2Importer(col, path);
+        second.run();
+
+        assertThat(second.getAdded(), is(1));
+        assertThat(second.getUpdated(), is(1));
+        assertThat(second.getDupes(), is(2));
+        assertThat(col.noteCount(), is(4));
+        assertThat(col.cardCount(), is(4));
+        assertThat(col.findNotes("front:updated").size(), is(1));
+        assertThat(col.getNote(usedId).getFields()[0], is("local"));
+        assertThat(col.findNotes("front:added").size(), is(1));
+    }
+
+
+    private static Note addNote(Collection col, String front) {
+        Note note = col.newNote(col.getModels().byName("Basic"));
+        note.setItem("Front", front);
+        col.addNote(note);
+        return note;
+    }
+}
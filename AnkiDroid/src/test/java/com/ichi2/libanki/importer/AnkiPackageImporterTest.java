@@ -0,0 +1,94 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.AnkiPackageExporter;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Note;
+import com.ichi2.libanki.Utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+@RunWith(AndroidJUnit4.class)
+public class AnkiPackageImporterTest extends RobolectricTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Override
+    protected boolean useInMemoryDatabase() {
+        return false;
+    }
+
+
+    @Test
+    public void mediaOfThePackageIsComparedWithTheCollection() throws Exception {
+        Collection col = getCol();
+        addMedia("same.txt", "content");
+        File changed = addMedia("changed.txt", "before");
+        Note note = addNoteUsingBasicModel("<img src=\"same.txt\"><img src=\"changed.txt\">", "back");
+        File apkg = new File(mFolder.getRoot(), "export.apkg");
+        new AnkiPackageExporter(col, 1L, true, true).exportInto(apkg.getAbsolutePath(), getTargetContext());
+        col.remNotes(new long[] {note.getId()});
+        // same size, so that the CRCs are compared
+        write(changed, "after!");
+
+        new AnkiPackageImporter(col, apkg.getAbsolutePath()).run();
+
+        String front = col.getNote(col.findNotes("").get(0)).getFields()[0];
+        assertThat("identical files are shared", front, containsString("src=\"same.txt\""));
+        assertThat("different files are renamed", front, not(containsString("src=\"changed.txt\"")));
+        String renamed = front.replaceFirst("(?s).*src=\"(changed_[^\"]*)\".*", "$1");
+        File imported = new File(col.getMedia().dir(), renamed);
+        assertThat(Utils.fileChecksum(imported), is(Utils.fileChecksum(createFile("before"))));
+        assertThat("copies are recorded for the sync", col.getMedia().syncInfo(renamed).second, is(1));
+    }
+
+
+    private File addMedia(String name, String content) throws Exception {
+        File file = new File(mFolder.newFolder(), name);
+        write(file, content);
+        return new File(getCol().getMedia().dir(), getCol().getMedia().addFile(file));
+    }
+
+
+    private File createFile(String content) throws IOException {
+        File file = mFolder.newFile();
+        write(file, content);
+        return file;
+    }
+
+
+    private static void write(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes("UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer;
+
+import com.ichi2.anki.R;
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.importer.NoteImporter.ForeignNote;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static com.ichi2.libanki.importer.NoteImporter.BATCH_SIZE;
+import static com.ichi2.libanki.importer.NoteImporter.MAX_LOGGED_MESSAGES;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+@RunWith(AndroidJUnit4.class)
+public class NoteImporterTest extends RobolectricTest {
+
+    @Test
+    public void duplicatesAreFoundAcrossBatches() {
+        List<ForeignNote> notes = notes(BATCH_SIZE + 10);
+        notes.add(note("front 1", "again"));
+        NoteImporter importer = importer(notes);
+
+        importer.run();
+
+        assertThat(importer.getTotal(), is(BATCH_SIZE + 10));
+        assertThat(getCol().noteCount(), is(BATCH_SIZE + 10));
+        assertThat(importer.getLog(), hasItem(getTargetContext().getString(R.string.note_importer_error_appeared_twice, "front 1")));
+    }
+
+
+    @Test
+    public void onlyTheFirstMessagesAreLogged() {
+        List<ForeignNote> notes = notes(MAX_LOGGED_MESSAGES + 5);
+        notes.addAll(notes(MAX_LOGGED_MESSAGES + 5));
+        NoteImporter importer = importer(notes);
+
+        importer.run();
+
+        String lastLogged = getTargetContext().getString(R.string.note_importer_error_appeared_twice, "front " + (MAX_LOGGED_MESSAGES - 1));
+        String firstOmitted = getTargetContext().getString(R.string.note_importer_error_appeared_twice, "front " + MAX_LOGGED_MESSAGES);
+        assertThat(importer.getLog(), hasItem(lastLogged));
+        assertThat(importer.getLog(), not(hasItem(firstOmitted)));
+        assertThat(importer.getLog(), hasItem(getTargetContext().getResources().getQuantityString(R.plurals.note_importer_messages_omitted, 5, 5)));
+    }
+
+
+    @Test
+    public void cancelledImportKeepsTheAddedBatches() {
+        NoteImporter importer = importer(notes(BATCH_SIZE + 10));
+        importer.setCancelListener(() -> true);
+
+        importer.run();
+
+        assertThat(getCol().noteCount(), is(BATCH_SIZE));
+        assertThat("cards of the batch are generated", getCol().cardCount(), is(BATCH_SIZE));
+    }
+
+
+    @NonNull
+    private NoteImporter importer(@NonNull List<ForeignNote> notes) {
+        NoteImporter importer = new NoteImporter(getCol(), "") {
+            @Override
+            protected int fields() {
+                return 2;
+            }
+
+
+            @NonNull
+            @Override
+            protected List<ForeignNote> foreignNotes() {
+                return notes;
+            }
+        };
+        importer.initMapping();
+        return importer;
+    }
+
+
+    @NonNull
+    private static List<ForeignNote> notes(int count) {
+        List<ForeignNote> notes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            notes.add(note("front " + i, "back"));
+        }
+        return notes;
+    }
+
+
+    @NonNull
+    private static ForeignNote note(String... fields) {
+        ForeignNote note = new ForeignNote();
+        note.mFields.addAll(Arrays.asList(fields));
+        return note;
+    }
+}
@@ -1753,4 +1753,56 @@ public class SchedV2Test extends RobolectricTest {
         sched.answerCard(card, Consts.BUTTON_ONE);
         assertDoesNotThrow(col::undo);
     }
+
+    @Test
+    public void dueCountIndexIsUpdatedInPlace() throws Exception {
+        Collection col = getColV2();
+        SchedV2 sched = (SchedV2) col.getSched();
+        addNoteUsingBasicModel("one", "");
+        addNoteUsingBasicModel("two", "");
+        Note three = addNoteUsingBasicModel("three", "");
+        col.reset();
+        assertEquals(new Counts(3, 0, 0), sched.counts());
+        assertTrue(sched.mDueCounts.isFresh());
+
+        Card c = sched.getCard();
+        sched.answerCard(c, Consts.BUTTON_ONE);
+        assertTrue("answering a card should not require recomputing the index", sched.mDueCounts.isFresh());
+        assertEquals(1, sched.mDueCounts.lrnCount(1, Long.MAX_VALUE));
+        assertEquals(2, sched.mDueCounts.newCount(1));
+
+        sched.buryCards(new long[] {three.cards().get(0).getId()});
+        assertTrue(sched.mDueCounts.isFresh());
+        assertEquals(1, sched.mDueCounts.newCount(1));
+
+        // A change the scheduler does not know about makes the index rebuild itself
+        long did = addDeck("other");
+        Card moved = addNoteUsingBasicModel("four", "").cards().get(0);
+        assertFalse(sched.mDueCounts.isFresh());
+        assertEquals(2, sched.mDueCounts.newCount(1));
+        DueCountIndex.Change change = sched.beginCardsChange(new long[] {moved.getId()});
+        moved.setDid(did);
+        moved.flush();
+        change.commit();
+        assertTrue(sched.mDueCounts.isFresh());
+        assertEquals(1, sched.mDueCounts.newCount(1));
+        assertEquals(1, sched.mDueCounts.newCount(did));
+
+        // A change applied inside a transaction which is rolled back afterwards is not kept
+        try {
+            col.getDb().executeInTransaction(() -> {
+                DueCountIndex.Change rolledBack = sched.beginCardsChange(new long[] {moved.getId()});
+                moved.setDid(1);
+                moved.flush();
+                rolledBack.commit();
+                assertEquals(2, sched.mDueCounts.newCount(1));
+                throw new IllegalStateException("rollback");
+            });
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(sched.mDueCounts.isFresh());
+        assertEquals(1, sched.mDueCounts.newCount(1));
+        assertEquals(1, sched.mDueCounts.newCount(did));
+    }
 }
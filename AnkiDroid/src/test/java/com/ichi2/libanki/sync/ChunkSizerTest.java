@@ -0,0 +1,60 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sync;
+
+import org.junit.Test;
+
+import static com.ichi2.libanki.sync.ChunkSizer.INITIAL_BYTES;
+import static com.ichi2.libanki.sync.ChunkSizer.MAX_BYTES;
+import static com.ichi2.libanki.sync.ChunkSizer.MIN_BYTES;
+import static com.ichi2.libanki.sync.ChunkSizer.TARGET_DURATION_MS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class ChunkSizerTest {
+
+    @Test
+    public void fastRequestsGrowTheChunksGradually() {
+        ChunkSizer sizer = new ChunkSizer();
+        sizer.onSent(INITIAL_BYTES, 1);
+        assertThat(sizer.getMaxBytes(), is(2 * INITIAL_BYTES));
+        for (int i = 0; i < 20; i++) {
+            sizer.onSent(sizer.getMaxBytes(), 1);
+        }
+        assertThat(sizer.getMaxBytes(), is(MAX_BYTES));
+    }
+
+
+    @Test
+    public void chunksTakeAboutTheTargetDuration() {
+        ChunkSizer sizer = new ChunkSizer();
+        sizer.onSent(INITIAL_BYTES, TARGET_DURATION_MS);
+        assertThat(sizer.getMaxBytes(), is(INITIAL_BYTES));
+        sizer.onSent(INITIAL_BYTES, TARGET_DURATION_MS * 10);
+        assertThat(sizer.getMaxBytes(), is(INITIAL_BYTES / 2));
+        for (int i = 0; i < 20; i++) {
+            sizer.onSent(sizer.getMaxBytes(), TARGET_DURATION_MS * 10);
+        }
+        assertThat(sizer.getMaxBytes(), is(MIN_BYTES));
+    }
+
+
+    @Test
+    public void partialChunksDoNotGrowTheChunks() {
+        ChunkSizer sizer = new ChunkSizer();
+        sizer.onSent(100, 1);
+        assertThat(sizer.getMaxBytes(), is(INITIAL_BYTES));
+    }
+}
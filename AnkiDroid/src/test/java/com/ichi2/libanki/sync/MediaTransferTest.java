@@ -0,0 +1,219 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sync;
+
+import android.util.Pair;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Media;
+import com.ichi2.libanki.Utils;
+import com.ichi2.utils.JSONArray;
+import com.ichi2.utils.JSONObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class MediaTransferTest extends RobolectricTest {
+
+    @Test
+    public void receivedFilesAreRecordedWithTheAnnouncedChecksum() throws Exception {
+        Collection col = getCol();
+        Media media = col.getMedia();
+        media.queueDownloads(Arrays.asList(new Pair<>("a.jpg", "sum a"), new Pair<>("b.jpg", "sum b"),
+                new Pair<>("c.jpg", "sum c")), 5);
+        // Sends less files than requested
+        FakeServer server = new FakeServer(col, 2);
+
+        int received = new MediaTransfer(media, server, 2).download(cnt -> { });
+
+        assertThat(received, is(3));
+        assertThat(media.queuedDownloads(), is(empty()));
+        assertThat(media.queuedDownloadsUsn(), is(-1));
+        assertThat(media.syncInfo("b.jpg").first, is("sum b"));
+        assertThat(new File(media.dir(), "c.jpg").exists(), is(true));
+    }
+
+
+    @Test
+    public void interruptedDownloadResumesWithTheFilesNotReceived() throws Exception {
+        Collection col = getCol();
+        Media media = col.getMedia();
+        media.queueDownloads(Arrays.asList(new Pair<>("a.jpg", "sum a"), new Pair<>("b.jpg", "sum b")), 5);
+        FakeServer failing = new FakeServer(col, 1);
+        failing.mFailAfter = 1;
+        try {
+            new MediaTransfer(media, failing, 1).download(cnt -> { });
+            fail("the failure of the server is thrown");
+        } catch (RuntimeException expected) {
+            // the second request failed
+        }
+        assertThat(media.queuedDownloads(), contains("b.jpg"));
+        assertThat(media.queuedDownloadsUsn(), is(5));
+
+        FakeServer server = new FakeServer(col, 1);
+        new MediaTransfer(media, server, 1).download(cnt -> { });
+
+        assertThat(server.mRequested, contains("b.jpg"));
+        assertThat(media.queuedDownloads(), is(empty()));
+    }
+
+
+    @Test
+    public void queuedFilesChangedSinceAreNotDownloaded() throws Exception {
+        Collection col = getCol();
+        Media media = col.getMedia();
+        media.queueDownloads(Arrays.asList(new Pair<>("kept.jpg", "sum kept"), new Pair<>("deleted.jpg", "sum deleted"),
+                new Pair<>("changed.jpg", "sum changed"), new Pair<>("local.jpg", "sum local")), 4);
+        try (FileOutputStream out = new FileOutputStream(new File(media.dir(), "local.jpg"))) {
+            out.write(1);
+        }
+        media.markFileAdd("local.jpg");
+        FakeServer server = new FakeServer(col, 4);
+        server.mChanges.put(new JSONArray().put("kept.jpg").put(1).put("sum kept"));
+        server.mChanges.put(new JSONArray().put("deleted.jpg").put(2).put("sum deleted"));
+        server.mChanges.put(new JSONArray().put("changed.jpg").put(3).put("sum changed"));
+        server.mChanges.put(new JSONArray().put("local.jpg").put(4).put("sum local"));
+        server.mChanges.put(new JSONArray().put("deleted.jpg").put(5).put(JSONObject.NULL));
+        server.mChanges.put(new JSONArray().put("changed.jpg").put(6).put("new sum"));
+        MediaTransfer transfer = new MediaTransfer(media, server, 1);
+
+        transfer.checkQueuedDownloads(0);
+        transfer.download(cnt -> { });
+
+        assertThat(server.mRequested, contains("kept.jpg"));
+        assertThat(media.queuedDownloads(), is(empty()));
+        assertThat("the local change is sent", media.syncInfo("local.jpg").second, is(1));
+    }
+
+
+    @Test
+    public void changesAreSentInOrder() throws Exception {
+        Collection col = getCol();
+        Media media = col.getMedia();
+        for (String fname : new String[] {"b.jpg", "a.jpg"}) {
+            try (FileOutputStream out = new FileOutputStream(new File(media.dir(), fname))) {
+                out.write(fname.getBytes("UTF-8"));
+            }
+            media.markFileAdd(fname);
+        }
+        FakeServer server = new FakeServer(col, 1);
+        List<Integer> progress = new ArrayList<>();
+
+        Integer usn = new MediaTransfer(media, server, 1).upload(media.lastUsn(), progress::add);
+
+        assertThat(usn, is(2));
+        assertThat(media.lastUsn(), is(2));
+        assertThat(server.mRequested, contains("a.jpg", "b.jpg"));
+        assertThat(media.dirtyCount(), is(0));
+        assertThat(progress, contains(2, 1, 0));
+    }
+
+
+    /** A server sending a given number of files per zip, and processing a single change per zip */
+    private static class FakeServer extends RemoteMediaServer {
+        private final Collection mCol;
+        private final int mFilesPerZip;
+        /** The number of requests answered before failing, -1 to never fail */
+        private int mFailAfter = -1;
+        private final List<String> mRequested = Collections.synchronizedList(new ArrayList<>());
+        /** The changes of the server, by usn */
+        private final JSONArray mChanges = new JSONArray();
+        private int mUsn = 0;
+
+
+        private FakeServer(@NonNull Collection col, int filesPerZip) {
+            super(col, null, null, new HostNum(null));
+            mCol = col;
+            mFilesPerZip = filesPerZip;
+        }
+
+
+        @Override
+        public synchronized ZipFile downloadFiles(List<String> top) {
+            if (mFailAfter == 0) {
+                throw new RuntimeException("connection lost");
+            }
+            mFailAfter--;
+            try {
+                File zip = File.createTempFile(DOWNLOAD_ZIP_PREFIX, ".zip", new File(mCol.getPath()).getParentFile());
+                JSONObject meta = new JSONObject();
+                try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+                    for (int i = 0; i < Math.min(mFilesPerZip, top.size()); i++) {
+                        mRequested.add(top.get(i));
+                        meta.put(Integer.toString(i), top.get(i));
+                        out.putNextEntry(new ZipEntry(Integer.toString(i)));
+                        out.write(top.get(i).getBytes("UTF-8"));
+                    }
+                    out.putNextEntry(new ZipEntry("_meta"));
+                    out.write(meta.toString().getBytes("UTF-8"));
+                }
+                return new ZipFile(zip, ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+
+        @Override
+        public synchronized JSONArray mediaChanges(int lastUsn) {
+            JSONArray changes = new JSONArray();
+            for (int i = 0; i < mChanges.length(); i++) {
+                if (mChanges.getJSONArray(i).getInt(1) > lastUsn) {
+                    changes.put(mChanges.getJSONArray(i));
+                }
+            }
+            return changes;
+        }
+
+
+        @Override
+        public synchronized JSONArray uploadChanges(File zip) {
+            try (ZipFile changes = new ZipFile(zip)) {
+                JSONArray meta = new JSONArray(Utils.convertStreamToString(changes.getInputStream(changes.getEntry("_meta"))));
+                // Only processes the first change
+                mRequested.add(meta.getJSONArray(0).getString(0));
+                mUsn++;
+                JSONArray result = new JSONArray();
+                result.put(1);
+                result.put(mUsn);
+                return result;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sync;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.ichi2.anki.AnkiSerialization;
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Note;
+import com.ichi2.utils.JSONArray;
+import com.ichi2.utils.JSONObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(AndroidJUnit4.class)
+public class SyncerTest extends RobolectricTest {
+
+    @Test
+    public void localChangesAreWrittenAsAChunk() throws IOException {
+        Collection col = getCol();
+        Note note = addNoteUsingBasicModel("front", "back");
+        Syncer syncer = new Syncer(col, null, new HostNum(null));
+        syncer.prepareToChunk();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean done;
+        try (JsonGenerator generator = Syncer.createGenerator(out)) {
+            done = syncer.writeChunk(generator, ChunkSizer.MAX_ROWS, ChunkSizer.MAX_BYTES);
+        }
+
+        JSONObject chunk = new JSONObject(out.toString("UTF-8"));
+        assertThat(done, is(true));
+        assertThat(chunk.getBoolean("done"), is(true));
+        assertThat(chunk.getJSONArray("revlog").length(), is(0));
+        assertThat(chunk.getJSONArray("cards").length(), is(1));
+        JSONArray notes = chunk.getJSONArray("notes");
+        assertThat(notes.length(), is(1));
+        assertThat(notes.getJSONArray(0).getLong(0), is(note.getId()));
+        assertThat(notes.getJSONArray(0).getString(6), is("front\u001fback"));
+        assertThat("rows are marked as sent", col.getDb().queryScalar("SELECT count() FROM notes WHERE usn = -1"), is(0));
+    }
+
+
+    @Test
+    public void chunksEndAtTheirSize() throws IOException {
+        Collection col = getCol();
+        addNoteUsingBasicModel("one", "back");
+        addNoteUsingBasicModel("two", "back");
+        Syncer syncer = new Syncer(col, null, new HostNum(null));
+        syncer.prepareToChunk();
+
+        assertThat("empty tables and the first card", chunkLength(syncer, 1, ChunkSizer.MAX_BYTES), is(1));
+        assertThat("a row larger than the size", chunkLength(syncer, ChunkSizer.MAX_ROWS, 1), is(1));
+        assertThat(chunkLength(syncer, ChunkSizer.MAX_ROWS, ChunkSizer.MAX_BYTES), is(2));
+    }
+
+
+    @Test
+    public void newerRowsOfAChunkAreApplied() throws IOException {
+        Collection col = getCol();
+        Note synced = addNoteUsingBasicModel("synced", "back");
+        Note modified = addNoteUsingBasicModel("modified", "back");
+        col.getDb().execute("UPDATE notes SET usn = 0 WHERE id = ?", synced.getId());
+        Syncer syncer = new Syncer(col, null, new HostNum(null));
+
+        String chunk = "{\"notes\": [" + noteRow(col, synced, "remote") + ", " + noteRow(col, modified, "older") + "], " +
+                "\"revlog\": [[1, " + synced.firstCard().getId() + ", 0, 3, 1, 0, 2500, 6000, 0]], \"done\": false}";
+        boolean done;
+        try (JsonParser parser = AnkiSerialization.getFactory().createParser(chunk)) {
+            done = syncer.applyChunk(parser);
+        }
+
+        assertThat(done, is(false));
+        synced.load();
+        assertThat(synced.getFields()[0], is("remote"));
+        assertThat("sort field is updated", synced.getSFld(), is("remote"));
+        modified.load();
+        assertThat("local changes are kept", modified.getFields()[0], is("modified"));
+        assertThat(col.getDb().queryScalar("SELECT count() FROM revlog"), is(1));
+    }
+
+
+    /** A row of a note as sent by the server, with a modification time older than the local changes */
+    private static String noteRow(Collection col, Note note, String front) {
+        String guid = col.getDb().queryString("SELECT guid FROM notes WHERE id = ?", note.getId());
+        return "[" + note.getId() + ", \"" + guid + "\", " + note.getMid() + ", " + (note.getMod() - 1) + ", 1, \"\", \"" +
+                front + "\\u001fback\", \"\", \"\", 0, \"\"]";
+    }
+
+
+    /** @return The number of rows of the next chunk */
+    private static int chunkLength(Syncer syncer, int maxRows, long maxBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = Syncer.createGenerator(out)) {
+            syncer.writeChunk(generator, maxRows, maxBytes);
+        }
+        JSONObject chunk = new JSONObject(out.toString("UTF-8"));
+        int rows = 0;
+        for (String table : new String[] {"revlog", "cards", "notes"}) {
+            if (chunk.has(table)) {
+                rows += chunk.getJSONArray(table).length();
+            }
+        }
+        return rows;
+    }
+}
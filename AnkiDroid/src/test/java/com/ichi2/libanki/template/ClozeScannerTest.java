@@ -0,0 +1,77 @@
+/*
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.template;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(AndroidJUnit4.class)
+public class ClozeScannerTest {
+
+    @Test
+    public void scannedTextIsTheTextOfTheRegexes() {
+        String[] texts = new String[] {
+                "hello {{c1::world}}",
+                "{{c1::a}} {{c2::b::hint}} {{c1::c::}} {{C3::d}} {{c12::e}}",
+                "{{c1::ok}} \\(2^2\\) {{c2::not ok}} \\(2^{{c3::2}}\\) \\(x^3\\) {{c4::blah}} {{c5::text with \\(x^2\\) jax}}",
+                "\\(a\\) {{c1::b}} \\[ {{c1::c}} \\]",
+                "{{c2::\\(x}} {{c1::y}} \\)",
+                "{{c1::a {{c2::b}} c}}",
+                "{{{c1::{c2::x}}}}",
+                "{{c1::$1 \\\\ line\nbreak}} no cloze {{c3",
+                "no cloze at all",
+        };
+        for (String text : texts) {
+            for (String ord : new String[] {"1", "2", "3", "4", "5", "12", "01"}) {
+                for (char type : new char[] {'q', 'a'}) {
+                    String expected = TemplateFilters.clozeTextByRegex(text, ord, type);
+                    String scanned = ClozeScanner.of(text).clozeText(ord, type);
+                    if (scanned != null) {
+                        assertThat(text + " " + type + ord, scanned, is(expected));
+                    }
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void nestedClozesAreLeftToTheRegexes() {
+        assertThat(ClozeScanner.of("{{c1::a {{c2::b}} c}}").clozeText("2", 'q'), is(nullValue()));
+    }
+
+
+    @Test
+    public void manyClozes() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= 60; i++) {
+            text.append("<b>{{c").append(i).append("::word ").append(i).append("}}</b> ");
+        }
+        ClozeScanner scanner = ClozeScanner.of(text.toString());
+
+        for (int i = 1; i <= 60; i++) {
+            String ord = Integer.toString(i);
+            assertThat(scanner.clozeText(ord, 'q'), is(TemplateFilters.clozeTextByRegex(text.toString(), ord, 'q')));
+            assertThat(scanner.clozeText(ord, 'a'), is(TemplateFilters.clozeTextByRegex(text.toString(), ord, 'a')));
+        }
+        assertThat(scanner.clozeText("61", 'q'), is(""));
+    }
+}
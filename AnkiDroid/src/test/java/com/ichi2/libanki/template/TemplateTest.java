@@ -50,6 +50,41 @@ public class TemplateTest extends RobolectricTest {
         return ParsedNode.parse_inner(template).render(fields, true, getTargetContext());
     }
 
+    /** Renders with the fields resolved to slots, as the card renderer does */
+    private String renderResolved(String template, Map<String, String> fields) {
+        Map<String, Integer> slots = new HashMap<>();
+        String[] values = new String[fields.size()];
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            values[slots.size()] = field.getValue();
+            slots.put(field.getKey(), slots.size());
+        }
+        StringBuilder builder = new StringBuilder("kept ");
+        ParsedNode.parse_inner(template).resolve(slots).render(new RenderContext(values, values.length, 0), true, getTargetContext(), builder);
+        assertThat(builder.toString(), Matchers.startsWith("kept "));
+        return builder.substring("kept ".length());
+    }
+
+
+    @Test
+    @Config(qualifiers = "en")
+    public void resolvedTemplateRendersAsTheFields() {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("Front", "front");
+        fields.put("Back", "<img src=\"a.jpg\">");
+        fields.put("Empty", "<br>");
+        String[] templates = {
+                "{{Front}} {{text:Back}}",
+                "{{#Front}}a{{^Empty}}b{{/Empty}}{{/Front}}{{#Back}}c{{/Back}}{{#Empty}}d{{/Empty}}",
+                "{{#Unknown}}e{{/Unknown}}{{^Unknown}}f{{/Unknown}}",
+                "{{Front}}{{Unknown}}",
+                "{{hint:Front}}",
+        };
+        for (String template : templates) {
+            assertThat(template, renderResolved(template, fields), is(render(template, fields)));
+        }
+    }
+
+
     @Test
     public void fieldStartingWithExclamation() {
         // Ankidroid used not to display fields whose name start with !